@@ -382,11 +382,21 @@ public
   class InProgressTransformTracker
     def initialize(file_transform)
       @file_transform = file_transform
-      @target = MultiRequestOperationTarget.new
+      # If the operation reports progress when this transform's output is ready, the target completes early
+      @target = MultiRequestOperationTarget.new(file_transform.output_ready_progress || -1)
       @finished = false
       @tracked_requests = 0
       @result = nil
     end
+    # Start the operation shared by the transforms of the trackers, which is removed from the queue if it
+    # can't be done before the requests time out
+    def self.start_operation(trackers)
+      targets = trackers.map { |t| t.target }
+      future = trackers.first.file_transform.operation.submit(TRANSFORM_MAX_WAIT_TIME) do |progress|
+        targets.each { |target| target.operationProgress(progress) }
+      end
+      targets.each { |target| target.completeWith(future) }
+    end
     attr_reader :file_transform
     attr_reader :target
     attr_reader :tracked_requests
@@ -394,6 +404,10 @@ public
     def matches?(other_file_transform)
       (@file_transform != nil) && (@file_transform.is_same_as?(other_file_transform))
     end
+    def matches_output?(stored_file_id, output_options_str)
+      (@file_transform != nil) && (@file_transform.stored_file_id == stored_file_id) &&
+        (@file_transform.output_options_str == output_options_str)
+    end
     def add_continuation(continuation)
       raise "Too many requests waiting on a transform" if @target.numberOfContinuations() > 64
       # Returns false if the operation has completed
@@ -403,11 +417,13 @@ public
       if @result == nil && @target.isComplete()
         unless @finished
           KApp.logger.info("Doing completion tasks for transform #{@file_transform.transform_id}")
-          exception = nil
+          exception = @target.getException()
           begin
-            @file_transform.operation_performed()
-            exception = @target.getException()
-            unless exception
+            if exception
+              # Don't use the output, as the operation may still be running if it timed out
+              @file_transform.clean_up_on_failure()
+            else
+              @file_transform.operation_performed()
               @result = @file_transform.result_pathname
             end
           rescue => e
@@ -487,11 +503,13 @@ public
           logger.info("File transform has already been requested and is in progress")
           file_transform = tracker.file_transform
         else
-          # Not in progress - create tracker and start the operation
+          # Not in progress - create tracker, which starts the operation
           logger.info("Starting new file transform")
           tracker = InProgressTransformTracker.new(file_transform)
           in_progress.trackers[file_transform.transform_id] = tracker
-          file_transform.operation.performInBackground(tracker.target)
+          # Other outputs which will probably be requested next can be made by the same operation
+          batch_trackers = make_batch_transform_trackers(in_progress, stored_file, output_format, file_transform)
+          InProgressTransformTracker.start_operation([tracker] + batch_trackers)
         end
         tracker.inc_tracked_count
         # Suspend this request
@@ -550,6 +568,25 @@ public
     end
   end
 
+  # Batches are limited to outputs which aren't cached or in progress, and for documents, pages which exist
+  def make_batch_transform_trackers(in_progress, stored_file, output_format, file_transform)
+    batch_output_options = []
+    file_transform.batchable_output_options.each do |output_options|
+      page = output_options[:page]
+      break if page && stored_file.dimensions_pages && (page.to_i > stored_file.dimensions_pages)
+      break if KFileTransform.is_cached?(stored_file, output_format, output_options)
+      output_options_str = KFileTransform.output_options_to_str(output_options)
+      break if in_progress.trackers.values.any? { |t| t.matches_output?(stored_file.id, output_options_str) }
+      batch_output_options << output_options
+    end
+    file_transform.make_batch_transforms(stored_file, batch_output_options).map do |batch_transform|
+      KApp.logger.info("Adding transform #{batch_transform.transform_id} to batch for #{file_transform.transform_id}")
+      batch_tracker = InProgressTransformTracker.new(batch_transform)
+      in_progress.trackers[batch_transform.transform_id] = batch_tracker
+      batch_tracker
+    end
+  end
+
   # -------------------------------------------------------------------------------------------------------------------
 
 private
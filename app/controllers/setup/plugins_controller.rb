@@ -12,6 +12,8 @@ class Setup_PluginsController < ApplicationController
   policies_required :setup_system
   include SystemManagementHelper
 
+  SamplingProfiler = Java::OrgHaploJavascriptDebugger::SamplingProfiler
+
   JAVASCRIPT_LOG = Hash.new { |hash,key| hash[key] = [] }
   JAVASCRIPT_LOG_MUTEX = Mutex.new
 
@@ -104,4 +106,24 @@ class Setup_PluginsController < ApplicationController
   def handle_elements
   end
 
+  _GetAndPost
+  def handle_profile
+    if request.post?
+      # Stacks are only sampled while a profile is active, and starting a new profile discards the old samples
+      if params[:stop]
+        SamplingProfiler.stopProfile(KApp.current_application)
+      else
+        SamplingProfiler.startProfile(KApp.current_application)
+      end
+      redirect_to '/do/setup/plugins/profile'
+    end
+    @profiling = SamplingProfiler.isProfiling(KApp.current_application)
+  end
+
+  def handle_profile_download
+    # Folded stacks, for generating flame graphs
+    response.headers['Content-Disposition'] = %Q!attachment; filename="js-profile-#{KApp.current_application}-#{Time.now.strftime('%Y%m%d-%H%M')}.txt"!
+    render :text => SamplingProfiler.getFoldedStacks(KApp.current_application), :kind => :text
+  end
+
 end
\ No newline at end of file
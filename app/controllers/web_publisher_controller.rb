@@ -113,6 +113,13 @@ class WebPublisherController < ApplicationController
       r.headers[KFramework::Headers::CONTENT_DISPOSITION] = %Q!attachment; filename="#{filename}"!
       exchange.response = r
       return
+    elsif body.kind_of?(Java::OrgHaploAppserver::CharSequenceResponse)
+      # Large page, sent without converting it to a Ruby string
+      body.setResponseCode((status_code || 200).to_i)
+      r = JavaScriptPluginController::CharSequenceResponse.new(body)
+      r.content_type = content_type
+      exchange.response = r
+      return
     end
 
     # Build & return response
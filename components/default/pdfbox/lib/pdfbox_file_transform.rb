@@ -9,7 +9,7 @@
 
 class PdfboxFileTransform < KFileTransform::TransformComponent
 
-  PDFPageRender = Java::OrgHaploComponentPdfbox::PDFPageRender
+  PDFPageRenderBatch = Java::OrgHaploComponentPdfbox::PDFPageRenderBatch
   ConvertPDFToText = Java::OrgHaploComponentPdfbox::ConvertPDFToText
   ThumbnailPDF = Java::OrgHaploComponentPdfbox::ThumbnailPDF
 
@@ -19,7 +19,7 @@ class PdfboxFileTransform < KFileTransform::TransformComponent
     transformer = nil
     if input_mime_type == 'application/pdf'
       if output_mime_type =~ /\Aimage\//
-        transformer = TransformPDF
+        transformer = TransformPDF.new
       elsif output_mime_type == 'text/plain'
         transformer = TransformPDFToText.new
       end
@@ -32,7 +32,7 @@ class PdfboxFileTransform < KFileTransform::TransformComponent
   def set_image_dimensions_and_make_thumbnail(mime_type, stored_file, disk_pathname, thumbnail_pathname)
     return nil unless mime_type == 'application/pdf'
     thumbnailer = ThumbnailPDF.new(disk_pathname, thumbnail_pathname, KFileTransform::THUMBNAIL_MAX_DIMENSION)
-    thumbnailer.perform()
+    KFileTransform.wait_for_operation(thumbnailer)
     success = false
     if thumbnailer.isValid()
       stored_file.set_dimensions(thumbnailer.getPDFWidth(), thumbnailer.getPDFHeight(), 'pt')
@@ -48,22 +48,71 @@ class PdfboxFileTransform < KFileTransform::TransformComponent
 
   # -----------------------------------------------------------------------------------------------------------------------
 
+  # Number of pages rendered by one operation when previewing pages, as users tend to view following pages next
+  PREVIEW_BATCH_PAGES = 4
+
   class TransformPDF
-    def self.make_op(input_disk_pathname, output_disk_pathname, input_mime_type, output_mime_type, output_options)
+    def initialize(batch_of = nil, page = nil)
+      @batch_of = batch_of
+      @page = page
+      @batch_last_page = nil
+    end
+    attr_writer :output_disk_pathname
+    attr_reader :output_disk_pathname_prefix
+    attr_reader :output_format
+    def make_op(input_disk_pathname, output_disk_pathname, input_mime_type, output_mime_type, output_options)
       width = output_options[:w].to_i || THUMBNAIL_MAX_DIMENSION
       width = 16 if width <= 0
       height = output_options[:h].to_i || THUMBNAIL_MAX_DIMENSION
       height = 16 if height <= 0
       raise "Can only render PDFs into images" unless output_mime_type =~ /\Aimage\/(\w+)/
-      output_format = $1
-      page = (output_options[:page] || 1)
+      @output_format = $1
+      @page = TransformPDF.page_of(output_options)
+      @output_disk_pathname = output_disk_pathname
+      @output_disk_pathname_prefix = "#{output_disk_pathname}.p"
 
-      PDFPageRender.new(input_disk_pathname, output_disk_pathname, page, width, height, output_format)
+      # Rendered by a batch including any following pages added with batch_output_options=, reporting
+      # each page as progress so the transforms for each page can complete as soon as it's ready
+      op = PDFPageRenderBatch.new(input_disk_pathname, @output_disk_pathname_prefix, @page, @batch_last_page || @page,
+          [width].to_java(:int), [height].to_java(:int), @output_format)
+      op.setPriority(Java::OrgHaploOp::Operation::Priority::INTERACTIVE) # users are waiting to view pages
+      op
+    end
+    def self.page_of(output_options)
+      page = (output_options[:page] || 1).to_i
+      (page < 1) ? 1 : page
+    end
+    # Following pages at the same size, which can be rendered by the same operation
+    def batchable_output_options(output_options)
+      page = TransformPDF.page_of(output_options)
+      (1...PREVIEW_BATCH_PAGES).map { |i| output_options.merge(:page => page + i) }
     end
-    def self.complete_op(op)
-      op.getSuccess()
+    # Must be a contiguous run of pages from batchable_output_options()
+    def batch_output_options=(batch_output_options)
+      @batch_last_page = TransformPDF.page_of(batch_output_options.last)
+    end
+    def transformer_for_batch_output(output_options)
+      TransformPDF.new(self, TransformPDF.page_of(output_options))
+    end
+    def output_ready_progress
+      @page
+    end
+    def complete_op(op)
+      # May be called before the operation has completed, so check the output file rather than the operation
+      page_pathname = page_output_pathname
+      return false unless File.exist?(page_pathname)
+      File.rename(page_pathname, @output_disk_pathname)
+      true
+    end
+    def clean_up
+      page_pathname = page_output_pathname
+      File.unlink(page_pathname) if page_pathname && File.exist?(page_pathname)
     end
-    def self.clean_up
+  private
+    def page_output_pathname
+      primary = @batch_of || self
+      return nil unless primary.output_disk_pathname_prefix
+      "#{primary.output_disk_pathname_prefix}#{@page}-0.#{primary.output_format}"
     end
   end
 
@@ -24,6 +24,84 @@ class ComponentPdfboxFileTransformTest < Test::Unit::TestCase
     assert_equal 1, FileCacheEntry.where(:stored_file_id => stored_file2.id, :output_mime_type => 'image/png', :output_options => 'h=200,w=100').count
   end
 
+  def test_pdf_page_to_image
+    stored_file = StoredFile.from_upload(fixture_file_upload('files/example_3page.pdf', 'application/pdf'))
+    file_transform = KFileTransform.new(stored_file, "image/png", {:w => 60, :h => 80, :page => 2})
+    file_transform.operation.perform()
+    file_transform.operation_performed()
+    assert_equal 'ok 60 80 png', tgfdo_get_dim_string(file_transform.result_pathname)
+    assert_equal 1, FileCacheEntry.where(:stored_file_id => stored_file.id, :output_options => 'h=80,page=2,w=60').count
+    # Page beyond the end of the document fails
+    file_transform2 = KFileTransform.new(stored_file, "image/png", {:w => 60, :h => 80, :page => 4})
+    file_transform2.operation.perform()
+    assert_raises(RuntimeError) { file_transform2.operation_performed() }
+    assert_equal 3, file_transform2.operation.getNumberOfPages()
+  end
+
+  def test_pdf_page_render_batch
+    output_prefix = "#{FILE_UPLOADS_TEMPORARY_DIR}/test_pdf_page_render_batch_#{Thread.current.object_id}_"
+    begin
+      op = Java::OrgHaploComponentPdfbox::PDFPageRenderBatch.new(File.expand_path('test/fixtures/files/example_3page.pdf'),
+        output_prefix, 2, 5, [100, 50].to_java(:int), [120, 60].to_java(:int), 'png')
+      op.perform()
+      assert_equal 3, op.getNumberOfPages()
+      assert_equal [false, true, true, false, false, false], (1..6).map { |page| op.wasPageRendered(page) }
+      [2, 3].each do |page|
+        assert_equal 'ok 100 120 png', tgfdo_get_dim_string(op.getOutputPathname(page, 0))
+        assert_equal 'ok 50 60 png', tgfdo_get_dim_string(op.getOutputPathname(page, 1))
+      end
+      assert !File.exist?(op.getOutputPathname(1, 0))
+      assert !File.exist?(op.getOutputPathname(4, 0))
+    ensure
+      Dir.glob("#{output_prefix}*").each { |pathname| File.unlink(pathname) }
+    end
+  end
+
+  def test_pdf_page_render_batch_progress
+    output_prefix = "#{FILE_UPLOADS_TEMPORARY_DIR}/test_pdf_page_render_batch_progress_#{Thread.current.object_id}_"
+    begin
+      # Largest size is chosen by area, not height, and both sizes are written
+      op = Java::OrgHaploComponentPdfbox::PDFPageRenderBatch.new(File.expand_path('test/fixtures/files/example_3page.pdf'),
+        output_prefix, 1, 4, [200, 100].to_java(:int), [50, 60].to_java(:int), 'png')
+      # Each page is reported as progress as soon as it's rendered
+      progress = java.util.concurrent.ConcurrentLinkedQueue.new
+      op.submit(60000) { |page| progress.add(page) }.waitForResult()
+      assert_equal [1, 2, 3], progress.to_a.sort
+      (1..3).each do |page|
+        assert_equal 'ok 200 50 png', tgfdo_get_dim_string(op.getOutputPathname(page, 0))
+        assert_equal 'ok 100 60 png', tgfdo_get_dim_string(op.getOutputPathname(page, 1))
+      end
+    ensure
+      Dir.glob("#{output_prefix}*").each { |pathname| File.unlink(pathname) }
+    end
+  end
+
+  def test_pdf_page_batch_transforms
+    stored_file = StoredFile.from_upload(fixture_file_upload('files/example_3page.pdf', 'application/pdf'))
+    file_transform = KFileTransform.new(stored_file, "image/png", {:w => 60, :h => 80})
+    assert_equal 1, file_transform.output_ready_progress
+    batchable = file_transform.batchable_output_options
+    assert_equal [2, 3, 4], batchable.map { |o| o[:page] }
+    # Following pages share the operation
+    batch_transforms = file_transform.make_batch_transforms(stored_file, batchable[0,2])
+    assert_equal [2, 3], batch_transforms.map { |t| t.output_ready_progress }
+    batch_transforms.each { |t| assert t.operation.equal?(file_transform.operation) }
+    assert_raises(RuntimeError) { file_transform.make_batch_transforms(stored_file, batchable[2,1]) }
+    file_transform.operation.submit(60000).waitForResult()
+    ([file_transform] + batch_transforms).each do |transform|
+      transform.operation_performed()
+      assert_equal 'ok 60 80 png', tgfdo_get_dim_string(transform.result_pathname)
+    end
+    assert_equal ['h=80,page=2,w=60', 'h=80,page=3,w=60', 'h=80,w=60'],
+      FileCacheEntry.where(:stored_file_id => stored_file.id).map { |e| e.output_options } .sort
+    # Later transforms use the cached pages
+    assert KFileTransform.is_cached?(stored_file, "image/png", {:w => 60, :h => 80, :page => 3})
+    assert !KFileTransform.is_cached?(stored_file, "image/png", {:w => 60, :h => 80, :page => 4})
+    assert KFileTransform.new(stored_file, "image/png", {:w => 60, :h => 80, :page => 2}).result_pathname
+    # Transforms which can't make other outputs don't batch
+    assert_equal [], KFileTransform.new(stored_file, "text/plain").batchable_output_options
+  end
+
   def test_pdf_to_plain_text
     file = StoredFile.from_upload(fixture_file_upload("files/example_3page.pdf", "application/pdf"))
     assert KFileTransform.can_transform?(file, "text/plain")
@@ -53,6 +53,16 @@ Java::OrgHaploFramework::Database.configure(
   db_config["username"],
   db_config["password"]
 )
+if db_config["replica"]
+  # Optional read replica for read only queries
+  replica_config = db_config.merge(db_config["replica"])
+  Java::OrgHaploFramework::Database.configureReplica(
+    replica_config["server"] || "localhost",
+    replica_config["database"],
+    replica_config["username"],
+    replica_config["password"]
+  )
+end
 KFRAMEWORK_DATABASE_NAME = KFRAMEWORK_DATABASE_CONFIG[KFRAMEWORK_ENV]["database"]
 
 # Load environment, library code, and components
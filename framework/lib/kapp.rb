@@ -182,6 +182,27 @@ module KApp
     r
   end
 
+  # For queries which don't write, which may use a read replica of the database
+  def self.with_jdbc_read_only_database
+    r = nil
+    Java::OrgHaploFramework::Database.withReadOnlyConnection do |jdbc_db|
+      r = yield(jdbc_db)
+      nil # avoid a JRuby/Java/JRuby roundtrip of a Ruby object
+    end
+    r
+  end
+
+  # For queries which don't write, which need to use the primary database. Unlike
+  # with_jdbc_database, doesn't stop later read only queries in this request using a replica.
+  def self.with_jdbc_database_for_reading
+    r = nil
+    Java::OrgHaploFramework::Database.withPrimaryConnectionForReading do |jdbc_db|
+      r = yield(jdbc_db)
+      nil # avoid a JRuby/Java/JRuby roundtrip of a Ruby object
+    end
+    r
+  end
+
   def self.with_pg_database
     with_jdbc_database do |jdbc_db|
       # Wraps the jdbc database to provide an old-style PG interface
@@ -278,7 +299,7 @@ private
       @app_id = app_id
       # Set up list of caches
       @caches = Array.new
-      KApp::CACHE_INFO.length.times { @caches << CacheList.new(Array.new, 0) }
+      KApp::CACHE_INFO.length.times { @caches << CacheList.new(Array.new, 0, Array.new, nil) }
       # Counters (for KAccounting)
       @counters_lock = Mutex.new
       @counters = Array.new
@@ -298,6 +319,7 @@ private
     # Store ID in thread local storage
     thread_context = self._thread_context(true)
     thread_context.current_application_id = app_id
+    Java::OrgHaploFramework::Database.setApplicationOnThisThread(app_id) if app_id.kind_of?(Integer)
     # Start the notification centre
     KNotificationCentre.start_on_thread
     # Retrieve the application info object
@@ -360,6 +382,7 @@ private
           KApp.cache_checkin_all_caches
         ensure
           Thread.current[:_frm_thread_context] = nil
+          Java::OrgHaploFramework::Database.clearApplicationOnThisThread()
         end
       end
     end
@@ -19,9 +19,11 @@ module KApp
   CACHE_CHECKIN_EXCEPTION_HEALTH_EVENTS = KFramework::HealthEventReporter.new('CACHE_CHECKIN')
 
   # Info about each cache
-  CacheInfo = Struct.new(:cache_class, :description, :cache_kind)
+  CacheInfo = Struct.new(:cache_class, :description, :cache_kind, :max_idle_time, :min_idle)
   # Holds the caches in the AppInfo object. Serial is a monotonically increasing int to know whether or not to return caches after a clear
-  CacheList = Struct.new(:caches, :serial)
+  # checkin_times is the time each cache was last checked in, in the same order as caches
+  # last_checkout_time is when a cache was last checked out, so pools are only kept warm for applications in use
+  CacheList = Struct.new(:caches, :serial, :checkin_times, :last_checkout_time)
   # Looks after checked out caches, stored in Thread local storage
   CacheCheckout = Struct.new(:cache, :serial_when_checked_out)
 
@@ -34,8 +36,14 @@ module KApp
   # Optional cache_kind argument, which defaults to :per_thread, creating as many cache objects as there are
   # concurent threads requesting a cache. Set to :shared to just use a single cache object.
   # If :shared, then cache_invalidate does nothing, and objects stored within it must behave as immutable.
-  def self.cache_register(klass, description, cache_kind = :per_thread)
-    info = CacheInfo.new(klass, description, cache_kind)
+  # Options for :per_thread caches, for pools of objects which are expensive to keep around:
+  #   :max_idle_time - discard objects which haven't been used for this many seconds
+  #   :min_idle - but always keep at least this many
+  # Discarded objects are sent kapp_cache_evicted if they respond to it.
+  # Idle objects are also discarded by cache_sweep_idle_objects, which pre-creates objects for applications
+  # in use with fewer than :min_idle, if the objects respond to kapp_cache_warm_up.
+  def self.cache_register(klass, description, cache_kind = :per_thread, options = {})
+    info = CacheInfo.new(klass, description, cache_kind, options[:max_idle_time], options[:min_idle] || 0)
     # In development mode, check to see if a cache has already been registered with that description
     if KFRAMEWORK_ENV == 'development'
       c = nil
@@ -77,12 +85,14 @@ module KApp
           return cache_list.caches.first
         else
           serial = cache_list.serial
+          cache_list.last_checkout_time = Time.now
           if cache_list.caches.empty?
             # Create a new cache
             cache = cache_info.cache_class.new
           else
-            # Checkout a cache
+            # Checkout the most recently used cache, so the least recently used become idle
             cache = cache_list.caches.pop
+            cache_list.checkin_times.pop
           end
         end
       end
@@ -124,6 +134,7 @@ module KApp
       cache_list = app_info.caches[cache_number]
       old_caches = cache_list.caches
       cache_list.caches = Array.new
+      cache_list.checkin_times = Array.new
       # Increment serial number so old caches don't get checked in
       cache_list.serial = cache_list.serial + 1
     end
@@ -155,6 +166,7 @@ module KApp
       filtered_caches = cache_list.caches.select { |o| yield o }
       if filtered_caches.length > 0
         cache_list.caches = filtered_caches
+        cache_list.checkin_times = Array.new(filtered_caches.length) { Time.now }
         cache_list.serial = cache_list.serial + 1
         did_preservation = true
       end
@@ -184,6 +196,8 @@ module KApp
       return if failure
       # Finally check in the caches, inside the lock
       app_info = thread_context.current_app_info
+      evicted = nil
+      now = Time.now
       app_info.lock.synchronize do
         checkouts.each_with_index do |cache_checkout, cache_number|
           if cache_checkout != nil
@@ -192,10 +206,95 @@ module KApp
             cache_list = app_info.caches[cache_number]
             if cache_list.serial == cache_checkout.serial_when_checked_out
               cache_list.caches << cache
+              cache_list.checkin_times << now
+              evicted = _cache_remove_idle(cache_list, CACHE_INFO[cache_number], now, evicted)
             end
           end
         end
       end
+      _cache_notify_evicted(evicted)
+    end
+  end
+
+  # Called periodically to discard idle objects from the pools of all applications, as they're otherwise
+  # only discarded when another object is checked in. Pools for applications which have been used recently
+  # are topped up to their minimum size.
+  def self.cache_sweep_idle_objects
+    now = Time.now
+    to_warm = []
+    Java::OrgHaploFramework::Application.allLoadedApplicationObjects().each do |application|
+      app_info = application.getRubyObject()
+      next unless app_info
+      evicted = nil
+      app_info.lock.synchronize do
+        CACHE_INFO.each_with_index do |cache_info, cache_number|
+          next unless cache_info.cache_kind == :per_thread && cache_info.max_idle_time
+          cache_list = app_info.caches[cache_number]
+          evicted = _cache_remove_idle(cache_list, cache_info, now, evicted)
+          if cache_list.caches.length < cache_info.min_idle && cache_list.last_checkout_time &&
+              (now - cache_list.last_checkout_time) <= cache_info.max_idle_time &&
+              cache_info.cache_class.method_defined?(:kapp_cache_warm_up)
+            to_warm << [app_info.app_id, cache_number]
+          end
+        end
+      end
+      _cache_notify_evicted(evicted)
+    end
+    to_warm.each do |app_id, cache_number|
+      begin
+        KApp.in_application(app_id) { cache_warm_up(cache_number) }
+      rescue => e
+        KApp.logger.error("Failed to warm up cache '#{CACHE_INFO[cache_number].description}' for application #{app_id}")
+        KApp.logger.log_exception(e)
+      end
+    end
+  end
+
+  # Create objects for a :per_thread cache in the current application, until there are :min_idle in the pool.
+  # The objects are sent kapp_cache_warm_up instead of being checked out.
+  def self.cache_warm_up(cache_number)
+    cache_info = CACHE_INFO[cache_number]
+    app_info = self._thread_context.current_app_info
+    raise "No app selected" if app_info == nil
+    while true
+      serial = nil
+      app_info.lock.synchronize do
+        cache_list = app_info.caches[cache_number]
+        serial = cache_list.serial if cache_list.caches.length < cache_info.min_idle
+      end
+      return unless serial
+      cache = cache_info.cache_class.new
+      cache.kapp_cache_warm_up
+      app_info.lock.synchronize do
+        cache_list = app_info.caches[cache_number]
+        # Discard the object if the cache was invalidated while it was being created
+        return unless cache_list.serial == serial
+        cache_list.caches << cache
+        cache_list.checkin_times << Time.now
+      end
+    end
+  end
+
+  # Must be called with the app_info lock held. Returns evicted objects, which must be passed to
+  # _cache_notify_evicted after the lock is released.
+  def self._cache_remove_idle(cache_list, cache_info, now, evicted)
+    # Discard the least recently used caches if they've been idle for too long
+    max_idle_time = cache_info.max_idle_time
+    if max_idle_time
+      while cache_list.caches.length > cache_info.min_idle && (now - cache_list.checkin_times.first) > max_idle_time
+        cache_list.checkin_times.shift
+        (evicted ||= []) << cache_list.caches.shift
+      end
+    end
+    evicted
+  end
+
+  def self._cache_notify_evicted(evicted)
+    # Tell the discarded caches, outside the lock
+    if evicted
+      evicted.each do |cache|
+        cache.kapp_cache_evicted if cache.respond_to?(:kapp_cache_evicted, false)
+      end
     end
   end
 
@@ -205,6 +304,7 @@ module KApp
       app_info.lock.synchronize do
         app_info.caches.each do |cache_list|
           cache_list.caches = Array.new
+          cache_list.checkin_times = Array.new
           cache_list.serial = cache_list.serial + 1
         end
       end
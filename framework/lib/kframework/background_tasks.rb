@@ -29,6 +29,9 @@ class KFramework
     def is_transient?
       false # return true to stop the runner from restarting it when it exits
     end
+    def database_pool
+      'job' # or 'longrunning' for tasks which use connections for a long time
+    end
   end
 
   @@background_tasks = Array.new
@@ -50,6 +53,8 @@ class KFramework
       task._start_count = 0
       task._last_start_time = nil
       task._thread = Thread.new do
+        # Keep background work out of the pool of connections used for requests
+        Java::OrgHaploFramework::Database.usePoolOnThisThread(task.database_pool)
         while KFramework.should_continue_running_background_tasks
           begin
             # Store start info
@@ -127,7 +127,8 @@ class MiniORM::QueryBase
     end
     sql = "#{sql} #{sql_end}" unless sql_end.nil? # not << to avoid corrupting sql_begin
     retval = nil
-    KApp.with_jdbc_database do |db|
+    with_database = results_expected ? :with_jdbc_database_for_reading : :with_jdbc_database
+    KApp.send(with_database) do |db|
       statement = db.prepareStatement(sql)
       _insert_values(statement)
       begin
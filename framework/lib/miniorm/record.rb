@@ -82,7 +82,7 @@ class MiniORM::Record
 
   def _read(id)
     table = self._table
-    KApp.with_jdbc_database do |db|
+    KApp.with_jdbc_database_for_reading do |db|
       statement = db.prepareStatement(self.class._sql_fragment(:READ_SQL))
       statement.setInt(1, id)
       begin
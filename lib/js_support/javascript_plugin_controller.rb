@@ -102,6 +102,12 @@ class JavaScriptPluginController < ApplicationController
     return respond_with_xml(body) if body.kind_of?(XmlDocument)
     # Handle response
     render_opts[:status] = status_code if status_code != nil
+    if body.kind_of?(Java::OrgHaploAppserver::CharSequenceResponse)
+      # Large body without a layout, which is sent without converting it to a Ruby string
+      content_type = render_opts[:content_type] ||
+        Ingredient::Rendering::RENDER_KIND_CONTENT_TYPES[CONTENT_TYPES[kind] || :html]
+      return respond_with_char_sequence(body, content_type, status_code)
+    end
     if layout_name == nil
       render_opts[:text] = body
       if kind != nil && CONTENT_TYPES.has_key?(kind)
@@ -151,6 +157,17 @@ class JavaScriptPluginController < ApplicationController
     end
   end
 
+  # Special response which sends text from the Java side without copying it
+  class CharSequenceResponse < KFramework::Response
+    def initialize(java_response)
+      super()
+      @java_response = java_response
+    end
+    def make_java_object
+      @java_response
+    end
+  end
+
   class ZipFileResponse < KFramework::Response
     def initialize(zip_file)
       super()
@@ -191,6 +208,13 @@ class JavaScriptPluginController < ApplicationController
       :disposition => 'attachment'
   end
 
+  def respond_with_char_sequence(java_response, content_type, status_code)
+    java_response.setResponseCode(status_code.to_i) if status_code != nil
+    r = CharSequenceResponse.new(java_response)
+    r.content_type = content_type
+    exchange.response = r
+  end
+
   def respond_with_zip_file(zip_file)
     r = ZipFileResponse.new(zip_file)
     r.content_type = "application/zip"
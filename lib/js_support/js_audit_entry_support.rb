@@ -119,7 +119,9 @@ module JSAuditEntrySupport
 
   def self.executeQuery(query, firstResultOnly)
     entries = constructQuery(query)
-    firstResultOnly ? [entries.first()].compact : entries.select()
+    KApp.with_jdbc_read_only_database do
+      firstResultOnly ? [entries.first()].compact : entries.select()
+    end
   end
 
 end
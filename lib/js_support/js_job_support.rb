@@ -38,8 +38,11 @@ module JSKJobSupport
     end
 
     def run(context)
-      call_hook(:hPlatformInternalJobRun) do |hooks|
-        hooks.run(@name, @data)
+      # Jobs are allowed more time than requests
+      KJSPluginRuntime.current.using_runtime(:job) do
+        call_hook(:hPlatformInternalJobRun) do |hooks|
+          hooks.run(@name, @data)
+        end
       end
     end
   end
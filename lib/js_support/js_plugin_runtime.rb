@@ -9,8 +9,20 @@
 
 
 class KJSPluginRuntime
-  RUNTIME_CACHE = KApp.cache_register(KJSPluginRuntime, "JavaScript runtimes")
+  # Runtimes are pooled per application. Idle runtimes are discarded, but a few are kept warm.
+  RUNTIME_POOL_MAX_IDLE_TIME = 600 # seconds
+  RUNTIME_POOL_MIN_IDLE = 2
+  RUNTIME_CACHE = KApp.cache_register(KJSPluginRuntime, "JavaScript runtimes", :per_thread,
+    {:max_idle_time => RUNTIME_POOL_MAX_IDLE_TIME, :min_idle => RUNTIME_POOL_MIN_IDLE})
   Runtime = Java::OrgHaploJavascript::Runtime
+  RuntimePoolMetrics = Java::OrgHaploJavascript::RuntimePoolMetrics
+
+  # Discard idle runtimes promptly, and keep the minimum number warm for applications in use
+  KFramework.scheduled_task_register(
+    "js_runtime_pool_sweep", "Sweep idle JavaScript runtimes",
+    0, 0, 60,
+    proc { KApp.cache_sweep_idle_objects }
+  )
 
   JS_PLUGIN_RUNTIME_HEALTH_REPORTER = KFramework::HealthEventReporter.new("JS_PLUGIN_RUNTIME")
 
@@ -32,6 +44,13 @@ class KJSPluginRuntime
     Runtime.discardApplicationScope(KApp.current_application)
   end
 
+  # Other runtimes only reload plugin data stores when a plugin has changed its data
+  KNotificationCentre.when(:app_global_change) do |name, global, value|
+    if global.to_s.start_with?('_pjson_')
+      Runtime.pluginDataChanged(KApp.current_application)
+    end
+  end
+
   def self.invalidate_all_runtimes
     # Delay the invalidation until the runtime has exited -- this is called from the JS API
     KNotificationCentre.notify(:jspluginruntime_internal, :invalidation_requested)
@@ -53,10 +72,18 @@ class KJSPluginRuntime
   end
 
   # Keep track of nested calls into the JavaScript runtime, using the notification buffer to track the depth
+  # The outermost call starts a new execution budget of the given kind (:request, :job, :hook, or nil for no limits),
+  # which is removed when it returns.
   # Returns the value of the yielded block.
-  def using_runtime
+  def using_runtime(budget = :request)
     @@invalidate_notification_buffer.while_buffering do
-      yield
+      outermost = (@@invalidate_notification_buffer.buffering_depth == 1)
+      @runtime.startExecutionBudget(budget ? budget.to_s : nil) if outermost
+      begin
+        yield
+      ensure
+        @runtime.startExecutionBudget(nil) if outermost
+      end
     end
   end
 
@@ -75,6 +102,7 @@ class KJSPluginRuntime
 
   def kapp_cache_checkout
     raise "Bad state for KJSPluginRuntime" if @support_root != nil
+    RuntimePoolMetrics.runtimeCheckedOut(@runtime == nil) unless @warming_up
     # Set the SYSTEM user as active during code loading (which could do things like making queries),
     # and when the the onLoad() function is called. Otherwise it's not predictable which user is active,
     # and the plugin may not have sufficient permissions, or schema loading may not be able to see
@@ -117,7 +145,7 @@ class KJSPluginRuntime
               end
             end
             db_namespaces = DatabaseNamespaces.new
-            using_runtime do
+            using_runtime(nil) do
               # Use the Rhino interpreter for any code run during plugin initialisation
               # to avoid creating unnecessary JVM classes from compliation.
               @runtime.getContext().setOptimizationLevel(-1)
@@ -141,6 +169,8 @@ class KJSPluginRuntime
               end
               @runtime.host.callAllPluginOnLoad()
             end
+            # Set up hook call caches for the hooks other runtimes have used, so this one starts warm
+            @runtime.host.prewarmCaches()
             @plugins_loaded = true
           end
           KApp.logger.info("Initialised application JavaScript runtime, took #{ms.to_i}ms for application #{KApp.current_application}\n")
@@ -217,8 +247,25 @@ class KJSPluginRuntime
   end
   alias kapp_cache_invalidated kapp_cache_checkin
 
+  # Load the plugins into a new runtime, so it's ready for use when it's first checked out
+  def kapp_cache_warm_up
+    @warming_up = true
+    begin
+      kapp_cache_checkout
+      kapp_cache_checkin
+    ensure
+      @warming_up = false
+    end
+    RuntimePoolMetrics.runtimeWarmedUp()
+  end
+
+  def kapp_cache_evicted
+    RuntimePoolMetrics.runtimeEvicted()
+    @runtime = nil
+  end
+
   def call_all_hooks(hook_name, args)
-    using_runtime do
+    using_runtime(:hook) do
       @runtime.host.callHookInAllPlugins(hook_name, args)
     end
   end
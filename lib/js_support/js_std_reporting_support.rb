@@ -36,6 +36,7 @@ module JSStdReportingSupport
     end
     def prepare_to_stop;  StdReporting.setShouldStopUpdating(); end
     def stop;             StdReporting.setShouldStopUpdating(); end
+    def database_pool;    'longrunning'; end
 
     def start
       # First, wait a little, then check for updates in all apps in case
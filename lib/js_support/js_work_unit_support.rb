@@ -24,16 +24,19 @@ module JSWorkUnitSupport
 
   def self.executeQuery(query, firstResultOnly)
     units = build_ruby_query(query).order(:stable_created_at)
-    if firstResultOnly
-      first = units.first()
-      (first == nil) ? [] : [first]
-    else
-      units.select()
+    KApp.with_jdbc_read_only_database do
+      if firstResultOnly
+        first = units.first()
+        (first == nil) ? [] : [first]
+      else
+        units.select()
+      end
     end
   end
 
   def self.executeCount(query)
-    build_ruby_query(query).count()
+    units = build_ruby_query(query)
+    KApp.with_jdbc_read_only_database { units.count() }
   end
 
   def self.executeCountByTagsJSON(query, tags)
@@ -56,7 +59,7 @@ module JSWorkUnitSupport
     sql = "SELECT #{select} FROM #{KApp.db_schema_name}.work_units #{where_sql} GROUP BY #{tag_values} ORDER BY #{tag_values}"
     # Execute query
     result = {}
-    KApp.with_jdbc_database do |db|
+    KApp.with_jdbc_read_only_database do |db|
       statement = db.prepareStatement(sql)
       rq.unsafe_insert_values_for_where_clause(statement)
       qresults = statement.executeQuery()
@@ -238,7 +238,7 @@ class KJSFileTransformPipeline < KJob
       raise JavaScriptAPIError, "Can't convert from #{input.mime_type} to #{output_mime_type}" unless transformer
       output_pathname = pipeline.make_managed_temporary_file_pathname()
       operation = transformer.make_op(input.disk_pathname, output_pathname, input.mime_type, output_mime_type, conversion_options())
-      operation.perform()
+      KFileTransform.wait_for_operation(operation)
       success = transformer.complete_op(operation)
       if success && File.exist?(output_pathname)
         pipeline.set_file(self.output_name, GeneratedFileListEntry.new(output_pathname, output_mime_type))
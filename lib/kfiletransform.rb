@@ -27,6 +27,14 @@ class KFileTransform
   MAX_RENDER_TEXT_CONVERTED_FILE_SIZE = (2*1024*1024) # 2MB
   MAX_RENDER_TEXT_CHARS = (64*1024)
 
+  # Longest time the synchronous methods wait for an operation, including time waiting for a worker process, in ms
+  OPERATION_TIMEOUT = 5*60*1000
+
+  # Wait for an operation to complete, raising an exception if it fails or takes too long
+  def self.wait_for_operation(operation)
+    operation.submit(OPERATION_TIMEOUT).waitForResult()
+  end
+
   # Internal format for handling HTML with attached images in a single zip file
   MIME_TYPE_HTML_IN_ZIP = 'x-oneis/html-zipped'
 
@@ -94,7 +102,7 @@ class KFileTransform
     return nil unless file_transform.can_transform?
     begin
       # Perform the operation synchronously
-      file_transform.operation.perform()
+      wait_for_operation(file_transform.operation)
       # Then let the transform object use the result
       file_transform.operation_performed()
     rescue
@@ -110,33 +118,48 @@ class KFileTransform
     file_transform ? file_transform.result_pathname : nil
   end
 
-  def initialize(stored_file, output_mime_type = nil, output_options = nil)
+  # Options need to be converted to text for various caching lookups
+  def self.output_options_to_str(output_options)
+    return '' if output_options == nil
+    output_options.keys.map {|k| "#{k.to_s}=#{output_options[k].to_s}"}.sort.join(',') # sort after map
+  end
+
+  def self.is_cached?(stored_file, output_mime_type, output_options)
+    !!(FileCacheEntry.for(stored_file, output_mime_type, output_options_to_str(output_options)))
+  end
+
+  # If batch_of is another KFileTransform, this transform is for another output made by its operation
+  def initialize(stored_file, output_mime_type = nil, output_options = nil, batch_of = nil)
     @output_mime_type = output_mime_type
     # Info on stored file
     @stored_file_id = stored_file.id # only keep the ID, since completion may happen in different thread
     input_mime_type = KMIMETypes.canonical_base_type(stored_file.mime_type)
     input_disk_pathname = stored_file.disk_pathname
-    # Options need to be converted to text for various caching lookups
-    if output_options != nil
-      @output_options_str = output_options.keys.map {|k| "#{k.to_s}=#{output_options[k].to_s}"}.sort.join(',') # sort after map
-    else
-      @output_options_str = ''
-    end
-    # Try to find a cache entry
-    cached = FileCacheEntry.for(stored_file, output_mime_type, @output_options_str)
-    if cached != nil
-      cached.update_usage_info!
-      @result_pathname = cached.disk_pathname
-      return
+    @output_options = output_options
+    @output_options_str = KFileTransform.output_options_to_str(output_options)
+    unless batch_of
+      # Try to find a cache entry
+      cached = FileCacheEntry.for(stored_file, output_mime_type, @output_options_str)
+      if cached != nil
+        cached.update_usage_info!
+        @result_pathname = cached.disk_pathname
+        return
+      end
     end
     # Only setup a transformer for files which are small enough
     if File.size(input_disk_pathname) <= KFileTransform.max_file_size_for_mime_type(input_mime_type)
       # Might not be able to find a transformer.
-      @transformer = KFileTransform.get_transformer(input_mime_type, output_mime_type)
+      @transformer = batch_of ? batch_of.transformer.transformer_for_batch_output(output_options) :
+          KFileTransform.get_transformer(input_mime_type, output_mime_type)
       if @transformer
         @transform_id = KRandom.random_api_key(33) # used for disk filenames to avoid collisions - thread ID not good enough
         @temp_disk_pathname = "#{FILE_UPLOADS_TEMPORARY_DIR}/temptransform_#{Thread.current.object_id}.#{@transform_id}.tmp"
-        @operation = @transformer.make_op(input_disk_pathname, @temp_disk_pathname, input_mime_type, output_mime_type, output_options)
+        if batch_of
+          @transformer.output_disk_pathname = @temp_disk_pathname
+          @operation = batch_of.operation
+        else
+          @make_op_args = [input_disk_pathname, @temp_disk_pathname, input_mime_type, output_mime_type, output_options]
+        end
       end
     end
   end
@@ -144,14 +167,44 @@ class KFileTransform
   attr_reader :output_options_str
   attr_reader :result_pathname
   attr_reader :transform_id
-  attr_reader :operation
   attr_reader :stored_file_id
   attr_reader :created_cache_entry
+  attr_reader :transformer
+  protected :transformer
+
+  # Operation is made when it's first needed, so other outputs can be added to the batch before then
+  def operation
+    @operation ||= (@make_op_args ? @transformer.make_op(*@make_op_args) : nil)
+  end
 
   def can_transform?
     (@transformer != nil)
   end
 
+  # -----------------------------------------------------------------------------------------------------------------
+
+  # Some transformers can make other outputs from the same operation, eg following pages of a document.
+  # Returns the output options for the other outputs which could be included in this transform's operation,
+  # in the order they must be added.
+  def batchable_output_options
+    (@make_op_args && @transformer.respond_to?(:batchable_output_options)) ? @transformer.batchable_output_options(@output_options) : []
+  end
+
+  # Add other outputs to the operation, before it's made, returning a KFileTransform for each one, which
+  # shares this transform's operation.
+  def make_batch_transforms(stored_file, batch_output_options)
+    raise "Operation already made for transform" if @operation
+    return [] if batch_output_options.empty?
+    @transformer.batch_output_options = batch_output_options
+    batch_output_options.map { |output_options| KFileTransform.new(stored_file, @output_mime_type, output_options, self) }
+  end
+
+  # Progress reported by the operation when the output of this transform is ready, or nil if
+  # it's only ready when the operation completes.
+  def output_ready_progress
+    (@transformer && @transformer.respond_to?(:output_ready_progress)) ? @transformer.output_ready_progress : nil
+  end
+
   def operation_performed
     success = @transformer.complete_op(@operation)
     entry = nil
@@ -331,7 +384,7 @@ class KFileTransform
 
         # IMAGE - get the dimensions
         identifier = ImageIdentifier.new(stored_file.disk_pathname)
-        identifier.perform()
+        wait_for_operation(identifier)
         if identifier.getSuccess()
           stored_file.set_dimensions(identifier.getWidth(), identifier.getHeight(), 'px')
 
@@ -345,7 +398,7 @@ class KFileTransform
             transformer = ImageTransform.new(stored_file.disk_pathname, thumbnail_pathname, output_format)
             transformer.setResize(w,h)
             transformer.setQuality(70)
-            transformer.perform()
+            wait_for_operation(transformer)
             if transformer.getSuccess() && File.exists?(thumbnail_pathname)
               stored_file.set_thumbnail(w, h, StoredFile::THUMBNAIL_FORMAT__LOOKUP[output_format])
               stored_file.dimensions_pages = 1
@@ -379,7 +432,7 @@ class KFileTransform
 
       # Pick up from any of the java conversions
       if thumbfinder_op != nil
-        thumbfinder_op.perform()
+        wait_for_operation(thumbfinder_op)
         if thumbfinder_op.hasMadeThumbnail() && File.exists?(thumbnail_pathname)
           thumb_info = thumbfinder_op.getThumbnailDimensions()
           stored_file.set_thumbnail(thumb_info.width, thumb_info.height, StoredFile::THUMBNAIL_FORMAT_PNG)
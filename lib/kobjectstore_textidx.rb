@@ -96,6 +96,9 @@ class KObjectStore
   # Maximum number of parent links to follow when including terms from linked objects
   TEXT_INDEX_MAX_PARENT_COUNT = 128
 
+  # Maximum number of files to extract text from in parallel while indexing a batch of objects
+  TEXT_INDEX_MAX_FILE_EXTRACTIONS = 16
+
   # --------------------------------------------------------------------------------------------------------------------
 
   def self.run_text_indexing
@@ -290,14 +293,18 @@ class KObjectStore
         obj
       end
 
+      raw_objects = fetched_objs.map do |id_t,type_object_id_t,object_m,labels_m|
+        [id_t.to_i, KObjectStore._deserialize_object(object_m,labels_m)]
+      end
+
       # Start an exception handler block to make sure the database is closed on errors
       begin
-        objids_updated = Array.new
+        @file_extractions = start_file_extractions(raw_objects.map { |id, raw_object| raw_object }, attr_weightings)
 
-        fetched_objs.each do |id_t,type_object_id_t,object_m,labels_m|
-          objids_updated << id_t.to_i
+        objids_updated = Array.new
 
-          raw_object = KObjectStore._deserialize_object(object_m,labels_m)
+        raw_objects.each do |id, raw_object|
+          objids_updated << id
 
           KApp.logger.info "Indexing #{raw_object.objref.to_presentation} for application #{@app_id}"
 
@@ -314,7 +321,7 @@ class KObjectStore
             # If the caller is filtering, check to see if this object should be reindexed
             next if block_given? && !yield(object)
 
-            document = writer.document(id_t.to_i)
+            document = writer.document(id)
 
             objs_to_index.each do |iobj, restrictions|
 
@@ -391,32 +398,45 @@ class KObjectStore
         writer.write
 
       ensure
+        # Remove any extractions which weren't used from the queue
+        @file_extractions.each_value { |extraction| extraction.cancel } if @file_extractions
+        @file_extractions = nil
         KApp.logger.info "Finished text indexing for application #{@app_id}"
         KApp.logger.flush_buffered
       end
 
     end
 
+    # Extracting text from files is slow, so start extracting text from all the indexed files in the batch of
+    # objects before indexing them. The worker processes then extract them in parallel, rather than one at a time
+    # as each value is indexed.
+    def start_file_extractions(objects, attr_weightings)
+      extractions = {}
+      objects.each do |object|
+        object.each do |value,desc,qualifier_v|
+          next unless value.kind_of?(KIdentifierFile)
+          next if text_weight(attr_weightings, desc, qualifier_v || 0) <= 0
+          key = value.to_identifier_index_str
+          next if extractions.has_key?(key) || extractions.length >= TEXT_INDEX_MAX_FILE_EXTRACTIONS
+          stored_file = value.find_stored_file
+          extractions[key] = stored_file ? KTextExtract.start_extraction_from(stored_file) : nil
+        end
+      end
+      extractions.delete_if { |key, extraction| extraction.nil? }
+    end
+
     # Post terms to database, converting text values to terms
     def post_terms(document, attr_weightings, desc, qualifier, restriction_labels, text_value, relevancy_weight_multipler = nil)
-      # Determine weight of this text
-      weight = if attr_weightings.has_key?(desc)
-        attr_weightings[desc][qualifier] || attr_weightings[desc][0] || TEXTIDX_WEIGHT_MULITPLER
-      else
-        TEXTIDX_WEIGHT_MULITPLER
-      end
-      # Only multiply weight if the existing weight is not 0, so disabling works even with the clamp
-      if weight > 0 && relevancy_weight_multipler != nil
-        weight = ((weight.to_f * relevancy_weight_multipler.to_f) / RELEVANCY_WEIGHT_MULTIPLER.to_f).to_i
-        weight = 1 if weight < 1  # clamp it to 1, so it's not irrelevant
-      end
+      weight = text_weight(attr_weightings, desc, qualifier, relevancy_weight_multipler)
 
       # Get processed and stemmed terms from the text, but only if the weight is greater than zero.
       # Setting relevancy to 0 turns off indexing - value isn't even processed.
       terms = nil
       if weight > 0
         begin
-          terms = text_value.to_terms
+          extraction = (text_value.kind_of?(KIdentifierFile) && @file_extractions) ?
+              @file_extractions[text_value.to_identifier_index_str] : nil
+          terms = extraction ? extraction.terms : text_value.to_terms
         rescue => e
           # TODO: Handle exceptions better
           KApp.logger.error("Ignoring exception during text indexing")
@@ -434,12 +454,30 @@ class KObjectStore
       end
     end
 
+    # Determine weight of text in an attribute
+    def text_weight(attr_weightings, desc, qualifier, relevancy_weight_multipler = nil)
+      weight = if attr_weightings.has_key?(desc)
+        attr_weightings[desc][qualifier] || attr_weightings[desc][0] || TEXTIDX_WEIGHT_MULITPLER
+      else
+        TEXTIDX_WEIGHT_MULITPLER
+      end
+      # Only multiply weight if the existing weight is not 0, so disabling works even with the clamp
+      if weight > 0 && relevancy_weight_multipler != nil
+        weight = ((weight.to_f * relevancy_weight_multipler.to_f) / RELEVANCY_WEIGHT_MULTIPLER.to_f).to_i
+        weight = 1 if weight < 1  # clamp it to 1, so it's not irrelevant
+      end
+      weight
+    end
+
   end
 
   # --------------------------------------------------------------------------------------------------------------------
 
   # Background task
   class IndexingBackgroundTask < KFramework::BackgroundTask
+    def database_pool
+      'longrunning'
+    end
     def start
       KObjectStore.run_text_indexing
     end
@@ -14,6 +14,8 @@ module KTextExtract
 
   # Maximum file size for extracting text
   MAX_EXTRACT_FILE_SIZE = (1024*1024*128) # 128MB
+  # Longest time to wait for an extraction, including time waiting for a worker process, in ms
+  EXTRACT_OPERATION_TIMEOUT = 5*60*1000
   # Copy over the exceptions from KFileTransform (see notes there about processing limits)
   MAX_EXTRACT_FILE_SIZE_EXCEPTIONS = KFileTransform::MAX_TRANSFORM_FILE_SIZE_EXCEPTIONS
   raise "Expected exceptions" if MAX_EXTRACT_FILE_SIZE_EXCEPTIONS.empty?
@@ -56,20 +58,42 @@ module KTextExtract
     MAX_EXTRACT_FILE_SIZE_EXCEPTIONS[mime_type] || MAX_EXTRACT_FILE_SIZE
   end
 
-  # Extract the terms from a random file
-  def self.extract_terms(filename, mime_type)
+  # Start extracting the terms from a random file, returning an Extraction, or nil if the terms can't be extracted.
+  # Several extractions can be started before waiting for any of them, so they're done in parallel.
+  def self.start_extraction(filename, mime_type)
     return nil if File.size(filename) > max_file_size_for_mime_type(mime_type) # protect from parsing huge files
     op = self.make_extraction_operation(filename, mime_type)
-    return nil if op == nil
-    result = nil
-    begin
-      op.perform()
-      result = op.getOutput()
-    rescue => e
-      KApp.logger.error("Error extracting text from #{filename} (#{mime_type})")
-      KApp.logger.log_exception(e)
+    (op == nil) ? nil : Extraction.new(filename, mime_type, op)
+  end
+
+  class Extraction
+    def initialize(filename, mime_type, op)
+      @filename = filename
+      @mime_type = mime_type
+      @op = op
+      @future = op.submit(EXTRACT_OPERATION_TIMEOUT)
+    end
+    # Wait for the extraction to complete, returning the terms or nil if it failed
+    def terms
+      begin
+        @future.waitForResult()
+        @op.getOutput()
+      rescue => e
+        KApp.logger.error("Error extracting text from #{@filename} (#{@mime_type})")
+        KApp.logger.log_exception(e)
+        nil
+      end
+    end
+    # Remove the operation from the queue if the terms won't be needed
+    def cancel
+      @future.cancel(false)
     end
-    result
+  end
+
+  # Extract the terms from a random file
+  def self.extract_terms(filename, mime_type)
+    extraction = start_extraction(filename, mime_type)
+    extraction ? extraction.terms : nil
   end
 
   # Extract terms, given a StoredFile
@@ -77,5 +101,9 @@ module KTextExtract
     extract_terms(stored_file.disk_pathname, stored_file.mime_type)
   end
 
+  def self.start_extraction_from(stored_file)
+    start_extraction(stored_file.disk_pathname, stored_file.mime_type)
+  end
+
 end
 
@@ -7,20 +7,57 @@
 package org.haplo.app;
 
 import java.util.ArrayList;
+import java.util.concurrent.CompletionStage;
 
 import org.eclipse.jetty.continuation.Continuation;
 
 import org.haplo.op.Operation;
 import org.haplo.op.OpNotifyTarget;
 
+/**
+ * Resumes suspended requests waiting for an operation to complete, so the
+ * request threads aren't blocked while it's being performed.
+ */
 public class MultiRequestOperationTarget implements OpNotifyTarget {
     private boolean complete;
     private Exception exception;
     private ArrayList<Continuation> continuations;
+    private int readyAtProgress;
 
     public MultiRequestOperationTarget() {
+        this(-1);
+    }
+
+    public MultiRequestOperationTarget(CompletionStage<Operation> completion) {
+        this(-1);
+        completeWith(completion);
+    }
+
+    /**
+     * For operations which make several outputs, and report progress as each one is
+     * ready, a target can complete early when operationProgress() is called with
+     * readyAtProgress. Use -1 to complete only when the operation completes.
+     */
+    public MultiRequestOperationTarget(int readyAtProgress) {
         this.complete = false;
         this.continuations = new ArrayList<Continuation>(4);
+        this.readyAtProgress = readyAtProgress;
+    }
+
+    public void operationProgress(int progress) {
+        if((this.readyAtProgress >= 0) && (progress == this.readyAtProgress)) {
+            notifyOperationComplete(null);
+        }
+    }
+
+    public void completeWith(CompletionStage<Operation> completion) {
+        completion.whenComplete((operation, exception) -> {
+            if(exception == null) {
+                notifyOperationComplete(operation);
+            } else {
+                notifyOperationException(operation, (exception instanceof Exception) ? (Exception)exception : new RuntimeException(exception));
+            }
+        });
     }
 
     public boolean addContinuation(Continuation continuation) {
@@ -52,16 +89,21 @@ public class MultiRequestOperationTarget implements OpNotifyTarget {
         return this.exception;
     }
 
+    // Only the first notification is used, as the target may have completed early from progress
     public void notifyOperationComplete(Operation operation) {
         synchronized(this) {
-            doCompletion();
+            if(!this.complete) {
+                doCompletion();
+            }
         }
     }
 
     public void notifyOperationException(Operation operation, Exception exception) {
         synchronized(this) {
-            this.exception = exception;
-            doCompletion();
+            if(!this.complete) {
+                this.exception = exception;
+                doCompletion();
+            }
         }
     }
 
@@ -0,0 +1,105 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.appserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Response object which writes text held in memory, encoding it as UTF-8
+ * through a small buffer as it's written. Unlike DataResponse, a large
+ * response doesn't need an encoded copy of the entire body, and streamed
+ * compression starts sending data as soon as the first buffer is encoded.
+ *
+ * Use the setHeader() in the base class to set the MIME type.
+ */
+public class CharSequenceResponse extends Response {
+    private static final int ENCODING_BUFFER_SIZE = 8 * 1024;
+
+    private CharSequence body;
+    private int responseCode;
+    private long contentLength;
+
+    /**
+     * Constructor
+     *
+     * @param body text to send in the body of the HTTP response
+     */
+    public CharSequenceResponse(CharSequence body) {
+        this.body = body;
+        this.responseCode = 200;
+        this.contentLength = -1;
+    }
+
+    public void setResponseCode(int responseCode) {
+        this.responseCode = responseCode;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public long getContentLength() {
+        if(contentLength == -1) {
+            contentLength = encodedLength(body);
+        }
+        return contentLength;
+    }
+
+    public void writeToOutputStream(OutputStream stream) throws IOException {
+        // Unpaired surrogates are replaced, matching String.getBytes() and encodedLength()
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().
+            onMalformedInput(CodingErrorAction.REPLACE).
+            onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer input = CharBuffer.wrap(body);
+        ByteBuffer output = ByteBuffer.allocate(ENCODING_BUFFER_SIZE);
+        boolean flushing = false;
+        while(true) {
+            CoderResult result = flushing ? encoder.flush(output) : encoder.encode(input, output, true);
+            if(output.position() > 0) {
+                stream.write(output.array(), 0, output.position());
+                output.clear();
+            }
+            if(result.isUnderflow()) {
+                if(flushing) { break; }
+                flushing = true;
+            }
+        }
+    }
+
+    public String getAbbreviatedResponseBodyForLogging() {
+        return (body.length() > 1536) ? body.subSequence(0, 1536).toString() : body.toString();
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static long encodedLength(CharSequence text) {
+        long length = 0;
+        int count = text.length();
+        for(int i = 0; i < count; ++i) {
+            char c = text.charAt(i);
+            if(c < 0x80) {
+                length++;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && (i + 1) < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if(Character.isSurrogate(c)) {
+                length++;   // replaced with '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -7,14 +7,38 @@
 package org.haplo.appserver;
 
 import java.io.*;
-import org.apache.commons.io.IOUtils;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.eclipse.jetty.server.HttpOutput;
 
 /**
  * Response object which writes the contents of a file.
  *
  * Use the setHeader() in the base class to set the MIME type and other headers.
+ *
+ * When writing to Jetty's output, large files are sent from memory mapped
+ * regions of the file, so the bytes are never copied through a heap buffer.
+ * Each region is unmapped as soon as it has been written. Otherwise the file
+ * is sent with FileChannel.transferTo().
  */
 public class FileResponse extends Response {
+    // Files (or ranges) at least this big are sent from mapped regions. A negative value disables mapping.
+    private static final long MAPPED_SERVING_THRESHOLD = Long.getLong("org.haplo.fileresponse.mapthreshold", 64 * 1024);
+    // Maximum size of a single mapped region, so huge files don't need huge amounts of address space at once
+    private static final long MAPPED_REGION_MAX_SIZE = 8 * 1024 * 1024;
+    // Releases a mapped region without waiting for the garbage collector, or null if the JVM doesn't allow it
+    private static final MethodHandle UNMAPPER = findUnmapper();
+
     private File file;
 
     /**
@@ -35,30 +59,88 @@ public class FileResponse extends Response {
     }
 
     public void writeToOutputStream(OutputStream stream) throws IOException {
-        InputStream in = new FileInputStream(file);
-        try {
-            IOUtils.copy(in, stream);
-        } finally {
-            IOUtils.closeQuietly(in);
-        }
+        writeRangeToOutputStream(stream, 0, file.length());
     }
 
     public void writeRangeToOutputStream(OutputStream stream, long offset, long length) throws IOException {
         if(length == 0) {
             return;
         }
-        FileInputStream in = new FileInputStream(file);
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if((stream instanceof HttpOutput) && (MAPPED_SERVING_THRESHOLD >= 0) && (length >= MAPPED_SERVING_THRESHOLD)) {
+                writeMappedRegions(channel, (HttpOutput)stream, offset, length);
+            } else {
+                transferRegion(channel, stream, offset, length);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    private void writeMappedRegions(FileChannel channel, HttpOutput out, long offset, long length) throws IOException {
+        long position = offset;
+        long remaining = length;
+        while(remaining > 0) {
+            long regionSize = (remaining > MAPPED_REGION_MAX_SIZE) ? MAPPED_REGION_MAX_SIZE : remaining;
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+            try {
+                // Jetty writes large buffers directly to the connection without aggregating them,
+                // and the write blocks until the buffer has been sent
+                out.write(region);
+            } finally {
+                unmap(region);
+            }
+            position += regionSize;
+            remaining -= regionSize;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer region) {
+        if(UNMAPPER != null) {
+            try {
+                UNMAPPER.invokeExact((ByteBuffer)region);
+            } catch(Throwable e) {
+                // Ignore, the region will be unmapped when the buffer is garbage collected
+            }
+        }
+    }
+
+    private static MethodHandle findUnmapper() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
         try {
-            in.skip(offset);
-            byte[] buffer = new byte[4096];
-            long count = 0;
-            int n = 0;
-            while(count < length && (-1 != (n = in.read(buffer, 0, (int)(((length - count) > 4096) ? 4096 : (length - count)))))) {
-                stream.write(buffer, 0, n);
-                count += n;
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            // Not available, try the Java 8 API
+        }
+        try {
+            Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            clean.setAccessible(true);
+            return MethodHandles.filterReturnValue(lookup.unreflect(cleaner), lookup.unreflect(clean)).
+                asType(MethodType.methodType(void.class, ByteBuffer.class));
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void transferRegion(FileChannel channel, OutputStream stream, long offset, long length) throws IOException {
+        // Don't close this channel, as that would close the underlying output stream
+        WritableByteChannel target = Channels.newChannel(stream);
+        long position = offset;
+        long remaining = length;
+        while(remaining > 0) {
+            long n = channel.transferTo(position, remaining, target);
+            if(n <= 0) {
+                throw new IOException("File truncated while sending response: "+file.getPath());
             }
-        } finally {
-            IOUtils.closeQuietly(in);
+            position += n;
+            remaining -= n;
         }
     }
 }
@@ -0,0 +1,94 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.appserver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.InclusiveByteRange;
+
+/**
+ * Writes a multipart/byteranges body for a request with more than one range,
+ * using the range support of a Response.
+ */
+public class MultipartByteRanges {
+    // Requests for more ranges than this are answered with the whole response
+    public static final int MAXIMUM_RANGES = 32;
+
+    private static final AtomicLong boundaryCounter = new AtomicLong(System.nanoTime());
+
+    private List<InclusiveByteRange> ranges;
+    private String boundary;
+    private byte[][] partHeaders;
+    private byte[] closingBoundary;
+    private long length;
+
+    /**
+     * Constructor
+     *
+     * @param ranges Satisfiable ranges, as returned by InclusiveByteRange.satisfiableRanges()
+     * @param partContentType MIME type of the underlying response, or null if unknown
+     * @param contentLength Total length of the underlying response
+     */
+    public MultipartByteRanges(List<InclusiveByteRange> ranges, String partContentType, long contentLength) {
+        this.ranges = ranges;
+        this.boundary = "haplo-byteranges-"+Long.toHexString(boundaryCounter.incrementAndGet());
+        if(partContentType == null) {
+            partContentType = "application/octet-stream";
+        }
+        this.partHeaders = new byte[ranges.size()][];
+        long total = 0;
+        for(int i = 0; i < ranges.size(); ++i) {
+            InclusiveByteRange range = ranges.get(i);
+            String header = "--"+this.boundary+"\r\n"+
+                "Content-Type: "+partContentType+"\r\n"+
+                "Content-Range: "+range.toHeaderRangeString(contentLength)+"\r\n\r\n";
+            this.partHeaders[i] = header.getBytes(StandardCharsets.ISO_8859_1);
+            total += this.partHeaders[i].length + range.getSize() + 2;  // +2 for CRLF after data
+        }
+        this.closingBoundary = ("--"+this.boundary+"--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.length = total + this.closingBoundary.length;
+    }
+
+    /**
+     * Returns true if the ranges should be sent as a multipart response.
+     */
+    public static boolean shouldUseFor(List<InclusiveByteRange> ranges) {
+        return (ranges != null) && (ranges.size() > 1) && (ranges.size() <= MAXIMUM_RANGES);
+    }
+
+    /**
+     * Value for the Content-Type header of the response.
+     */
+    public String getContentType() {
+        return "multipart/byteranges; boundary="+this.boundary;
+    }
+
+    /**
+     * Exact length of the body which will be written.
+     */
+    public long getContentLength() {
+        return this.length;
+    }
+
+    /**
+     * Write the body, using the response to write the data for each range.
+     */
+    public void writeToServletResponse(HttpServletResponse servletResponse, Response response) throws IOException {
+        OutputStream out = servletResponse.getOutputStream();
+        for(int i = 0; i < this.ranges.size(); ++i) {
+            InclusiveByteRange range = this.ranges.get(i);
+            out.write(this.partHeaders[i]);
+            response.writeRangeToOutputStream(out, range.getFirst(), range.getSize());
+            out.write('\r'); out.write('\n');
+        }
+        out.write(this.closingBoundary);
+    }
+}
@@ -9,13 +9,16 @@ package org.haplo.appserver;
 import java.io.*;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 import java.util.Vector;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.InclusiveByteRange;
 
+import org.haplo.utils.DeflaterPool;
+import org.haplo.utils.GZIPOutputStreamEx;
+
 /**
  * Application server response base class. Objects of this type are generated by
  * the request handling process.
@@ -27,10 +30,17 @@ public class Response {
     public static final long CONTENT_LENGTH_UNCERTAIN = -1;
     public static final long NOT_GZIPABLE = -2;
 
+    // Values for the Content-Encoding header
+    public static final String CONTENT_ENCODING_GZIP = "gzip";
+
     // How big should a response be before it's considered gzipable?
     public static final long MINIMUM_GZIP_SIZE = 128;
-    // How big can a response be before it's compressed as a stream?
-    public static final long MAXIMUM_ONE_SHOT_COMPRESION_SIZE = 1024 * 1024;
+    // How big can a response be before it's compressed as a stream? Streamed responses
+    // are sent with chunked transfer encoding as they're compressed, so the client gets
+    // the start of the response sooner and the compressed data isn't buffered in memory.
+    public static final long MAXIMUM_ONE_SHOT_COMPRESION_SIZE = Long.getLong("org.haplo.gzip.oneshotmax", 64 * 1024);
+    // Buffer size for streamed compression
+    private static final int STREAMING_COMPRESSION_BUFFER_SIZE = 8 * 1024;
 
     private Vector<String[]> headers;
     private byte[] compressed;
@@ -97,6 +107,22 @@ public class Response {
         return false;
     }
 
+    /**
+     * Strong entity tag for the given content encoding (null for identity),
+     * or null if this response doesn't have entity tags.
+     */
+    public String getEntityTag(String contentEncoding) {
+        return null;
+    }
+
+    /**
+     * Time the content was last modified, in milliseconds since the epoch,
+     * or -1 if not known.
+     */
+    public long getLastModified() {
+        return -1;
+    }
+
     /**
      * Whether this response supports ranges. If true, getContentLength() must
      * NOT return CONTENT_LENGTH_UNCERTAIN.
@@ -137,15 +163,18 @@ public class Response {
         if(bufSize < (uncompressedLength / 2)) {
             bufSize = (int)(uncompressedLength / 2);
         }
+        Deflater deflater = DeflaterPool.obtain();
         try {
             ByteArrayOutputStream c = new ByteArrayOutputStream(bufSize);
-            GZIPOutputStream compressor = new GZIPOutputStream(c, bufSize);
+            GZIPOutputStreamEx compressor = new GZIPOutputStreamEx(c, bufSize, deflater);
             this.writeToOutputStream(compressor);
-            compressor.close();
+            compressor.finish();
             compressed = c.toByteArray();
         } catch(IOException e) {
             // Ooops. Give up.
             return NOT_GZIPABLE;
+        } finally {
+            DeflaterPool.release(deflater);
         }
 
         // Check there is some point to compression (taking into account extra headers)
@@ -159,8 +188,10 @@ public class Response {
 
     /**
      * Write the content to the a servlet response
+     *
+     * @param contentEncoding CONTENT_ENCODING_GZIP, or null for no encoding
      */
-    public final void writeToServletResponse(HttpServletResponse servletResponse, boolean gzipped, List ranges) throws IOException {
+    public final void writeToServletResponse(HttpServletResponse servletResponse, String contentEncoding, List ranges) throws IOException {
         OutputStream out = servletResponse.getOutputStream();
 
         // Send ranges?
@@ -168,11 +199,11 @@ public class Response {
             if(!supportsRanges()) {
                 throw new RuntimeException("Attempting to send HTTP response to request with ranges when not supported by Response object.");
             }
-            if(gzipped) {
-                throw new RuntimeException("HTTP response set up to use gzip, but sending ranges, which isn't supported by Response object.");
+            if(contentEncoding != null) {
+                throw new RuntimeException("HTTP response set up to use a content encoding, but sending ranges, which isn't supported by Response object.");
             }
             if(ranges.size() != 1) {
-                throw new RuntimeException("Sending more than one range in a HTTP response isn't supported yet.");
+                throw new RuntimeException("More than one range in a HTTP response must be sent with MultipartByteRanges.");
             }
 
             long contentLength = getContentLength();
@@ -188,7 +219,7 @@ public class Response {
             return;
         }
 
-        if(gzipped) {
+        if(CONTENT_ENCODING_GZIP.equals(contentEncoding)) {
             this.writeToOutputStreamGzipped(out);
         } else {
             this.writeToOutputStream(out);
@@ -215,9 +246,14 @@ public class Response {
         if(compressed != null) {
             stream.write(compressed);
         } else {
-            GZIPOutputStream compressor = new GZIPOutputStream(stream, 8 * 1024);
-            this.writeToOutputStream(compressor);
-            compressor.finish();    // don't close the underlying stream
+            Deflater deflater = DeflaterPool.obtain();
+            try {
+                GZIPOutputStreamEx compressor = new GZIPOutputStreamEx(stream, STREAMING_COMPRESSION_BUFFER_SIZE, deflater);
+                this.writeToOutputStream(compressor);
+                compressor.finish();    // don't close the underlying stream
+            } finally {
+                DeflaterPool.release(deflater);
+            }
         }
     }
 
@@ -9,6 +9,7 @@ package org.haplo.appserver;
 import java.io.*;
 import java.util.zip.Deflater;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 
 // java.util.zip.GZIPOutputStream doesn't allow the compression level to be set.
 import org.haplo.utils.GZIPOutputStreamEx;
@@ -16,13 +17,17 @@ import org.haplo.utils.GZIPOutputStreamEx;
 /**
  * Response object which sends a static file. Maybe be returned more than once.
  *
+ * All the encodings of the file are prepared in the constructor, so the
+ * response can be used by concurrent requests without further work.
+ *
  * Use the setHeader() in the base class to set the MIME type.
  */
 public class StaticFileResponse extends Response {
-    private boolean allowCompression;
     private byte[] uncompressed;
     private byte[] compressed;
     private int responseCode;
+    private String entityTagBase;
+    private long lastModified;
 
     /**
      * Constructor
@@ -32,12 +37,9 @@ public class StaticFileResponse extends Response {
      * @param allowCompression Whether to allow the response to be compressed.
      */
     public StaticFileResponse(String pathname, String mimeType, boolean allowCompression) throws IOException {
-        addHeader("Content-Type", mimeType);
-        this.allowCompression = allowCompression;
-        this.compressed = null;
-        this.responseCode = 200;
-        // Read file
-        this.uncompressed = FileUtils.readFileToByteArray(new File(pathname));
+        File file = new File(pathname);
+        setup(FileUtils.readFileToByteArray(file), mimeType, allowCompression);
+        this.lastModified = file.lastModified();
     }
 
     /**
@@ -48,11 +50,32 @@ public class StaticFileResponse extends Response {
      * @param allowCompression Whether to allow the response to be compressed.
      */
     public StaticFileResponse(byte[] data, String mimeType, boolean allowCompression) throws IOException {
+        setup(data, mimeType, allowCompression);
+    }
+
+    private void setup(byte[] data, String mimeType, boolean allowCompression) throws IOException {
         addHeader("Content-Type", mimeType);
-        this.allowCompression = allowCompression;
         this.uncompressed = data;
-        this.compressed = null;
         this.responseCode = 200;
+        this.lastModified = System.currentTimeMillis();
+        // Strong entity tags are based on the content, so they change when a new version is deployed
+        this.entityTagBase = DigestUtils.sha256Hex(data).substring(0, 32);
+        if(allowCompression && data.length >= 4) {
+            // Compress the file now, so it's only compressed once
+            ByteArrayOutputStream c = new ByteArrayOutputStream(data.length / 2);
+            GZIPOutputStreamEx compressor = new GZIPOutputStreamEx(c, (data.length / 2) + 1, Deflater.BEST_COMPRESSION);
+            compressor.write(data);
+            compressor.close();
+            this.compressed = isWorthSendingCompressed(c.size()) ? c.toByteArray() : null;
+        }
+        if(this.compressed != null) {
+            addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    // If it's smaller uncompressed (taking into account headers to say it's compressed), send it uncompressed
+    private boolean isWorthSendingCompressed(long compressedLength) {
+        return (compressedLength + 20) <= uncompressed.length;
     }
 
     public void setResponseCode(int code) {
@@ -71,31 +94,19 @@ public class StaticFileResponse extends Response {
         return true;
     }
 
-    public long getContentLengthGzipped() {
-        if(allowCompression) {
-            if(uncompressed.length < 4) {
-                return NOT_GZIPABLE;
-            }
-
-            if(compressed == null) {
-                try {
-                    // Compress the file, and cache it so it's only compressed once
-                    ByteArrayOutputStream c = new ByteArrayOutputStream(uncompressed.length / 2);
-                    GZIPOutputStreamEx compressor = new GZIPOutputStreamEx(c, uncompressed.length / 2, Deflater.BEST_COMPRESSION);
-                    compressor.write(uncompressed);
-                    compressor.close();
-                    compressed = c.toByteArray();
-                } catch(IOException e) {
-                    System.out.println("Failed to compress static file");
-                    return NOT_GZIPABLE;
-                }
-            }
-
-            // If it's smaller uncompressed (taking into account headers to say it's compressed), send it uncompressed
-            return ((compressed.length + 20) > uncompressed.length) ? NOT_GZIPABLE : compressed.length;
+    public String getEntityTag(String contentEncoding) {
+        if(contentEncoding == null) {
+            return "\""+this.entityTagBase+"\"";
         }
+        return "\""+this.entityTagBase+"-"+contentEncoding+"\"";
+    }
 
-        return NOT_GZIPABLE;
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    public long getContentLengthGzipped() {
+        return (compressed == null) ? NOT_GZIPABLE : compressed.length;
     }
 
     public byte[] getRawBuffer() throws IOException {
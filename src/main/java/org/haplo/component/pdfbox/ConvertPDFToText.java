@@ -13,9 +13,10 @@ import java.io.OutputStreamWriter;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
 
+import org.haplo.op.CacheableOperation;
 import org.haplo.op.Operation;
 
-public class ConvertPDFToText extends Operation {
+public class ConvertPDFToText extends Operation implements CacheableOperation {
     private String inputPathname;
     private String outputPathname;
 
@@ -25,11 +26,36 @@ public class ConvertPDFToText extends Operation {
      * @param inputPathname Pathname of input file.
      * @param outputPathname Pathname to save the file.
      */
+    // Used by OpCodec, which sets the fields when decoding
+    private ConvertPDFToText() {
+    }
+
     public ConvertPDFToText(String inputPathname, String outputPathname) {
         this.inputPathname = inputPathname;
         this.outputPathname = outputPathname;
     }
 
+    @Override
+    protected Priority getDefaultPriority() {
+        return Priority.BATCH;
+    }
+
+    public String getResultCacheInputPathname() {
+        return this.inputPathname;
+    }
+
+    public String getResultCacheParameters() {
+        return null;
+    }
+
+    public String[] getResultCacheOutputPathnames() {
+        return new String[] {this.outputPathname};
+    }
+
+    protected void copyResultsFromReturnedOperation(Operation resultOperation) {
+        // Only result is the output file
+    }
+
     protected void performOperation() throws Exception {
         try (PDDocument pdf = PDDocument.load(new File(this.inputPathname))) {
             PDFTextStripper stripper = new PDFTextStripper();
@@ -114,6 +114,19 @@ public class PDF {
      * Render the PDF as an image
      */
     public void render(String outFilename, String outFormat, int page, int outWidth, int outHeight) throws IOException {
+        BufferedImage img = renderPage(page, outFormat, outWidth, outHeight);
+        try {
+            writeImage(img, outFilename, outFormat, outWidth, outHeight);
+        } finally {
+            img.flush();
+        }
+    }
+
+    /**
+     * Render a page at a resolution suitable for an image of the given size. Not
+     * thread safe, as PDFBox documents can't be used by multiple threads.
+     */
+    public BufferedImage renderPage(int page, String outFormat, int outWidth, int outHeight) {
         BufferedImage img = null;
         try {
             PDPage pdfPage = this.pdf.getPage(page - 1);
@@ -143,14 +156,19 @@ public class PDF {
         if(img == null) {
             throw new RuntimeException("Failed to render PDF - did the requested page exist?");
         }
+        return img;
+    }
 
+    /**
+     * Scale a rendered page to the right size and write it to a file. Thread safe.
+     */
+    public static void writeImage(BufferedImage img, String outFilename, String outFormat, int outWidth, int outHeight) throws IOException {
         // Scale the image to the right size
-        BufferedImage original = null;
+        BufferedImage scaledImg = img;
         if(img.getWidth() != outWidth || img.getHeight() != outHeight) {
-            original = img;
             Image scaled = img.getScaledInstance(outWidth, outHeight, Image.SCALE_SMOOTH);
-            img = new BufferedImage(outWidth, outHeight, original.getType());
-            Graphics2D graphics = img.createGraphics();
+            scaledImg = new BufferedImage(outWidth, outHeight, img.getType());
+            Graphics2D graphics = scaledImg.createGraphics();
             graphics.setBackground(Color.WHITE);
             graphics.clearRect(0, 0, outWidth, outHeight);
             graphics.drawImage(scaled, 0, 0, null);
@@ -159,12 +177,11 @@ public class PDF {
         }
 
         // Write the image to a file
-        ImageIO.write(img, outFormat, new File(outFilename));
+        ImageIO.write(scaledImg, outFormat, new File(outFilename));
 
         // Free resources
-        img.flush();
-        if(original != null) {
-            original.flush();
+        if(scaledImg != img) {
+            scaledImg.flush();
         }
     }
 
@@ -0,0 +1,162 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.component.pdfbox;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.haplo.op.Operation;
+
+/**
+ * Render a range of pages from a PDF into images at one or more sizes.
+ * Each page is rendered once, at the largest size by area, and scaled down
+ * for the others. Pages are rendered in parallel, with each thread loading
+ * its own copy of the document, so memory use grows with the number of
+ * threads. org.haplo.pdfbox.renderthreads sets the maximum number of threads
+ * per operation, which defaults to 2 as workers run several operations at once.
+ *
+ * Each page number is reported as progress as soon as all the images for
+ * that page have been written, so an OpProgressTarget can use them before
+ * the whole range is complete.
+ */
+public class PDFPageRenderBatch extends Operation {
+    private static final long serialVersionUID = 1L;
+
+    private static final int THREADS = Math.max(1, Integer.getInteger("org.haplo.pdfbox.renderthreads",
+            Math.min(2, Runtime.getRuntime().availableProcessors())));
+
+    private String inputPathname;
+    private String outputPathnamePrefix;
+    private int firstPage;
+    private int lastPage;
+    private int[] widths;
+    private int[] heights;
+    private String outputFormat;
+    private int numberOfPages;
+    private String renderedPages;    // 'Y' or 'N' for each page in the range
+
+    // Used by OpCodec, which sets the fields when decoding
+    private PDFPageRenderBatch() {
+    }
+
+    /**
+     * Images are written to the pathnames returned by getOutputPathname().
+     */
+    public PDFPageRenderBatch(String inputPathname, String outputPathnamePrefix, int firstPage, int lastPage, int[] widths, int[] heights, String outputFormat) {
+        if(firstPage < 1 || lastPage < firstPage || widths.length == 0 || widths.length != heights.length) {
+            throw new IllegalArgumentException("Bad page range or sizes for PDFPageRenderBatch");
+        }
+        this.inputPathname = inputPathname;
+        this.outputPathnamePrefix = outputPathnamePrefix;
+        this.firstPage = firstPage;
+        this.lastPage = lastPage;
+        this.widths = widths;
+        this.heights = heights;
+        this.outputFormat = outputFormat;
+    }
+
+    public String getOutputPathname(int page, int sizeIndex) {
+        return this.outputPathnamePrefix + page + "-" + sizeIndex + "." + this.outputFormat;
+    }
+
+    /**
+     * Number of pages in the document, so callers can tell if the range was
+     * beyond the end.
+     */
+    public int getNumberOfPages() {
+        return this.numberOfPages;
+    }
+
+    public boolean wasPageRendered(int page) {
+        return (this.renderedPages != null) && (page >= this.firstPage) && (page <= this.lastPage) &&
+            (this.renderedPages.charAt(page - this.firstPage) == 'Y');
+    }
+
+    protected void performOperation() throws Exception {
+        PDF pdf = new PDF(inputPathname);
+        try {
+            if(!pdf.isValid()) {
+                return;
+            }
+            this.numberOfPages = pdf.getNumberOfPages();
+            int last = Math.min(this.lastPage, this.numberOfPages);
+            char[] rendered = new char[this.lastPage - this.firstPage + 1];
+            Arrays.fill(rendered, 'N');
+            AtomicInteger nextPage = new AtomicInteger(this.firstPage);
+
+            // PDFBox documents aren't thread safe, so each extra thread loads its own copy
+            // of the document. This thread renders pages too, using the copy loaded above.
+            int extraThreads = Math.max(0, Math.min(THREADS, last - this.firstPage + 1) - 1);
+            if(extraThreads == 0) {
+                renderPages(pdf, nextPage, last, rendered);
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(extraThreads);
+                try {
+                    ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(extraThreads);
+                    for(int t = 0; t < extraThreads; ++t) {
+                        futures.add(executor.submit(() -> {
+                            Operation.markThreadAsWorker();
+                            PDF threadPdf = new PDF(inputPathname);
+                            try {
+                                if(threadPdf.isValid()) {
+                                    renderPages(threadPdf, nextPage, last, rendered);
+                                }
+                            } finally {
+                                threadPdf.close();
+                            }
+                            return null;
+                        }));
+                    }
+                    renderPages(pdf, nextPage, last, rendered);
+                    // Wait for the other threads, after which their array writes are visible to this thread
+                    for(Future<Object> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+            this.renderedPages = new String(rendered);
+        } finally {
+            pdf.close();
+        }
+    }
+
+    private void renderPages(PDF pdf, AtomicInteger nextPage, int last, char[] rendered) {
+        // Render once at the largest size, then scale down for the others
+        int largest = 0;
+        for(int s = 1; s < this.heights.length; ++s) {
+            if(((long)this.widths[s] * this.heights[s]) > ((long)this.widths[largest] * this.heights[largest])) {
+                largest = s;
+            }
+        }
+        int page;
+        while((page = nextPage.getAndIncrement()) <= last) {
+            try {
+                BufferedImage img = pdf.renderPage(page, this.outputFormat, this.widths[largest], this.heights[largest]);
+                try {
+                    for(int s = 0; s < this.widths.length; ++s) {
+                        PDF.writeImage(img, getOutputPathname(page, s), this.outputFormat, this.widths[s], this.heights[s]);
+                    }
+                } finally {
+                    img.flush();
+                }
+            } catch(Exception e) {
+                // Ignore, just don't mark the page as rendered
+                logIgnoredException("PDFPageRenderBatch failed to render page " + page, e);
+                continue;
+            }
+            rendered[page - this.firstPage] = 'Y';
+            reportProgress(page);
+        }
+    }
+}
@@ -18,6 +18,10 @@ import org.apache.pdfbox.text.PDFTextStripper;
 import org.haplo.text.TextExtractOp;
 
 public class TextExtractPDF extends TextExtractOp {
+    // Used by OpCodec, which sets the fields when decoding
+    private TextExtractPDF() {
+    }
+
     public TextExtractPDF(String inputPathname) {
         super(inputPathname);
     }
@@ -8,10 +8,11 @@ package org.haplo.component.pdfbox;
 
 import java.io.IOException;
 
+import org.haplo.op.CacheableOperation;
 import org.haplo.op.Operation;
 import org.haplo.graphics.ThumbnailSize;
 
-public class ThumbnailPDF extends Operation {
+public class ThumbnailPDF extends Operation implements CacheableOperation {
     private String inputPathname;
     private String outputPathname;
     private int maxThumbnailDimension;
@@ -24,6 +25,10 @@ public class ThumbnailPDF extends Operation {
     /**
      * Construct the operation
      */
+    // Used by OpCodec, which sets the fields when decoding
+    private ThumbnailPDF() {
+    }
+
     public ThumbnailPDF(String inputPathname, String outputPathname, int maxThumbnailDimension) {
         this.inputPathname = inputPathname;
         this.outputPathname = outputPathname;
@@ -31,6 +36,32 @@ public class ThumbnailPDF extends Operation {
         this.isValid = false;
     }
 
+    @Override
+    protected Priority getDefaultPriority() {
+        return Priority.BATCH;
+    }
+
+    public String getResultCacheInputPathname() {
+        return this.inputPathname;
+    }
+
+    public String getResultCacheParameters() {
+        return Integer.toString(this.maxThumbnailDimension);
+    }
+
+    public String[] getResultCacheOutputPathnames() {
+        return new String[] {this.outputPathname};
+    }
+
+    protected void copyResultsFromReturnedOperation(Operation resultOperation) {
+        ThumbnailPDF result = (ThumbnailPDF)resultOperation;
+        this.isValid = result.isValid;
+        this.width = result.width;
+        this.height = result.height;
+        this.numberOfPages = result.numberOfPages;
+        this.thumbnailDimensions = result.thumbnailDimensions;
+    }
+
     /**
      * Whether the PDF is valid
      */
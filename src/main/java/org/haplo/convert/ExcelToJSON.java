@@ -36,6 +36,10 @@ public class ExcelToJSON extends Operation {
 
     // ----------------------------------------------------------------------
 
+    // Used by OpCodec, which sets the fields when decoding
+    private ExcelToJSON() {
+    }
+
     public ExcelToJSON(String inputPathname, String outputPathname) {
         this.inputPathname = inputPathname;
         this.outputPathname = outputPathname;
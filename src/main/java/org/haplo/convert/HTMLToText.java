@@ -26,6 +26,10 @@ public class HTMLToText extends Operation {
      * @param inputPathname Pathname of input file.
      * @param outputPathname Pathname to save the file.
      */
+    // Used by OpCodec, which sets the fields when decoding
+    private HTMLToText() {
+    }
+
     public HTMLToText(String inputPathname, String outputPathname) {
         this.inputPathname = inputPathname;
         this.outputPathname = outputPathname;
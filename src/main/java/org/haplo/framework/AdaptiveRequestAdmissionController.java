@@ -0,0 +1,143 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits requests up to a concurrency limit which adapts to the observed
+ * processing time of requests, using additive increase/multiplicative
+ * decrease.
+ *
+ * Two moving averages of processing time are kept, one which follows recent
+ * requests and one which changes slowly. When the application is using all
+ * its permits or requests are queued, and recent requests take much longer
+ * than the long term average, the application is doing more work than it can
+ * handle efficiently, so the limit is reduced. Slow requests on an otherwise
+ * idle application don't reduce the limit. When the application is using all
+ * its permits and requests are fast, the limit is increased.
+ */
+public class AdaptiveRequestAdmissionController implements RequestAdmissionController {
+    private static final double SHORT_TERM_WEIGHT = 0.2;
+    private static final double LONG_TERM_WEIGHT = 0.02;
+    // How much slower recent requests can be before the limit is reduced
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final int minimumLimit;
+    private final int maximumLimit;
+    private final ReentrantLock lock;
+    private final Condition permitAvailable;
+    private int limit;
+    private int inFlight;
+    private int queueLength;
+    private double shortTermLatency;
+    private double longTermLatency;
+
+    public AdaptiveRequestAdmissionController(int minimumLimit, int maximumLimit) {
+        this.minimumLimit = minimumLimit;
+        this.maximumLimit = maximumLimit;
+        this.lock = new ReentrantLock(true /* fair, so requests are processed in order */);
+        this.permitAvailable = this.lock.newCondition();
+        this.limit = maximumLimit;
+    }
+
+    public boolean acquire(long maxQueueTime) {
+        this.lock.lock();
+        try {
+            if(this.inFlight < this.limit && this.queueLength == 0) {
+                this.inFlight++;
+                return true;
+            }
+            if(this.queueLength >= ConcurrencyLimits.APPLICATION_REQUEST_QUEUE_MAX_LENGTH) {
+                return false;
+            }
+            this.queueLength++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(maxQueueTime);
+                while(this.inFlight >= this.limit) {
+                    if(remaining <= 0) {
+                        return false;
+                    }
+                    remaining = this.permitAvailable.awaitNanos(remaining);
+                }
+                this.inFlight++;
+                return true;
+            } finally {
+                this.queueLength--;
+            }
+        } catch(InterruptedException e) {
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void release(long processingTime) {
+        this.lock.lock();
+        try {
+            boolean wasSaturated = (this.inFlight >= this.limit) || (this.queueLength > 0);
+            this.inFlight--;
+            adjustLimit((double)processingTime, wasSaturated);
+            // Wake up as many waiting requests as there are now free permits
+            for(int free = this.limit - this.inFlight; free > 0; --free) {
+                this.permitAvailable.signal();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void adjustLimit(double latency, boolean wasSaturated) {
+        if(this.longTermLatency == 0) {
+            this.shortTermLatency = this.longTermLatency = latency;
+            return;
+        }
+        this.shortTermLatency += (latency - this.shortTermLatency) * SHORT_TERM_WEIGHT;
+        this.longTermLatency += (latency - this.longTermLatency) * LONG_TERM_WEIGHT;
+        if(!wasSaturated) {
+            return;
+        }
+        if(this.shortTermLatency > (this.longTermLatency * LATENCY_TOLERANCE)) {
+            int reduced = (int)(this.limit * DECREASE_FACTOR);
+            this.limit = (reduced < this.minimumLimit) ? this.minimumLimit : reduced;
+            // Don't keep reducing for the same slow period
+            this.shortTermLatency = this.longTermLatency;
+        } else if(this.limit < this.maximumLimit) {
+            this.limit++;
+        }
+    }
+
+    public int getLimit() {
+        this.lock.lock();
+        try {
+            return this.limit;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        this.lock.lock();
+        try {
+            return this.inFlight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        this.lock.lock();
+        try {
+            return this.queueLength;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
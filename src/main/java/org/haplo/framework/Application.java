@@ -8,7 +8,6 @@ package org.haplo.framework;
 
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.Semaphore;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Set;
@@ -19,6 +18,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.haplo.appserver.Response;
 
@@ -33,16 +33,15 @@ import org.haplo.appserver.Response;
 public class Application {
     // Tracking Application objects globaly
     private static Map<String, Long> hostnameMapping = new AppMap();
-    private static volatile HashMap<Long, Application> applications = new HashMap<Long, Application>();
-    private static Object applicationsCreateLock = new Object();
+    private static ConcurrentHashMap<Long, Application> applications = new ConcurrentHashMap<Long, Application>();
 
     // Application data
     private long applicationID;
     private Object rubyObject;
-    private Semaphore requestConcurrencySempahore[];
+    private RequestAdmissionController requestAdmissionController[];
     private Lock requestFinishedLock[];
     private Condition requestFinishedCondition[];
-    private volatile HashMap<String, Response> dynamicFiles; // could probably get away with not being volatile
+    private final DynamicFileCache dynamicFiles;
     private int numAppSpecificStaticFiles;   // the files uploaded by the user for use in styling. -1 means "not set"
     private Set<String> allowedPluginFilePaths;
 
@@ -71,22 +70,10 @@ public class Application {
         }
 
         Application app = applications.get(applicationID);
-
         if(app == null) {
-            // Create a new one; but app creations are syncronised
-            synchronized(applicationsCreateLock) {
-                // Try to get the value again, in case some other thread added it
-                app = applications.get(applicationID);
-                if(app == null) {
-                    // Still not there, make a new one and store it for later
-                    HashMap<Long, Application> newApplications = new HashMap<Long, Application>(applications);
-                    app = new Application(applicationID);
-                    newApplications.put(applicationID, app);
-                    applications = newApplications;
-                }
-            }
+            // Create a new one, but only one object is ever created for each app
+            app = applications.computeIfAbsent(applicationID, id -> new Application(id));
         }
-
         return app;
     }
 
@@ -95,7 +82,8 @@ public class Application {
      */
     public static String checkAllApplicationConcurrencyLimits(int serverIndex) {
         for(Application app : applications.values()) {
-            if(app.getRequestConcurrencySempahore(serverIndex).availablePermits() <= 0) {
+            RequestAdmissionController controller = app.getRequestAdmissionController(serverIndex);
+            if(controller.getInFlight() >= controller.getLimit()) {
                 // Too much concurrency - all permits used
                 return String.format("CONCURRENCY_APP %d", app.getApplicationID());
             }
@@ -108,11 +96,15 @@ public class Application {
      * Forgets about an application, used for app deletion
      */
     public static void forgetApplication(Long applicationID) {
-        applications.remove(applicationID.longValue());
+        Application app = applications.remove(applicationID.longValue());
+        if(app != null) {
+            app.invalidateAllDynamicFiles();
+        }
     }
 
     /**
-     * For development mode use only, not very efficient
+     * All loaded applications. The collection is a live, weakly consistent
+     * view which can be iterated while applications are being created.
      */
     public static Collection<Application> allLoadedApplicationObjects() {
         return applications.values();
@@ -125,9 +117,9 @@ public class Application {
      */
     private Application(long applicationID) {
         this.applicationID = applicationID;
-        this.requestConcurrencySempahore = new Semaphore[] {
-            new Semaphore(ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_PERMITS, true /* sempahore is fair */),
-            new Semaphore(ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_PERMITS, true /* sempahore is fair */)
+        this.requestAdmissionController = new RequestAdmissionController[] {
+            ConcurrencyLimits.createRequestAdmissionController(applicationID, 0),
+            ConcurrencyLimits.createRequestAdmissionController(applicationID, 1)
         };
         this.requestFinishedLock = new ReentrantLock[] {
             new ReentrantLock(true),
@@ -137,6 +129,7 @@ public class Application {
             this.requestFinishedLock[0].newCondition(),
             this.requestFinishedLock[1].newCondition()
         };
+        this.dynamicFiles = new DynamicFileCache();
         this.numAppSpecificStaticFiles = -1;
     }
 
@@ -167,18 +160,25 @@ public class Application {
     }
 
     /**
-     * Returns the semaphore to stop too many concurrent requests for this
-     * application.
+     * Returns the admission controller to stop too many concurrent requests
+     * for this application.
      */
-    public Semaphore getRequestConcurrencySempahore(int serverIndex) {
-        return requestConcurrencySempahore[serverIndex];
+    public RequestAdmissionController getRequestAdmissionController(int serverIndex) {
+        return requestAdmissionController[serverIndex];
     }
 
     /**
      * Invalidates all cached app specific dynamic files
      */
     public void invalidateAllDynamicFiles() {
-        this.dynamicFiles = null;
+        this.dynamicFiles.invalidateAll();
+    }
+
+    /**
+     * Returns the cache of dynamic files, public for tests.
+     */
+    public DynamicFileCache getDynamicFileCache() {
+        return this.dynamicFiles;
     }
 
     /**
@@ -263,20 +263,8 @@ public class Application {
             }
         }
 
-        Response response;
-        if(this.dynamicFiles != null && (response = dynamicFiles.get(filename)) != null) {
-            return response;
-        }
-
-        response = dynamicFileFactory.generate(this.applicationID, filename);
-
-        // Store the response, creating a copy to avoid concurrent access. A risk that the same file
-        // will be generated lots of times under load, but should settle down.
-        HashMap<String, Response> newDynamicFiles = (this.dynamicFiles == null) ? new HashMap<String, Response>() : new HashMap<String, Response>(this.dynamicFiles);
-        newDynamicFiles.put(filename, response);
-        this.dynamicFiles = newDynamicFiles;
-
-        return response;
+        // Get the cached response, generating it if this is the first request
+        return this.dynamicFiles.get(filename, f -> dynamicFileFactory.generate(this.applicationID, f));
     }
 
     // ===============================================================================================================================
@@ -285,8 +273,8 @@ public class Application {
      * Is there another request in progress?
      */
     public boolean isAnotherRequestBeingProcessed(int serverIndex) {
-        // This is called by RequestHandler after it gains a semaphore, so if the count is more than total - 1, something else is working too.
-        return requestConcurrencySempahore[serverIndex].availablePermits() < (ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_PERMITS - 1);
+        // This is called by RequestHandler after it's admitted, so if more than one request is in flight, something else is working too.
+        return requestAdmissionController[serverIndex].getInFlight() > 1;
     }
 
     /**
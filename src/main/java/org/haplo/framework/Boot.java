@@ -46,6 +46,13 @@ import io.prometheus.client.jetty.QueuedThreadPoolStatisticsCollector;
 
 import org.haplo.common.utils.SSLCertificates;
 import org.haplo.common.utils.SSLCipherSuites;
+import org.haplo.jsinterface.db.JdLoadCache;
+import org.haplo.javascript.JsScriptCache;
+import org.haplo.javascript.RuntimePoolMetrics;
+import org.haplo.javascript.JsExecutionBudget;
+import org.haplo.template.driver.rhinojs.ParsedTemplateCache;
+import org.haplo.op.OpDispatcher;
+import org.haplo.op.OpResultCache;
 
 import org.haplo.utils.ProcessStartupFlag;
 
@@ -243,6 +250,18 @@ public class Boot {
                 new QueuedThreadPoolStatisticsCollector(jettyThreadPool, "haplo").register();
                 // Monitor the database connection pool
                 Database.collectMetrics();
+                // Monitor the per-application request throttle
+                RequestThrottleMetrics.collectMetrics();
+                // Monitor the plugin database load cache
+                JdLoadCache.collectMetrics();
+                // Monitor the compiled script and template caches, JavaScript runtime pools and execution budgets
+                JsScriptCache.collectMetrics();
+                RuntimePoolMetrics.collectMetrics();
+                JsExecutionBudget.collectMetrics();
+                ParsedTemplateCache.collectMetrics();
+                // Monitor the operation queues
+                OpDispatcher.collectMetrics();
+                OpResultCache.collectMetrics();
                 metricServer.start();
                 context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
                 logger.info("Enabled prometheus monitoring on port " + metricport);
@@ -6,8 +6,6 @@
 
 package org.haplo.framework;
 
-import java.util.concurrent.Semaphore;
-
 /**
  * Container for semaphores to restrict concurrency of various operations.
  *
@@ -20,4 +18,34 @@ public class ConcurrencyLimits {
     public static final int APPLICATION_CONCURRENT_REQUESTS_MAX_SPINS = 4;
     // And how long should it wait?
     public static final int APPLICATION_CONCURRENT_REQUESTS_MAX_WAIT_TIME = 5;  /* ms */
+
+    // Lowest limit the adaptive request throttle can reduce an application's concurrency to
+    public static final int APPLICATION_CONCURRENT_REQUESTS_MIN_PERMITS = 2;
+    // How long can a request wait in the throttle queue before it's rejected with a 503 response?
+    public static final long APPLICATION_REQUEST_QUEUE_DEADLINE = Long.getLong("org.haplo.requestthrottle.deadline", 30000);  /* ms */
+    // How many requests can be queued before further requests are rejected immediately?
+    public static final int APPLICATION_REQUEST_QUEUE_MAX_LENGTH = Integer.getInteger("org.haplo.requestthrottle.maxqueue", 64);
+    // Value for the Retry-After header when a request is rejected
+    public static final int APPLICATION_REQUEST_RETRY_AFTER = 5;  /* seconds */
+
+    // Request admission is pluggable, with a choice of fixed or adaptive limits
+    private static RequestAdmissionController.Factory requestAdmissionControllerFactory;
+
+    static {
+        if("fixed".equals(System.getProperty("org.haplo.requestthrottle", "adaptive"))) {
+            requestAdmissionControllerFactory = (applicationID, serverIndex) ->
+                new FixedRequestAdmissionController(APPLICATION_CONCURRENT_REQUESTS_PERMITS);
+        } else {
+            requestAdmissionControllerFactory = (applicationID, serverIndex) ->
+                new AdaptiveRequestAdmissionController(APPLICATION_CONCURRENT_REQUESTS_MIN_PERMITS, APPLICATION_CONCURRENT_REQUESTS_PERMITS);
+        }
+    }
+
+    public static void setRequestAdmissionControllerFactory(RequestAdmissionController.Factory factory) {
+        requestAdmissionControllerFactory = factory;
+    }
+
+    public static RequestAdmissionController createRequestAdmissionController(long applicationID, int serverIndex) {
+        return requestAdmissionControllerFactory.create(applicationID, serverIndex);
+    }
 }
@@ -9,60 +9,336 @@ package org.haplo.framework;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import com.zaxxer.hikari.metrics.prometheus.PrometheusMetricsTrackerFactory;
-import org.postgresql.ds.PGSimpleDataSource;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
 
 import org.apache.log4j.Logger;
 
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
 import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.sql.Connection;
 import java.sql.Statement;
 
 
 public class Database {
-    private static Properties configProperties;
-    private static HikariDataSource ds;
-    private static PGSimpleDataSource dsLongRunning;
     private static ThreadLocal<Connection> connection = new ThreadLocal<Connection>();
+    private static ThreadLocal<Pool> threadPool = new ThreadLocal<Pool>();
+    private static ThreadLocal<String> threadApplicationLabel = new ThreadLocal<String>();
+    private static ThreadLocal<Boolean> threadPinnedToPrimary = new ThreadLocal<Boolean>();
+
+    private static final String NO_APPLICATION_LABEL = "none";
+
+    static final Histogram connectionCheckoutTime = Histogram.build()
+        .name("haplo_db_connection_checkout_seconds")
+        .help("Time taken to obtain a database connection from a pool")
+        .labelNames("pool", "application")
+        .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 30)
+        .create();
+
+    static final Histogram connectionUseTime = Histogram.build()
+        .name("haplo_db_connection_use_seconds")
+        .help("Time database connections were in use running queries before being returned to a pool")
+        .labelNames("pool", "application")
+        .buckets(0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 120)
+        .create();
+
+    static final Gauge replicaLag = Gauge.build()
+        .name("haplo_db_replica_lag_seconds")
+        .help("Replication lag of the read replica when it was last checked")
+        .create();
+
+    /**
+     * Connection pools for different kinds of work, so that background jobs and long running
+     * operations can't use all the connections needed to respond to requests.
+     *
+     * Each pool is configured with system properties, org.haplo.db.<name>.<setting>
+     *   minidle            minimum number of idle connections
+     *   maxsize            maximum number of connections
+     *   statementtimeout   server side statement timeout in milliseconds, 0 for none
+     *   jsquerytimeout     timeout in seconds for queries made by plugins, 0 for none
+     *
+     * The pools are shared by all the applications in the process, and there's no limit per
+     * application, so one busy application can use every connection. With the default sizes,
+     * the process opens up to 32 connections to the primary (20 + 8 + 4), plus up to 20 to the
+     * replica if one is configured. max_connections on each database server must allow for
+     * this for every app server process connected to it. The totals are logged at startup.
+     */
+    public enum Pool {
+        REQUEST("request", 8, 20),
+        JOB("job", 1, 8),
+        LONG_RUNNING("longrunning", 0, 4);
+
+        public final String name;
+        final int minimumIdle;
+        final int maximumPoolSize;
+        final int statementTimeout;
+        final int scriptQueryTimeout;
+        private HikariDataSource ds;
+
+        Pool(String name, int defaultMinimumIdle, int defaultMaximumPoolSize) {
+            this.name = name;
+            String prefix = "org.haplo.db."+name+".";
+            this.minimumIdle = Integer.getInteger(prefix+"minidle", defaultMinimumIdle);
+            this.maximumPoolSize = Integer.getInteger(prefix+"maxsize", defaultMaximumPoolSize);
+            this.statementTimeout = Integer.getInteger(prefix+"statementtimeout", 0);
+            this.scriptQueryTimeout = Integer.getInteger(prefix+"jsquerytimeout", 0);
+        }
+
+        public String getName() { return this.name; }
+        public int getMinimumIdle() { return this.minimumIdle; }
+        public int getMaximumPoolSize() { return this.maximumPoolSize; }
+        public int getStatementTimeout() { return this.statementTimeout; }
+        public int getScriptQueryTimeout() { return this.scriptQueryTimeout; }
+
+        public static Pool fromName(String name) {
+            for(Pool pool : Pool.values()) {
+                if(pool.name.equals(name)) { return pool; }
+            }
+            throw new IllegalArgumentException("Unknown database pool "+name);
+        }
+    }
+
+    private static Properties configProperties;
 
     public static void configure(String server, String database, String username, String password) {
-        // Pooled data connection
+        configProperties = dataSourceProperties(server, database, username, password);
+    }
+
+    private static Properties dataSourceProperties(String server, String database, String username, String password) {
         Properties p = new Properties();
         p.setProperty("dataSourceClassName", "org.postgresql.ds.PGSimpleDataSource");
         p.setProperty("dataSource.serverName", server);
         p.setProperty("dataSource.databaseName", database);
         p.setProperty("dataSource.user", username);
         if(password != null) { p.setProperty("dataSource.password", password); }
-        // Set size of pool to avoid using too many connection when reltively idle, but scale up under load
-        p.setProperty("minimumIdle", "8");
-        p.setProperty("maximumPoolSize", "20");
-        configProperties = p;
+        return p;
+    }
+
+    // ----------------------------------------------------------------------
 
-        // Long-running connections aren't in the pool
-        dsLongRunning = new PGSimpleDataSource();
-        dsLongRunning.setServerName(server);
-        dsLongRunning.setDatabaseName(database);
-        dsLongRunning.setUser(username);
-        if(password != null) { dsLongRunning.setPassword(password); }
+    /**
+     * Read only queries can optionally be sent to a replica of the database, as long
+     * as replication isn't lagging too far behind and the thread hasn't used a connection
+     * to the primary in the current request. Any connection to the primary may have been
+     * used for writing, so withConnection() pins the thread to the primary, and only
+     * withPrimaryConnectionForReading() doesn't. The replica pool is configured with
+     * org.haplo.db.replica.* properties, plus maxlag, the maximum replication lag in
+     * milliseconds.
+     *
+     * Replication lag is checked by a background thread, so requests never wait for the
+     * replica when it's slow or unavailable. If the check itself stalls, the replica stops
+     * being used when the last good check becomes too old. The replica is only used while
+     * its WAL receiver is streaming from the primary, as replay lag can't be measured
+     * when it's disconnected.
+     */
+    private static final String REPLICA_POOL_NAME = "replica";
+    private static final long REPLICA_MAX_LAG = Long.getLong("org.haplo.db.replica.maxlag", 1000);
+    private static final long REPLICA_LAG_CHECK_INTERVAL = 1000;
+    private static final long REPLICA_LAG_CHECK_VALIDITY = REPLICA_LAG_CHECK_INTERVAL * 5;
+
+    private static Properties replicaConfigProperties;
+    private static HikariDataSource replicaDs;
+    private static ScheduledThreadPoolExecutor replicaLagChecker;
+    private static volatile long replicaUsableUntil;    // 0 when the replica isn't usable
+
+    public static void configureReplica(String server, String database, String username, String password) {
+        replicaConfigProperties = dataSourceProperties(server, database, username, password);
     }
 
     public static void start() {
-        HikariConfig config = new HikariConfig(configProperties);
-        HikariDataSource source = new HikariDataSource(config);
-        ds = source;
+        int primaryConnections = 0;
+        for(Pool pool : Pool.values()) {
+            primaryConnections += pool.maximumPoolSize;
+            Properties p = new Properties();
+            p.putAll(configProperties);
+            p.setProperty("poolName", "haplo-"+pool.name);
+            // Set size of pool to avoid using too many connection when relatively idle, but scale up under load
+            p.setProperty("minimumIdle", Integer.toString(pool.minimumIdle));
+            p.setProperty("maximumPoolSize", Integer.toString(pool.maximumPoolSize));
+            if(pool.statementTimeout > 0) {
+                p.setProperty("dataSource.options", "-c statement_timeout="+pool.statementTimeout);
+            }
+            pool.ds = new HikariDataSource(new HikariConfig(p));
+        }
+        Logger logger = Logger.getLogger("org.haplo.database");
+        logger.info("Database pools allow up to "+primaryConnections+" connections to the primary, shared by all applications");
+        if(replicaConfigProperties != null) {
+            int replicaConnections = Integer.getInteger("org.haplo.db.replica.maxsize", 20);
+            Properties p = new Properties();
+            p.putAll(replicaConfigProperties);
+            p.setProperty("poolName", "haplo-"+REPLICA_POOL_NAME);
+            p.setProperty("readOnly", "true");
+            p.setProperty("minimumIdle", Integer.toString(Integer.getInteger("org.haplo.db.replica.minidle", 2)));
+            p.setProperty("maximumPoolSize", Integer.toString(replicaConnections));
+            replicaDs = new HikariDataSource(new HikariConfig(p));
+            logger.info("Database replica pool allows up to "+replicaConnections+" connections to the replica");
+            replicaLagChecker = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+                Thread thread = new Thread(runnable, "db-replica-lag");
+                thread.setDaemon(true);
+                return thread;
+            });
+            replicaLagChecker.scheduleWithFixedDelay(Database::checkReplicaLag, 0, REPLICA_LAG_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Choose the pool used for connections made by this thread.
+     */
+    public static void usePoolOnThisThread(String poolName) {
+        threadPool.set(Pool.fromName(poolName));
+    }
+
+    private static Pool poolForThisThread() {
+        Pool pool = threadPool.get();
+        return (pool == null) ? Pool.REQUEST : pool;
+    }
+
+    /**
+     * Set the application used to label metrics for connections used on this thread.
+     */
+    public static void setApplicationOnThisThread(long applicationId) {
+        threadApplicationLabel.set(Long.toString(applicationId));
     }
 
+    public static void clearApplicationOnThisThread() {
+        threadApplicationLabel.remove();
+        threadPinnedToPrimary.remove();    // end of request
+    }
+
+    /**
+     * Timeout, in seconds, for queries made by plugins on this thread, or 0 for no timeout.
+     */
+    public static int getScriptQueryTimeout() {
+        return poolForThisThread().scriptQueryTimeout;
+    }
+
+    // ----------------------------------------------------------------------
+
     public interface UseConnection {
         public Object use(Connection connection) throws java.sql.SQLException;
     }
 
+    /**
+     * Use a connection to the primary database. Later read only queries in the same request
+     * will also use the primary, so they see anything written with this connection.
+     */
     public static Object withConnection(UseConnection usage) throws java.sql.SQLException {
+        threadPinnedToPrimary.set(Boolean.TRUE);
+        return withPrimaryConnectionForReading(usage);
+    }
+
+    /**
+     * Use a connection to the primary database for queries which don't write, which
+     * doesn't stop later read only queries in this request from using the replica.
+     */
+    public static Object withPrimaryConnectionForReading(UseConnection usage) throws java.sql.SQLException {
         // Allow reentrancy
         Connection c = connection.get();
         if(c != null) {
             return usage.use(c);
         }
+        Pool pool = poolForThisThread();
+        return withNewConnection(pool.ds, pool.name, usage);
+    }
+
+    /**
+     * Use a connection for queries which don't write to the database. This will be a connection
+     * to the replica if one is configured and it's up to date, unless this thread is already using
+     * a connection or has used a connection to the primary in this request.
+     */
+    public static Object withReadOnlyConnection(UseConnection usage) throws java.sql.SQLException {
+        if((connection.get() != null) || (replicaDs == null) ||
+                (threadPinnedToPrimary.get() != null) || !isReplicaUsable()) {
+            return withPrimaryConnectionForReading(usage);
+        }
+        return withNewConnection(replicaDs, REPLICA_POOL_NAME, usage);
+    }
+
+    public static boolean isReplicaUsable() {
+        return System.currentTimeMillis() < replicaUsableUntil;
+    }
+
+    // Lag in seconds, or NULL if the server isn't a standby or its WAL receiver isn't streaming from
+    // the primary. If all received WAL has been replayed, the replica is up to date even if the last
+    // transaction replayed was some time ago.
+    static final String REPLICA_LAG_SQL =
+        "SELECT CASE WHEN NOT pg_is_in_recovery() OR "+
+            "NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming') THEN NULL "+
+        "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "+
+        "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+
+    // Called on the replicaLagChecker thread
+    private static void checkReplicaLag() {
+        try(Connection c = replicaDs.getConnection()) {
+            updateReplicaUsable(queryReplicationLag(c), null);
+        } catch(Exception e) {
+            updateReplicaUsable(null, e);
+        }
+    }
+
+    /**
+     * Returns the replication lag in seconds, or null if it can't be determined,
+     * in which case the replica must be treated as lagging.
+     */
+    public static Double queryReplicationLag(Connection c) throws java.sql.SQLException {
+        try(Statement statement = c.createStatement();
+            java.sql.ResultSet results = statement.executeQuery(REPLICA_LAG_SQL)) {
+            if(!results.next()) { return null; }
+            double lag = results.getDouble(1);
+            return results.wasNull() ? null : lag;
+        }
+    }
+
+    /**
+     * Update whether the replica is used from the result of a lag check, where null
+     * lag means replication isn't working or the check failed with the exception.
+     */
+    public static void updateReplicaUsable(Double lag, Exception checkException) {
+        boolean wasUsable = isReplicaUsable();
+        boolean usable = (lag != null) && ((lag * 1000) <= REPLICA_MAX_LAG);
+        replicaLag.set((lag == null) ? Double.NaN : lag);
+        if(usable != wasUsable) {
+            Logger logger = Logger.getLogger("org.haplo.database");
+            if(usable) {
+                logger.warn("Read replica is up to date, using for read only queries");
+            } else if(checkException != null) {
+                logger.error("Couldn't check read replica, using primary for read only queries", checkException);
+            } else {
+                logger.warn((lag == null) ?
+                    "Read replica isn't replicating from the primary, using primary for read only queries" :
+                    "Read replica is lagging by "+lag+"s, using primary for read only queries");
+            }
+        }
+        replicaUsableUntil = usable ? (System.currentTimeMillis() + REPLICA_LAG_CHECK_VALIDITY) : 0;
+    }
+
+    /**
+     * For tests, use a pool of connections to the primary as the replica, when the
+     * server doesn't have a replica configured. The replica isn't usable until
+     * updateReplicaUsable() is called with an acceptable lag.
+     */
+    public static void usePrimaryAsReplicaForTests(boolean enable) {
+        if(replicaLagChecker != null) {
+            throw new IllegalStateException("Replica is configured");
+        }
+        replicaUsableUntil = 0;
+        replicaDs = enable ? Pool.LONG_RUNNING.ds : null;
+    }
+
+    private static Object withNewConnection(HikariDataSource ds, String poolName, UseConnection usage) throws java.sql.SQLException {
         // Make a new connection and close after use
-        c = ds.getConnection();
+        String applicationLabel = threadApplicationLabel.get();
+        if(applicationLabel == null) { applicationLabel = NO_APPLICATION_LABEL; }
+        long checkoutStart = System.nanoTime();
+        Connection c = ds.getConnection();
+        long useStart = System.nanoTime();
+        connectionCheckoutTime.labels(poolName, applicationLabel).observe((useStart - checkoutStart) / 1.0E9);
         try {
             connection.set(c);
             return usage.use(c);
@@ -70,10 +346,13 @@ public class Database {
             // Clean up connection if an exception reaches the level
             // in the stack where the connection was opened.
             try {
-                execute(c, "ROLLBACK");
-                execute(c, "SET search_path TO public");
-                Logger.getLogger("org.haplo.database").
-                    error("ROLLBACK database connection after exception", e);
+                // Only roll back if a transaction was left open, and reset search path in the same round trip
+                boolean inTransaction = c.unwrap(BaseConnection.class).getTransactionState() != TransactionState.IDLE;
+                execute(c, inTransaction ? "ROLLBACK; SET search_path TO public" : "SET search_path TO public");
+                if(inTransaction) {
+                    Logger.getLogger("org.haplo.database").
+                        error("ROLLBACK database connection after exception", e);
+                }
             } catch(Exception x) {
                 ds.evictConnection(c);
                 Logger logger = Logger.getLogger("org.haplo.database");
@@ -84,6 +363,7 @@ public class Database {
         } finally {
             connection.set(null);
             c.close();
+            connectionUseTime.labels(poolName, applicationLabel).observe((System.nanoTime() - useStart) / 1.0E9);
         }
     }
 
@@ -93,9 +373,25 @@ public class Database {
         }
     }
 
+    /**
+     * Number of times a connection from a pool has been used for an application, for tests.
+     */
+    public static double getConnectionUseCount(String poolName, String applicationLabel) {
+        double[] buckets = connectionUseTime.labels(poolName, applicationLabel).get().buckets;
+        return buckets[buckets.length - 1];  // cumulative, so the +Inf bucket counts every use
+    }
+
     public static void collectMetrics() {
-        if(ds != null) {
-            ds.setMetricsTrackerFactory(new PrometheusMetricsTrackerFactory());
+        for(Pool pool : Pool.values()) {
+            if(pool.ds != null) {
+                pool.ds.setMetricsTrackerFactory(new PrometheusMetricsTrackerFactory());
+            }
+        }
+        if(replicaDs != null) {
+            replicaDs.setMetricsTrackerFactory(new PrometheusMetricsTrackerFactory());
+            replicaLag.register();
         }
+        connectionCheckoutTime.register();
+        connectionUseTime.register();
     }
 }
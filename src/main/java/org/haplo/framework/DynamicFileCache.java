@@ -0,0 +1,194 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import org.haplo.appserver.Response;
+
+/**
+ * Cache of dynamic files for an Application.
+ *
+ * Each file is generated exactly once, even when concurrent requests ask for
+ * it at the same time. Lookups don't take any locks.
+ *
+ * The total size of cached files across all applications is bounded. When
+ * it's exceeded, the least recently used files are evicted, so applications
+ * which haven't been used for a while lose their cached files first.
+ */
+public class DynamicFileCache {
+    private static volatile long maximumTotalSize = Long.getLong("org.haplo.dynamicfiles.maxsize", 256 * 1024 * 1024);
+    // Size used for responses which don't know their length
+    private static final long UNCERTAIN_RESPONSE_SIZE = 4096;
+
+    private static final AtomicLong totalSize = new AtomicLong();
+    private static final AtomicLong useCounter = new AtomicLong();
+    private static final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+        final CompletableFuture<Response> response = new CompletableFuture<Response>();
+        volatile long lastUsed;
+        long size;          // protected by synchronized(this)
+        boolean removed;    // protected by synchronized(this)
+    }
+
+    DynamicFileCache() {
+    }
+
+    /**
+     * Set the maximum total size of all cached files, for tests.
+     */
+    public static void setMaximumTotalSize(long size) {
+        maximumTotalSize = size;
+    }
+
+    /**
+     * Total size of all cached files, across all applications.
+     */
+    public static long getTotalSize() {
+        return totalSize.get();
+    }
+
+    /**
+     * Get a cached file, calling the generator if it's not in the cache.
+     * Concurrent callers for the same file wait for the first to generate it,
+     * and get the same exception if it fails.
+     */
+    public Response get(String filename, Function<String, Response> generator) {
+        Entry entry = this.entries.get(filename);
+        if(entry == null) {
+            Entry newEntry = new Entry();
+            entry = this.entries.putIfAbsent(filename, newEntry);
+            if(entry == null) {
+                entry = newEntry;
+                generate(filename, newEntry, generator);
+            }
+        }
+        entry.lastUsed = useCounter.incrementAndGet();
+        try {
+            return entry.response.join();
+        } catch(CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+
+    private void generate(String filename, Entry entry, Function<String, Response> generator) {
+        Response response = null;
+        try {
+            response = generator.apply(filename);
+            if(response == null) {
+                this.entries.remove(filename, entry);
+            } else {
+                long size = response.getContentLength();
+                if(size < 0) {
+                    size = UNCERTAIN_RESPONSE_SIZE;
+                }
+                synchronized(entry) {
+                    if(!entry.removed) {
+                        entry.size = size;
+                        totalSize.addAndGet(size);
+                    }
+                }
+            }
+        } catch(Throwable e) {
+            // Don't cache failures, a later request will try again. The entry must always be
+            // completed, otherwise concurrent callers waiting for it would wait forever.
+            remove(filename, entry);
+            entry.response.completeExceptionally(e);
+            throw e;
+        }
+        // Mark as used before evicting, so a new file isn't the first to be evicted
+        entry.lastUsed = useCounter.incrementAndGet();
+        entry.response.complete(response);
+        if(totalSize.get() > maximumTotalSize) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * Remove all cached files.
+     */
+    public void invalidateAll() {
+        for(Map.Entry<String, Entry> e : this.entries.entrySet()) {
+            remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private void remove(String filename, Entry entry) {
+        if(this.entries.remove(filename, entry)) {
+            synchronized(entry) {
+                entry.removed = true;
+                totalSize.addAndGet(-entry.size);
+                entry.size = 0;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static class EvictionCandidate {
+        DynamicFileCache cache;
+        String filename;
+        Entry entry;
+        long lastUsed;
+    }
+
+    private static void evictLeastRecentlyUsed() {
+        // Only one thread needs to evict, others can carry on
+        if(!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            ArrayList<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+            for(Application app : Application.allLoadedApplicationObjects()) {
+                DynamicFileCache cache = app.getDynamicFileCache();
+                for(Map.Entry<String, Entry> e : cache.entries.entrySet()) {
+                    if(e.getValue().response.isDone()) {
+                        EvictionCandidate candidate = new EvictionCandidate();
+                        candidate.cache = cache;
+                        candidate.filename = e.getKey();
+                        candidate.entry = e.getValue();
+                        candidate.lastUsed = candidate.entry.lastUsed; // copy so sort order is stable
+                        candidates.add(candidate);
+                    }
+                }
+            }
+            candidates.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+            // Evict down to below the maximum, so eviction doesn't happen for every new file
+            long targetSize = (maximumTotalSize / 4) * 3;
+            int evicted = 0;
+            for(EvictionCandidate candidate : candidates) {
+                if(totalSize.get() <= targetSize) {
+                    break;
+                }
+                candidate.cache.remove(candidate.filename, candidate.entry);
+                evicted++;
+            }
+            Logger.getLogger("org.haplo.app").info("Evicted "+evicted+" dynamic files from cache, size now "+totalSize.get());
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
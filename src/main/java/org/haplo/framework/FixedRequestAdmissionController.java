@@ -0,0 +1,50 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits a fixed number of concurrent requests, using a fair semaphore.
+ */
+public class FixedRequestAdmissionController implements RequestAdmissionController {
+    private final int permits;
+    private final Semaphore semaphore;
+
+    public FixedRequestAdmissionController(int permits) {
+        this.permits = permits;
+        this.semaphore = new Semaphore(permits, true /* sempahore is fair */);
+    }
+
+    public boolean acquire(long maxQueueTime) {
+        if(this.semaphore.getQueueLength() >= ConcurrencyLimits.APPLICATION_REQUEST_QUEUE_MAX_LENGTH) {
+            return false;
+        }
+        try {
+            return this.semaphore.tryAcquire(maxQueueTime, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            return false;
+        }
+    }
+
+    public void release(long processingTime) {
+        this.semaphore.release();
+    }
+
+    public int getLimit() {
+        return this.permits;
+    }
+
+    public int getInFlight() {
+        return this.permits - this.semaphore.availablePermits();
+    }
+
+    public int getQueueLength() {
+        return this.semaphore.getQueueLength();
+    }
+}
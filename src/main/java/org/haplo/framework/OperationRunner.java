@@ -12,6 +12,7 @@ import org.haplo.op.Operation;
 import org.haplo.op.OpDispatcher;
 import org.haplo.op.OpNotifyTarget;
 import org.haplo.op.OpQueuer;
+import org.haplo.op.OpResultCache;
 import org.haplo.op.OpDispatchServer;
 import org.haplo.op.OpWorkerProcess;
 import org.haplo.op.OpWorkerSupervisor;
@@ -20,6 +21,7 @@ import org.haplo.op.SupervisordSupervisor;
 public class OperationRunner {
     private static OpDispatcher dispatcher;
     private static OpDispatchServer dispatchServer;
+    private static OpResultCache resultCache;
     private static Framework framework;
 
     static void start(Framework framework, boolean productionEnvironment) {
@@ -28,6 +30,7 @@ public class OperationRunner {
 
         OpDispatcher.Policy defaultPolicy = new OpDispatcher.Policy();
         OperationRunner.dispatcher = new OpDispatcher(defaultPolicy);
+        OperationRunner.resultCache = OpResultCache.fromConfiguration();
 
         OperationRunner.dispatchServer = new OpDispatchServer(OperationRunner.dispatcher);
         OperationRunner.dispatchServer.start();
@@ -42,7 +45,18 @@ public class OperationRunner {
 
     static class DefaultQueuer implements OpQueuer {
         public void queueOperation(Operation operation, OpNotifyTarget notifyTarget) {
-            dispatcher.queueOperation(operation, framework.getCurrentApplicationId(), notifyTarget);
+            if(resultCache != null) {
+                resultCache.queueOperation(dispatcher, operation, framework.getCurrentApplicationId(), notifyTarget);
+            } else {
+                dispatcher.queueOperation(operation, framework.getCurrentApplicationId(), notifyTarget);
+            }
+        }
+
+        public boolean cancelOperation(Operation operation) {
+            if(resultCache != null) {
+                return resultCache.cancelOperation(dispatcher, operation);
+            }
+            return dispatcher.cancelQueuedOperation(operation);
         }
     }
 
@@ -70,12 +84,22 @@ public class OperationRunner {
         public void startSupervision(OpDispatcher.Policy policy) {
             this.logger.info("Starting supervision of in process operation workers");
             this.processes = new OpWorkerProcess[policy.numberOfWorkers];
-            for(int workerNumber = 0; workerNumber < this.processes.length; ++workerNumber) {
-                this.processes[workerNumber] = new OpWorkerProcess(workerNumber, "TODO-AUTH-TOKEN");
-                this.processes[workerNumber].start();
+            for(int workerNumber = 0; workerNumber < policy.minimumWorkers; ++workerNumber) {
+                startWorker(workerNumber);
             }
         }
 
+        public void startWorker(int workerNumber) {
+            this.processes[workerNumber] = new OpWorkerProcess(workerNumber, "TODO-AUTH-TOKEN");
+            this.processes[workerNumber].start();
+        }
+
+        public void stopWorker(int workerNumber) {
+            this.logger.info("Stopping in process worker " + workerNumber);
+            this.processes[workerNumber].interrupt();
+            this.processes[workerNumber] = null;
+        }
+
         public void workerFailed(int workerNumber) {
             this.logger.info("Failing in process worker " + workerNumber);
             // Interrupt old
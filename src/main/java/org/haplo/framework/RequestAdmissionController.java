@@ -0,0 +1,52 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+/**
+ * Decides whether a request for an application can be processed now, has to
+ * wait for another request to finish, or should be rejected because the
+ * application is overloaded.
+ *
+ * One controller is created for each application and server.
+ */
+public interface RequestAdmissionController {
+    /**
+     * Wait for permission to process a request.
+     *
+     * @param maxQueueTime Maximum time to wait in the queue, in milliseconds
+     * @return true if the request can be processed, false if it should be shed
+     */
+    boolean acquire(long maxQueueTime);
+
+    /**
+     * Called after a request admitted by acquire() has finished.
+     *
+     * @param processingTime Time taken to process the request, in nanoseconds
+     */
+    void release(long processingTime);
+
+    /**
+     * Current number of requests which can be processed at once.
+     */
+    int getLimit();
+
+    /**
+     * Number of requests currently being processed.
+     */
+    int getInFlight();
+
+    /**
+     * Number of requests waiting in acquire().
+     */
+    int getQueueLength();
+
+    // ----------------------------------------------------------------------
+
+    public interface Factory {
+        RequestAdmissionController create(long applicationID, int serverIndex);
+    }
+}
@@ -10,7 +10,6 @@ import java.io.*;
 import java.util.Formatter;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.concurrent.Semaphore;
 
 import javax.net.ssl.SSLSession;
 
@@ -87,7 +86,7 @@ public class RequestHandler extends AbstractHandler {
             // Log the request, minimum information
             String requestLogLine = "?";
             try {
-                requestLogLine = logRequest(baseRequest, request, servletResponse, 500, null, 0, 0, false, -1, -1);
+                requestLogLine = logRequest(baseRequest, request, servletResponse, 500, null, 0, 0, null, -1, -1);
             } catch(Exception x) {
                 requestLogLine = "(exception occurred when logging request)";
             }
@@ -166,7 +165,10 @@ public class RequestHandler extends AbstractHandler {
                 frameworkHandleTime += System.currentTimeMillis() - frameworkStartTime;
 
                 // Check the handler didn't return any content
-                if(r.getContentLength() != 0) {
+                if(r instanceof OverloadedResponse) {
+                    // Request throttle rejected the request
+                    response = r;
+                } else if(r.getContentLength() != 0) {
                     // Is this a reportable error that should be let through? (for JavaScript dev mode and file upload handlers)
                     String header = r.getFirstHeader("X-Haplo-Reportable-Error");
                     if(header != null && header.equals("yes")) {
@@ -196,13 +198,16 @@ public class RequestHandler extends AbstractHandler {
         // SAML2 integration needs special handling
         if(response == null && target.startsWith("/do/saml2-sp/")) {
             final String hostname2 = hostname; // needs to be final for lambda expression
-            withPerApplicationRequestThrottle(app, () -> {
+            response = withPerApplicationRequestThrottle(app, () -> {
                 framework.handleSaml2IntegrationFromJava(target, request, servletResponse, app);
                 long handleTime = System.currentTimeMillis() - startTime;
-                logRequest(baseRequest, request, servletResponse, 0, hostname2, 0, 0, false, handleTime, handleTime);
+                logRequest(baseRequest, request, servletResponse, 0, hostname2, 0, 0, null, handleTime, handleTime);
                 return null;
             });
-            return;
+            if(response == null) {
+                return;
+            }
+            // Otherwise the request was rejected by the throttle, and the response is sent below
         }
 
         // Get the Ruby framework to handle the request if nothing else handled it
@@ -216,7 +221,7 @@ public class RequestHandler extends AbstractHandler {
         if(response != null && response.isSuspended()) {
             // The request handling has been suspended using a Jetty continuation.
             // Log the progress made so far, and return without writing anything to the response.
-            logRequest(baseRequest, request, servletResponse, 0, hostname, 0, 0, false, System.currentTimeMillis() - startTime, frameworkHandleTime);
+            logRequest(baseRequest, request, servletResponse, 0, hostname, 0, 0, null, System.currentTimeMillis() - startTime, frameworkHandleTime);
             return;
         }
 
@@ -232,24 +237,27 @@ public class RequestHandler extends AbstractHandler {
         }
 
         // TODO: Don't gzip responses if the content-type is an image (?)
-        // gzip encoding handling
+        // Content encoding handling
         long responseContentLength = response.getContentLength();
         long uncompressedContentLength = responseContentLength;
-        boolean willGzip = false;
-        // Headers allow gzipping?
+        String contentEncoding = null;
+        // Headers allow compression? Response won't be compressed if a range is requested.
         String acceptEncoding = request.getHeader("Accept-Encoding");
-        if(reqRanges == null && // Response won't gzip if a range is requested
-                acceptEncoding != null && acceptEncoding.indexOf("gzip") != -1) // not quite the best way of doing it, but sufficient for these purposes
-        {
+        if(reqRanges == null && acceptEncoding != null && isAcceptableToGzipResponse(response)) {
             // Can the response do gzipping?
-            long gzipContentLength = response.getContentLengthGzipped();
-            if(gzipContentLength != Response.NOT_GZIPABLE) {
-                // Client can do gzipping, and so can the response. Set everything accordingly,
-                // but only if it's acceptable to compress this response.
-                if(isAcceptableToGzipResponse(response)) {
+            if(isEncodingAccepted(acceptEncoding, Response.CONTENT_ENCODING_GZIP)) {
+                long gzipContentLength = response.getContentLengthGzipped();
+                if(gzipContentLength != Response.NOT_GZIPABLE) {
+                    // Client can do gzipping, and so can the response. Set everything accordingly.
                     responseContentLength = gzipContentLength;
-                    willGzip = true;
-                    servletResponse.setHeader("Content-Encoding", "gzip");
+                    contentEncoding = Response.CONTENT_ENCODING_GZIP;
+                }
+            }
+            if(contentEncoding != null) {
+                servletResponse.setHeader("Content-Encoding", contentEncoding);
+                // Caches must not send the compressed response to clients which don't accept it
+                if(!servletResponse.containsHeader("Vary")) {
+                    servletResponse.setHeader("Vary", "Accept-Encoding");
                 }
             }
         }
@@ -274,56 +282,158 @@ public class RequestHandler extends AbstractHandler {
             servletResponse.setStatus(responseCode);
             responseContentLength = 0;
             uncompressedContentLength = 0;
-        } else if(isStaticResponse && ((request.getHeader("If-None-Match") != null) || (request.getHeader("If-Modified-Since") != null))) {
-            // Static responses never change, so any request from a client which includes these headers is for an unmodified resource.
+        } else if(isStaticResponse && isStaticResponseNotModified(request, response, contentEncoding)) {
+            // Client has the current version of the static file, which is checked against the entity tag, so
+            // stale caches are revalidated after a new version of a file is deployed.
             responseCode = 304;
+            String entityTag = response.getEntityTag(contentEncoding);
+            if(entityTag != null) {
+                servletResponse.setHeader("ETag", entityTag);
+            }
+            servletResponse.setHeader("Content-Encoding", null);
             servletResponse.setStatus(responseCode);
             responseContentLength = 0;
             uncompressedContentLength = 0;
+            contentEncoding = null;
         } else {
-            // ETag for static files?
+            // ETag and Last-Modified for static files?
             if(isStaticResponse) {
-                // Use the pathname as a basis for the etag.
-                servletResponse.setHeader("ETag", Integer.toHexString(target.hashCode() & 0xfffff));
+                String entityTag = response.getEntityTag(contentEncoding);
+                if(entityTag != null) {
+                    servletResponse.setHeader("ETag", entityTag);
+                }
+                long lastModified = response.getLastModified();
+                if(lastModified != -1) {
+                    servletResponse.setDateHeader("Last-Modified", lastModified);
+                }
             }
 
             // Going to send ranges?
             List<InclusiveByteRange> ranges = null;
+            MultipartByteRanges multipartRanges = null;
             if(reqRanges != null && response.supportsRanges()) {
                 // Decode ranges
                 ranges = InclusiveByteRange.satisfiableRanges(reqRanges, responseContentLength);
 
-                // If there are no satisfiable ranges (or more than one range), send 416 response
-                // TODO: Implement multiple ranges support, see Jetty's DefaultServlet.
-                if(ranges == null || ranges.size() != 1) {
+                // If there are no satisfiable ranges, send 416 response
+                if(ranges == null || ranges.isEmpty()) {
                     responseCode = 416;
                     servletResponse.setHeader("Content-Range", InclusiveByteRange.to416HeaderRangeString(responseContentLength));
                     ranges = null;  // unset so entire response is written
-                } else {
+                } else if(ranges.size() == 1) {
                     responseCode = 206; // partial content
                     InclusiveByteRange singleSatisfiableRange = ranges.get(0);
                     servletResponse.setHeader("Content-Range", singleSatisfiableRange.toHeaderRangeString(responseContentLength));
                     responseContentLength = singleSatisfiableRange.getSize();
+                } else if(MultipartByteRanges.shouldUseFor(ranges)) {
+                    responseCode = 206; // partial content, as multipart/byteranges
+                    multipartRanges = new MultipartByteRanges(ranges, response.getFirstHeader("Content-Type"), responseContentLength);
+                    servletResponse.setHeader("Content-Type", multipartRanges.getContentType());
+                    responseContentLength = multipartRanges.getContentLength();
+                    ranges = null;
+                } else {
+                    // Too many ranges requested, ignore the Range header and send the entire response
+                    ranges = null;
                 }
             }
 
             // Set the response and content-length
             servletResponse.setStatus(responseCode);
             if(responseContentLength != Response.CONTENT_LENGTH_UNCERTAIN
-                    && responseContentLength != 0
-                    && responseContentLength < (Integer.MAX_VALUE - 1)) {
-                servletResponse.setContentLength((int)responseContentLength);
+                    && responseContentLength != 0) {
+                servletResponse.setContentLengthLong(responseContentLength);
             }
 
             // Write body
-            response.writeToServletResponse(servletResponse, willGzip, ranges);
+            if(multipartRanges != null) {
+                multipartRanges.writeToServletResponse(servletResponse, response);
+            } else {
+                response.writeToServletResponse(servletResponse, contentEncoding, ranges);
+            }
         }
 
         long timeTakenForRequest = System.currentTimeMillis() - startTime;
 
-        logRequest(baseRequest, request, servletResponse, responseCode, hostname, responseContentLength, uncompressedContentLength, willGzip, timeTakenForRequest, frameworkHandleTime);
+        logRequest(baseRequest, request, servletResponse, responseCode, hostname, responseContentLength, uncompressedContentLength, contentEncoding, timeTakenForRequest, frameworkHandleTime);
+    }
+
+    /**
+     * Check Accept-Encoding header for an encoding, respecting q=0 to refuse an encoding.
+     * An element naming the encoding takes priority over the * wildcard, whatever the order.
+     */
+    private static boolean isEncodingAccepted(String acceptEncoding, String encoding) {
+        float encodingQuality = -1.0f;
+        float wildcardQuality = -1.0f;
+        for(String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim();
+            if(name.equalsIgnoreCase(encoding)) {
+                encodingQuality = qualityOfAcceptElement(parts);
+            } else if(name.equals("*")) {
+                wildcardQuality = qualityOfAcceptElement(parts);
+            }
+        }
+        return ((encodingQuality >= 0.0f) ? encodingQuality : wildcardQuality) > 0.0f;
+    }
+
+    private static float qualityOfAcceptElement(String[] parts) {
+        for(int i = 1; i < parts.length; ++i) {
+            String param = parts[i].trim();
+            if(param.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2));
+                } catch(NumberFormatException e) {
+                    return 0.0f;    // refuse if the quality can't be understood
+                }
+            }
+        }
+        return 1.0f;
+    }
+
+    /**
+     * Check conditional request headers against the current version of a static response.
+     */
+    private static boolean isStaticResponseNotModified(HttpServletRequest request, Response response, String contentEncoding) {
+        // If-None-Match takes precedence over If-Modified-Since
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null) {
+            String entityTag = response.getEntityTag(contentEncoding);
+            if(entityTag == null) {
+                return false;
+            }
+            for(String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if(candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2); // weak comparison
+                }
+                if(candidate.equals("*") || candidate.equals(entityTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long lastModified = response.getLastModified();
+        if(lastModified != -1) {
+            long ifModifiedSince = -1;
+            try {
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            } catch(IllegalArgumentException e) {
+                return false;
+            }
+            // HTTP dates have a resolution of one second
+            return (ifModifiedSince != -1) && ((lastModified / 1000) <= (ifModifiedSince / 1000));
+        }
+        return false;
     }
 
+    // MIME types which are already compressed, so there's no point in using CPU to compress them again
+    private static final String[] ALREADY_COMPRESSED_MIME_TYPE_PREFIXES = {
+        "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+        "application/x-7z-compressed", "application/x-rar-compressed",
+        "application/vnd.openxmlformats-officedocument.", "application/vnd.oasis.opendocument.",
+        "application/font-woff", "application/x-font-woff", "font/woff"
+    };
+
     /**
      * Check to see if it's OK to gzip a response.
      */
@@ -337,6 +447,14 @@ public class RequestHandler extends AbstractHandler {
                 // files anyway, so don't bother if it's an audio or video file.
                 return false;
             }
+            if(m.startsWith("image/") && !m.startsWith("image/svg")) {
+                return false;
+            }
+            for(String prefix : ALREADY_COMPRESSED_MIME_TYPE_PREFIXES) {
+                if(m.startsWith(prefix)) {
+                    return false;
+                }
+            }
         }
         return true;
     }
@@ -346,7 +464,7 @@ public class RequestHandler extends AbstractHandler {
      *
      * @return Log message string
      */
-    private String logRequest(Request baseRequest, HttpServletRequest request, HttpServletResponse servletResponse, int responseCode, String hostname, long sentContentLength, long uncompressedContentLength, boolean gzip, long timeTakenForRequest, long frameworkHandleTime) {
+    private String logRequest(Request baseRequest, HttpServletRequest request, HttpServletResponse servletResponse, int responseCode, String hostname, long sentContentLength, long uncompressedContentLength, String contentEncoding, long timeTakenForRequest, long frameworkHandleTime) {
         // Get info from request headers
         String referer = request.getHeader("Referer");
         if(referer == null) {
@@ -390,7 +508,7 @@ public class RequestHandler extends AbstractHandler {
                 responseCode, // Response code
                 sentContentLength, // Content-Length sent
                 uncompressedContentLength, // Compressed content-length
-                gzip ? "gz" : "i", // encoding
+                encodingForLog(contentEncoding), // encoding
                 timeTakenForRequest, // Time in milliseconds (includes network transfer etc)
                 frameworkHandleTime, // Time in milliseconds (may be 0 if framework not used)
                 cipher, // Which SSL cipher suite?
@@ -402,6 +520,13 @@ public class RequestHandler extends AbstractHandler {
         return logMessage;
     }
 
+    private static String encodingForLog(String contentEncoding) {
+        if(Response.CONTENT_ENCODING_GZIP.equals(contentEncoding)) {
+            return "gz";
+        }
+        return "i";
+    }
+
     /**
      * Special request handling for static files and health URL handling
      */
@@ -494,13 +619,24 @@ public class RequestHandler extends AbstractHandler {
      */
     private Response withPerApplicationRequestThrottle(Application app, ThrottledHandlingAction action) {
         // Don't allow too many concurrent requests on a single application
-        // Get the app sempahore first, so lots of requests for an app don't use up the global ruby runtime permits
-        Semaphore semaphore = app.getRequestConcurrencySempahore(this.serverIndex);
-        int queueLength = semaphore.getQueueLength();
+        // Get admission for the app first, so lots of requests for an app don't use up the global ruby runtime permits
+        RequestAdmissionController controller = app.getRequestAdmissionController(this.serverIndex);
+        String applicationLabel = Long.toString(app.getApplicationID());
+        String serverLabel = Integer.toString(this.serverIndex);
+        int queueLength = controller.getQueueLength();
         if(queueLength > 0) {
             Logger.getLogger("org.haplo.app").warn("Request throttle is queuing requests: Application "+app.getApplicationID()+", queue length "+queueLength);
         };
-        semaphore.acquireUninterruptibly();
+        long queueStartTime = System.nanoTime();
+        boolean admitted = controller.acquire(ConcurrencyLimits.APPLICATION_REQUEST_QUEUE_DEADLINE);
+        long processingStartTime = System.nanoTime();
+        RequestThrottleMetrics.queueWaitTime.labels(applicationLabel, serverLabel).observe((processingStartTime - queueStartTime) / 1.0E9);
+        if(!admitted) {
+            // Application is overloaded, so tell the client to try again later rather than tying up a thread
+            RequestThrottleMetrics.requestsShed.labels(applicationLabel, serverLabel).inc();
+            Logger.getLogger("org.haplo.app").error("Request throttle is shedding requests: Application "+app.getApplicationID()+", queue length "+controller.getQueueLength()+", limit "+controller.getLimit());
+            return new OverloadedResponse();
+        }
         try {
             // The application caches data which is expensive to recreate, for example, user data and JavaScript runtimes.
             // If requests are made in parallel, multiple "caches" are created so that the caches and runtimes don't have
@@ -512,24 +648,38 @@ public class RequestHandler extends AbstractHandler {
                 if(!app.isAnotherRequestBeingProcessed(this.serverIndex)) {
                     break;
                 }
+                if(i == ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_MAX_SPINS) {
+                    RequestThrottleMetrics.requestsDelayed.labels(applicationLabel, serverLabel).inc();
+                }
                 // Try waiting for a request to finish
                 // if true, then it was woken up because a request had finished
                 // so we know there's a free slot
                 if(app.waitForARequestToFinish(this.serverIndex, ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_MAX_WAIT_TIME)) {
                     break;
                 }
-                // TODO: Monitor how many/much requests are getting delayed by request concurrency reduction code.
             }
 
             return action.respond();
         } finally {
-            // Release app permit
-            semaphore.release();
+            // Release app permit, telling the controller how long the request took
+            controller.release(System.nanoTime() - processingStartTime);
             // Notify other threads waiting to avoid concurrent requests 
             app.requestFinished(this.serverIndex);
         }
     }
 
+    /**
+     * Response sent when the request throttle rejects a request.
+     */
+    private static class OverloadedResponse extends DataResponse {
+        OverloadedResponse() {
+            super("<html><body><h1>Service temporarily overloaded, please try again shortly</h1></body></html>".getBytes(java.nio.charset.StandardCharsets.UTF_8), 503);
+            addHeader("Content-Type", "text/html; charset=utf-8");
+            addHeader("Retry-After", Integer.toString(ConcurrencyLimits.APPLICATION_REQUEST_RETRY_AFTER));
+            addHeader("Cache-Control", "private, no-cache");
+        }
+    }
+
     private interface ThrottledHandlingAction {
         public Response respond();
     }
@@ -0,0 +1,76 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
+/**
+ * Prometheus metrics for the per-application request throttle.
+ *
+ * Queue depth, requests in flight and the concurrency limit are read from
+ * the admission controllers when the metrics are collected.
+ */
+public class RequestThrottleMetrics extends Collector {
+    private static final List<String> LABEL_NAMES = Arrays.asList("application", "server");
+
+    static final Histogram queueWaitTime = Histogram.build()
+        .name("haplo_app_request_queue_wait_seconds")
+        .help("Time requests spent waiting in the per-application request throttle")
+        .labelNames("application", "server")
+        .buckets(0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30)
+        .create();
+
+    static final Counter requestsShed = Counter.build()
+        .name("haplo_app_requests_shed_total")
+        .help("Requests rejected by the per-application request throttle")
+        .labelNames("application", "server")
+        .create();
+
+    static final Counter requestsDelayed = Counter.build()
+        .name("haplo_app_requests_delayed_total")
+        .help("Requests delayed to avoid concurrent requests for an application")
+        .labelNames("application", "server")
+        .create();
+
+    public static void collectMetrics() {
+        queueWaitTime.register();
+        requestsShed.register();
+        requestsDelayed.register();
+        new RequestThrottleMetrics().register();
+    }
+
+    public List<MetricFamilySamples> collect() {
+        GaugeMetricFamily queueDepth = new GaugeMetricFamily("haplo_app_request_queue_depth",
+            "Requests waiting in the per-application request throttle", LABEL_NAMES);
+        GaugeMetricFamily inFlight = new GaugeMetricFamily("haplo_app_requests_in_flight",
+            "Requests being processed for an application", LABEL_NAMES);
+        GaugeMetricFamily limit = new GaugeMetricFamily("haplo_app_request_concurrency_limit",
+            "Current concurrency limit for an application", LABEL_NAMES);
+        for(Application app : Application.allLoadedApplicationObjects()) {
+            String applicationID = Long.toString(app.getApplicationID());
+            for(int serverIndex = 0; serverIndex <= 1; ++serverIndex) {
+                RequestAdmissionController controller = app.getRequestAdmissionController(serverIndex);
+                List<String> labels = Arrays.asList(applicationID, Integer.toString(serverIndex));
+                queueDepth.addMetric(labels, controller.getQueueLength());
+                inFlight.addMetric(labels, controller.getInFlight());
+                limit.addMetric(labels, controller.getLimit());
+            }
+        }
+        List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+        samples.add(queueDepth);
+        samples.add(inFlight);
+        samples.add(limit);
+        return samples;
+    }
+}
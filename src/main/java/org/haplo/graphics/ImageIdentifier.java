@@ -22,12 +22,13 @@ import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 
+import org.haplo.op.CacheableOperation;
 import org.haplo.op.Operation;
 
 /**
  * Utility class to identify the size and format of an image file.
  */
-public class ImageIdentifier extends Operation {
+public class ImageIdentifier extends Operation implements CacheableOperation {
     private String filename;
     private boolean success;
     private int width;
@@ -37,11 +38,35 @@ public class ImageIdentifier extends Operation {
     /**
      * Create an identifier, which examines the file
      */
+    // Used by OpCodec, which sets the fields when decoding
+    private ImageIdentifier() {
+    }
+
     public ImageIdentifier(String filename) {
         this.filename = filename;
         format = "?";
     }
 
+    public String getResultCacheInputPathname() {
+        return this.filename;
+    }
+
+    public String getResultCacheParameters() {
+        return null;
+    }
+
+    public String[] getResultCacheOutputPathnames() {
+        return new String[0];
+    }
+
+    protected void copyResultsFromReturnedOperation(Operation resultOperation) {
+        ImageIdentifier result = (ImageIdentifier)resultOperation;
+        this.success = result.success;
+        this.width = result.width;
+        this.height = result.height;
+        this.format = result.format;
+    }
+
     protected void performOperation() {
         try {
             ImageInputStream input = ImageIO.createImageInputStream(new File(filename));
@@ -40,6 +40,10 @@ public class ImageTransform extends Operation {
     /**
      * Create a resizer for a given file
      */
+    // Used by OpCodec, which sets the fields when decoding
+    private ImageTransform() {
+    }
+
     public ImageTransform(String filename, String outFilename, String outFormat) {
         this.filename = filename;
         this.outFilename = outFilename;
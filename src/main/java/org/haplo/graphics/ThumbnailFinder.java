@@ -26,12 +26,13 @@ import org.apache.poi.poifs.filesystem.DocumentEntry;
 import org.apache.poi.poifs.filesystem.DocumentInputStream;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 
+import org.haplo.op.CacheableOperation;
 import org.haplo.op.Operation;
 
 /**
  * Thumbnail finder for stuff within zip file documents, eg iWork.
  */
-public class ThumbnailFinder extends Operation {
+public class ThumbnailFinder extends Operation implements CacheableOperation {
     public static final int EXPECTATION_IMAGE = 0;
     public static final int EXPECTATION_WMF = 1;
 
@@ -57,6 +58,10 @@ public class ThumbnailFinder extends Operation {
      * @param expectatedFormat Which format the embedded thumbnail is expected
      * to be in
      */
+    // Used by OpCodec, which sets the fields when decoding
+    private ThumbnailFinder() {
+    }
+
     public ThumbnailFinder(String inFilename, String outFilename, String outFormat, int maxDimension, String internalFilenameBase, int expectatedFormat) {
         this.inFilename = inFilename;
         this.outFilename = outFilename;
@@ -67,6 +72,11 @@ public class ThumbnailFinder extends Operation {
         this.expectatedFormat = expectatedFormat;
     }
 
+    @Override
+    protected Priority getDefaultPriority() {
+        return Priority.BATCH;
+    }
+
     public void addAdditionalInternalFilenameBase(String internalFilenameBase2) {
         if(this.internalFilenameBase2 != null) {
             throw new RuntimeException("Only supports one additional filename base");
@@ -82,6 +92,23 @@ public class ThumbnailFinder extends Operation {
         return thumbnailDimensions;
     }
 
+    public String getResultCacheInputPathname() {
+        return this.inFilename;
+    }
+
+    public String getResultCacheParameters() {
+        return this.outFormat + "," + this.maxDimension + "," + this.internalFilenameBase + "," +
+                this.internalFilenameBase2 + "," + this.expectatedFormat;
+    }
+
+    public String[] getResultCacheOutputPathnames() {
+        return new String[] {this.outFilename};
+    }
+
+    protected void copyResultsFromReturnedOperation(Operation resultOperation) {
+        this.thumbnailDimensions = ((ThumbnailFinder)resultOperation).thumbnailDimensions;
+    }
+
     /**
      * Perform the operation
      */
@@ -9,6 +9,9 @@ import java.util.Map;
 import java.util.HashMap;
 
 public class HTTPClient {
+    // Longest time a job waits for a request, including waiting for a worker. It fails rather than
+    // being retried, as the request may still be made by the worker.
+    private static final long HTTP_OPERATION_TIMEOUT = 10 * 60 * 1000;
 
     // Interface from Ruby via KHTTPClientJob in httpclient.rb:
     public static Map attemptHTTP(Map<String,String> requestSettings,
@@ -17,7 +20,7 @@ public class HTTPClient {
                                   String blacklist) throws Exception {
         HTTPOperation op = new HTTPOperation(requestSettings, keychainData, bodyPathname, blacklist);
         try {
-            op.perform();
+            op.submit(HTTP_OPERATION_TIMEOUT).waitForResult();
             return op.result;
         } catch (Throwable e) {
             Map<String,Object> result = op.result;
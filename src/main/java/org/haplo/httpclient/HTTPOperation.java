@@ -106,6 +106,10 @@ public class HTTPOperation extends Operation {
     // See there for how to return errors/success, etc
     public Map<String,Object> result;
 
+    // Used by OpCodec, which sets the fields when decoding
+    private HTTPOperation() {
+    }
+
     public HTTPOperation(Map<String,String> details,
                          Map<String,String> keychain,
                          String bodyPathname,
@@ -0,0 +1,143 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.javascript;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.WrappedException;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Limits on the instructions executed and CPU time used by each top level call
+ * into JavaScript, so a plugin with a runaway loop can't hold a request thread
+ * forever. Rhino calls OContextFactory.observeInstructionCount() every
+ * OBSERVER_THRESHOLD instructions, which checks the budget and accounts the CPU
+ * time used to the plugin on the top of the stack.
+ *
+ * When the budget is exceeded, an OExecutionBudgetException is thrown, wrapped
+ * so JavaScript can catch it like other API exceptions. The observer is then
+ * called after every instruction, and throws again, so catch and finally blocks
+ * and outer callers can't continue running, until the budget is reset with start().
+ *
+ * Limits for each kind of call are set with the system properties
+ *   org.haplo.javascript.budget.<kind>.instructions
+ *   org.haplo.javascript.budget.<kind>.cpuseconds
+ * where 0 means there's no limit.
+ */
+public class JsExecutionBudget {
+    static final int OBSERVER_THRESHOLD = Integer.getInteger("org.haplo.javascript.instructionobserverthreshold", 100000);
+
+    public enum Kind {
+        REQUEST(2000000000L, 60),
+        JOB(20000000000L, 600),
+        HOOK(500000000L, 20);
+
+        final long maxInstructions;
+        final long maxCpuTime;  // ns
+
+        Kind(long defaultMaxInstructions, long defaultMaxCpuSeconds) {
+            String prefix = "org.haplo.javascript.budget." + name().toLowerCase() + ".";
+            this.maxInstructions = Long.getLong(prefix + "instructions", defaultMaxInstructions);
+            this.maxCpuTime = Long.getLong(prefix + "cpuseconds", defaultMaxCpuSeconds) * 1000000000L;
+        }
+    }
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    static final Counter pluginCpuTime = Counter.build()
+        .name("haplo_js_plugin_cpu_seconds_total")
+        .help("CPU time used by JavaScript, sampled by the plugin at the top of the stack")
+        .labelNames("plugin")
+        .create();
+
+    static final Counter pluginInstructions = Counter.build()
+        .name("haplo_js_plugin_instructions_total")
+        .help("JavaScript instructions executed, sampled by the plugin at the top of the stack")
+        .labelNames("plugin")
+        .create();
+
+    static final Counter budgetsExceeded = Counter.build()
+        .name("haplo_js_budget_exceeded_total")
+        .help("Top level calls into JavaScript stopped for exceeding their instruction or CPU time budget")
+        .labelNames("kind", "plugin")
+        .create();
+
+    public static void collectMetrics() {
+        pluginCpuTime.register();
+        pluginInstructions.register();
+        budgetsExceeded.register();
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Start a new budget for a top level call into JavaScript, or remove the budget if kind is null.
+     * If maxInstructions is more than 0, it replaces the instruction limit for the kind.
+     */
+    static void start(Context cx, Kind kind, long maxInstructions) {
+        if(!(cx instanceof OContext)) {
+            return;
+        }
+        OContext o = (OContext)cx;
+        o.budgetKind = kind;
+        if(o.budgetExceeded) {
+            o.budgetExceeded = false;
+            cx.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+        }
+        if(kind != null) {
+            if(maxInstructions <= 0) {
+                maxInstructions = kind.maxInstructions;
+            }
+            o.instructionsRemaining = (maxInstructions > 0) ? maxInstructions : Long.MAX_VALUE;
+            o.cpuTimeStart = o.cpuTimeLastObserved = currentThreadCpuTime();
+        }
+    }
+
+    static void observe(Context cx, int instructionCount) {
+        if(!(cx instanceof OContext)) {
+            return;
+        }
+        OContext o = (OContext)cx;
+        if(o.budgetKind == null) {
+            return;
+        }
+        String plugin = Runtime.findCurrentlyExecutingPluginFromStack();
+        String pluginLabel = (plugin == null) ? "" : plugin;
+
+        long cpuTime = currentThreadCpuTime();
+        if(cpuTime >= 0) {
+            pluginCpuTime.labels(pluginLabel).inc((cpuTime - o.cpuTimeLastObserved) / 1000000000.0);
+            o.cpuTimeLastObserved = cpuTime;
+        }
+        pluginInstructions.labels(pluginLabel).inc(instructionCount);
+
+        o.instructionsRemaining -= instructionCount;
+        String exceeded = null;
+        if(o.instructionsRemaining < 0) {
+            exceeded = "instructions";
+        } else if(cpuTime >= 0 && o.budgetKind.maxCpuTime > 0 && (cpuTime - o.cpuTimeStart) > o.budgetKind.maxCpuTime) {
+            exceeded = "CPU time";
+        }
+        if(exceeded != null) {
+            if(!o.budgetExceeded) {
+                o.budgetExceeded = true;
+                budgetsExceeded.labels(o.budgetKind.name().toLowerCase(), pluginLabel).inc();
+                // Observe every instruction from now on, so nothing can keep running
+                cx.setInstructionObserverThreshold(1);
+            }
+            throw new WrappedException(new OExecutionBudgetException("JavaScript exceeded the " + exceeded +
+                    " allowed for a " + o.budgetKind.name().toLowerCase() + ((plugin == null) ? "" : (", in plugin " + plugin))));
+        }
+    }
+
+    private static long currentThreadCpuTime() {
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+}
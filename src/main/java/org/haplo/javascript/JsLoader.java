@@ -24,32 +24,25 @@ public class JsLoader {
     }
 
     public void loadScript(String scriptPathname, String givenFilename, String prefix, String suffix) throws java.io.IOException {
-        FileReader script = new FileReader(scriptPathname);
-        try {
-            if(prefix != null || suffix != null) {
-                // TODO: Is it worth loading JS files with prefix+suffix using a fancy Reader which concatenates other readers?
-                StringBuilder builder = new StringBuilder();
-                if(prefix != null) {
-                    builder.append(prefix);
-                }
-                builder.append(IOUtils.toString(script));
-                if(suffix != null) {
-                    builder.append(suffix);
-                }
-                this.context.evaluateString(this.scope, builder.toString(), givenFilename, 1, null /* no security domain */);
-            } else {
-                this.context.evaluateReader(this.scope, script, givenFilename, 1, null /* no security domain */);
-            }
-        } finally {
-            script.close();
+        StringBuilder builder = new StringBuilder();
+        if(prefix != null) {
+            builder.append(prefix);
         }
+        try(FileReader script = new FileReader(scriptPathname)) {
+            builder.append(IOUtils.toString(script));
+        }
+        if(suffix != null) {
+            builder.append(suffix);
+        }
+        // Scripts are compiled once per process, then evaluated in each scope
+        JsScriptCache.compile(this.context, builder.toString(), givenFilename).exec(this.context, this.scope);
     }
 
     public void evaluateString(String string, String sourceName) throws java.io.IOException {
         if(sourceName == null) {
             sourceName = "<eval>";
         }
-        this.context.evaluateString(this.scope, string, sourceName, 1, null /* no security domain */);
+        JsScriptCache.compile(this.context, string, sourceName).exec(this.context, this.scope);
     }
 
 }
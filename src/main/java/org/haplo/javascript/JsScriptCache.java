@@ -0,0 +1,239 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.javascript;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import org.apache.log4j.Logger;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Process-wide cache of compiled scripts, so plugins installed in many
+ * applications are only parsed and compiled once. Compiled scripts don't
+ * hold any state, and can be executed in any scope.
+ *
+ * Scripts are keyed by a digest of the source, the name it's loaded under,
+ * the optimisation level and the Rhino version. If org.haplo.javascript.scriptcache.dir
+ * is set, the classes generated for optimised scripts are also stored on
+ * disk, so they don't need to be generated again after the process restarts.
+ */
+public class JsScriptCache {
+    private static final int MAX_ENTRIES = Integer.getInteger("org.haplo.javascript.scriptcache.maxentries", 4096);
+    private static volatile File diskCacheDirectory;
+    static {
+        String dir = System.getProperty("org.haplo.javascript.scriptcache.dir");
+        diskCacheDirectory = (dir == null || dir.length() == 0) ? null : new File(dir);
+        if(diskCacheDirectory != null) {
+            diskCacheDirectory.mkdirs();
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static final Counter requests = Counter.build()
+        .name("haplo_js_script_cache_requests_total")
+        .help("Scripts loaded, by whether the compiled script was in memory, on disk, or had to be compiled")
+        .labelNames("result")
+        .create();
+
+    public static void collectMetrics() {
+        requests.register();
+    }
+
+    private static final LinkedHashMap<String,Script> scripts = new LinkedHashMap<String,Script>(256, 0.75f, true /* access order */) {
+        protected boolean removeEldestEntry(Map.Entry<String,Script> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Use another directory for the disk cache, or null for no disk cache, and
+     * empty the in memory cache. For tests.
+     */
+    public static void setDiskCacheDirectory(File directory) {
+        if(directory != null) {
+            directory.mkdirs();
+        }
+        diskCacheDirectory = directory;
+        synchronized(scripts) {
+            scripts.clear();
+        }
+    }
+
+    /**
+     * Whether a compiled script for the source is in the in memory cache. For tests.
+     */
+    public static boolean isCached(Context cx, String source, String sourceName) {
+        String key = keyFor(cx, source, sourceName);
+        synchronized(scripts) {
+            return scripts.containsKey(key);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Return a compiled script for the source, compiling it if it's not in the cache.
+     */
+    public static Script compile(Context cx, String source, String sourceName) {
+        // Scripts compiled for a debugger have debugging information
+        if(cx.getDebugger() != null) {
+            return cx.compileString(source, sourceName, 1, null /* no security domain */);
+        }
+
+        String key = keyFor(cx, source, sourceName);
+        Script script;
+        synchronized(scripts) {
+            script = scripts.get(key);
+        }
+        if(script != null) {
+            requests.labels("hit").inc();
+            return script;
+        }
+
+        // Compile outside the lock. Two threads may compile the same script at the same
+        // time, but the result is the same either way.
+        File directory = diskCacheDirectory;
+        if(directory != null && cx.getOptimizationLevel() >= 0) {
+            script = loadOrGenerateClasses(cx, source, sourceName, key, directory);
+        } else {
+            requests.labels("miss").inc();
+            script = cx.compileString(source, sourceName, 1, null /* no security domain */);
+        }
+        synchronized(scripts) {
+            scripts.put(key, script);
+        }
+        return script;
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static Script loadOrGenerateClasses(Context cx, String source, String sourceName, String key, File directory) {
+        Logger logger = Logger.getLogger("org.haplo.javascript.scriptcache");
+        File file = new File(directory, key + ".classes");
+        if(file.exists()) {
+            try {
+                Script script = defineScript(cx, readClasses(file), sourceName);
+                requests.labels("disk").inc();
+                return script;
+            } catch(IOException | LinkageError e) {
+                // Corrupt file, or classes which don't match this version of Rhino
+                logger.error("Failed to load cached classes for " + sourceName + ", will compile again", e);
+                file.delete();
+            }
+        }
+        requests.labels("miss").inc();
+        CompilerEnvirons environment = new CompilerEnvirons();
+        environment.initFromContext(cx);
+        Object[] classes = new ClassCompiler(environment).compileToClassFiles(source, sourceName, 1, "org.haplo.javascript.gen.S" + key);
+        try {
+            writeClasses(file, classes);
+        } catch(IOException e) {
+            logger.error("Failed to write cached classes for " + sourceName, e);
+        }
+        return defineScript(cx, classes, sourceName);
+    }
+
+    private static Script defineScript(Context cx, Object[] classes, String sourceName) {
+        // Each script has its own class loader, so it can be unloaded when it's evicted from the cache
+        GeneratedClassLoader loader = cx.createClassLoader(cx.getApplicationClassLoader());
+        Class<?> mainClass = null;
+        for(int i = 0; i < classes.length; i += 2) {
+            Class<?> c = loader.defineClass((String)classes[i], (byte[])classes[i + 1]);
+            if(mainClass == null) {
+                mainClass = c;  // main class is always first
+            }
+        }
+        loader.linkClass(mainClass);
+        try {
+            return (Script)mainClass.getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException e) {
+            throw new RuntimeException("Couldn't create compiled script for " + sourceName, e);
+        }
+    }
+
+    private static Object[] readClasses(File file) throws IOException {
+        long fileLength = file.length();
+        try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int count = in.readInt();
+            // Check lengths before allocating, so a corrupt file is an IOException
+            if(count <= 0 || count > fileLength) {
+                throw new IOException("Bad class count in " + file);
+            }
+            Object[] classes = new Object[count * 2];
+            for(int i = 0; i < classes.length; i += 2) {
+                classes[i] = in.readUTF();
+                int length = in.readInt();
+                if(length < 0 || length > fileLength) {
+                    throw new IOException("Bad class length in " + file);
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                classes[i + 1] = bytes;
+            }
+            return classes;
+        }
+    }
+
+    private static void writeClasses(File file, Object[] classes) throws IOException {
+        // Write to a temporary file in the same directory and move it into place, so
+        // other threads and processes never see a partial file
+        Path temp = Files.createTempFile(file.getParentFile().toPath(), "tmp", ".classes.t");
+        try {
+            try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeInt(classes.length / 2);
+                for(int i = 0; i < classes.length; i += 2) {
+                    byte[] bytes = (byte[])classes[i + 1];
+                    out.writeUTF((String)classes[i]);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String keyFor(Context cx, String source, String sourceName) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((cx.getImplementationVersion() + "\n" + cx.getOptimizationLevel() + "\n" +
+                    cx.getLanguageVersion() + "\n" + (cx.getInstructionObserverThreshold() > 0) + "\n" +
+                    sourceName + "\n").getBytes(StandardCharsets.UTF_8));
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            byte[] bytes = digest.digest();
+            char[] hex = new char[bytes.length * 2];
+            for(int i = 0; i < bytes.length; ++i) {
+                hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+                hex[(i * 2) + 1] = HEX[bytes[i] & 0xf];
+            }
+            return new String(hex);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+}
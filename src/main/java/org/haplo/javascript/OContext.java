@@ -0,0 +1,23 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.javascript;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+// Context with the state for the execution budget of the current top level call into JavaScript
+class OContext extends Context {
+    JsExecutionBudget.Kind budgetKind;  // null if there's no budget
+    long instructionsRemaining;
+    long cpuTimeStart;          // thread CPU time, ns
+    long cpuTimeLastObserved;
+    boolean budgetExceeded;
+
+    OContext(ContextFactory factory) {
+        super(factory);
+    }
+}
@@ -18,14 +18,21 @@ class OContextFactory extends ContextFactory {
     }
 
     protected Context makeContext() {
-        Context cx = super.makeContext();
+        Context cx = new OContext(this);
         cx.setLanguageVersion(Context.VERSION_ES6);
         cx.setClassShutter(new OClassShutter());
         cx.setWrapFactory(new SandboxedWrapFactory());
         cx.setOptimizationLevel(optimisationLevel);
+        cx.setInstructionObserverThreshold(JsExecutionBudget.OBSERVER_THRESHOLD);
         return cx;
     }
 
+    // Called every OBSERVER_THRESHOLD instructions
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        JsExecutionBudget.observe(cx, instructionCount);
+    }
+
     // Set the features required
     @Override
     protected boolean hasFeature(Context cx, int featureIndex) {
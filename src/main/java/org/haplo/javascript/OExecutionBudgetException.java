@@ -0,0 +1,21 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.javascript;
+
+/**
+ * Thrown when JavaScript code exceeds the instructions or CPU time allowed
+ * for a request, job or hook. JavaScript can catch it to clean up, but it's
+ * thrown again every time more instructions are observed, so the code can't
+ * continue running.
+ */
+public class OExecutionBudgetException extends OAPIException {
+    private static final long serialVersionUID = 1L;
+
+    public OExecutionBudgetException(String message) {
+        super(message);
+    }
+}
@@ -10,11 +10,15 @@ import java.io.LineNumberReader;
 import java.io.FileReader;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mozilla.javascript.*;
 import org.mozilla.javascript.json.JsonParser;
 
 import org.haplo.javascript.debugger.Debug;
+import org.haplo.javascript.debugger.SamplingProfiler;
 import org.haplo.jsinterface.*;
 import org.haplo.jsinterface.i18n.KPluginStrings;
 import org.haplo.jsinterface.app.*;
@@ -50,15 +54,32 @@ public class Runtime {
     private Scriptable runtimeScope;
     private KHost host;
     private PluginTestingSupport testingSupport;
+    private JdLoadCache loadCache;
+    private ApplicationCaches applicationCaches;
 
     private static class ApplicationScope {
         public int applicationId;
         public Scriptable scope;
+        public final ApplicationCaches caches = new ApplicationCaches();
         ApplicationScope(int applicationId) {
             this.applicationId = applicationId;
         }
     }
 
+    /**
+     * Information shared by all the runtimes for an application, so new runtimes
+     * don't have to discover it again. Discarded with the application scope.
+     */
+    public static class ApplicationCaches {
+        // Names of hooks which have been called, to set up the hook call cache in new runtimes
+        public final Set<String> hookNames = ConcurrentHashMap.newKeySet();
+        // Behaviours of objects and objIds of behaviours
+        public final ConcurrentHashMap<Integer,String> refBehaviours = new ConcurrentHashMap<Integer,String>();
+        public final ConcurrentHashMap<String,Integer> behaviourObjIds = new ConcurrentHashMap<String,Integer>();
+        // Incremented when any plugin's data store is changed
+        public final AtomicLong pluginDataGeneration = new AtomicLong();
+    }
+
     public static interface ApplicationScopeLoader {
         void load(JsLoader loader);
     }
@@ -79,6 +100,20 @@ public class Runtime {
         }
     }
 
+    /**
+     * Called when a plugin's data store is saved, so other runtimes reload the data
+     * when they're next used.
+     */
+    public static void pluginDataChanged(int applicationId) {
+        ApplicationScope appScope;
+        synchronized(applicationScopes) {
+            appScope = applicationScopes.get(applicationId);
+        }
+        if(appScope != null) {
+            appScope.caches.pluginDataGeneration.incrementAndGet();
+        }
+    }
+
     /**
      * Construct a new runtime, backed by the shared scope
      */
@@ -133,6 +168,8 @@ public class Runtime {
                 }
             }
 
+            this.applicationCaches = appScope.caches;
+
             // Generate a new scope for the runtime, which shares the objects in the main shared scope & the application scope
             ScriptableObject scope = (ScriptableObject)cx.newObject(appScope.scope);
             scope.setPrototype(appScope.scope);
@@ -179,6 +216,7 @@ public class Runtime {
         }
         currentContext = Runtime.enterContext();
         threadRuntime.set(this);
+        SamplingProfiler.threadStartedUsingRuntime(this.applicationId);
         host.setSupportRoot(supportRoot);
         Debug.Factory debuggerFactory = Debug.getFactoryForApplication(this.applicationId);
         if(debuggerFactory != null) {
@@ -203,10 +241,30 @@ public class Runtime {
         }
         currentContext.exit();
         currentContext = null;
+        SamplingProfiler.threadStoppedUsingRuntime();
         host.clearSupportRoot();
+        if(loadCache != null) {
+            loadCache.clear();  // rows are only cached for a single use of the runtime
+        }
         threadRuntime.remove();
     }
 
+    /**
+     * Start the execution budget for a top level call into JavaScript, with kind
+     * "request", "job" or "hook", or null for no limits.
+     */
+    public void startExecutionBudget(String kind) {
+        startExecutionBudget(kind, 0);
+    }
+
+    /**
+     * As startExecutionBudget(kind), but with a smaller instruction limit, for tests.
+     */
+    public void startExecutionBudget(String kind, long maxInstructions) {
+        checkContext();
+        JsExecutionBudget.start(currentContext, (kind == null) ? null : JsExecutionBudget.Kind.valueOf(kind.toUpperCase()), maxInstructions);
+    }
+
     /**
      * Get the current Runtime object for this thread
      */
@@ -218,6 +276,16 @@ public class Runtime {
         return runtime;
     }
 
+    /**
+     * Get the cache of rows loaded from plugin database tables, or null if it's disabled
+     */
+    public JdLoadCache getLoadCache() {
+        if(loadCache == null && JdLoadCache.isEnabled()) {
+            loadCache = new JdLoadCache();
+        }
+        return loadCache;
+    }
+
     /**
      * Get the Javascript context
      */
@@ -242,7 +310,7 @@ public class Runtime {
         if(sourceName == null) {
             sourceName = "<eval>";
         }
-        currentContext.evaluateString(runtimeScope, string, sourceName, 1, null /* no security domain */);
+        JsScriptCache.compile(currentContext, string, sourceName).exec(currentContext, runtimeScope);
     }
 
     /**
@@ -252,6 +320,13 @@ public class Runtime {
         return host;
     }
 
+    /**
+     * Get the information shared with the other runtimes for this application
+     */
+    public ApplicationCaches getApplicationCaches() {
+        return this.applicationCaches;
+    }
+
     /**
      * Get the main host object for the Runtime in use on the current thread.
      */
@@ -0,0 +1,60 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.javascript;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Prometheus metrics for the pools of JavaScript runtimes kept for each
+ * application. The pools themselves are managed by the KApp caches.
+ */
+public class RuntimePoolMetrics {
+    static final Counter checkouts = Counter.build()
+        .name("haplo_js_runtime_checkouts_total")
+        .help("JavaScript runtimes used for a request, by whether the runtime came from the pool or was created")
+        .labelNames("result")
+        .create();
+
+    static final Counter warmUps = Counter.build()
+        .name("haplo_js_runtime_warm_ups_total")
+        .help("JavaScript runtimes created in advance to keep the minimum number in the pool")
+        .create();
+
+    static final Counter resets = Counter.build()
+        .name("haplo_js_runtime_resets_total")
+        .help("JavaScript runtimes reset for another use, by whether plugin data stores had to be reloaded")
+        .labelNames("type")
+        .create();
+
+    static final Counter evictions = Counter.build()
+        .name("haplo_js_runtime_evictions_total")
+        .help("Idle JavaScript runtimes discarded from the pool")
+        .create();
+
+    public static void collectMetrics() {
+        checkouts.register();
+        warmUps.register();
+        resets.register();
+        evictions.register();
+    }
+
+    public static void runtimeCheckedOut(boolean created) {
+        checkouts.labels(created ? "created" : "pooled").inc();
+    }
+
+    public static void runtimeWarmedUp() {
+        warmUps.inc();
+    }
+
+    public static void runtimeReset(boolean reloadedData) {
+        resets.labels(reloadedData ? "appdata" : "fast").inc();
+    }
+
+    public static void runtimeEvicted() {
+        evictions.inc();
+    }
+}
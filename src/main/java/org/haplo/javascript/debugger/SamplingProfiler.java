@@ -0,0 +1,225 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+package org.haplo.javascript.debugger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Low overhead profiler for production use. Unlike Profiler, it doesn't need a
+ * DebugFrame on every call, so scripts stay compiled.
+ *
+ * Threads using a JavaScript runtime are registered with their application ID.
+ * While a profile is active for an application, a background thread samples the
+ * Java stacks of its threads every org.haplo.javascript.profiler.interval ms
+ * (0 to disable), up to org.haplo.javascript.profiler.maxdepth frames, and keeps
+ * the frames from compiled scripts, which Rhino generates with the JavaScript
+ * source name and line numbers. Nothing is sampled when no profiles are active.
+ *
+ * Samples are aggregated per application in the "folded" format used by flame
+ * graph tools, with the plugin on the top of the stack as the root frame, and
+ * each frame named by function, source name and line.
+ */
+public class SamplingProfiler {
+    private static final int INTERVAL = Integer.getInteger("org.haplo.javascript.profiler.interval", 50);
+    private static final int MAX_DEPTH = Integer.getInteger("org.haplo.javascript.profiler.maxdepth", 256);
+    private static final int MAX_STACKS_PER_APPLICATION = Integer.getInteger("org.haplo.javascript.profiler.maxstacks", 4096);
+    private static final String OTHER_STACKS = "<other>";
+    private static final String TRUNCATED_STACK = "<truncated>";
+
+    private static final ConcurrentHashMap<Long,Integer> threads = new ConcurrentHashMap<Long,Integer>(); // thread ID -> app ID
+    private static final ConcurrentHashMap<Integer,ApplicationProfile> profiles = new ConcurrentHashMap<Integer,ApplicationProfile>();
+    private static ScheduledThreadPoolExecutor sampler;
+    private static ScheduledFuture<?> sampling;   // only scheduled while a profile is active
+
+    // ----------------------------------------------------------------------
+
+    public static void threadStartedUsingRuntime(int applicationId) {
+        if(INTERVAL > 0) {
+            threads.put(Thread.currentThread().getId(), applicationId);
+        }
+    }
+
+    public static void threadStoppedUsingRuntime() {
+        if(INTERVAL > 0) {
+            threads.remove(Thread.currentThread().getId());
+        }
+    }
+
+    /**
+     * Start a new profile for the application, discarding any previous samples.
+     */
+    public static synchronized void startProfile(int applicationId) {
+        if(INTERVAL <= 0) { return; }
+        profiles.put(applicationId, new ApplicationProfile());
+        if(sampling == null) {
+            if(sampler == null) {
+                sampler = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+                    Thread thread = new Thread(runnable, "js-profiler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            sampling = sampler.scheduleWithFixedDelay(SamplingProfiler::sample, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop sampling for the application, keeping the samples collected so far.
+     */
+    public static synchronized void stopProfile(int applicationId) {
+        ApplicationProfile profile = profiles.get(applicationId);
+        if(profile != null) {
+            profile.active = false;
+        }
+        boolean anyActive = false;
+        for(ApplicationProfile p : profiles.values()) {
+            if(p.active) { anyActive = true; }
+        }
+        if(!anyActive && sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+        }
+    }
+
+    public static boolean isProfiling(int applicationId) {
+        ApplicationProfile profile = profiles.get(applicationId);
+        return (profile != null) && profile.active;
+    }
+
+    /**
+     * Folded stacks for the application, one line per stack with a count of samples.
+     */
+    public static String getFoldedStacks(int applicationId) {
+        ApplicationProfile profile = profiles.get(applicationId);
+        return (profile == null) ? "" : profile.folded();
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static void sample() {
+        try {
+            ArrayList<Long> threadIds = new ArrayList<Long>();
+            for(Map.Entry<Long,Integer> entry : threads.entrySet()) {
+                if(isProfiling(entry.getValue())) {
+                    threadIds.add(entry.getKey());
+                }
+            }
+            if(threadIds.isEmpty()) { return; }
+            long[] ids = new long[threadIds.size()];
+            for(int i = 0; i < ids.length; ++i) { ids[i] = threadIds.get(i); }
+            // One call samples all the threads at the same safepoint
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            ThreadInfo[] infos = threadBean.getThreadInfo(ids, MAX_DEPTH);
+            for(int i = 0; i < infos.length; ++i) {
+                Integer applicationId = threads.get(ids[i]);
+                if(infos[i] == null || applicationId == null) { continue; }
+                ApplicationProfile profile = profiles.get(applicationId);
+                if(profile == null || !profile.active) { continue; }
+                String stack = foldStack(infos[i].getStackTrace());
+                if(stack != null) {
+                    profile.record(stack);
+                }
+            }
+        } catch(Throwable e) {
+            // Don't let an exception stop the scheduled sampling
+            Logger.getLogger("org.haplo.javascript.profiler").error("Exception while sampling JavaScript stacks", e);
+        }
+    }
+
+    // Returns null if there aren't any JavaScript frames on the stack
+    private static String foldStack(StackTraceElement[] stack) {
+        StringBuilder folded = null;
+        String plugin = null;
+        // Java stacks are innermost first, folded stacks are outermost first
+        for(int i = stack.length - 1; i >= 0; --i) {
+            StackTraceElement element = stack[i];
+            String fileName = element.getFileName();
+            String methodName = element.getMethodName();
+            if(fileName == null || fileName.endsWith(".java") || !methodName.startsWith("_c_")) {
+                continue;
+            }
+            if(folded == null) {
+                folded = new StringBuilder(256);
+                // Outermost frames are missing if the stack was deeper than the sampled depth
+                if(stack.length >= MAX_DEPTH) {
+                    folded.append(TRUNCATED_STACK).append(';');
+                }
+            } else {
+                folded.append(';');
+            }
+            folded.append(functionName(methodName)).append(" (").append(fileName);
+            if(element.getLineNumber() > 0) {
+                folded.append(':').append(element.getLineNumber());
+            }
+            folded.append(')');
+            String framePlugin = pluginNameFromFileName(fileName);
+            if(framePlugin != null) { plugin = framePlugin; }
+        }
+        if(folded == null) { return null; }
+        return ((plugin == null) ? "<platform>" : plugin) + ";" + folded.toString();
+    }
+
+    // Compiled functions are named _c_<function>_<index>, and the top level script is _c_script_0
+    private static String functionName(String methodName) {
+        int end = methodName.lastIndexOf('_');
+        String name = (end > 3) ? methodName.substring(3, end) : methodName.substring(3);
+        return (name.length() == 0 || name.equals("script")) ? "<anonymous>" : name;
+    }
+
+    // Same as Runtime.findCurrentlyExecutingPluginFromStack()
+    private static String pluginNameFromFileName(String f) {
+        if((f.length() > 3) && (f.charAt(0) == 'p') && (f.charAt(1) == '/')) {
+            int nextSlashIndex = f.indexOf('/', 2);
+            if(nextSlashIndex > 4) {
+                return f.substring(2, nextSlashIndex);
+            }
+        }
+        return null;
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static class ApplicationProfile {
+        private HashMap<String,long[]> counts = new HashMap<String,long[]>();
+        volatile boolean active = true;
+
+        synchronized void record(String stack) {
+            long[] count = counts.get(stack);
+            if(count == null) {
+                if(counts.size() >= MAX_STACKS_PER_APPLICATION) {
+                    stack = OTHER_STACKS;
+                    count = counts.get(stack);
+                }
+                if(count == null) {
+                    count = new long[1];
+                    counts.put(stack, count);
+                }
+            }
+            count[0]++;
+        }
+
+        synchronized String folded() {
+            StringBuilder builder = new StringBuilder();
+            for(Map.Entry<String,long[]> entry : counts.entrySet()) {
+                builder.append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -8,9 +8,11 @@ package org.haplo.jsinterface;
 
 import org.haplo.javascript.Runtime;
 import org.haplo.javascript.OAPIException;
+import org.haplo.javascript.RuntimePoolMetrics;
 import org.mozilla.javascript.*;
 
 import org.haplo.appserver.FileUploads;
+import org.haplo.appserver.CharSequenceResponse;
 
 import org.haplo.jsinterface.app.*;
 import org.haplo.jsinterface.stdplugin.StdWebPublisher;
@@ -46,7 +48,7 @@ public class KHost extends KScriptable {
     private KSessionStore sessionStore;
     private Function renderSearchResultFunction;
     private HashMap<String, KObjRef> behaviourRefCache;
-    private HashMap<Integer, String> refBehaviourCache;
+    private long pluginDataGeneration = -1;
     private boolean templateDebuggingEnabled = false;
     private boolean i18nDebuggingEnabled = false;
 
@@ -59,9 +61,15 @@ public class KHost extends KScriptable {
         this.supportRoot = supportRoot;
         this.templatePlatformFunctions = null;
         this.userTimeZone = null;
-        // Reset all the data read from app globals - this is a convenient time to do the reset.
-        // TODO: For efficiency, only reset app data stores for JavaScript plugins when it's changed by the same plugin in another JavaScript runtime
-        resetPluginAppDataStores();
+        // Reset the data read from app globals if any plugin has changed its data since this runtime
+        // was last used - this is a convenient time to do the reset.
+        long generation = Runtime.getCurrentRuntime().getApplicationCaches().pluginDataGeneration.get();
+        boolean reloadData = (generation != this.pluginDataGeneration);
+        if(reloadData) {
+            resetPluginAppDataStores();
+            this.pluginDataGeneration = generation;
+        }
+        RuntimePoolMetrics.runtimeReset(reloadData);
         // Make sure there's no session store
         this.sessionStore = null;
     }
@@ -181,18 +189,10 @@ public class KHost extends KScriptable {
         }
         PluginHookCallCacheEntry[] pluginsWithThisHook = this.pluginHookCallCache.get(hookName);
         if(pluginsWithThisHook == null) {
-            ArrayList<PluginHookCallCacheEntry> hookCalls = new ArrayList<PluginHookCallCacheEntry>(16);
-            for(Scriptable plugin : this.plugins.values()) {
-                Object hookFn = plugin.get(hookName, plugin); // ConsString is checked
-                if(hookFn instanceof Callable) {
-                    PluginHookCallCacheEntry p = new PluginHookCallCacheEntry();
-                    p.plugin = plugin;
-                    p.hookFn = (Callable)hookFn;
-                    hookCalls.add(p);
-                }
-            }
-            pluginsWithThisHook = hookCalls.toArray(new PluginHookCallCacheEntry[hookCalls.size()]);
+            pluginsWithThisHook = findPluginsWithHook(hookName);
             this.pluginHookCallCache.put(hookName, pluginsWithThisHook);
+            // Remember this hook is used, so it can be set up in new runtimes
+            runtime.getApplicationCaches().hookNames.add(hookName);
         }
 
         // Call all the hooks using the cached entry
@@ -204,6 +204,35 @@ public class KHost extends KScriptable {
         }
     }
 
+    private PluginHookCallCacheEntry[] findPluginsWithHook(String hookName) {
+        ArrayList<PluginHookCallCacheEntry> hookCalls = new ArrayList<PluginHookCallCacheEntry>(16);
+        for(Scriptable plugin : this.plugins.values()) {
+            Object hookFn = plugin.get(hookName, plugin); // ConsString is checked
+            if(hookFn instanceof Callable) {
+                PluginHookCallCacheEntry p = new PluginHookCallCacheEntry();
+                p.plugin = plugin;
+                p.hookFn = (Callable)hookFn;
+                hookCalls.add(p);
+            }
+        }
+        return hookCalls.toArray(new PluginHookCallCacheEntry[hookCalls.size()]);
+    }
+
+    /**
+     * Called when a new runtime has loaded its plugins, to set up the hook call cache
+     * for the hooks used by other runtimes for this application, so it doesn't start cold.
+     */
+    public void prewarmCaches() {
+        if(this.pluginHookCallCache == null) {
+            this.pluginHookCallCache = new HashMap<String, PluginHookCallCacheEntry[]>(32);
+        }
+        for(String hookName : Runtime.getCurrentRuntime().getApplicationCaches().hookNames) {
+            if(!this.pluginHookCallCache.containsKey(hookName)) {
+                this.pluginHookCallCache.put(hookName, findPluginsWithHook(hookName));
+            }
+        }
+    }
+
     private static class PluginHookCallCacheEntry {
         public Scriptable plugin;
         public Callable hookFn;
@@ -263,7 +292,8 @@ public class KHost extends KScriptable {
     // --------------------------------------------------------------------------------------------------------------
 
     // The host object is a convenient place to keep the behaviour ref cache, as it needs to be per-Runtime
-    // as Ref objects shouldn't be shared between runtimes.
+    // as Ref objects shouldn't be shared between runtimes. The objIds and behaviours are shared by all
+    // the runtimes for the application.
 
     public HashMap<String, KObjRef> getBehaviourRefCache() {
         if(this.behaviourRefCache == null) {
@@ -272,11 +302,12 @@ public class KHost extends KScriptable {
         return this.behaviourRefCache;
     }
 
-    public HashMap<Integer, String> getRefBehaviourCache() {
-        if(this.refBehaviourCache == null) {
-            this.refBehaviourCache = new HashMap<Integer, String>();
-        }
-        return this.refBehaviourCache;
+    public Map<String, Integer> getBehaviourObjIdCache() {
+        return Runtime.getCurrentRuntime().getApplicationCaches().behaviourObjIds;
+    }
+
+    public Map<Integer, String> getRefBehaviourCache() {
+        return Runtime.getCurrentRuntime().getApplicationCaches().refBehaviours;
     }
 
     // --------------------------------------------------------------------------------------------------------------
@@ -324,6 +355,9 @@ public class KHost extends KScriptable {
 
     // --------------------------------------------------------------------------------------------------------------
     final static int RESPONSE_BODY_INDEX = 2;
+    final static int RESPONSE_LAYOUT_INDEX = 4;
+    // Text bodies at least this long, and without a layout, are sent as a CharSequenceResponse so they're not copied into Ruby strings
+    final static int STREAMED_RESPONSE_BODY_MINIMUM = Integer.getInteger("org.haplo.plugin.streamedbodymin", 64 * 1024);
     final static private Object[][] REQUEST_HANDLER_RESPONSE = new Object[][]{
         new Object[]{"statusCode", Integer.class},
         new Object[]{"$headersJSON", String.class},
@@ -391,7 +425,10 @@ public class KHost extends KScriptable {
             }
         }
         // body may need special handling
-        if(info[RESPONSE_BODY_INDEX] == null) {
+        if((info[RESPONSE_BODY_INDEX] instanceof String) && (info[RESPONSE_LAYOUT_INDEX] == null) &&
+                (((String)info[RESPONSE_BODY_INDEX]).length() >= STREAMED_RESPONSE_BODY_MINIMUM)) {
+            info[RESPONSE_BODY_INDEX] = new CharSequenceResponse((String)info[RESPONSE_BODY_INDEX]);
+        } else if(info[RESPONSE_BODY_INDEX] == null) {
             // Perhaps it's a generated file?
             Object body = response.get("body", response); // ConsString is checked
             if((body != null) &&
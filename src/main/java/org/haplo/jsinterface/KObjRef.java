@@ -15,6 +15,7 @@ import org.haplo.jsinterface.app.*;
 
 import java.util.regex.Pattern;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Date;
 
 // NOTE: Be careful about making KObjRef hold references to any other objects.
@@ -120,7 +121,7 @@ public class KObjRef extends KScriptable {
     // nice to avoid too many database lookups in code which doesn't look like it should hit the database.
 
     public String jsGet_behaviour() {
-        HashMap<Integer, String> cache = Runtime.getCurrentRuntime().getHost().getRefBehaviourCache();
+        Map<Integer, String> cache = Runtime.getCurrentRuntime().getHost().getRefBehaviourCache();
         Integer objIDobj = new Integer(this.objId);
         String cachedBehaviour = cache.get(objIDobj); // ConsString is checked (not a JS string)
         if(cachedBehaviour != null) { return cachedBehaviour; }
@@ -134,11 +135,17 @@ public class KObjRef extends KScriptable {
     }
 
     public static KObjRef jsStaticFunction_behaviourRef(String behaviour) {
-        HashMap<String, KObjRef> cache = Runtime.getCurrentRuntime().getHost().getBehaviourRefCache();
+        KHost host = Runtime.getCurrentRuntime().getHost();
+        HashMap<String, KObjRef> cache = host.getBehaviourRefCache();
         KObjRef cachedRef = cache.get(behaviour);
         if(cachedRef != null) { return cachedRef; }
-        Integer objId = rubyInterface.refOfBehaviour(behaviour);
-        if(objId == null) { return null; }
+        Map<String, Integer> objIdCache = host.getBehaviourObjIdCache();
+        Integer objId = objIdCache.get(behaviour);
+        if(objId == null) {
+            objId = rubyInterface.refOfBehaviour(behaviour);
+            if(objId == null) { return null; }
+            objIdCache.put(behaviour, objId);
+        }
         KObjRef ref = fromId(objId);
         cache.put(behaviour, ref);
         return ref;
@@ -0,0 +1,103 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.jsinterface.db;
+
+import java.util.HashMap;
+
+import org.mozilla.javascript.Scriptable;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Identity map of rows loaded by id with JdTable load() and loadMany(), so
+ * that repeated loads of the same row only query the database once.
+ *
+ * There's one per Runtime, and it's cleared when the Runtime stops being used
+ * on a thread, so rows are only cached for the duration of a single request.
+ * Writes through JdTable invalidate the affected rows.
+ *
+ * Loading a row which is in the cache returns the same JavaScript object, so
+ * rows are shared within a request. If a row has been modified by setting a
+ * field since it was loaded, it's not returned from the cache, so load() never
+ * returns unsaved changes made elsewhere. Changes made inside the values of
+ * json fields without assigning the field aren't tracked, and are shared.
+ */
+public class JdLoadCache {
+    // Optional, as rows become shared objects within a request
+    private static volatile boolean enabled = Boolean.getBoolean("org.haplo.jsdb.loadcache");
+
+    static final Counter hits = Counter.build()
+        .name("haplo_jsdb_load_cache_hits_total")
+        .help("Rows loaded by id which were found in the per-request load cache")
+        .create();
+
+    static final Counter misses = Counter.build()
+        .name("haplo_jsdb_load_cache_misses_total")
+        .help("Rows loaded by id which had to be read from the database")
+        .create();
+
+    public static void collectMetrics() {
+        hits.register();
+        misses.register();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable caching for Runtimes which haven't created their cache yet, for tests.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    private HashMap<JdTable,HashMap<Integer,Scriptable>> tables = new HashMap<JdTable,HashMap<Integer,Scriptable>>();
+
+    // ----------------------------------------------------------------------
+
+    Scriptable get(JdTable table, int id) {
+        HashMap<Integer,Scriptable> rows = this.tables.get(table);
+        Scriptable row = (rows == null) ? null : rows.get(id);
+        // Field setters record changes in $changes, which isn't cleared by saving. Saving invalidates
+        // the row, so a cached row with changes has been modified but not saved.
+        if(row != null && row.has("$changes", row)) {
+            rows.remove(id);
+            row = null;
+        }
+        if(row == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return row;
+    }
+
+    void put(JdTable table, int id, Scriptable row) {
+        HashMap<Integer,Scriptable> rows = this.tables.get(table);
+        if(rows == null) {
+            rows = new HashMap<Integer,Scriptable>();
+            this.tables.put(table, rows);
+        }
+        rows.put(id, row);
+    }
+
+    void invalidate(JdTable table, int id) {
+        HashMap<Integer,Scriptable> rows = this.tables.get(table);
+        if(rows != null) {
+            rows.remove(id);
+        }
+    }
+
+    void invalidateTable(JdTable table) {
+        this.tables.remove(table);
+    }
+
+    public void clear() {
+        this.tables.clear();
+    }
+}
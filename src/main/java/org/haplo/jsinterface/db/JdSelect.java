@@ -145,6 +145,19 @@ public class JdSelect extends JdSelectClause {
         return this;
     }
 
+    // Calls the function once for each result with (object, index), reading the results through a
+    // database cursor so that large tables don't need all the rows in memory at once.
+    // The results aren't kept, so using the select as an array afterwards runs the query again.
+    public Scriptable jsFunction_stream(Function iterator) {
+        checkNotExecutedYet();
+        try {
+            this.table.executeStreamingQuery(this, iterator);
+        } catch(java.sql.SQLException e) {
+            throw new OAPIException(GENERIC_SQL_ERROR + e.getMessage(), e);
+        }
+        return this;
+    }
+
     // Performs a COUNT(*) instead of selecting all the values
     public Object jsFunction_count() {
         try {
@@ -255,6 +268,17 @@ public class JdSelect extends JdSelectClause {
         }
     }
 
+    // Calls the function once for each result with (object, index), then saves all the changed rows
+    // using batched UPDATE statements. Returns the number of rows which were updated.
+    public int jsFunction_updateAll(Function iterator) {
+        jsFunction_each(iterator);
+        try {
+            return this.table.saveChangesToRows(this.results);
+        } catch(java.sql.SQLException e) {
+            throw new OAPIException(GENERIC_SQL_ERROR + e.getMessage(), e);
+        }
+    }
+
     // --------------------------------------------------------------------------------------------------------------
     // Deleting rows
     public int jsFunction_deleteAll() {
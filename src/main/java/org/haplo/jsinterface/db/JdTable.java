@@ -19,13 +19,18 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
 // JS host objects for field types
 import org.haplo.jsinterface.KObjRef;
 import org.haplo.jsinterface.KUser;
@@ -42,6 +47,22 @@ public class JdTable extends KScriptable {
     private JdNamespace namespace;
     private String databaseTableName;
 
+    // SQL is cached, as the fields in a table can't change after it's been defined. Using exactly the
+    // same SQL for each statement allows the JDBC driver to reuse server side prepared statements.
+    private String loadSql;
+    private String loadManySql;
+    private ParameterIndicies loadIndicies;
+    private String insertSql;
+    private String deleteSql;
+    private HashMap<BitSet,UpdateStatement> updateStatements;
+
+    // How many rows are sent to the database in each batch by the bulk API
+    private static final int BATCH_SIZE = 500;
+
+    // How many rows are fetched from a cursor at once by streaming queries
+    private static final int STREAM_CHUNK_SIZE = 256;
+    private static AtomicLong streamCursorNumber = new AtomicLong();
+
     public JdTable() {
     }
 
@@ -188,67 +209,176 @@ public class JdTable extends KScriptable {
         return (Scriptable)this.factory.call(runtime.getContext(), this.factory, this.factory, new Object[]{initialValues});
     }
 
-    public Scriptable jsFunction_load(int id) throws java.sql.SQLException {
-        return (Scriptable)Database.withConnection((db) -> {
+    // Statements for queries made by plugins use the timeout for the current database pool
+    private static PreparedStatement prepareStatement(Connection db, String sql) throws java.sql.SQLException {
+        return withQueryTimeout(db.prepareStatement(sql));
+    }
+
+    private static PreparedStatement prepareStatement(Connection db, String sql, String[] columnNames) throws java.sql.SQLException {
+        return withQueryTimeout(db.prepareStatement(sql, columnNames));
+    }
+
+    private static PreparedStatement withQueryTimeout(PreparedStatement statement) throws java.sql.SQLException {
+        int timeout = Database.getScriptQueryTimeout();
+        if(timeout > 0) {
+            statement.setQueryTimeout(timeout);
+        }
+        return statement;
+    }
+
+    private void prepareLoadSql() {
+        if(this.loadSql == null) {
             ParameterIndicies indicies = makeParameterIndicies();
-            Statement statement = db.createStatement();
+            StringBuilder select = new StringBuilder("SELECT ");
+            this.appendColumnNamesForSelect(1, this.getDatabaseTableName(), select, indicies);
+            select.append(" FROM ");
+            select.append(this.getDatabaseTableName());
+            this.loadManySql = select.toString() + " WHERE id=ANY(?)";
+            this.loadSql = select.toString() + " WHERE id=?";
+            this.loadIndicies = indicies;
+        }
+    }
+
+    public Scriptable jsFunction_load(int id) throws java.sql.SQLException {
+        JdLoadCache cache = Runtime.getCurrentRuntime().getLoadCache();
+        if(cache != null) {
+            Scriptable cached = cache.get(this, id);
+            if(cached != null) {
+                return cached;
+            }
+        }
+        prepareLoadSql();
+        Scriptable loaded = (Scriptable)Database.withReadOnlyConnection((db) -> {
             Scriptable object = null;
-            try {
-                StringBuilder select = new StringBuilder("SELECT ");
-                this.appendColumnNamesForSelect(1, this.getDatabaseTableName(), select, indicies);
-                select.append(" FROM ");
-                select.append(this.getDatabaseTableName());
-                select.append(" WHERE id=" + id);
-                ResultSet results = statement.executeQuery(select.toString());
-                ArrayList<Scriptable> objects = jsObjectsFromResultsSet(results, 1 /* results size hint */, indicies, null /* no includes */);
-                if(objects.size() == 1) {
-                    object = objects.get(0);
-                } else if(objects.size() != 0) {
-                    throw new OAPIException("Expectations not met; database returns more than one object");
+            try(PreparedStatement statement = prepareStatement(db, this.loadSql)) {
+                statement.setInt(1, id);
+                try(ResultSet results = statement.executeQuery()) {
+                    ArrayList<Scriptable> objects = jsObjectsFromResultsSet(results, 1 /* results size hint */, new ParameterIndicies(this.loadIndicies), null /* no includes */);
+                    if(objects.size() == 1) {
+                        object = objects.get(0);
+                    } else if(objects.size() != 0) {
+                        throw new OAPIException("Expectations not met; database returns more than one object");
+                    }
                 }
-                results.close();
-            } finally {
-                statement.close();
             }
-
             return object;
         });
+        if(cache != null && loaded != null) {
+            cache.put(this, id, loaded);
+        }
+        return loaded;
+    }
+
+    // Load many rows by id with a single query, returning an array with the row for each id in the same
+    // order as the ids, or null if there is no row with that id.
+    public Scriptable jsFunction_loadMany(Object idsArray) throws java.sql.SQLException {
+        if(!(idsArray instanceof NativeArray)) {
+            throw new OAPIException("loadMany() must be passed an array of ids");
+        }
+        NativeArray array = (NativeArray)idsArray;
+        int length = (int)array.getLength();
+        int[] ids = new int[length];
+        Object[] rows = new Object[length];
+        JdLoadCache cache = Runtime.getCurrentRuntime().getLoadCache();
+        ArrayList<Integer> idsToQuery = new ArrayList<Integer>(length);
+        for(int i = 0; i < length; ++i) {
+            Object id = array.get(i, array);
+            if(!(id instanceof Number)) {
+                throw new OAPIException("loadMany() must be passed an array of ids");
+            }
+            ids[i] = ((Number)id).intValue();
+            Scriptable cached = (cache == null) ? null : cache.get(this, ids[i]);
+            if(cached != null) {
+                rows[i] = cached;
+            } else {
+                idsToQuery.add(ids[i]);
+            }
+        }
+
+        if(!idsToQuery.isEmpty()) {
+            prepareLoadSql();
+            HashMap<Integer,Scriptable> loaded = new HashMap<Integer,Scriptable>(idsToQuery.size());
+            Database.withReadOnlyConnection((db) -> {
+                try(PreparedStatement statement = prepareStatement(db, this.loadManySql)) {
+                    statement.setArray(1, db.createArrayOf("int4", idsToQuery.toArray()));
+                    try(ResultSet results = statement.executeQuery()) {
+                        for(Scriptable row : jsObjectsFromResultsSet(results, idsToQuery.size(), new ParameterIndicies(this.loadIndicies), null /* no includes */)) {
+                            loaded.put(((Number)row.get("id", row)).intValue(), row);
+                        }
+                    }
+                }
+                return null;
+            });
+            for(int i = 0; i < length; ++i) {
+                if(rows[i] == null) {
+                    Scriptable row = loaded.get(ids[i]);
+                    rows[i] = row;
+                    if(cache != null && row != null) {
+                        cache.put(this, ids[i], row);
+                    }
+                }
+            }
+        }
+
+        Runtime runtime = Runtime.getCurrentRuntime();
+        return runtime.getContext().newArray(runtime.getJavaScriptScope(), rows);
+    }
+
+    // Called before writing to the table
+    private void invalidateLoadCache(int id) {
+        JdLoadCache cache = Runtime.getCurrentRuntime().getLoadCache();
+        if(cache != null) {
+            cache.invalidate(this, id);
+        }
+    }
+
+    private void invalidateLoadCache() {
+        JdLoadCache cache = Runtime.getCurrentRuntime().getLoadCache();
+        if(cache != null) {
+            cache.invalidateTable(this);
+        }
     }
 
     public Scriptable jsFunction_select() {
         return Runtime.createHostObjectInCurrentRuntime("$DbSelect", this);
     }
 
-    public void jsFunction_createNewRow(Scriptable row) throws java.sql.SQLException {
-        StringBuilder sql = new StringBuilder("INSERT INTO ");
-        sql.append(this.getDatabaseTableName());
-        sql.append(" (");
-        // Find the last field
-        Field lastField = null;
-        if(this.fields.length > 0) {
-            lastField = this.fields[this.fields.length - 1];
-        }
-        // Build the insert fields
-        for(Field field : fields) {
-            field.appendInsertColumnName(sql);
-            if(field != lastField) {
-                sql.append(',');
+    private String getInsertSql() {
+        if(this.insertSql == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ");
+            sql.append(this.getDatabaseTableName());
+            sql.append(" (");
+            // Find the last field
+            Field lastField = null;
+            if(this.fields.length > 0) {
+                lastField = this.fields[this.fields.length - 1];
+            }
+            // Build the insert fields
+            for(Field field : fields) {
+                field.appendInsertColumnName(sql);
+                if(field != lastField) {
+                    sql.append(',');
+                }
             }
-        }
-        sql.append(") VALUES(");
-        for(Field field : fields) {
-            field.appendInsertMarker(sql);
-            if(field != lastField) {
-                sql.append(',');
+            sql.append(") VALUES(");
+            for(Field field : fields) {
+                field.appendInsertMarker(sql);
+                if(field != lastField) {
+                    sql.append(',');
+                }
             }
+            sql.append(")");
+            this.insertSql = sql.toString();
         }
-        sql.append(") RETURNING id");
+        return this.insertSql;
+    }
 
+    public void jsFunction_createNewRow(Scriptable row) throws java.sql.SQLException {
         Scriptable rowValues = (Scriptable)row.get("$values", row);
 
         // Run the SQL
         Database.withConnection((db) -> {
-            PreparedStatement statement = db.prepareStatement(sql.toString());
+            PreparedStatement statement = prepareStatement(db, getInsertSql() + " RETURNING id");
             try {
                 int parameterIndex = 1;
                 for(Field field : fields) {
@@ -269,6 +399,67 @@ public class JdTable extends KScriptable {
         });
     }
 
+    // Insert many rows using batched statements, returning an array of the new rows with their ids set.
+    // Each entry is either a new row of this table, or an object of initial values for a new row.
+    public Scriptable jsFunction_createMany(Object rowsArray) throws java.sql.SQLException {
+        if(!(rowsArray instanceof NativeArray)) {
+            throw new OAPIException("createMany() must be passed an array");
+        }
+        NativeArray array = (NativeArray)rowsArray;
+        int length = (int)array.getLength();
+        Object[] rows = new Object[length];
+        for(int i = 0; i < length; ++i) {
+            Object entry = array.get(i, array);
+            if(!(entry instanceof Scriptable)) {
+                throw new OAPIException("createMany() must be passed an array of rows or objects");
+            }
+            Scriptable row = (Scriptable)entry;
+            // Rows have their table in the prototype
+            if(ScriptableObject.getProperty(row, "$table") == this) {
+                Object id = row.get("id", row);   // ConsString is checked
+                if(!(id == Scriptable.NOT_FOUND || id instanceof Undefined || id == null)) {
+                    throw new OAPIException("Row passed to createMany() has already been saved");
+                }
+            } else {
+                row = this.jsFunction_create(row);
+            }
+            rows[i] = row;
+        }
+
+        Database.withConnection((db) -> {
+            try(PreparedStatement statement = prepareStatement(db, getInsertSql(), new String[] {"id"})) {
+                int batchStart = 0;
+                while(batchStart < length) {
+                    int batchEnd = Math.min(length, batchStart + BATCH_SIZE);
+                    for(int i = batchStart; i < batchEnd; ++i) {
+                        Scriptable rowValues = (Scriptable)((Scriptable)rows[i]).get("$values", (Scriptable)rows[i]);
+                        int parameterIndex = 1;
+                        for(Field field : fields) {
+                            parameterIndex = field.setStatementField(parameterIndex, statement, rowValues);
+                        }
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    // Generated keys are returned in the same order as the rows in the batch
+                    try(ResultSet keys = statement.getGeneratedKeys()) {
+                        for(int i = batchStart; i < batchEnd; ++i) {
+                            if(!keys.next()) {
+                                throw new OAPIException("Create row didn't return an id");
+                            }
+                            Scriptable row = (Scriptable)rows[i];
+                            row.put("id", row, Integer.valueOf(keys.getInt(1)));
+                        }
+                    }
+                    batchStart = batchEnd;
+                }
+            }
+            return null;
+        });
+
+        Runtime runtime = Runtime.getCurrentRuntime();
+        return runtime.getContext().newArray(runtime.getJavaScriptScope(), rows);
+    }
+
     public void jsFunction_saveChangesToRow(int id, Scriptable row) throws java.sql.SQLException {
         if(id <= 0) {
             throw new OAPIException("Bad id value for updating row");
@@ -281,37 +472,125 @@ public class JdTable extends KScriptable {
             return;
         }
         Scriptable rowValues = (Scriptable)rowValuesO;
+        UpdateStatement update = getUpdateStatement(rowValues);
+        if(update == null) {
+            return;
+        }
+        invalidateLoadCache(id);
 
-        // Build the SQL to update it
-        StringBuilder update = new StringBuilder("UPDATE ");
-        update.append(this.getDatabaseTableName());
-        update.append(" SET ");
-        boolean needsComma = false;
-        int parameterIndex = 1;
-        ParameterIndicies indicies = makeParameterIndicies();
-        for(Field field : this.fields) {
-            int nextParameterIndex = field.appendUpdateSQL(update, needsComma, rowValues, parameterIndex, indicies);
-            if(nextParameterIndex != parameterIndex) {
-                parameterIndex = nextParameterIndex;
-                needsComma = true;
+        // Execute the SQL
+        Database.withConnection((db) -> {
+            try(PreparedStatement statement = prepareStatement(db, update.sql)) {
+                update.setValues(statement, this.fields, rowValues, id);
+                statement.execute();
+            }
+            return null;
+        });
+    }
+
+    // Save the changes to many rows using batched statements, grouping rows by which fields were changed.
+    // Returns the number of rows which had changes.
+    int saveChangesToRows(Scriptable[] rows) throws java.sql.SQLException {
+        HashMap<UpdateStatement,ArrayList<Scriptable>> batches = new HashMap<UpdateStatement,ArrayList<Scriptable>>();
+        int count = 0;
+        for(Scriptable row : rows) {
+            Object rowValuesO = row.get("$changes", row); // ConsString is checked
+            if(!(rowValuesO instanceof Scriptable)) {
+                continue;
+            }
+            UpdateStatement update = getUpdateStatement((Scriptable)rowValuesO);
+            if(update != null) {
+                ArrayList<Scriptable> batch = batches.get(update);
+                if(batch == null) {
+                    batch = new ArrayList<Scriptable>();
+                    batches.put(update, batch);
+                }
+                batch.add(row);
+                invalidateLoadCache(JsGet.number("id", row).intValue());
+                count++;
             }
         }
-        update.append(" WHERE id=");
-        update.append(id);
+        if(count == 0) {
+            return 0;
+        }
 
-        // Execute the SQL
         Database.withConnection((db) -> {
-            PreparedStatement statement = db.prepareStatement(update.toString());
-            try {
-                for(Field field : this.fields) {
-                    field.setUpdateField(statement, rowValues, indicies);
+            for(UpdateStatement update : batches.keySet()) {
+                try(PreparedStatement statement = prepareStatement(db, update.sql)) {
+                    int inBatch = 0;
+                    for(Scriptable row : batches.get(update)) {
+                        Scriptable rowValues = (Scriptable)row.get("$changes", row); // ConsString is checked
+                        update.setValues(statement, this.fields, rowValues, JsGet.number("id", row).intValue());
+                        statement.addBatch();
+                        if(++inBatch == BATCH_SIZE) {
+                            statement.executeBatch();
+                            inBatch = 0;
+                        }
+                    }
+                    if(inBatch > 0) {
+                        statement.executeBatch();
+                    }
                 }
-                statement.execute();
-            } finally {
-                statement.close();
             }
             return null;
         });
+        return count;
+    }
+
+    // Updates by id are cached by which fields are changed
+    private UpdateStatement getUpdateStatement(Scriptable rowValues) {
+        BitSet changedFields = new BitSet(this.fields.length);
+        for(int i = 0; i < this.fields.length; ++i) {
+            if(rowValues.has(this.fields[i].getJsName(), rowValues)) {
+                changedFields.set(i);
+            }
+        }
+        if(changedFields.isEmpty()) {
+            return null;    // nothing to do (and invalid SQL)
+        }
+        if(this.updateStatements == null) {
+            this.updateStatements = new HashMap<BitSet,UpdateStatement>();
+        }
+        UpdateStatement update = this.updateStatements.get(changedFields);
+        if(update == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ");
+            sql.append(this.getDatabaseTableName());
+            sql.append(" SET ");
+            boolean needsComma = false;
+            int parameterIndex = 1;
+            ParameterIndicies indicies = makeParameterIndicies();
+            for(Field field : this.fields) {
+                int nextParameterIndex = field.appendUpdateSQL(sql, needsComma, rowValues, parameterIndex, indicies);
+                if(nextParameterIndex != parameterIndex) {
+                    parameterIndex = nextParameterIndex;
+                    needsComma = true;
+                }
+            }
+            sql.append(" WHERE id=?");
+            update = new UpdateStatement(sql.toString(), indicies, parameterIndex);
+            this.updateStatements.put(changedFields, update);
+        }
+        return update;
+    }
+
+    private static final class UpdateStatement {
+        public final String sql;
+        private final ParameterIndicies indicies;
+        private final int idParameterIndex;
+
+        UpdateStatement(String sql, ParameterIndicies indicies, int idParameterIndex) {
+            this.sql = sql;
+            this.indicies = indicies;
+            this.idParameterIndex = idParameterIndex;
+        }
+
+        void setValues(PreparedStatement statement, Field[] fields, Scriptable rowValues, int id) throws java.sql.SQLException {
+            ParameterIndicies i = new ParameterIndicies(this.indicies);
+            for(Field field : fields) {
+                field.setUpdateField(statement, rowValues, i);
+            }
+            statement.setInt(this.idParameterIndex, id);
+        }
     }
 
     public Boolean jsFunction_deleteRow(int id) throws java.sql.SQLException {
@@ -319,19 +598,21 @@ public class JdTable extends KScriptable {
             throw new OAPIException("Bad id value for deleting row");
         }
 
+        if(this.deleteSql == null) {
+            this.deleteSql = "DELETE FROM " + this.getDatabaseTableName() + " WHERE id=?";
+        }
+        invalidateLoadCache(id);
         return (Boolean)Database.withConnection((db) -> {
             // Update database
             boolean wasDeleted = false;
-            Statement statement = db.createStatement();
-            try {
-                int count = statement.executeUpdate("DELETE FROM " + this.getDatabaseTableName() + " WHERE id=" + id);
+            try(PreparedStatement statement = prepareStatement(db, this.deleteSql)) {
+                statement.setInt(1, id);
+                int count = statement.executeUpdate();
                 if(count == 1) {
                     wasDeleted = true;
                 } else if(count != 0) {
                     throw new RuntimeException("Logic error - more than one row deleted");
                 }
-            } finally {
-                statement.close();
             }
             return wasDeleted;
         });
@@ -449,7 +730,61 @@ public class JdTable extends KScriptable {
 
     // Execute a query returning rows of data
     public Scriptable[] executeQuery(JdSelect query) throws java.sql.SQLException {
-        return (Scriptable[])buildAndExecuteQuery(query, new QueryExecution() {
+        return (Scriptable[])buildAndExecuteQuery(query, rowsQueryExecution(query));
+    }
+
+    // Execute a query through a cursor, calling the iterator with (row, index) for each row. Rows are
+    // fetched and converted to JavaScript objects in chunks, so memory use doesn't depend on the number
+    // of rows. The cursor is declared WITH HOLD so it doesn't need a transaction, and anything the iterator
+    // writes is committed as it would be in each(), even if the iterator throws an exception. Outside a
+    // transaction, PostgreSQL keeps the results of the query until the cursor is closed.
+    // Returns the number of rows.
+    public int executeStreamingQuery(JdSelect query, Function iterator) throws java.sql.SQLException {
+        BuiltQuery built = buildQuery(query, rowsQueryExecution(query));
+        return (Integer)Database.withConnection((db) -> {
+            String cursorName = "jdstream" + streamCursorNumber.incrementAndGet();
+            Context context = Runtime.getCurrentRuntime().getContext();
+            int index = 0;
+            try ( PreparedStatement statement = prepareStatement(db, "DECLARE "+cursorName+" NO SCROLL CURSOR WITH HOLD FOR "+built.sql) ) {
+                if(built.hasWhere) {
+                    query.setWhereValues(statement);
+                }
+                statement.execute();
+            }
+            boolean completed = false;
+            try {
+                try ( PreparedStatement fetch = prepareStatement(db, "FETCH FORWARD "+STREAM_CHUNK_SIZE+" FROM "+cursorName) ) {
+                    ArrayList<Scriptable> chunk;
+                    do {
+                        // Read the whole chunk before calling the iterator, which may use the database
+                        try ( ResultSet results = fetch.executeQuery() ) {
+                            chunk = jsObjectsFromResultsSet(results, STREAM_CHUNK_SIZE, built.indicies, built.includes);
+                        }
+                        for(Scriptable row : chunk) {
+                            iterator.call(context, iterator, iterator, new Object[]{row, index});
+                            index++;
+                        }
+                    } while(chunk.size() == STREAM_CHUNK_SIZE);
+                }
+                completed = true;
+            } finally {
+                // Held cursors last until the end of the session, and connections are reused
+                try {
+                    if(db.unwrap(BaseConnection.class).getTransactionState() != TransactionState.FAILED) {
+                        Database.execute(db, "CLOSE "+cursorName);
+                    }   // otherwise the cursor is dropped when the failed transaction is rolled back
+                } catch(java.sql.SQLException e) {
+                    if(completed) {
+                        throw e;
+                    }   // otherwise let the exception from the iterator propagate
+                }
+            }
+            return index;
+        });
+    }
+
+    private QueryExecution rowsQueryExecution(JdSelect query) {
+        return new QueryExecution() {
             public int appendOutputExpressions(StringBuilder select, ParameterIndicies indicies) {
                 return appendColumnNamesForSelect(1, "m", select, indicies);
             }
@@ -468,7 +803,7 @@ public class JdTable extends KScriptable {
                 ArrayList<Scriptable> objects = jsObjectsFromResultsSet(results, 100 /* results size hint */, indicies, includes);
                 return objects.toArray(new Scriptable[objects.size()]);
             }
-        });
+        };
     }
 
     // How to interpret values returned by the database in executeSingleValueExpression()
@@ -573,65 +908,84 @@ public class JdTable extends KScriptable {
         Object createResultObject(ResultSet results, ParameterIndicies indicies, IncludedTable[] includes) throws java.sql.SQLException;
     }
 
-    private Object buildAndExecuteQuery(JdSelect query, QueryExecution execution) throws java.sql.SQLException {
-        return Database.withConnection((db) -> {
-            ParameterIndicies indicies = makeParameterIndicies();
-            // Build SELECT statement
-            String from = this.getDatabaseTableName() + " AS m";
-            StringBuilder select = new StringBuilder("SELECT ");
-            int parameterIndexStart = execution.appendOutputExpressions(select, indicies);
-            // Load other tables at the same time?
-            JdTable.LinkField[] includeFields = query.getIncludes();
-            IncludedTable includes[] = null;
-            if(includeFields != null) {
-                includes = new IncludedTable[includeFields.length];
-                // Go through each of the fields
-                for(int includeIndex = 0; includeIndex < includeFields.length; ++includeIndex) {
-                    // Get info about included tables
-                    JdTable.LinkField field = includeFields[includeIndex];
-                    JdTable otherTable = this.namespace.getTable(field.getOtherTableName());
-                    String otherAlias = field.getNameForQueryAlias();
-                    ParameterIndicies otherIndicies = otherTable.makeParameterIndicies();
-                    includes[includeIndex] = new IncludedTable(otherTable, field, otherIndicies);
-                    // Ask all the other tables to add their fields?
-                    parameterIndexStart = execution.appendOutputExpressionsForLinkedTable(otherTable, parameterIndexStart, otherAlias, select, otherIndicies);
-                    // Adjust the FROM statement
-                    from = "(" + from + " LEFT JOIN " + otherTable.getDatabaseTableName() + " AS " + otherAlias + " ON m." + field.getDbName() + "=" + otherAlias + ".id)";
-                }
-            }
-            // FROM
-            select.append(" FROM ");
-            select.append(from);
-            // WHERE
-            String where = query.generateWhereSql("m");
-            if(where != null) {
-                select.append(" WHERE ");
-                select.append(where);
-            }
-            // GROUP BY, ORDER BY, etc
-            execution.appendGroupAndOrder(select);
-            // LIMIT
-            String limit = query.generateLimitAndOffsetSql();
-            if(limit != null) {
-                select.append(limit);
-            }
+    private static final class BuiltQuery {
+        public final String sql;
+        public final boolean hasWhere;
+        public final ParameterIndicies indicies;
+        public final IncludedTable[] includes;
 
+        BuiltQuery(String sql, boolean hasWhere, ParameterIndicies indicies, IncludedTable[] includes) {
+            this.sql = sql;
+            this.hasWhere = hasWhere;
+            this.indicies = indicies;
+            this.includes = includes;
+        }
+    }
+
+    private Object buildAndExecuteQuery(JdSelect query, QueryExecution execution) throws java.sql.SQLException {
+        BuiltQuery built = buildQuery(query, execution);
+        return Database.withReadOnlyConnection((db) -> {
             // Run the query
             Object output = null;
-            try ( PreparedStatement statement = db.prepareStatement(select.toString()) ) {
-                if(where != null) {
+            try ( PreparedStatement statement = prepareStatement(db, built.sql) ) {
+                if(built.hasWhere) {
                     query.setWhereValues(statement);
                 }
                 try ( ResultSet results = statement.executeQuery() ) {
-                    output = execution.createResultObject(results, indicies, includes);
+                    output = execution.createResultObject(results, built.indicies, built.includes);
                 }
             }
             return output;
         });
     }
 
+    private BuiltQuery buildQuery(JdSelect query, QueryExecution execution) {
+        ParameterIndicies indicies = makeParameterIndicies();
+        // Build SELECT statement
+        String from = this.getDatabaseTableName() + " AS m";
+        StringBuilder select = new StringBuilder("SELECT ");
+        int parameterIndexStart = execution.appendOutputExpressions(select, indicies);
+        // Load other tables at the same time?
+        JdTable.LinkField[] includeFields = query.getIncludes();
+        IncludedTable includes[] = null;
+        if(includeFields != null) {
+            includes = new IncludedTable[includeFields.length];
+            // Go through each of the fields
+            for(int includeIndex = 0; includeIndex < includeFields.length; ++includeIndex) {
+                // Get info about included tables
+                JdTable.LinkField field = includeFields[includeIndex];
+                JdTable otherTable = this.namespace.getTable(field.getOtherTableName());
+                String otherAlias = field.getNameForQueryAlias();
+                ParameterIndicies otherIndicies = otherTable.makeParameterIndicies();
+                includes[includeIndex] = new IncludedTable(otherTable, field, otherIndicies);
+                // Ask all the other tables to add their fields?
+                parameterIndexStart = execution.appendOutputExpressionsForLinkedTable(otherTable, parameterIndexStart, otherAlias, select, otherIndicies);
+                // Adjust the FROM statement
+                from = "(" + from + " LEFT JOIN " + otherTable.getDatabaseTableName() + " AS " + otherAlias + " ON m." + field.getDbName() + "=" + otherAlias + ".id)";
+            }
+        }
+        // FROM
+        select.append(" FROM ");
+        select.append(from);
+        // WHERE
+        String where = query.generateWhereSql("m");
+        if(where != null) {
+            select.append(" WHERE ");
+            select.append(where);
+        }
+        // GROUP BY, ORDER BY, etc
+        execution.appendGroupAndOrder(select);
+        // LIMIT
+        String limit = query.generateLimitAndOffsetSql();
+        if(limit != null) {
+            select.append(limit);
+        }
+        return new BuiltQuery(select.toString(), where != null, indicies, includes);
+    }
+
     // --------------------------------------------------------------------------------------------------------------
     public Integer executeUpdate(JdSelect query, Scriptable rowValues) throws java.sql.SQLException {
+        invalidateLoadCache();
         return (Integer)Database.withConnection((db) -> {
             StringBuilder update = new StringBuilder("UPDATE ");
             String tableName = this.getDatabaseTableName();
@@ -658,7 +1012,7 @@ public class JdTable extends KScriptable {
             }
 
             int numberUpdated = 0;
-            PreparedStatement statement = db.prepareStatement(update.toString());
+            PreparedStatement statement = prepareStatement(db, update.toString());
             try {
                 for(Field field : this.fields) {
                     field.setUpdateField(statement, rowValues, indicies);
@@ -679,6 +1033,7 @@ public class JdTable extends KScriptable {
         if(null != query.getIncludes()) {
             throw new OAPIException("deleteAll() cannot use selects which include other tables, or where clauses which refer to a field in another table via a link field. Remove include() statements and check your where() clauses.");
         }
+        invalidateLoadCache();
         // Build DELETE statement
         StringBuilder del = new StringBuilder("DELETE FROM ");
         String tableName = this.getDatabaseTableName();
@@ -691,7 +1046,7 @@ public class JdTable extends KScriptable {
         // Run the query
         return (Integer)Database.withConnection((db) -> {
             int numberDeleted = 0;
-            PreparedStatement statement = db.prepareStatement(del.toString());
+            PreparedStatement statement = prepareStatement(db, del.toString());
             try {
                 if(where != null) {
                     query.setWhereValues(statement);
@@ -799,6 +1154,13 @@ public class JdTable extends KScriptable {
             this.getPos = 0;
         }
 
+        // Copy indicies from a cached statement, so the cached copy isn't modified when it's used
+        ParameterIndicies(ParameterIndicies cached) {
+            this.indicies = cached.indicies;   // not modified after being set
+            this.setPos = cached.setPos;
+            this.getPos = 0;
+        }
+
         public void set(int index) {
             this.indicies[this.setPos++] = index;
         }
@@ -11,6 +11,7 @@ import org.haplo.javascript.OAPIException;
 import org.haplo.jsinterface.*;
 import org.haplo.jsinterface.app.*;
 import org.haplo.jsinterface.stdplugin.StdWebPublisher;
+import org.haplo.jsinterface.util.FormatterCache;
 
 import org.haplo.template.html.Context;
 import org.haplo.template.html.Driver;
@@ -27,11 +28,10 @@ import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.EvaluatorException;
 
 import java.util.regex.Pattern;
-import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.TimeZone;
+import java.util.Locale;
 import java.util.Date;
-import java.text.SimpleDateFormat;
+import java.time.format.DateTimeFormatter;
 
 public class TemplateFunctionRenderer implements JSFunctionRenderer {
     public boolean renderFunction(Scriptable owner, StringBuilder builder, FunctionBinding b) throws RenderException {
@@ -275,9 +275,6 @@ public class TemplateFunctionRenderer implements JSFunctionRenderer {
 
     // ----------------------------------------------------------------------
 
-    static private Object[] dateFormatCaches = new Object[8];
-
-    @SuppressWarnings("unchecked")
     public void std_date(StringBuilder builder, FunctionBinding b, boolean local, int formatIndex) throws RenderException {
         // Get a Java Date object from the view
         Object maybeDate = b.nextViewObjectArgument(ArgumentRequirement.REQUIRED);
@@ -294,18 +291,9 @@ public class TemplateFunctionRenderer implements JSFunctionRenderer {
         if(date == null) {return; }
         // Obtain a suitable formatter for the given timezone
         String timeZoneName = local ? Runtime.getCurrentRuntime().getHost().getUserTimeZone() : "Etc/UTC";
-        HashMap<String,SimpleDateFormat> formatCache = (HashMap<String,SimpleDateFormat>)dateFormatCaches[formatIndex];
-        if(formatCache == null) { formatCache = new HashMap<String,SimpleDateFormat>(); }
-        SimpleDateFormat format = formatCache.get(timeZoneName);
-        if(format == null) {
-            formatCache = (HashMap<String,SimpleDateFormat>)formatCache.clone();  // thread safety, never write to a cache after it's been written to dateFormatCaches
-            format = new SimpleDateFormat(DATE_FORMATS[formatIndex]);
-            format.setTimeZone(TimeZone.getTimeZone(timeZoneName));
-            formatCache.put(timeZoneName, format);
-            dateFormatCaches[formatIndex] = formatCache;
-        }
+        DateTimeFormatter format = FormatterCache.dateFormatter(DATE_FORMATS[formatIndex], Locale.getDefault(Locale.Category.FORMAT), timeZoneName);
         // Write formatted date
-        Escape.escape(format.format(date), builder, b.getContext());
+        Escape.escape(format.format(date.toInstant()), builder, b.getContext());
     }
 
     private static Date jsDateToJava(Object maybeDate) {
@@ -0,0 +1,68 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2017   https://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.jsinterface.util;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide caches of date and number formatters, so patterns aren't
+ * parsed again every time a value is formatted.
+ *
+ * Date formatters are immutable and shared between threads. DecimalFormat
+ * isn't thread safe, so callers get a clone of the cached instance, which
+ * is much cheaper than parsing the pattern.
+ *
+ * Keys include user supplied patterns and time zone names, so each cache is
+ * emptied if it reaches org.haplo.formattercache.maxentries entries.
+ */
+public class FormatterCache {
+    private static final int MAX_ENTRIES = Integer.getInteger("org.haplo.formattercache.maxentries", 1024);
+
+    private static final ConcurrentHashMap<String,DateTimeFormatter> dateFormatters = new ConcurrentHashMap<String,DateTimeFormatter>();
+    private static final ConcurrentHashMap<String,DecimalFormat> decimalFormats = new ConcurrentHashMap<String,DecimalFormat>();
+
+    /**
+     * Formatter for the pattern in the time zone. Unknown time zone names
+     * use GMT, as TimeZone.getTimeZone() does.
+     */
+    public static DateTimeFormatter dateFormatter(String pattern, Locale locale, String timeZoneName) {
+        String key = pattern + "\n" + locale.toLanguageTag() + "\n" + timeZoneName;
+        DateTimeFormatter formatter = dateFormatters.get(key);
+        if(formatter == null) {
+            formatter = DateTimeFormatter.ofPattern(pattern, locale).withZone(TimeZone.getTimeZone(timeZoneName).toZoneId());
+            if(dateFormatters.size() >= MAX_ENTRIES) { dateFormatters.clear(); }
+            dateFormatters.put(key, formatter);
+        }
+        return formatter;
+    }
+
+    /**
+     * New DecimalFormat for the pattern, owned by the caller.
+     */
+    public static DecimalFormat decimalFormat(String pattern, Locale locale) {
+        String key = pattern + "\n" + locale.toLanguageTag();
+        DecimalFormat format = decimalFormats.get(key);
+        if(format == null) {
+            format = new DecimalFormat(pattern, DecimalFormatSymbols.getInstance(locale));  // exceptions for bad patterns aren't cached
+            if(decimalFormats.size() >= MAX_ENTRIES) { decimalFormats.clear(); }
+            decimalFormats.put(key, format);
+        }
+        return (DecimalFormat)format.clone();
+    }
+
+    /**
+     * New DecimalFormat for the pattern in the default locale, as new DecimalFormat(pattern) would create.
+     */
+    public static DecimalFormat decimalFormat(String pattern) {
+        return decimalFormat(pattern, Locale.getDefault(Locale.Category.FORMAT));
+    }
+}
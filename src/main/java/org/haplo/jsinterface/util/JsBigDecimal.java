@@ -69,7 +69,7 @@ public class JsBigDecimal extends KScriptable {
     }
 
     public String jsFunction_format(String format) {
-        DecimalFormat df = new DecimalFormat(format);
+        DecimalFormat df = FormatterCache.decimalFormat(format);
         return df.format(this.bigDecimal);
     }
 
@@ -23,7 +23,7 @@ public class JsDecimalFormat extends KScriptable {
 
     public void jsConstructor(Object format) {
         if((format != null) && !(format instanceof org.mozilla.javascript.Undefined)) {
-            this.decimalFormat = new DecimalFormat(format.toString());
+            this.decimalFormat = FormatterCache.decimalFormat(format.toString());
         }
     }
 
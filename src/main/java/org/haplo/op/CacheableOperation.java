@@ -0,0 +1,34 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.op;
+
+/**
+ * Implemented by Operations whose results only depend on the contents of a
+ * single input file and their parameters, so they can be stored in the
+ * OpResultCache.
+ *
+ * copyResultsFromReturnedOperation() must only copy the results, not the
+ * input and output pathnames, as cached results are copied into operations
+ * with different pathnames.
+ */
+public interface CacheableOperation {
+    /**
+     * Pathname of the file read by the operation.
+     */
+    public String getResultCacheInputPathname();
+
+    /**
+     * Parameters, other than the input file and output pathnames, which affect
+     * the result of the operation.
+     */
+    public String getResultCacheParameters();
+
+    /**
+     * Pathnames of the files written by the operation.
+     */
+    public String[] getResultCacheOutputPathnames();
+}
@@ -6,45 +6,75 @@
 
 package org.haplo.op;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.BufferOverflowException;
-
-import org.haplo.common.io.ByteBufferInputStream;
-import org.haplo.common.io.ByteBufferOutputStream;
 
+/**
+ * Sends OpServerMessages over a socket.
+ *
+ * Messages are encoded with OpCodec straight into frames of up to CHUNK_SIZE
+ * bytes, and each frame is written as soon as it's full, so the sender never
+ * holds a whole encoded message in memory. Each frame is tagged with the
+ * operation ID of its message, so messages about several operations can be in
+ * flight at once, and the write lock is only held while writing a single frame.
+ * If encoding fails after frames have been sent, an abort frame tells the
+ * receiver to discard them. The receiver assembles messages of up to
+ * MAX_MESSAGE_SIZE bytes.
+ *
+ * Frame: int payload length, int operation ID, byte flags, payload
+ *
+ * Sending is thread safe, as long as messages for the same operation aren't
+ * sent concurrently. Receiving must only happen on one thread.
+ */
 public class ObjectPipe implements Waker {
-    public static final int BUFFER_SIZE = (4 * 1024 * 1024);    // max size of serialised objects
+    public static final int CHUNK_SIZE = (64 * 1024);   // max payload in a single frame
+    public static final int MAX_MESSAGE_SIZE = Integer.getInteger("org.haplo.op.maxmessagesize", 512 * 1024 * 1024);
     public static int EXTRA_TIME_ALOWED_WHEN_RECEIVING = 1000;  // extra second when data has started to be received
 
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final byte FRAME_FLAG_FINAL = 1;
+    private static final byte FRAME_FLAG_ABORT = 2;
+
     private SocketChannel channel;
-    private Selector selector;
-    private SelectionKey selectionKey;
-    private ByteBuffer buffer;
-    private int nextObjectPosition;
-    private boolean wakeupFlag;
+    private Selector readSelector;
+    private Selector writeSelector;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private volatile boolean wakeupFlag;
+    // Receive state
+    private boolean inFrame;
+    private int frameRemaining;
+    private boolean frameIsFinal;
+    private MessageAssembly frameAssembly;
+    private HashMap<Integer,MessageAssembly> assemblies;
 
     public ObjectPipe(SocketChannel channel) throws IOException {
-        this.buffer = ByteBuffer.allocate(BUFFER_SIZE); // has a backing array
-        this.buffer.position(0).limit(0);
+        this.readBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + CHUNK_SIZE);
+        this.writeBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + CHUNK_SIZE);
         this.channel = channel;
-        this.selector = Selector.open();
+        this.readSelector = Selector.open();
+        this.writeSelector = Selector.open();
         channel.configureBlocking(false);
         channel.socket().setTcpNoDelay(true);
-        this.selectionKey = channel.register(this.selector, SelectionKey.OP_READ);
-        this.nextObjectPosition = 0;
+        channel.register(this.readSelector, SelectionKey.OP_READ);
+        channel.register(this.writeSelector, SelectionKey.OP_WRITE);
         this.wakeupFlag = false;
+        this.assemblies = new HashMap<Integer,MessageAssembly>();
     }
 
     public void wakeup() {
         this.wakeupFlag = true;
-        this.selector.wakeup();
+        this.readSelector.wakeup();
     }
 
     public void unsetWakeFlag() {
@@ -53,82 +83,125 @@ public class ObjectPipe implements Waker {
 
     public void close() throws IOException {
         this.channel.socket().close();
-        this.selector.close();
+        this.readSelector.close();
+        this.writeSelector.close();
     }
 
     public boolean isClosed() {
         return this.channel.socket().isClosed();
     }
 
-    public void sendObject(Object object) throws IOException {
-        if(this.buffer.hasRemaining() && this.buffer.position() != 0) {
-            throw new RuntimeException("Buffer has data remaining from read operation - call receiveObject() first");
+    public void sendMessage(OpServerMessage message) throws IOException {
+        FrameOutputStream frames = new FrameOutputStream(message.operationId);
+        try {
+            DataOutputStream out = new DataOutputStream(frames);
+            OpCodec.writeMessage(out, message);
+            out.flush();
+            frames.finish();
+        } catch(IOException | RuntimeException e) {
+            frames.abort(e);
+            throw e;
+        }
+    }
+
+    private void writeFrame(int operationId, byte flags, byte[] payload, int length) throws IOException {
+        synchronized(this.writeBuffer) {
+            this.writeBuffer.clear();
+            this.writeBuffer.putInt(length);
+            this.writeBuffer.putInt(operationId);
+            this.writeBuffer.put(flags);
+            this.writeBuffer.put(payload, 0, length);
+            this.writeBuffer.flip();
+            while(this.writeBuffer.hasRemaining()) {
+                if(this.channel.write(this.writeBuffer) == 0) {
+                    this.writeSelector.select(4096);
+                    this.writeSelector.selectedKeys().clear();
+                }
+            }
         }
+    }
 
-        this.selectionKey.interestOps(SelectionKey.OP_WRITE);
+    // Buffers a frame's worth of the encoded message, writing each frame when it's full
+    private class FrameOutputStream extends java.io.OutputStream {
+        private int operationId;
+        private byte[] chunk;
+        private int chunkLength;
+        private long messageSize;
+        private boolean framesSent;
+        private boolean channelFailed;
 
-        this.buffer.clear();
-        this.buffer.putInt(0);
-        int posBefore = this.buffer.position();
-        try {
-            ObjectOutputStream out = new ObjectOutputStream(new ByteBufferOutputStream(this.buffer));
-            out.writeObject(object);
-            out.close();
-        } catch(BufferOverflowException e) {
-            throw new RuntimeException("Serialised object too big to fit over ObjectPipe");
+        FrameOutputStream(int operationId) {
+            this.operationId = operationId;
+            this.chunk = new byte[CHUNK_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(this.chunkLength == CHUNK_SIZE) {
+                sendChunk(false);
+            }
+            this.chunk[this.chunkLength++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            while(length > 0) {
+                if(this.chunkLength == CHUNK_SIZE) {
+                    sendChunk(false);
+                }
+                int copy = Math.min(length, CHUNK_SIZE - this.chunkLength);
+                System.arraycopy(b, offset, this.chunk, this.chunkLength, copy);
+                this.chunkLength += copy;
+                offset += copy;
+                length -= copy;
+            }
+        }
+
+        void finish() throws IOException {
+            sendChunk(true);
+        }
+
+        // Tell the receiver to discard frames already sent, unless the pipe itself has failed
+        void abort(Exception exception) {
+            if(this.framesSent && !this.channelFailed) {
+                try {
+                    writeFrame(this.operationId, FRAME_FLAG_ABORT, this.chunk, 0);
+                } catch(IOException e) {
+                    exception.addSuppressed(e);
+                }
+            }
         }
-        this.buffer.putInt(0, this.buffer.position());
-        this.buffer.limit(this.buffer.position());
-        this.buffer.position(0);
-        while(this.buffer.hasRemaining()) {
-            this.selector.select(4096);
-            this.selector.selectedKeys().clear();
-            this.channel.write(this.buffer);
+
+        private void sendChunk(boolean isFinal) throws IOException {
+            this.messageSize += this.chunkLength;
+            if(this.messageSize > MAX_MESSAGE_SIZE) {
+                throw new RuntimeException("Message too big to send over ObjectPipe");
+            }
+            try {
+                writeFrame(this.operationId, isFinal ? FRAME_FLAG_FINAL : 0, this.chunk, this.chunkLength);
+            } catch(IOException e) {
+                this.channelFailed = true;
+                throw e;
+            }
+            this.framesSent = true;
+            this.chunkLength = 0;
         }
-        this.buffer.position(0).limit(0);
     }
 
-    public Object receiveObject(long timeout) throws IOException, ClassNotFoundException {
+    public OpServerMessage receiveMessage(long timeout) throws IOException {
         long timeNow = System.currentTimeMillis();
         long requiredBy = timeNow + timeout;
         boolean allowedExtraTime = false;
 
-        this.selectionKey.interestOps(SelectionKey.OP_READ);
-
-        if(nextObjectPosition == 0) {
-            // If there's nothing waiting in the buffer to be read (which could be the first bit of the next object
-            // left over from a previous call) then clear it, so there's room to read data.
-            // If nextObjectPosition == 0 then there can't be anything in the buffer because otherwise a timeout
-            // would have been thrown on the previous call.
-            this.buffer.clear();
-        }
-
         while(true) {
             // See if there's anything ready to return -- before the select() in case we have the
-            // entire next object in the buffer.
-            if(this.buffer.position() >= (nextObjectPosition + 4)) {
-                int currentFrameLength = this.buffer.getInt(nextObjectPosition);
-                int currentReceivePosition = this.buffer.position();
-                if((nextObjectPosition + currentFrameLength) <= currentReceivePosition) {
-                    // Deserialise
-                    this.buffer.position(nextObjectPosition);
-                    this.buffer.getInt();
-                    ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(this.buffer));
-                    Object r = in.readObject();
-                    if(currentReceivePosition == (nextObjectPosition + currentFrameLength)) {
-                        // Nothing left - so reset for possible write operation
-                        nextObjectPosition = 0;
-                        this.buffer.position(0).limit(0);
-                    } else {
-                        // Setup for next read
-                        nextObjectPosition = currentFrameLength;
-                        this.buffer.position(currentReceivePosition);
-                    }
-                    return r;
-                }
+            // entire next message in the buffer.
+            OpServerMessage message = processReceivedData();
+            if(message != null) {
+                return message;
             }
 
-            int bytesRead = this.channel.read(this.buffer);
+            int bytesRead = this.channel.read(this.readBuffer);
             if(bytesRead == -1) {
                 throw new IOException("ObjectPipe closed");
             } else if(bytesRead == 0) {
@@ -139,8 +212,8 @@ public class ObjectPipe implements Waker {
                 }
 
                 // If no bytes were read, check to see if the read has timed out
-                if((bytesRead == 0) && (timeNow > requiredBy)) {
-                    if(this.buffer.position() != 0) {
+                if(timeNow > requiredBy) {
+                    if(this.inFrame || this.readBuffer.position() != 0 || !this.assemblies.isEmpty()) {
                         if(allowedExtraTime) {
                             throw new IOException("Timed out read operation in middle of receiving data.");
                         } else {
@@ -158,11 +231,91 @@ public class ObjectPipe implements Waker {
                 if(selectTimeout < 1) {
                     selectTimeout = 1;
                 }
-                this.selector.select(selectTimeout);
-                this.selector.selectedKeys().clear();
+                this.readSelector.select(selectTimeout);
+                this.readSelector.selectedKeys().clear();
+                // select() won't wait in an interrupted thread, so let the caller handle the interruption
+                if(Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
             }
 
             timeNow = System.currentTimeMillis();
         }
     }
+
+    // Consume frames from the read buffer, returning a message if one has been completely received.
+    // The read buffer is ready for channel reads before and after this is called.
+    private OpServerMessage processReceivedData() throws IOException {
+        OpServerMessage message = null;
+        this.readBuffer.flip();
+        while(message == null) {
+            if(!this.inFrame) {
+                if(this.readBuffer.remaining() < FRAME_HEADER_SIZE) {
+                    break;
+                }
+                this.frameRemaining = this.readBuffer.getInt();
+                int operationId = this.readBuffer.getInt();
+                byte flags = this.readBuffer.get();
+                this.frameIsFinal = (flags & FRAME_FLAG_FINAL) != 0;
+                if(this.frameRemaining < 0 || this.frameRemaining > CHUNK_SIZE) {
+                    throw new IOException("Bad frame length received over ObjectPipe");
+                }
+                if((flags & FRAME_FLAG_ABORT) != 0) {
+                    // Sender couldn't complete the message, so discard the frames received so far
+                    if(this.frameRemaining != 0) {
+                        throw new IOException("Bad abort frame received over ObjectPipe");
+                    }
+                    this.assemblies.remove(operationId);
+                    continue;
+                }
+                this.frameAssembly = this.assemblies.get(operationId);
+                if(this.frameAssembly == null) {
+                    this.frameAssembly = new MessageAssembly();
+                    this.frameAssembly.operationId = operationId;
+                    this.assemblies.put(operationId, this.frameAssembly);
+                }
+                if(this.frameAssembly.size() + this.frameRemaining > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Message received over ObjectPipe is too big");
+                }
+                this.inFrame = true;
+            }
+            int available = Math.min(this.frameRemaining, this.readBuffer.remaining());
+            this.frameAssembly.append(this.readBuffer, available);
+            this.frameRemaining -= available;
+            if(this.frameRemaining > 0) {
+                break;  // wait for rest of frame
+            }
+            this.inFrame = false;
+            if(this.frameIsFinal) {
+                MessageAssembly assembly = this.assemblies.remove(this.frameAssembly.operationId);
+                this.frameAssembly = null;
+                message = OpCodec.readMessage(new DataInputStream(
+                        new ByteArrayInputStream(assembly.bytes(), 0, assembly.size())));
+            }
+        }
+        this.readBuffer.compact();
+        return message;
+    }
+
+    // Growable byte array, exposing the buffer to avoid copies
+    private static class MessageAssembly extends ByteArrayOutputStream {
+        public int operationId;
+
+        MessageAssembly() {
+            super(1024);
+        }
+
+        byte[] bytes() {
+            return this.buf;
+        }
+
+        void append(ByteBuffer buffer, int length) {
+            int newCount = this.count + length;
+            if(newCount > this.buf.length) {
+                this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, newCount));
+            }
+            buffer.get(this.buf, this.count, length);
+            this.count = newCount;
+        }
+    }
 }
@@ -0,0 +1,373 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.op;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes the messages sent between the application server and the worker
+ * processes.
+ *
+ * Messages are written field by field. Operations are written as their class
+ * name followed by the values of their fields, with strings, primitives and
+ * arrays of them written directly. Only the occasional field of another type,
+ * and exceptions, fall back to Java serialization.
+ *
+ * Operations are created with their no-arg constructor, which can be private,
+ * before the fields are set. An operation class without one is sent with Java
+ * serialization instead.
+ */
+class OpCodec {
+    private static final byte MESSAGE_AUTHENTICATE = 1;
+    private static final byte MESSAGE_AUTHENTICATE_ACCEPTED = 2;
+    private static final byte MESSAGE_DO_OPERATION = 3;
+    private static final byte MESSAGE_ACKNOWLEDGE_OPERATION = 4;
+    private static final byte MESSAGE_DONE_OPERATION = 5;
+    private static final byte MESSAGE_OPERATION_PROGRESS = 6;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_TRUE = 1;
+    private static final byte VALUE_FALSE = 2;
+    private static final byte VALUE_INT = 3;
+    private static final byte VALUE_LONG = 4;
+    private static final byte VALUE_DOUBLE = 5;
+    private static final byte VALUE_FLOAT = 6;
+    private static final byte VALUE_STRING = 7;
+    private static final byte VALUE_BYTES = 8;
+    private static final byte VALUE_STRING_ARRAY = 9;
+    private static final byte VALUE_INT_ARRAY = 10;
+    private static final byte VALUE_ENUM = 11;
+    private static final byte VALUE_OPERATION = 12;
+    private static final byte VALUE_SERIALIZED = 13;
+
+    // ----------------------------------------------------------------------
+
+    static void writeMessage(DataOutput out, OpServerMessage message) throws IOException {
+        if(message instanceof OpServerMessage.Authenticate) {
+            OpServerMessage.Authenticate m = (OpServerMessage.Authenticate)message;
+            out.writeByte(MESSAGE_AUTHENTICATE);
+            out.writeInt(m.operationId);
+            out.writeInt(m.workerNumber);
+            writeValue(out, m.authenticationToken);
+            out.writeInt(m.concurrency);
+        } else if(message instanceof OpServerMessage.AuthenticateAccepted) {
+            OpServerMessage.AuthenticateAccepted m = (OpServerMessage.AuthenticateAccepted)message;
+            out.writeByte(MESSAGE_AUTHENTICATE_ACCEPTED);
+            out.writeInt(m.operationId);
+            out.writeBoolean(m.accepted);
+        } else if(message instanceof OpServerMessage.DoOperation) {
+            OpServerMessage.DoOperation m = (OpServerMessage.DoOperation)message;
+            out.writeByte(MESSAGE_DO_OPERATION);
+            out.writeInt(m.operationId);
+            writeValue(out, m.operation);
+        } else if(message instanceof OpServerMessage.AcknowledgeOperation) {
+            OpServerMessage.AcknowledgeOperation m = (OpServerMessage.AcknowledgeOperation)message;
+            out.writeByte(MESSAGE_ACKNOWLEDGE_OPERATION);
+            out.writeInt(m.operationId);
+            out.writeBoolean(m.ok);
+        } else if(message instanceof OpServerMessage.OperationProgress) {
+            OpServerMessage.OperationProgress m = (OpServerMessage.OperationProgress)message;
+            out.writeByte(MESSAGE_OPERATION_PROGRESS);
+            out.writeInt(m.operationId);
+            out.writeInt(m.progress);
+        } else if(message instanceof OpServerMessage.DoneOperation) {
+            OpServerMessage.DoneOperation m = (OpServerMessage.DoneOperation)message;
+            out.writeByte(MESSAGE_DONE_OPERATION);
+            out.writeInt(m.operationId);
+            writeValue(out, m.resultOperation);
+            writeValue(out, m.resultException);
+            out.writeBoolean(m.willExit);
+        } else {
+            throw new RuntimeException("Unknown message type: " + message.getClass().getName());
+        }
+    }
+
+    static OpServerMessage readMessage(DataInput in) throws IOException {
+        OpServerMessage message;
+        byte type = in.readByte();
+        int operationId = in.readInt();
+        switch(type) {
+            case MESSAGE_AUTHENTICATE: {
+                OpServerMessage.Authenticate m = new OpServerMessage.Authenticate();
+                m.workerNumber = in.readInt();
+                m.authenticationToken = (String)readValue(in);
+                m.concurrency = in.readInt();
+                message = m;
+            } break;
+            case MESSAGE_AUTHENTICATE_ACCEPTED: {
+                OpServerMessage.AuthenticateAccepted m = new OpServerMessage.AuthenticateAccepted();
+                m.accepted = in.readBoolean();
+                message = m;
+            } break;
+            case MESSAGE_DO_OPERATION: {
+                OpServerMessage.DoOperation m = new OpServerMessage.DoOperation();
+                m.operation = (Operation)readValue(in);
+                message = m;
+            } break;
+            case MESSAGE_ACKNOWLEDGE_OPERATION: {
+                OpServerMessage.AcknowledgeOperation m = new OpServerMessage.AcknowledgeOperation();
+                m.ok = in.readBoolean();
+                message = m;
+            } break;
+            case MESSAGE_OPERATION_PROGRESS: {
+                OpServerMessage.OperationProgress m = new OpServerMessage.OperationProgress();
+                m.progress = in.readInt();
+                message = m;
+            } break;
+            case MESSAGE_DONE_OPERATION: {
+                OpServerMessage.DoneOperation m = new OpServerMessage.DoneOperation();
+                m.resultOperation = (Operation)readValue(in);
+                m.resultException = (Exception)readValue(in);
+                m.willExit = in.readBoolean();
+                message = m;
+            } break;
+            default:
+                throw new IOException("Unknown message type received: " + type);
+        }
+        message.operationId = operationId;
+        return message;
+    }
+
+    // Used by OpResultCache to store results
+    static void writeOperation(DataOutput out, Operation operation) throws IOException {
+        writeValue(out, operation);
+    }
+
+    static Operation readOperation(DataInput in) throws IOException {
+        return (Operation)readValue(in);
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static void writeValue(DataOutput out, Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if(value instanceof Boolean) {
+            out.writeByte(((Boolean)value) ? VALUE_TRUE : VALUE_FALSE);
+        } else if(value instanceof Integer) {
+            out.writeByte(VALUE_INT);
+            out.writeInt((Integer)value);
+        } else if(value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long)value);
+        } else if(value instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double)value);
+        } else if(value instanceof Float) {
+            out.writeByte(VALUE_FLOAT);
+            out.writeFloat((Float)value);
+        } else if(value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            writeString(out, (String)value);
+        } else if(value instanceof byte[]) {
+            byte[] bytes = (byte[])value;
+            out.writeByte(VALUE_BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if(value instanceof String[]) {
+            String[] strings = (String[])value;
+            out.writeByte(VALUE_STRING_ARRAY);
+            out.writeInt(strings.length);
+            for(String string : strings) {
+                writeValue(out, string);
+            }
+        } else if(value instanceof int[]) {
+            int[] ints = (int[])value;
+            out.writeByte(VALUE_INT_ARRAY);
+            out.writeInt(ints.length);
+            for(int i : ints) {
+                out.writeInt(i);
+            }
+        } else if(value instanceof Enum) {
+            out.writeByte(VALUE_ENUM);
+            writeString(out, ((Enum<?>)value).getDeclaringClass().getName());
+            writeString(out, ((Enum<?>)value).name());
+        } else if((value instanceof Operation) && (constructorOf(value.getClass()) != null)) {
+            out.writeByte(VALUE_OPERATION);
+            writeString(out, value.getClass().getName());
+            try {
+                for(Field field : fieldsOf(value.getClass())) {
+                    writeValue(out, field.get(value));
+                }
+            } catch(IllegalAccessException e) {
+                throw new RuntimeException("Logic error: Unexpected IllegalAccessException encoding operation", e);
+            }
+        } else if(value instanceof Serializable) {
+            ByteArrayOutputStream serialised = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream(serialised);
+            objectOut.writeObject(value);
+            objectOut.close();
+            out.writeByte(VALUE_SERIALIZED);
+            out.writeInt(serialised.size());
+            out.write(serialised.toByteArray());
+        } else {
+            throw new RuntimeException("Can't encode value of type " + value.getClass().getName() + " for operation");
+        }
+    }
+
+    private static Object readValue(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch(type) {
+            case VALUE_NULL: return null;
+            case VALUE_TRUE: return Boolean.TRUE;
+            case VALUE_FALSE: return Boolean.FALSE;
+            case VALUE_INT: return in.readInt();
+            case VALUE_LONG: return in.readLong();
+            case VALUE_DOUBLE: return in.readDouble();
+            case VALUE_FLOAT: return in.readFloat();
+            case VALUE_STRING: return readString(in);
+            case VALUE_BYTES: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case VALUE_STRING_ARRAY: {
+                String[] strings = new String[in.readInt()];
+                for(int i = 0; i < strings.length; ++i) {
+                    strings[i] = (String)readValue(in);
+                }
+                return strings;
+            }
+            case VALUE_INT_ARRAY: {
+                int[] ints = new int[in.readInt()];
+                for(int i = 0; i < ints.length; ++i) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            }
+            case VALUE_ENUM: {
+                Class<?> enumClass = classNamed(readString(in));
+                String name = readString(in);
+                Object[] constants = enumClass.getEnumConstants();
+                if(constants != null) {
+                    for(Object constant : constants) {
+                        if(((Enum<?>)constant).name().equals(name)) {
+                            return constant;
+                        }
+                    }
+                }
+                throw new IOException("Unknown enum value received: " + enumClass.getName() + "." + name);
+            }
+            case VALUE_OPERATION: {
+                Class<?> operationClass = classNamed(readString(in));
+                if(!Operation.class.isAssignableFrom(operationClass)) {
+                    throw new IOException("Received class is not an Operation: " + operationClass.getName());
+                }
+                Object operation = newInstance(operationClass);
+                try {
+                    for(Field field : fieldsOf(operationClass)) {
+                        field.set(operation, readValue(in));
+                    }
+                } catch(IllegalAccessException e) {
+                    throw new RuntimeException("Logic error: Unexpected IllegalAccessException decoding operation", e);
+                }
+                return operation;
+            }
+            case VALUE_SERIALIZED: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch(ClassNotFoundException e) {
+                    throw new IOException("Couldn't decode serialised value", e);
+                }
+            }
+            default:
+                throw new IOException("Unknown value type received: " + type);
+        }
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        // Not writeUTF(), as that's limited to 64k
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Class<?> classNamed(String name) throws IOException {
+        try {
+            return Class.forName(name);
+        } catch(ClassNotFoundException e) {
+            throw new IOException("Unknown class received: " + name, e);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static ConcurrentHashMap<Class<?>,Field[]> operationFields = new ConcurrentHashMap<Class<?>,Field[]>();
+    private static ConcurrentHashMap<Class<?>,Constructor<?>> operationConstructors = new ConcurrentHashMap<Class<?>,Constructor<?>>();
+    private static final Constructor<?> NO_CONSTRUCTOR = OpCodec.class.getDeclaredConstructors()[0];
+
+    // Instance fields of the operation and its superclasses, in a stable order so both ends agree
+    private static Field[] fieldsOf(Class<?> operationClass) {
+        Field[] fields = operationFields.get(operationClass);
+        if(fields == null) {
+            ArrayList<Field> list = new ArrayList<Field>();
+            for(Class<?> c = operationClass; c != null && c != Object.class; c = c.getSuperclass()) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, Comparator.comparing(Field::getName));
+                for(Field field : declared) {
+                    if((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0) {
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+            }
+            fields = list.toArray(new Field[list.size()]);
+            operationFields.put(operationClass, fields);
+        }
+        return fields;
+    }
+
+    // The operation's no-arg constructor, or null if it doesn't have one
+    private static Constructor<?> constructorOf(Class<?> operationClass) {
+        Constructor<?> constructor = operationConstructors.get(operationClass);
+        if(constructor == null) {
+            try {
+                constructor = operationClass.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch(NoSuchMethodException e) {
+                constructor = NO_CONSTRUCTOR;
+            }
+            operationConstructors.put(operationClass, constructor);
+        }
+        return (constructor == NO_CONSTRUCTOR) ? null : constructor;
+    }
+
+    private static Object newInstance(Class<?> operationClass) throws IOException {
+        Constructor<?> constructor = constructorOf(operationClass);
+        if(constructor == null) {
+            throw new IOException("Received operation class doesn't have a no-arg constructor: " + operationClass.getName());
+        }
+        try {
+            return constructor.newInstance();
+        } catch(Exception e) {
+            throw new RuntimeException("Couldn't create operation of class " + operationClass.getName(), e);
+        }
+    }
+}
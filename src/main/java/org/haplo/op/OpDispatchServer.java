@@ -14,6 +14,8 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.apache.log4j.Logger;
 
@@ -84,11 +86,23 @@ public class OpDispatchServer extends Thread {
         private OpDispatcher.Worker worker;
         private ObjectPipe pipe;
         private Logger logger;
+        private int nextOperationId;
+        private HashMap<Integer,InFlight> inFlight;
+        private boolean workerWillExit;
 
         public Connection(SocketChannel socketChannel, OpDispatcher dispatcher) throws IOException {
             this.pipe = new ObjectPipe(socketChannel);
             this.dispatcher = dispatcher;
             this.logger = Logger.getLogger("org.haplo.op.server");
+            this.nextOperationId = 1;
+            this.inFlight = new HashMap<Integer,InFlight>();
+        }
+
+        // An operation sent to the worker process which hasn't been completed yet
+        private static class InFlight {
+            public Operation operation;
+            public boolean acknowledged;
+            public long deadline;
         }
 
         public void run() {
@@ -97,6 +111,9 @@ public class OpDispatchServer extends Thread {
             } catch(Exception e) {
                 // TODO: What to do about general exceptions in OpDispatchServer threads?
                 this.logger.error("Exception in OpDispatchServer worker thread", e);
+                if(!this.inFlight.isEmpty()) {
+                    failInFlightOperations(e);
+                }
             }
 
             try {
@@ -112,20 +129,21 @@ public class OpDispatchServer extends Thread {
             }
         }
 
-        private void run2() throws IOException, ClassNotFoundException {
+        private void run2() throws IOException {
             this.setName("OpDispatchServer.Connection-waiting");
             this.logger.info("Waiting for authentication on thread " + getId());
 
             // Get the info object (exceptions if wrong thing recieved)
-            OpServerMessage.Authenticate auth = (OpServerMessage.Authenticate)pipe.receiveObject(2000); // two seconds to authenticate
+            OpServerMessage.Authenticate auth = (OpServerMessage.Authenticate)pipe.receiveMessage(2000); // two seconds to authenticate
             if(auth == null) {
                 throw new RuntimeException("Worker process didn't send authentication message in time.");
             }
             // TODO: Check authenticateToken
             this.setName("OpDispatchServer.Connection-" + auth.workerNumber);
             this.logger = Logger.getLogger("org.haplo.op.server.c" + auth.workerNumber);
-            this.logger.info("Connection on thread " + getId() + " authenticated as " + auth.workerNumber);
+            this.logger.info("Connection on thread " + getId() + " authenticated as " + auth.workerNumber + ", concurrency " + auth.concurrency);
             this.worker = this.dispatcher.workerConnected(auth.workerNumber);
+            this.worker.setCapacity(Math.max(1, auth.concurrency));
 
             // Use the ObjectPipe as the waker for this worker, so we can use the ObjectPipe for waiting
             // so socket disconnects are noticed.
@@ -134,79 +152,133 @@ public class OpDispatchServer extends Thread {
             // Notify the worker that authentication was accepted
             OpServerMessage.AuthenticateAccepted authAccepted = new OpServerMessage.AuthenticateAccepted();
             authAccepted.accepted = true;
-            this.pipe.sendObject(authAccepted);
+            this.pipe.sendMessage(authAccepted);
 
             while(true) {
-                Operation operation = this.worker.getNextWork();
+                // Send operations to the worker process until it's running as many as it can. The worker
+                // acknowledges each operation when it's received, but there's no need to wait for that
+                // before sending the next.
+                while(!this.workerWillExit && this.inFlight.size() < this.worker.getCapacity()) {
+                    Operation operation = this.worker.getNextWork();
+                    if(operation == null) {
+                        break;
+                    }
+                    this.logger.info("Dispatch op: " + operation);
+                    int operationId = this.nextOperationId++;
+                    InFlight sent = new InFlight();
+                    sent.operation = operation;
+                    sent.deadline = System.currentTimeMillis() + MAX_TIME_TO_ACKNOWLEDGE_OPERATION;
+                    this.inFlight.put(operationId, sent);
+                    OpServerMessage.DoOperation doOperation = new OpServerMessage.DoOperation();
+                    doOperation.operationId = operationId;
+                    doOperation.operation = operation;
+                    this.pipe.sendMessage(doOperation);
+                }
 
-                if(operation == null) {
+                if(this.inFlight.isEmpty()) {
+                    if(this.workerWillExit) {
+                        this.logger.info("Worker process intends to exit now, finishing.");
+                        return;
+                    }
                     // Wait at least 20 seconds for work. Use the worker number to stagger the checks a little.
                     // Use the ObjectPipe for waking so that disconnections will wake up the process and throw an exception.
-                    Object nothing = this.pipe.receiveObject((10 + auth.workerNumber) * 2000);
+                    OpServerMessage nothing = this.pipe.receiveMessage((10 + auth.workerNumber) * 2000);
                     if(nothing != null) {
-                        this.logger.error("Worker process didn't follow protocol -- unexpected object when waiting");
+                        this.logger.error("Worker process didn't follow protocol -- unexpected message when waiting");
                         throw new RuntimeException("Worker process didn't follow protocol");
                     }
-                } else {
-                    this.logger.info("Dispatch op: " + operation);
+                    continue;
+                }
 
-                    boolean operationSentOk = false;
-                    try {
-                        OpServerMessage.DoOperation doOperation = new OpServerMessage.DoOperation();
-                        doOperation.operation = operation;
-                        this.pipe.sendObject(doOperation);
-
-                        // Worker process must respond reasonably quickly to say it's got the operation and intends
-                        // to start processing it.
-                        OpServerMessage.AcknowledgeOperation acknowledgeOperation
-                                = (OpServerMessage.AcknowledgeOperation)this.pipe.receiveObject(MAX_TIME_TO_ACKNOWLEDGE_OPERATION);
-                        if(acknowledgeOperation != null) {
-                            operationSentOk = acknowledgeOperation.ok;
-                        } else {
-                            this.logger.error("Didn't receive ack message from worker process within limit of " + MAX_TIME_TO_ACKNOWLEDGE_OPERATION + "ms");
-                            // Don't throw or return: cleanup happens next
+                // Wait for a message about an operation, until the next deadline of an in flight operation
+                long nextDeadline = Long.MAX_VALUE;
+                for(InFlight f : this.inFlight.values()) {
+                    nextDeadline = Math.min(nextDeadline, f.deadline);
+                }
+                long waitTime = nextDeadline - System.currentTimeMillis();
+                OpServerMessage message = (waitTime > 0) ? this.pipe.receiveMessage(waitTime) : null;
+
+                if(message == null) {
+                    // Woken for new work, or an operation has gone past its deadline
+                    long timeNow = System.currentTimeMillis();
+                    for(InFlight f : this.inFlight.values()) {
+                        if(f.deadline <= timeNow) {
+                            if(f.acknowledged) {
+                                this.logger.error("Timed out waiting for the operation done response from worker");
+                                failInFlightOperations(new OperationTimeoutException(f.operation, "Operation timed out"), f.operation);
+                            } else {
+                                this.logger.error("Didn't receive ack message from worker process within limit of " + MAX_TIME_TO_ACKNOWLEDGE_OPERATION + "ms");
+                                failInFlightOperations(null);
+                            }
+                            return;
                         }
-                    } catch(Exception e) {
-                        this.logger.error("Exception when sending message to worker process", e);
-                        // Don't throw or return: cleanup happens next
                     }
-
-                    // If it can't be verified that the worker process got the operation, give up on the worker
-                    // and requeue the operation.
-                    if(!operationSentOk) {
-                        this.worker.returnWork(operation, OpDispatcher.WorkerState.FAILED);
+                } else if(message instanceof OpServerMessage.AcknowledgeOperation) {
+                    InFlight f = this.inFlight.get(message.operationId);
+                    if(f == null || f.acknowledged || !((OpServerMessage.AcknowledgeOperation)message).ok) {
+                        this.logger.error("Worker process didn't acknowledge operation correctly");
+                        failInFlightOperations(null);
                         return;
                     }
-
                     // Wait for the operation to complete, sending a timeout exception & marking the worker as failed
                     // if it takes too long or the worker disconnects.
-                    OpServerMessage.DoneOperation doneOperation = null;
-                    Exception operationException = null;
-                    try {
-                        doneOperation = (OpServerMessage.DoneOperation)this.pipe.receiveObject(MAX_TIME_TO_WAIT_FOR_OPERATION);
-                    } catch(Exception e) {
-                        this.logger.error("Exception when waiting for operation reply", e);
-                        operationException = e;
-                    }
-
-                    if(doneOperation == null) {
-                        this.logger.error("Timed out waiting for the operation done response from worker");
-                        operationException = new OperationTimeoutException(operation, "Operation timed out");
+                    f.acknowledged = true;
+                    f.deadline = System.currentTimeMillis() + MAX_TIME_TO_WAIT_FOR_OPERATION;
+                } else if(message instanceof OpServerMessage.OperationProgress) {
+                    InFlight f = this.inFlight.get(message.operationId);
+                    if(f != null && f.acknowledged) {
+                        this.worker.progressReported(f.operation, ((OpServerMessage.OperationProgress)message).progress);
+                    } else {
+                        this.logger.info("Ignoring progress from worker process for an operation which isn't running");
                     }
-                    if(operationException != null) {
-                        this.worker.finishedWork(operation, null, operationException, OpDispatcher.WorkerState.FAILED);
+                } else if(message instanceof OpServerMessage.DoneOperation) {
+                    OpServerMessage.DoneOperation doneOperation = (OpServerMessage.DoneOperation)message;
+                    InFlight f = this.inFlight.get(message.operationId);
+                    if(f == null || !f.acknowledged) {
+                        this.logger.error("Worker process sent result for an unexpected operation");
+                        failInFlightOperations(null);
                         return;
                     }
+                    this.inFlight.remove(message.operationId);
+                    this.logger.info("Got reply for: " + f.operation);
+                    // Once the worker process has signalled its intent to exit, it's disconnected after
+                    // the last operation it's running has finished.
+                    if(doneOperation.willExit) {
+                        this.workerWillExit = true;
+                    }
+                    this.worker.finishedWork(f.operation, doneOperation.resultOperation, doneOperation.resultException,
+                            (this.workerWillExit && this.inFlight.isEmpty()) ? OpDispatcher.WorkerState.DISCONNECTING : OpDispatcher.WorkerState.OK);
+                } else {
+                    this.logger.error("Worker process didn't follow protocol -- unexpected message");
+                    failInFlightOperations(null);
+                    return;
+                }
+            }
+        }
 
-                    this.logger.info("Got reply for: " + operation);
-                    this.worker.finishedWork(operation, doneOperation.resultOperation, doneOperation.resultException,
-                            doneOperation.willExit ? OpDispatcher.WorkerState.DISCONNECTING : OpDispatcher.WorkerState.OK);
+        // Give up on the worker process, after it's failed or behaved unexpectedly. Operations it hasn't
+        // acknowledged are requeued. Operations it was running are reported as failed, with the given
+        // exception, or a generic exception if null. The last operation marks the worker as failed.
+        private void failInFlightOperations(Exception exception) {
+            failInFlightOperations(exception, null);
+        }
 
-                    // If the worker has signalled its intent to exit, exit now.
-                    if(doneOperation.willExit) {
-                        this.logger.info("Worker process intends to exit now, finishing.");
-                        return;
+        // As above, but only exceptionFor is given the exception, and other operations are given the
+        // generic exception.
+        private void failInFlightOperations(Exception exception, Operation exceptionFor) {
+            ArrayList<InFlight> operations = new ArrayList<InFlight>(this.inFlight.values());
+            this.inFlight.clear();
+            for(int i = 0; i < operations.size(); ++i) {
+                InFlight f = operations.get(i);
+                OpDispatcher.WorkerState state = (i == (operations.size() - 1)) ? OpDispatcher.WorkerState.FAILED : OpDispatcher.WorkerState.OK;
+                if(!f.acknowledged) {
+                    this.worker.returnWork(f.operation, state);
+                } else {
+                    Exception operationException = (exceptionFor == null || exceptionFor == f.operation) ? exception : null;
+                    if(operationException == null) {
+                        operationException = new RuntimeException("Worker process failed while performing operation");
                     }
+                    this.worker.finishedWork(f.operation, null, operationException, state);
                 }
             }
         }
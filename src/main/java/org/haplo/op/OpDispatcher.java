@@ -6,18 +6,90 @@
 
 package org.haplo.op;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import java.lang.Class;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 
 import org.apache.log4j.Logger;
 
+import org.haplo.utils.MemoryMeasurement;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * Dispatches queued operations to worker processes.
+ *
+ * Each priority class has its own queue, and the classes share the workers in
+ * proportion to their weights using stride scheduling. Within a class, the
+ * applications share the workers with start time fair queuing. The number of
+ * operations each application has running is counted as they start and finish,
+ * so enforcing the per-application limit doesn't need a scan of the workers.
+ *
+ * The number of worker processes running is between the policy's minimum and
+ * maximum. Another worker is started through the supervisor when the queue
+ * backs up and the host has spare capacity, and the highest numbered worker is
+ * stopped after it's been idle for a while.
+ */
 public class OpDispatcher {
     private Policy policy;
     private OpWorkerSupervisor workerSupervisor;
     private Worker[] workers;
-    private ArrayList<QueueEntry> queue;
+    private ClassQueue[] queues;
+    private int queueLength;
+    private long queueSequence;
+    private long globalPass;
+    private HashMap<Long,RunningCount> runningPerApplication;
+    private boolean[] workerStarted;
+    private long[] workerLastBusyTime;
+    private int workersStarted;
+    private long lastScalingTime;
     private Logger logger;
 
+    static final Histogram queueWaitTime = Histogram.build()
+        .name("haplo_op_queue_wait_seconds")
+        .help("Time operations waited in the queue before being dispatched to a worker")
+        .labelNames("priority")
+        .buckets(0.001, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300)
+        .create();
+
+    static final Counter workerOperations = Counter.build()
+        .name("haplo_op_worker_operations_total")
+        .help("Operations completed by each worker")
+        .labelNames("worker")
+        .create();
+
+    static final Counter workerBusyTime = Counter.build()
+        .name("haplo_op_worker_busy_seconds_total")
+        .help("Time each worker spent performing operations")
+        .labelNames("worker")
+        .create();
+
+    static final Counter workerRecycles = Counter.build()
+        .name("haplo_op_worker_recycles_total")
+        .help("Worker processes which exited and were replaced")
+        .labelNames("reason")
+        .create();
+
+    static final Gauge workersStartedGauge = Gauge.build()
+        .name("haplo_op_workers_started")
+        .help("Number of worker processes the supervisor has been asked to run")
+        .create();
+
+    public static void collectMetrics() {
+        queueWaitTime.register();
+        workerOperations.register();
+        workerBusyTime.register();
+        workerRecycles.register();
+        workersStartedGauge.register();
+    }
+
     public OpDispatcher(Policy policy) {
         this.policy = policy;
         this.workerSupervisor = null;
@@ -25,7 +97,21 @@ public class OpDispatcher {
         for(int l = 0; l < this.workers.length; ++l) {
             this.workers[l] = new Worker(this, l);
         }
-        this.queue = new ArrayList<QueueEntry>(16 /* initial array size */);
+        Operation.Priority[] priorities = Operation.Priority.values();
+        this.queues = new ClassQueue[priorities.length];
+        for(int c = 0; c < priorities.length; ++c) {
+            this.queues[c] = new ClassQueue(priorities[c]);
+        }
+        this.runningPerApplication = new HashMap<Long,RunningCount>();
+        this.workerStarted = new boolean[this.workers.length];
+        this.workerLastBusyTime = new long[this.workers.length];
+        this.workersStarted = Math.min(this.policy.minimumWorkers, this.workers.length);
+        this.lastScalingTime = System.currentTimeMillis();
+        for(int l = 0; l < this.workers.length; ++l) {
+            this.workerStarted[l] = (l < this.workersStarted);
+            this.workerLastBusyTime[l] = this.lastScalingTime;
+        }
+        workersStartedGauge.set(this.workersStarted);
         this.logger = Logger.getLogger("org.haplo.op.dispatcher");
     }
 
@@ -44,17 +130,64 @@ public class OpDispatcher {
         entry.operation = operation;
         entry.applicationId = applicationId;
         entry.notifyTarget = notifyTarget;
+        entry.priority = operation.getPriority();
+        entry.queuedTime = System.nanoTime();
 
+        int startWorkerNumber;
         synchronized(this) {
-            if(queue.size() >= this.policy.maxQueueLength) {
+            if(this.queueLength >= this.policy.maxQueueLength) {
                 this.logger.error("OpDispatcher queue length exceeded");
                 throw new RuntimeException("Queue length exceeded");
             }
 
             addQueueEntryWithoutSynchronization(entry, QueueAdditionAction.QUEUE_NORMAL);
+            startWorkerNumber = chooseWorkerToStartWithoutSynchronization();
+        }
+
+        this.logger.info("Queued for app " + applicationId + " (" + entry.priority + "): " + operation);
+
+        // Tell the supervisor outside the lock, as it may take a while
+        if(startWorkerNumber >= 0) {
+            this.logger.info("Queue length " + this.queueLength + ", starting worker " + startWorkerNumber);
+            this.workerSupervisor.startWorker(startWorkerNumber);
         }
+    }
 
-        this.logger.info("Queued for app " + applicationId + ": " + operation);
+    /**
+     * Remove an operation from the queue if it hasn't been dispatched to a worker yet.
+     * The notify target is told the operation was cancelled.
+     */
+    public boolean cancelQueuedOperation(Operation operation) {
+        QueueEntry cancelled = null;
+        synchronized(this) {
+            ClassQueue classQueue = this.queues[operation.getPriority().ordinal()];
+            for(ApplicationQueue appQueue : classQueue.applications.values()) {
+                for(QueueEntry entry : appQueue.entries) {
+                    if(entry.operation == operation) {
+                        cancelled = entry;
+                        break;
+                    }
+                }
+                if(cancelled != null) {
+                    classQueue.ordered.remove(appQueue);    // first entry may change
+                    appQueue.entries.remove(cancelled);
+                    if(appQueue.entries.isEmpty()) {
+                        classQueue.applications.remove(appQueue.applicationId);
+                    } else {
+                        classQueue.ordered.add(appQueue);
+                    }
+                    classQueue.length--;
+                    this.queueLength--;
+                    break;
+                }
+            }
+        }
+        if(cancelled == null) {
+            return false;
+        }
+        this.logger.info("Cancelled queued operation for app " + cancelled.applicationId + ": " + operation);
+        cancelled.notifyTarget.notifyOperationException(operation, new CancellationException("Operation cancelled before dispatch"));
+        return true;
     }
 
     // -----------------------------------------------------------------------------------------
@@ -102,42 +235,38 @@ public class OpDispatcher {
 
     protected Operation getNextWorkForWorker(Worker worker) {
         Operation nextWork = null;
+        boolean stopWorker = false;
 
         synchronized(this) {
             checkWorkerWithoutSynchronization(worker, null);
-            if(worker.currentWork != null) {
+            if(worker.currentWork.size() >= worker.capacity) {
                 throw new RuntimeException("Logic error: Already working");
             }
 
-            for(int i = 0; i < this.queue.size(); ++i) {
-                QueueEntry possible = this.queue.get(i);
-
-                int countForApp = 0;
-                for(int w = 0; w < this.workers.length; ++w) {
-                    Worker ww = this.workers[w];
-                    if(ww.currentWork != null && ww.currentWork.applicationId == possible.applicationId) {
-                        countForApp++;
-                    }
-                }
-
-                // Choose this operation if the max ops per application policy wouldn't be exceeded
-                if(countForApp < this.policy.maxOpsPerApplication) {
-                    this.queue.remove(i);
-                    worker.currentWork = possible;
-                    nextWork = possible.operation;
-                    possible.startTime = System.currentTimeMillis();
-
-                    // Make sure the wake flag isn't set for this worker *in the synchronized block*,
-                    // otherwise if the worker doesn't have to wait, the wait flag will be set when
-                    // waiting for the ack from the worker. This would cause it to be timed out and
-                    // the worker failed.
-                    worker.unsetWakeFlag();
-
-                    break;
-                }
+            QueueEntry possible = worker.stopping ? null : takeNextRunnableEntryWithoutSynchronization();
+            if(possible == null) {
+                stopWorker = shouldStopIdleWorkerWithoutSynchronization(worker);
+            } else {
+                this.workerLastBusyTime[worker.workerNumber] = System.currentTimeMillis();
+                worker.currentWork.add(possible);
+                nextWork = possible.operation;
+                possible.startTime = System.currentTimeMillis();
+                runningCountWithoutSynchronization(possible.applicationId).count++;
+                queueWaitTime.labels(possible.priority.name()).observe((System.nanoTime() - possible.queuedTime) / 1.0E9);
+
+                // Make sure the wake flag isn't set for this worker *in the synchronized block*,
+                // otherwise if the worker doesn't have to wait, the wait flag will be set when
+                // waiting for the ack from the worker. This would cause it to be timed out and
+                // the worker failed.
+                worker.unsetWakeFlag();
             }
         }
 
+        if(stopWorker) {
+            this.logger.info("Worker " + worker.workerNumber + " is idle and not needed, stopping");
+            this.workerSupervisor.stopWorker(worker.workerNumber);
+        }
+
         if(nextWork != null) {
             try {
                 nextWork.beforeRemoteExecution();
@@ -162,8 +291,8 @@ public class OpDispatcher {
         synchronized(this) {
             checkWorkerWithoutSynchronization(worker, operation);
 
-            QueueEntry returned = worker.currentWork;
-            worker.currentWork = null;
+            QueueEntry returned = worker.removeCurrentWork(operation);
+            finishedRunningWithoutSynchronization(returned);
 
             workerState.handleStateWithoutSynchronization(this, worker);
 
@@ -185,13 +314,14 @@ public class OpDispatcher {
 
         synchronized(this) {
             checkWorkerWithoutSynchronization(worker, operation);
-            if(worker.currentWork == null || worker.currentWork.operation != operation) {
+            performed = worker.removeCurrentWork(operation);
+            if(performed == null) {
                 throw new RuntimeException("Logic error: Wrong operation returned");
             }
 
             if(result != null) {
                 try {
-                    worker.currentWork.operation.copyResultsFromReturnedOperation(result);
+                    performed.operation.copyResultsFromReturnedOperation(result);
                 } catch(Exception e) {
                     // Report this exception instead
                     result = null;
@@ -199,13 +329,15 @@ public class OpDispatcher {
                 }
             }
 
-            performed = worker.currentWork;
-            worker.currentWork = null;
+            finishedRunningWithoutSynchronization(performed);
 
             workerState.handleStateWithoutSynchronization(this, worker);
         }
 
         long timeTaken = System.currentTimeMillis() - performed.startTime;
+        String workerLabel = Integer.toString(worker.workerNumber);
+        workerOperations.labels(workerLabel).inc();
+        workerBusyTime.labels(workerLabel).inc(timeTaken / 1000.0);
         if(exception != null) {
             this.logger.info("Operation on worker " + worker.workerNumber + " took " + timeTaken + "ms and threw exception, op: " + operation);
         } else {
@@ -220,20 +352,45 @@ public class OpDispatcher {
         }
     }
 
+    protected void workerProgressReported(Worker worker, Operation operation, int progress) {
+        QueueEntry running;
+        synchronized(this) {
+            checkWorkerWithoutSynchronization(worker, operation);
+            running = worker.findCurrentWork(operation);
+        }
+        // Notify outside of the lock to avoid deadlocks
+        if(running.notifyTarget instanceof OpProgressTarget) {
+            ((OpProgressTarget)running.notifyTarget).notifyOperationProgress(running.operation, progress);
+        }
+    }
+
     // -----------------------------------------------------------------------------------------
     public static class Policy {
         final static public int DEFAULT_WORKERS = 4;
         final static public int DEFAULT_MAX_OPS_PER_APP = 2;
         final static public int DEFAULT_MAX_QUEUE_LENGTH = 512;
 
-        public int numberOfWorkers;
+        public int numberOfWorkers;     // maximum number of workers
+        public int minimumWorkers;
         public int maxOpsPerApplication;
         public int maxQueueLength;
+        // Scaling the number of workers
+        public int queueLengthPerWorker;    // start another worker when queue is longer than this for each worker
+        public long idleTimeBeforeStop;     // ms
+        public long minimumTimeBetweenScaling;  // ms
+        public double maxLoadPerProcessor;  // don't start workers when load average per CPU is above this
+        public long minimumAvailableMemory; // or when there's less than this memory available (bytes)
 
         public Policy() {
-            this.numberOfWorkers = DEFAULT_WORKERS;
-            this.maxOpsPerApplication = DEFAULT_MAX_OPS_PER_APP;
+            this.numberOfWorkers = Integer.getInteger("org.haplo.op.workers.max", DEFAULT_WORKERS);
+            this.minimumWorkers = Integer.getInteger("org.haplo.op.workers.min", this.numberOfWorkers);
+            this.maxOpsPerApplication = Integer.getInteger("org.haplo.op.maxopsperapp", DEFAULT_MAX_OPS_PER_APP);
             this.maxQueueLength = DEFAULT_MAX_QUEUE_LENGTH;
+            this.queueLengthPerWorker = Integer.getInteger("org.haplo.op.workers.queueperworker", 2);
+            this.idleTimeBeforeStop = Long.getLong("org.haplo.op.workers.idletime", 5 * 60) * 1000;
+            this.minimumTimeBetweenScaling = 10 * 1000;
+            this.maxLoadPerProcessor = 1.5;
+            this.minimumAvailableMemory = Long.getLong("org.haplo.op.workers.minavailablememorymb", 1024) * 1024 * 1024;
         }
     }
 
@@ -242,7 +399,50 @@ public class OpDispatcher {
         public Operation operation;
         public long applicationId;
         public OpNotifyTarget notifyTarget;
+        public Operation.Priority priority;
+        public long queuedTime;     // nanoTime
         public long startTime;
+        // Fair queuing
+        public long startTag;
+        public long sequence;
+    }
+
+    // Operations queued for an application in a priority class
+    private static class ApplicationQueue {
+        public final long applicationId;
+        public final ArrayDeque<QueueEntry> entries = new ArrayDeque<QueueEntry>();
+        public long lastFinishTag;
+
+        ApplicationQueue(long applicationId) {
+            this.applicationId = applicationId;
+        }
+    }
+
+    // Scheduling state for a priority class
+    private static class ClassQueue {
+        public final Operation.Priority priority;
+        public final long stride;
+        public long pass;
+        public long virtualTime;
+        public int length;
+        public final HashMap<Long,ApplicationQueue> applications = new HashMap<Long,ApplicationQueue>();
+        // Applications with queued operations, ordered by the start tag of their first operation
+        public final TreeSet<ApplicationQueue> ordered = new TreeSet<ApplicationQueue>((a, b) -> {
+            QueueEntry ea = a.entries.peekFirst(), eb = b.entries.peekFirst();
+            if(ea.startTag != eb.startTag) { return (ea.startTag < eb.startTag) ? -1 : 1; }
+            return Long.compare(ea.sequence, eb.sequence);
+        });
+
+        ClassQueue(Operation.Priority priority) {
+            this.priority = priority;
+            this.stride = STRIDE_SCALE / priority.weight;
+        }
+    }
+
+    private static final long STRIDE_SCALE = 1 << 20;
+
+    private static class RunningCount {
+        public int count;
     }
 
     // -----------------------------------------------------------------------------------------
@@ -254,11 +454,13 @@ public class OpDispatcher {
         FAILED() {
                     public void handleStateWithoutSynchronization(OpDispatcher dispatcher, Worker worker) {
                         dispatcher.disconnectAndMarkWorkerFailedWithoutSynchronization(worker);
+                        workerRecycles.labels("failed").inc();
                     }
                 },
         DISCONNECTING() {
                     public void handleStateWithoutSynchronization(OpDispatcher dispatcher, Worker worker) {
                         dispatcher.disconnectWorkerWithoutSynchronization(worker);
+                        workerRecycles.labels("memory").inc();
                     }
                 };
 
@@ -272,7 +474,9 @@ public class OpDispatcher {
         private int workerNumber;
         private boolean connected;
         private boolean failed;
-        private QueueEntry currentWork;
+        private boolean stopping;
+        private int capacity;
+        private ArrayList<QueueEntry> currentWork;
         private Waker waker;
 
         protected Worker(OpDispatcher dispatcher, int workerNumber) {
@@ -280,6 +484,27 @@ public class OpDispatcher {
             this.workerNumber = workerNumber;
             this.connected = false;
             this.failed = false;
+            this.capacity = 1;
+            this.currentWork = new ArrayList<QueueEntry>(1);
+        }
+
+        // Must be called in a synchronized(dispatcher) block.
+        private QueueEntry findCurrentWork(Operation operation) {
+            for(QueueEntry entry : this.currentWork) {
+                if(entry.operation == operation) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        // Must be called in a synchronized(dispatcher) block.
+        private QueueEntry removeCurrentWork(Operation operation) {
+            QueueEntry entry = findCurrentWork(operation);
+            if(entry != null) {
+                this.currentWork.remove(entry);
+            }
+            return entry;
         }
 
         protected void wake() {
@@ -299,6 +524,20 @@ public class OpDispatcher {
             this.waker = waker;
         }
 
+        // Number of operations the worker process can run at the same time
+        public void setCapacity(int capacity) {
+            if(capacity < 1) {
+                throw new RuntimeException("Bad worker capacity");
+            }
+            synchronized(this.dispatcher) {
+                this.capacity = capacity;
+            }
+        }
+
+        public int getCapacity() {
+            return this.capacity;
+        }
+
         public Operation getNextWork() {
             return this.dispatcher.getNextWorkForWorker(this);
         }
@@ -319,6 +558,11 @@ public class OpDispatcher {
         public void finishedWork(Operation operation, Operation result, Exception exception, WorkerState workerState) {
             this.dispatcher.workerFinishedWork(this, operation, result, exception, workerState);
         }
+
+        // Called when the worker process reports progress on an operation before it's finished
+        public void progressReported(Operation operation, int progress) {
+            this.dispatcher.workerProgressReported(this, operation, progress);
+        }
     }
 
     // -----------------------------------------------------------------------------------------
@@ -328,29 +572,161 @@ public class OpDispatcher {
 
     // Must be called in a synchronized(this) block.
     private void addQueueEntryWithoutSynchronization(QueueEntry entry, QueueAdditionAction action) {
+        ClassQueue classQueue = this.queues[entry.priority.ordinal()];
+        if(classQueue.length == 0) {
+            // Idle classes don't build up credit while they have nothing to do
+            classQueue.pass = Math.max(classQueue.pass, this.globalPass);
+        }
+        ApplicationQueue appQueue = classQueue.applications.get(entry.applicationId);
+        if(appQueue == null) {
+            appQueue = new ApplicationQueue(entry.applicationId);
+            classQueue.applications.put(entry.applicationId, appQueue);
+        } else if(!appQueue.entries.isEmpty()) {
+            classQueue.ordered.remove(appQueue);    // first entry may change
+        }
         if(action == QueueAdditionAction.QUEUE_NORMAL) {
-            // TODO: Priority ordering of operations based on predicted speed of running
-            this.queue.add(entry);
+            entry.startTag = Math.max(classQueue.virtualTime, appQueue.lastFinishTag);
+            entry.sequence = this.queueSequence++;
+            appQueue.lastFinishTag = entry.startTag + 1;
+            appQueue.entries.addLast(entry);
         } else {
-            this.queue.add(0, entry);
+            // Returned entries keep their original tags, so go back to the front of the queue
+            appQueue.entries.addFirst(entry);
         }
+        classQueue.ordered.add(appQueue);
+        classQueue.length++;
+        this.queueLength++;
 
         // This op may not be runnable yet because of the limit on number of ops per application outstanding,
         // but just wake the lowest numbered connected worker which isn't doing anything.
         for(int l = 0; l < this.workers.length; ++l) {
             Worker worker = this.workers[l];
-            if(worker.connected && worker.currentWork == null) {
+            if(worker.connected && worker.currentWork.size() < worker.capacity) {
                 worker.wake();
                 break;
             }
         }
     }
 
+    // Must be called in a synchronized(this) block.
+    // Returns the number of a worker which should be started, or -1 if there are enough already.
+    private int chooseWorkerToStartWithoutSynchronization() {
+        if(this.workerSupervisor == null || this.workersStarted >= this.workers.length ||
+                this.queueLength <= (this.workersStarted * this.policy.queueLengthPerWorker)) {
+            return -1;
+        }
+        long timeNow = System.currentTimeMillis();
+        if((timeNow - this.lastScalingTime) < this.policy.minimumTimeBetweenScaling || !hostHasCapacityForAnotherWorker()) {
+            return -1;
+        }
+        for(int l = 0; l < this.workers.length; ++l) {
+            if(!this.workerStarted[l] && !this.workers[l].connected) {
+                this.workerStarted[l] = true;
+                this.workerLastBusyTime[l] = timeNow;
+                this.workersStarted++;
+                this.lastScalingTime = timeNow;
+                workersStartedGauge.set(this.workersStarted);
+                return l;
+            }
+        }
+        return -1;
+    }
+
+    // Must be called in a synchronized(this) block.
+    private boolean shouldStopIdleWorkerWithoutSynchronization(Worker worker) {
+        if(this.workerSupervisor == null || worker.stopping || !worker.currentWork.isEmpty() ||
+                this.workersStarted <= this.policy.minimumWorkers || this.queueLength > 0) {
+            return false;
+        }
+        long timeNow = System.currentTimeMillis();
+        if((timeNow - this.workerLastBusyTime[worker.workerNumber]) < this.policy.idleTimeBeforeStop ||
+                (timeNow - this.lastScalingTime) < this.policy.minimumTimeBetweenScaling) {
+            return false;
+        }
+        // Stop the highest numbered worker first, so the workers in use stay at the bottom of the range
+        for(int l = this.workers.length - 1; l > worker.workerNumber; --l) {
+            if(this.workerStarted[l]) {
+                return false;
+            }
+        }
+        worker.stopping = true;
+        this.workerStarted[worker.workerNumber] = false;
+        this.workersStarted--;
+        this.lastScalingTime = timeNow;
+        workersStartedGauge.set(this.workersStarted);
+        return true;
+    }
+
+    private boolean hostHasCapacityForAnotherWorker() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        double loadAverage = bean.getSystemLoadAverage();
+        if(loadAverage >= 0 && (loadAverage / bean.getAvailableProcessors()) > this.policy.maxLoadPerProcessor) {
+            return false;
+        }
+        long availableMemory = MemoryMeasurement.hostAvailableMemory();
+        return (availableMemory < 0) || (availableMemory >= this.policy.minimumAvailableMemory);
+    }
+
+    // Must be called in a synchronized(this) block.
+    private QueueEntry takeNextRunnableEntryWithoutSynchronization() {
+        // Choose the class with the lowest pass which has an operation that can run
+        ClassQueue chosenClass = null;
+        ApplicationQueue chosenApp = null;
+        for(ClassQueue classQueue : this.queues) {
+            if(classQueue.length == 0 || (chosenClass != null && classQueue.pass >= chosenClass.pass)) {
+                continue;
+            }
+            // Find the application with the earliest start tag which isn't at the limit of running
+            // operations. At most, the number of workers are skipped.
+            for(ApplicationQueue appQueue : classQueue.ordered) {
+                RunningCount running = this.runningPerApplication.get(appQueue.applicationId);
+                if(running == null || running.count < this.policy.maxOpsPerApplication) {
+                    chosenClass = classQueue;
+                    chosenApp = appQueue;
+                    break;
+                }
+            }
+        }
+        if(chosenApp == null) {
+            return null;
+        }
+        chosenClass.ordered.remove(chosenApp);
+        QueueEntry entry = chosenApp.entries.removeFirst();
+        if(chosenApp.entries.isEmpty()) {
+            // Nothing is lost by forgetting the app, as the tag of its next entry will be the virtual time
+            chosenClass.applications.remove(chosenApp.applicationId);
+        } else {
+            chosenClass.ordered.add(chosenApp);
+        }
+        chosenClass.virtualTime = Math.max(chosenClass.virtualTime, entry.startTag);
+        chosenClass.length--;
+        this.queueLength--;
+        this.globalPass = chosenClass.pass;
+        chosenClass.pass += chosenClass.stride;
+        return entry;
+    }
+
+    private RunningCount runningCountWithoutSynchronization(long applicationId) {
+        RunningCount running = this.runningPerApplication.get(applicationId);
+        if(running == null) {
+            running = new RunningCount();
+            this.runningPerApplication.put(applicationId, running);
+        }
+        return running;
+    }
+
+    private void finishedRunningWithoutSynchronization(QueueEntry entry) {
+        RunningCount running = this.runningPerApplication.get(entry.applicationId);
+        if(running != null && --running.count <= 0) {
+            this.runningPerApplication.remove(entry.applicationId);
+        }
+    }
+
     private void disconnectWorkerWithoutSynchronization(Worker worker) {
         if(!worker.connected) {
             throw new RuntimeException("Worker isn't connected.");
         }
-        if(worker.currentWork != null) {
+        if(!worker.currentWork.isEmpty()) {
             throw new RuntimeException("Worker has outstanding work when disconnecting.");
         }
         // Instead of just doing worker.connected = false, replace the Worker object in the list
@@ -382,7 +758,7 @@ public class OpDispatcher {
             throw new RuntimeException("Logic error: Worker isn't part of this dispatcher");
         }
         if(operation != null) {
-            if(worker.currentWork == null || worker.currentWork.operation != operation) {
+            if(worker.findCurrentWork(operation) == null) {
                 throw new RuntimeException("Logic error: Worker isn't running the expected operation");
             }
         }
@@ -0,0 +1,16 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.op;
+
+/**
+ * Notify target which is also told about progress reported by an operation
+ * while it's being performed. The meaning of the progress value is defined by
+ * the operation.
+ */
+public interface OpProgressTarget extends OpNotifyTarget {
+    public void notifyOperationProgress(Operation operation, int progress);
+}
@@ -8,4 +8,12 @@ package org.haplo.op;
 
 public interface OpQueuer {
     public void queueOperation(Operation operation, OpNotifyTarget notifyTarget);
+
+    /**
+     * Remove an operation from the queue if it hasn't been dispatched to a
+     * worker yet. Returns true if it was removed.
+     */
+    default public boolean cancelOperation(Operation operation) {
+        return false;
+    }
 }
@@ -0,0 +1,402 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.op;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Content addressed cache of the results of CacheableOperations, in front of
+ * the OpDispatcher.
+ *
+ * Results are keyed by the operation class, its parameters, and the digest of
+ * its input file, so identical files uploaded to different applications only
+ * need converting once. Entries are stored on disk, and the least recently used
+ * are removed when the cache exceeds its maximum size.
+ *
+ * If an operation is queued while an identical operation is in progress, it
+ * waits for that operation's result rather than being performed again.
+ */
+public class OpResultCache {
+    private static final String ENTRY_SUFFIX = ".result";
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // Stored files are named after the SHA-256 digest of their contents
+    private static final Pattern STORED_FILE_NAME = Pattern.compile("\\A([0-9a-f]{64})-(\\d+)\\z");
+
+    static final Counter requests = Counter.build()
+        .name("haplo_op_result_cache_requests_total")
+        .help("Cacheable operations queued, by whether the result was cached, in progress, or had to be performed")
+        .labelNames("result")
+        .create();
+
+    public static void collectMetrics() {
+        requests.register();
+    }
+
+    private File directory;
+    private long maxSize;
+    private long size;
+    private LinkedHashMap<String,Long> entries;     // key -> size, in least recently used order
+    private HashMap<String,InProgress> inProgress;
+    private Logger logger;
+
+    /**
+     * Returns a cache configured by system properties, or null if the cache isn't enabled.
+     */
+    public static OpResultCache fromConfiguration() {
+        String directory = System.getProperty("org.haplo.op.resultcache.dir");
+        if(directory == null || directory.length() == 0) {
+            return null;
+        }
+        long maxSize = Long.getLong("org.haplo.op.resultcache.maxmb", 1024) * 1024 * 1024;
+        try {
+            return new OpResultCache(new File(directory), maxSize);
+        } catch(Exception e) {
+            Logger.getLogger("org.haplo.op.resultcache").error("Failed to open operation result cache, not using it", e);
+            return null;
+        }
+    }
+
+    public OpResultCache(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String,Long>(256, 0.75f, true /* access order */);
+        this.inProgress = new HashMap<String,InProgress>();
+        this.logger = Logger.getLogger("org.haplo.op.resultcache");
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create operation result cache directory " + directory);
+        }
+        // Load existing entries, using the modification time as the last use
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for(File file : files) {
+            String name = file.getName();
+            this.entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), file.length());
+            this.size += file.length();
+        }
+        this.logger.info("Operation result cache in " + directory + " has " + this.entries.size() + " entries, " + this.size + " bytes");
+        synchronized(this) {
+            evictWithoutSynchronization();
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    public void queueOperation(OpDispatcher dispatcher, Operation operation, long applicationId, OpNotifyTarget notifyTarget) {
+        String key = null;
+        if(operation instanceof CacheableOperation) {
+            try {
+                key = keyFor(operation);
+            } catch(Exception e) {
+                this.logger.error("Couldn't make cache key for operation " + operation + ", will perform without cache", e);
+            }
+        }
+        if(key == null) {
+            dispatcher.queueOperation(operation, applicationId, notifyTarget);
+            return;
+        }
+
+        boolean isCached;
+        synchronized(this) {
+            isCached = (this.entries.get(key) != null);  // get() to mark as recently used
+            if(!isCached) {
+                InProgress existing = this.inProgress.get(key);
+                if(existing != null) {
+                    // Wait for the identical operation to complete
+                    existing.waiting.add(new Waiting(operation, notifyTarget));
+                    requests.labels("in_progress").inc();
+                    return;
+                }
+                this.inProgress.put(key, new InProgress(operation));
+            }
+        }
+
+        if(isCached) {
+            if(restoreResult(key, operation)) {
+                requests.labels("hit").inc();
+                this.logger.info("Using cached result for " + operation);
+                notifyTarget.notifyOperationComplete(operation);
+                return;
+            }
+            // Entry couldn't be read, so perform the operation as normal
+            synchronized(this) {
+                removeEntryWithoutSynchronization(key);
+                if(this.inProgress.containsKey(key)) {
+                    this.inProgress.get(key).waiting.add(new Waiting(operation, notifyTarget));
+                    return;
+                }
+                this.inProgress.put(key, new InProgress(operation));
+            }
+        }
+
+        requests.labels("miss").inc();
+        final String performKey = key;
+        try {
+            dispatcher.queueOperation(operation, applicationId, new OpProgressTarget() {
+                public void notifyOperationComplete(Operation performed) {
+                    storeResult(performKey, performed);
+                    finishedInProgress(performKey, performed, null);
+                    notifyTarget.notifyOperationComplete(performed);
+                }
+                public void notifyOperationException(Operation performed, Exception exception) {
+                    finishedInProgress(performKey, performed, exception);
+                    notifyTarget.notifyOperationException(performed, exception);
+                }
+                // Only the target of the performed operation is told about progress, not those waiting for it
+                public void notifyOperationProgress(Operation performed, int progress) {
+                    if(notifyTarget instanceof OpProgressTarget) {
+                        ((OpProgressTarget)notifyTarget).notifyOperationProgress(performed, progress);
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            // Couldn't be queued, so the operations waiting for it will have to try again
+            finishedInProgress(performKey, null, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Cancel an operation queued with queueOperation(). An operation waiting for an identical
+     * operation stops waiting, and the queued operation is only removed from the dispatcher's
+     * queue when nothing else is waiting for it.
+     */
+    public boolean cancelOperation(OpDispatcher dispatcher, Operation operation) {
+        synchronized(this) {
+            for(InProgress p : this.inProgress.values()) {
+                if(p.operation == operation) {
+                    if(!p.waiting.isEmpty()) {
+                        return false;
+                    }
+                    break;
+                }
+                for(int i = 0; i < p.waiting.size(); ++i) {
+                    if(p.waiting.get(i).operation == operation) {
+                        p.waiting.remove(i);
+                        return true;
+                    }
+                }
+            }
+        }
+        return dispatcher.cancelQueuedOperation(operation);
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static class Waiting {
+        public Operation operation;
+        public OpNotifyTarget notifyTarget;
+
+        Waiting(Operation operation, OpNotifyTarget notifyTarget) {
+            this.operation = operation;
+            this.notifyTarget = notifyTarget;
+        }
+    }
+
+    private static class InProgress {
+        public Operation operation;     // the operation queued with the dispatcher
+        public ArrayList<Waiting> waiting = new ArrayList<Waiting>(2);
+
+        InProgress(Operation operation) {
+            this.operation = operation;
+        }
+    }
+
+    private void finishedInProgress(String key, Operation performed, Exception exception) {
+        InProgress finished;
+        synchronized(this) {
+            finished = this.inProgress.remove(key);
+        }
+        if(finished == null) {
+            return;
+        }
+        for(Waiting w : finished.waiting) {
+            Exception waitingException = exception;
+            if(waitingException == null) {
+                try {
+                    copyResult(performed, w.operation);
+                } catch(Exception e) {
+                    waitingException = e;
+                }
+            }
+            if(waitingException == null) {
+                w.notifyTarget.notifyOperationComplete(w.operation);
+            } else {
+                w.notifyTarget.notifyOperationException(w.operation, waitingException);
+            }
+        }
+    }
+
+    private void copyResult(Operation from, Operation to) throws IOException {
+        to.copyResultsFromReturnedOperation(from);
+        String[] fromPathnames = ((CacheableOperation)from).getResultCacheOutputPathnames();
+        String[] toPathnames = ((CacheableOperation)to).getResultCacheOutputPathnames();
+        for(int i = 0; i < fromPathnames.length; ++i) {
+            File file = new File(fromPathnames[i]);
+            if(file.exists()) {
+                Files.copy(file.toPath(), new File(toPathnames[i]).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    // Entry file: encoded operation, number of output files, then for each, length (-1 if not written) and contents
+    private void storeResult(String key, Operation performed) {
+        File entryFile = entryFile(key);
+        File tempFile = new File(this.directory, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                OpCodec.writeOperation(out, performed);
+                String[] outputPathnames = ((CacheableOperation)performed).getResultCacheOutputPathnames();
+                out.writeInt(outputPathnames.length);
+                for(String pathname : outputPathnames) {
+                    File output = new File(pathname);
+                    if(output.exists()) {
+                        out.writeLong(output.length());
+                        Files.copy(output.toPath(), out);
+                    } else {
+                        out.writeLong(-1);
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized(this) {
+                Long previous = this.entries.put(key, entryFile.length());
+                this.size += entryFile.length() - ((previous == null) ? 0 : previous);
+                evictWithoutSynchronization();
+            }
+        } catch(Exception e) {
+            this.logger.error("Failed to store result of operation " + performed + " in cache", e);
+            tempFile.delete();
+        }
+    }
+
+    private boolean restoreResult(String key, Operation operation) {
+        File entryFile = entryFile(key);
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)))) {
+            Operation cached = OpCodec.readOperation(in);
+            operation.copyResultsFromReturnedOperation(cached);
+            String[] outputPathnames = ((CacheableOperation)operation).getResultCacheOutputPathnames();
+            if(in.readInt() != outputPathnames.length) {
+                throw new IOException("Cached entry has wrong number of output files");
+            }
+            for(String pathname : outputPathnames) {
+                long length = in.readLong();
+                if(length >= 0) {
+                    try(FileOutputStream out = new FileOutputStream(pathname)) {
+                        copyBytes(in, out, length);
+                    }
+                }
+            }
+            entryFile.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch(Exception e) {
+            this.logger.error("Failed to read cached result for operation " + operation, e);
+            return false;
+        }
+    }
+
+    private static void copyBytes(InputStream in, FileOutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while(length > 0) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+            if(read < 0) {
+                throw new IOException("Cached entry truncated");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(this.directory, key + ENTRY_SUFFIX);
+    }
+
+    private void removeEntryWithoutSynchronization(String key) {
+        Long entrySize = this.entries.remove(key);
+        if(entrySize != null) {
+            this.size -= entrySize;
+            entryFile(key).delete();
+        }
+    }
+
+    private void evictWithoutSynchronization() {
+        Iterator<Map.Entry<String,Long>> iterator = this.entries.entrySet().iterator();
+        while(this.size > this.maxSize && iterator.hasNext()) {
+            Map.Entry<String,Long> eldest = iterator.next();
+            iterator.remove();
+            this.size -= eldest.getValue();
+            entryFile(eldest.getKey()).delete();
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static String keyFor(Operation operation) throws IOException, NoSuchAlgorithmException {
+        CacheableOperation cacheable = (CacheableOperation)operation;
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(operation.getClass().getName().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        String parameters = cacheable.getResultCacheParameters();
+        digest.update(((parameters == null) ? "" : parameters).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(inputDigest(new File(cacheable.getResultCacheInputPathname())).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    private static String inputDigest(File input) throws IOException, NoSuchAlgorithmException {
+        // Files in the store are named after their digest, so avoid reading them
+        Matcher m = STORED_FILE_NAME.matcher(input.getName());
+        if(m.matches() && Long.parseLong(m.group(2)) == input.length()) {
+            return m.group(1) + "-" + m.group(2);
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try(InputStream in = new FileInputStream(input)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest()) + "-" + input.length();
+    }
+
+    private static String toHex(byte[] bytes) {
+        byte[] hex = new byte[bytes.length * 2];
+        for(int i = 0; i < bytes.length; ++i) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[(i * 2) + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
+}
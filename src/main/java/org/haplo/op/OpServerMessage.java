@@ -6,12 +6,15 @@
 
 package org.haplo.op;
 
-import java.io.Serializable;
+// Messages are encoded by OpCodec and sent over an ObjectPipe
+public class OpServerMessage {
+    // Identifies the operation the message refers to, so several can be in flight on one connection
+    public int operationId;
 
-public class OpServerMessage implements Serializable {
     static public class Authenticate extends OpServerMessage {
         public int workerNumber;
         public String authenticationToken;
+        public int concurrency;     // number of operations the worker process will run at the same time
     }
 
     static public class AuthenticateAccepted extends OpServerMessage {
@@ -26,6 +29,10 @@ public class OpServerMessage implements Serializable {
         public boolean ok;
     }
 
+    static public class OperationProgress extends OpServerMessage {
+        public int progress;
+    }
+
     static public class DoneOperation extends OpServerMessage {
         public Operation resultOperation;
         public Exception resultException;
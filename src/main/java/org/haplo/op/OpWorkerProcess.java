@@ -10,6 +10,9 @@ import java.nio.channels.SocketChannel;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
@@ -17,18 +20,27 @@ import com.sun.management.UnixOperatingSystemMXBean;
 
 import org.apache.log4j.Logger;
 
+import org.haplo.utils.MemoryMeasurement;
 import org.haplo.utils.ProcessStartupFlag;
 
 public class OpWorkerProcess extends Thread {
     static final private int CONNECTION_ATTEMPTS = 20;   // will retry this number of times with 1 second pauses between
-    static final private int RESTART_IF_MEMORY_USAGE_INCREASES_BY = 32; // in percent
-    // TODO: Reduce RESTART_IF_MEMORY_USAGE_OVER, and implement another limit that, if exceeded, the op worker restarts after 5 minutes of being idle.
+    // Restart when the heap still in use after garbage collection is over this percentage of the max heap,
+    // as it's probably leaking, or when the process has grown too big because of native allocations.
+    static final private int RESTART_IF_HEAP_AFTER_GC_OVER = Integer.getInteger("org.haplo.op.worker.maxheapaftergc", 70);
+    static final private long RESTART_IF_RSS_OVER = Long.getLong("org.haplo.op.worker.maxrssmb", 0) * 1024 * 1024; // 0 for twice max heap
+
+    // Number of operations a worker process will run at the same time
+    static final private int CONCURRENCY = Math.max(1, Integer.getInteger("org.haplo.op.worker.concurrency", 1));
 
     static public boolean restartOnHighMemoryUsage = true;
 
     private int workerNumber;
     private String authenticationToken;
     private Logger logger;
+    private long restartWhenRSSOver;
+    private volatile boolean willExit;
+    private AtomicInteger running = new AtomicInteger();
 
     public OpWorkerProcess(int workerNumber, String authenticationToken) {
         this.workerNumber = workerNumber;
@@ -66,7 +78,7 @@ public class OpWorkerProcess extends Thread {
         // Just exit the process and let it be restarted by external supervisor
     }
 
-    public void run2() throws IOException, ClassNotFoundException {
+    public void run2() throws IOException {
         SocketChannel socketChannel = null;
         int connectionAttempts = CONNECTION_ATTEMPTS;
         while(socketChannel == null) {
@@ -92,70 +104,113 @@ public class OpWorkerProcess extends Thread {
         OpServerMessage.Authenticate auth = new OpServerMessage.Authenticate();
         auth.workerNumber = this.workerNumber;
         auth.authenticationToken = this.authenticationToken;
-        pipe.sendObject(auth);
+        auth.concurrency = CONCURRENCY;
+        pipe.sendMessage(auth);
 
         // Only continue if the server liked the response
-        OpServerMessage.AuthenticateAccepted authAccepted = (OpServerMessage.AuthenticateAccepted)pipe.receiveObject(1000);
+        OpServerMessage.AuthenticateAccepted authAccepted = (OpServerMessage.AuthenticateAccepted)pipe.receiveMessage(1000);
         if(authAccepted == null || !authAccepted.accepted) {
             this.logger.error("Authentication wasn't accepted.");
             pipe.close();
             return;
         }
-        this.logger.info("Authenticated with server, waiting for operations.");
-        int initialMemoryUsage = approxMemoryUsagePercent();
-        int restartWhenMemoryUsageOver = initialMemoryUsage + RESTART_IF_MEMORY_USAGE_INCREASES_BY;
-        this.logger.info("Approx initial memory usage: " + initialMemoryUsage + "%, will restart when memory usage over " + restartWhenMemoryUsageOver + "%");
+        this.logger.info("Authenticated with server, waiting for operations, concurrency " + CONCURRENCY);
+        this.restartWhenRSSOver = (RESTART_IF_RSS_OVER > 0) ? RESTART_IF_RSS_OVER : (Runtime.getRuntime().maxMemory() * 2);
+        this.logger.info("Initial RSS: " + (MemoryMeasurement.residentSetSize() / (1024*1024)) + "MB, will restart when heap after GC over " +
+                RESTART_IF_HEAP_AFTER_GC_OVER + "% or RSS over " + (this.restartWhenRSSOver / (1024*1024)) + "MB");
         logNumberOfOpenFiles();
 
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY, (runnable) -> {
+            Thread thread = new Thread(() -> {
+                Operation.markThreadAsWorker();
+                runnable.run();
+            });
+            thread.setName("OpWorker-" + this.workerNumber + "-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+
         while(true) {
-            OpServerMessage.DoOperation doOperation = (OpServerMessage.DoOperation)pipe.receiveObject(1000 * 60 * 5);
+            // Interrupted by the in-process supervisor to stop this worker
+            if(isInterrupted()) {
+                pipe.close();
+                executor.shutdown();
+                return;
+            }
+
+            // Once the server has been told this process will exit, wait for the operations in progress to finish
+            if(this.willExit && this.running.get() == 0) {
+                // Wait a small amount of time then exit
+                try {
+                    Thread.sleep(250);
+                } catch(InterruptedException interrupted) {
+                }
+                executor.shutdown();
+                return;
+            }
+
+            OpServerMessage.DoOperation doOperation = (OpServerMessage.DoOperation)pipe.receiveMessage(this.willExit ? 250 : 1000 * 60 * 5);
             if(doOperation != null) {
                 // Immediately send an "ack" message back to the server so it knows the operation has been recieved,
                 // processing is started, and doesn't need to return it to the queue.
                 OpServerMessage.AcknowledgeOperation acknowledgeOperation = new OpServerMessage.AcknowledgeOperation();
+                acknowledgeOperation.operationId = doOperation.operationId;
                 acknowledgeOperation.ok = true;
-                pipe.sendObject(acknowledgeOperation);
+                pipe.sendMessage(acknowledgeOperation);
 
-                OpServerMessage.DoneOperation doneOperation = new OpServerMessage.DoneOperation();
-                doneOperation.willExit = false;
-                try {
-                    this.logger.info("Start operation: " + doOperation.operation);
-
-                    doOperation.operation.performOperation();
-                    doneOperation.resultOperation = doOperation.operation;
-                } catch(Exception e) {
-                    this.logger.error("Exception performing operation: " + doOperation.operation, e);
-                    doneOperation.resultException = e;
-                }
+                this.running.incrementAndGet();
+                executor.execute(() -> performOperation(pipe, doOperation));
+            }
+        }
+    }
 
-                logNumberOfOpenFiles();
+    private void performOperation(ObjectPipe pipe, OpServerMessage.DoOperation doOperation) {
+        OpServerMessage.DoneOperation doneOperation = new OpServerMessage.DoneOperation();
+        doneOperation.operationId = doOperation.operationId;
+        try {
+            this.logger.info("Start operation: " + doOperation.operation);
 
-                // Check memory usage
-                int memoryPercent = approxMemoryUsagePercent();
-                this.logger.info("Approx memory usage after operation: " + memoryPercent + "%");
-                if((memoryPercent > restartWhenMemoryUsageOver) && restartOnHighMemoryUsage) {
-                    this.logger.info("Will exit after sending reply.");
-                    doneOperation.willExit = true;
+            doOperation.operation.setProgressReporter((progress) -> {
+                OpServerMessage.OperationProgress operationProgress = new OpServerMessage.OperationProgress();
+                operationProgress.operationId = doOperation.operationId;
+                operationProgress.progress = progress;
+                try {
+                    pipe.sendMessage(operationProgress);
+                } catch(Exception e) {
+                    this.logger.error("Exception sending progress for operation: " + doOperation.operation, e);
                 }
+            });
+            doOperation.operation.performOperation();
+            doneOperation.resultOperation = doOperation.operation;
+        } catch(Exception e) {
+            this.logger.error("Exception performing operation: " + doOperation.operation, e);
+            doneOperation.resultException = e;
+        } finally {
+            // Progress can't be sent after the reply
+            doOperation.operation.setProgressReporter(null);
+        }
 
-                this.logger.info("Sending reply.");
-                pipe.sendObject(doneOperation);
+        logNumberOfOpenFiles();
 
-                if(doneOperation.willExit) {
-                    // Wait a small amount of time then exit
-                    try {
-                        Thread.sleep(250);
-                    } catch(InterruptedException interrupted) {
-                    }
-                    return;
-                }
-            }
+        // Check memory usage
+        int heapPercent = MemoryMeasurement.heapUsedAfterGCPercent();
+        long rss = MemoryMeasurement.residentSetSize();
+        this.logger.info("Memory usage after operation: heap after GC " + heapPercent + "%, RSS " + (rss / (1024*1024)) + "MB");
+        if(((heapPercent > RESTART_IF_HEAP_AFTER_GC_OVER) || (rss > this.restartWhenRSSOver)) && restartOnHighMemoryUsage && !this.willExit) {
+            this.logger.info("Will exit after sending reply, and finishing any other operations in progress.");
+            this.willExit = true;
         }
-    }
+        doneOperation.willExit = this.willExit;
 
-    protected int approxMemoryUsagePercent() {
-        Runtime runtime = Runtime.getRuntime();
-        return (int)((runtime.totalMemory() * 100) / runtime.maxMemory());
+        this.logger.info("Sending reply.");
+        try {
+            pipe.sendMessage(doneOperation);
+        } catch(Exception e) {
+            // The server will notice the connection has failed, and restart this process
+            this.logger.error("Exception sending reply for operation: " + doOperation.operation, e);
+        }
+        this.running.decrementAndGet();
+        pipe.wakeup();  // so main thread notices when it's time to exit
     }
 
     protected void logNumberOfOpenFiles() {
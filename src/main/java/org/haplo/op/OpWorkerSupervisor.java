@@ -10,4 +10,9 @@ public interface OpWorkerSupervisor {
     public void startSupervision(OpDispatcher.Policy policy);
 
     public void workerFailed(int workerNumber);
+
+    // Change the number of workers running, when the dispatcher scales between the policy's minimum and maximum
+    public void startWorker(int workerNumber);
+
+    public void stopWorker(int workerNumber);
 }
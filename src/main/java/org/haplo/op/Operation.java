@@ -9,6 +9,7 @@ package org.haplo.op;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.function.IntConsumer;
 
 import org.apache.log4j.Logger;
 
@@ -22,9 +23,50 @@ public class Operation implements Serializable {
     private static OpQueuer defaultQueuer;
     private static ThreadLocal<Object> inWorkerThread = new ThreadLocal<Object>();
 
+    // Longest time perform() will wait for the result, in ms, or 0 to wait forever. Set in
+    // seconds by org.haplo.op.performtimeout, defaulting to 30 minutes.
+    private static volatile long performTimeout = Long.getLong("org.haplo.op.performtimeout", 30 * 60) * 1000;
+
+    /**
+     * Priority classes for scheduling operations. Each class gets a share of the
+     * workers in proportion to its weight, so interactive operations aren't
+     * stuck behind a large number of batch operations.
+     */
+    public enum Priority {
+        INTERACTIVE(16), NORMAL(4), BATCH(1);
+
+        public final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private Priority priority;
+    private transient IntConsumer progressReporter;
+
     public Operation() {
     }
 
+    /**
+     * Priority class for scheduling this operation.
+     */
+    public Priority getPriority() {
+        return (this.priority != null) ? this.priority : getDefaultPriority();
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Override in operations which aren't normally run while a user is waiting for them,
+     * or which always are.
+     */
+    protected Priority getDefaultPriority() {
+        return Priority.NORMAL;
+    }
+
     public static void markThreadAsWorker() {
         Operation.inWorkerThread.set(new Object());
     }
@@ -42,28 +84,52 @@ public class Operation implements Serializable {
     }
 
     /**
-     * Call to run the operation.
+     * Queue the operation, returning a future which is completed with this
+     * operation when the results are available. If timeout is greater than 0,
+     * the future is completed with an OperationTimeoutException after that
+     * number of ms. If progressListener isn't null, it's called with progress
+     * reported by the operation while it's being performed.
      */
-    public void perform(OpQueuer queuer) throws Exception {
+    public OperationFuture submit(OpQueuer queuer, long timeout, IntConsumer progressListener) {
         if(queuer == null) {
             throw new RuntimeException("No queuer given");
         }
-
-        WaitingNotifyTarget target = new WaitingNotifyTarget();
-        synchronized(target) {
-            // TODO: Timeouts for performing operations
-            try {
-                // Queue the operation inside the synchronized block so there's no chance of the
-                // operation completing before the wait begins and the wait() never returning.
-                queuer.queueOperation(this, target);
-                target.wait();
-            } catch(InterruptedException e) {
-                // TODO: Strategy for interruptions
-            }
+        OperationFuture future = new OperationFuture(this, queuer, progressListener);
+        queuer.queueOperation(this, future.notifyTarget());
+        // Results may be available immediately, eg from the OpResultCache
+        if(timeout > 0 && !future.isDone()) {
+            future.setDeadline(timeout);
         }
-        if(target.exception != null) {
-            throw target.exception;
+        return future;
+    }
+
+    public OperationFuture submit(OpQueuer queuer, long timeout) {
+        return submit(queuer, timeout, null);
+    }
+
+    public OperationFuture submit(long timeout, IntConsumer progressListener) {
+        if(Operation.defaultQueuer == null) {
+            throw new RuntimeException("No default queuer set for operations");
         }
+        return submit(Operation.defaultQueuer, timeout, progressListener);
+    }
+
+    public OperationFuture submit(long timeout) {
+        return submit(timeout, null);
+    }
+
+    public OperationFuture submit() {
+        return submit(0);
+    }
+
+    /**
+     * Call to run the operation, blocking this thread until it completes or the
+     * perform timeout is reached. Request handlers should use submit() and suspend
+     * the request instead, and other callers should prefer submit() with a deadline
+     * suitable for the operation.
+     */
+    public void perform(OpQueuer queuer) throws Exception {
+        submit(queuer, performTimeout).waitForResult();
     }
 
     public void perform() throws Exception {
@@ -73,6 +139,15 @@ public class Operation implements Serializable {
         perform(Operation.defaultQueuer);
     }
 
+    public static long getPerformTimeout() {
+        return performTimeout;
+    }
+
+    // For tests
+    public static void setPerformTimeout(long timeout) {
+        performTimeout = timeout;
+    }
+
     public void performInBackground(OpQueuer queuer, OpNotifyTarget target) throws Exception {
         if(queuer == null) {
             throw new RuntimeException("No queuer given");
@@ -98,6 +173,22 @@ public class Operation implements Serializable {
         performOperation();
     }
 
+    /**
+     * Operations call this while they're being performed to send partial results
+     * to an OpProgressTarget. Can be called from any thread, but only before
+     * performOperation() returns.
+     */
+    protected void reportProgress(int progress) {
+        IntConsumer reporter = this.progressReporter;
+        if(reporter != null) {
+            reporter.accept(progress);
+        }
+    }
+
+    void setProgressReporter(IntConsumer progressReporter) {
+        this.progressReporter = progressReporter;
+    }
+
     /**
      * Operations implement this to do their work.
      */
@@ -146,22 +237,4 @@ public class Operation implements Serializable {
             throw new RuntimeException("Logic error: Unexpected IllegalAccessException thrown", e);
         }
     }
-
-    // -------------------------------------------------------------------------------------------------------
-    private static class WaitingNotifyTarget implements OpNotifyTarget {
-        public Exception exception;
-
-        public void notifyOperationComplete(Operation operation) {
-            synchronized(this) {
-                notify();
-            }
-        }
-
-        public void notifyOperationException(Operation operation, Exception exception) {
-            this.exception = exception;
-            synchronized(this) {
-                notify();
-            }
-        }
-    }
 }
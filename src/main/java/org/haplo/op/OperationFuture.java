@@ -0,0 +1,115 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.op;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Completion of an operation submitted with Operation.submit().
+ *
+ * Cancelling the future, or reaching the deadline, removes the operation from
+ * the queue if it hasn't been sent to a worker yet. Otherwise the operation
+ * continues, but the result is ignored.
+ *
+ * Completion happens on the thread which received the result from the worker,
+ * so dependent actions must be quick, or use the *Async() variants.
+ */
+public class OperationFuture extends CompletableFuture<Operation> {
+    private static ScheduledThreadPoolExecutor deadlines;
+
+    private Operation operation;
+    private OpQueuer queuer;
+    private IntConsumer progressListener;
+
+    OperationFuture(Operation operation, OpQueuer queuer, IntConsumer progressListener) {
+        this.operation = operation;
+        this.queuer = queuer;
+        this.progressListener = progressListener;
+    }
+
+    public Operation getOperation() {
+        return this.operation;
+    }
+
+    /**
+     * Block this thread until the operation completes, throwing the exception from
+     * the operation if it failed, or an OperationTimeoutException if the deadline
+     * passed. If the thread is interrupted, the operation is cancelled.
+     */
+    public Operation waitForResult() throws Exception {
+        try {
+            return get();
+        } catch(InterruptedException e) {
+            cancel(false);
+            throw e;
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof Exception) ? (Exception)cause : e;
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if(cancelled) {
+            removeFromQueue();
+        }
+        return cancelled;
+    }
+
+    // ----------------------------------------------------------------------
+
+    OpNotifyTarget notifyTarget() {
+        return new OpProgressTarget() {
+            public void notifyOperationComplete(Operation operation) {
+                complete(operation);
+            }
+            public void notifyOperationException(Operation operation, Exception exception) {
+                completeExceptionally(exception);
+            }
+            public void notifyOperationProgress(Operation operation, int progress) {
+                if((progressListener != null) && !isDone()) {
+                    progressListener.accept(progress);
+                }
+            }
+        };
+    }
+
+    void setDeadline(long timeout) {   // ms
+        ScheduledFuture<?> scheduled = deadlineExecutor().schedule(() -> {
+            if(completeExceptionally(new OperationTimeoutException(this.operation, "Operation did not complete within " + timeout + "ms"))) {
+                removeFromQueue();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        // Don't keep the operation referenced by the scheduler once it's complete
+        whenComplete((op, exception) -> scheduled.cancel(false));
+    }
+
+    private void removeFromQueue() {
+        try {
+            this.queuer.cancelOperation(this.operation);
+        } catch(RuntimeException e) {
+            // Result will be ignored instead
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor deadlineExecutor() {
+        if(deadlines == null) {
+            deadlines = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+                Thread thread = new Thread(runnable, "op-deadlines");
+                thread.setDaemon(true);
+                return thread;
+            });
+            deadlines.setRemoveOnCancelPolicy(true);
+        }
+        return deadlines;
+    }
+}
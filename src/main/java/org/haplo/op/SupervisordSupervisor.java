@@ -27,10 +27,20 @@ public class SupervisordSupervisor implements OpWorkerSupervisor {
     }
 
     public void startSupervision(OpDispatcher.Policy policy) {
-        this.logger.info("Starting supervisord supervision of " + policy.numberOfWorkers + " workers.");
+        this.logger.info("Starting supervisord supervision of " + policy.minimumWorkers + " to " + policy.numberOfWorkers + " workers.");
 	startWorkers();
     }
 
+    public void startWorker(int workerNumber) {
+        this.logger.info("Starting worker instance " + workerNumber + ".");
+	supervisorctl("start w" + workerNumber);
+    }
+
+    public void stopWorker(int workerNumber) {
+        this.logger.info("Stopping worker instance " + workerNumber + ".");
+	supervisorctl("stop w" + workerNumber);
+    }
+
     public void workerFailed(int workerNumber) {
         this.logger.info("Worker instance " + workerNumber + " failed, initiating restart.");
 	restartWorker(workerNumber);
@@ -54,8 +64,12 @@ public class SupervisordSupervisor implements OpWorkerSupervisor {
     }
 
     private void restartWorker(int workerNumber) {
+	supervisorctl("restart w" + workerNumber);
+    }
+
+    private void supervisorctl(String command) {
 	try {
-	    Process p = Runtime.getRuntime().exec(SUPERVISORCTL + " -c " + SUPERVISORD_CONF + " restart w" + workerNumber);
+	    Process p = Runtime.getRuntime().exec(SUPERVISORCTL + " -c " + SUPERVISORD_CONF + " " + command);
 	} catch (IOException ioe) {}
     }
 
@@ -17,6 +17,10 @@ public class TestOperation extends Operation {
     public boolean callExit;
     public boolean infiniteLoop;
 
+    // Used by OpCodec, which sets the fields when decoding
+    private TestOperation() {
+    }
+
     public TestOperation(String string) {
         this.string = string;
         this.useMemory = 0;
@@ -6,7 +6,6 @@
 
 package org.haplo.template.driver.rhinojs;
 
-import org.haplo.template.html.Parser;
 import org.haplo.template.html.Template;
 import org.haplo.template.html.Driver;
 import org.haplo.template.html.ParseException;
@@ -20,6 +19,7 @@ import org.mozilla.javascript.WrappedException;
 
 public class HaploTemplate extends ScriptableObject implements Callable, Driver.IncludedTemplateRenderer, Driver.TextTranslator {
     private Template template;
+    private boolean templateIsShared;   // from ParsedTemplateCache, so must be copied before modification
     private Scriptable owner;
 
     // Cache of text translator
@@ -31,7 +31,8 @@ public class HaploTemplate extends ScriptableObject implements Callable, Driver.
     }
 
     public void jsConstructor(String source, String name) throws ParseException {
-        this.template = new Parser(source, name, JSPlatformIntegration.parserConfiguration).parse();
+        this.template = ParsedTemplateCache.parse(source, name);
+        this.templateIsShared = true;
     }
 
     public Template getTemplate() {
@@ -87,8 +88,18 @@ public class HaploTemplate extends ScriptableObject implements Callable, Driver.
         return deferred;
     }
 
+    // Description of the parsed template, for tests
+    public String jsFunction_dump() {
+        if(this.template == null) { throw new RuntimeException("No template"); }
+        return this.template.dump();
+    }
+
     public Scriptable jsFunction_addDebugComment(String comment) {
         if(this.template == null) { throw new RuntimeException("No template"); }
+        if(this.templateIsShared) {
+            this.template = this.template.copy();
+            this.templateIsShared = false;
+        }
         this.template.addDebugComment(comment);
         return this;
     }
@@ -0,0 +1,110 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.template.driver.rhinojs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.haplo.template.html.Parser;
+import org.haplo.template.html.ParseException;
+import org.haplo.template.html.Template;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Process-wide cache of parsed templates, so a template used by many runtimes
+ * and applications is only parsed once. Parsed templates are immutable apart
+ * from their debug comments, so HaploTemplate copies them before adding one.
+ *
+ * Entries are keyed by a digest of the name and source, so a plugin reloaded
+ * with changed templates gets new entries, and the old ones are evicted as
+ * the least recently used. The cache is bounded by an estimate of the memory
+ * used, set with org.haplo.template.cache.maxsize in bytes.
+ */
+public class ParsedTemplateCache {
+    private static final long MAX_SIZE = Long.getLong("org.haplo.template.cache.maxsize", 32L * 1024 * 1024);
+    // Rough estimate of memory used by the parsed nodes for each character of source
+    private static final int BYTES_PER_SOURCE_CHARACTER = 8;
+
+    static final Counter requests = Counter.build()
+        .name("haplo_template_cache_requests_total")
+        .help("Templates loaded, by whether the parsed template was in the cache")
+        .labelNames("result")
+        .create();
+
+    public static void collectMetrics() {
+        requests.register();
+    }
+
+    private static class Entry {
+        final Template template;
+        final long size;
+        Entry(Template template, long size) {
+            this.template = template;
+            this.size = size;
+        }
+    }
+
+    private static final LinkedHashMap<String,Entry> templates = new LinkedHashMap<String,Entry>(256, 0.75f, true /* access order */);
+    private static long size = 0;
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Return the parsed template for the source, parsing it if it's not in the cache.
+     */
+    public static Template parse(String source, String name) throws ParseException {
+        String key = keyFor(source, name);
+        Entry entry;
+        synchronized(templates) {
+            entry = templates.get(key);
+        }
+        if(entry != null) {
+            requests.labels("hit").inc();
+            return entry.template;
+        }
+        requests.labels("miss").inc();
+        // Parse outside the lock, templates which fail to parse aren't cached
+        Template template = new Parser(source, name, JSPlatformIntegration.parserConfiguration).parse();
+        entry = new Entry(template, (long)source.length() * BYTES_PER_SOURCE_CHARACTER);
+        synchronized(templates) {
+            Entry previous = templates.put(key, entry);
+            if(previous != null) { size -= previous.size; }
+            size += entry.size;
+            Iterator<Map.Entry<String,Entry>> iterator = templates.entrySet().iterator();
+            while(size > MAX_SIZE && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                if(eldest == entry) { break; }  // always keep the template just parsed
+                size -= eldest.size;
+                iterator.remove();
+            }
+        }
+        return template;
+    }
+
+    // ----------------------------------------------------------------------
+
+    private static String keyFor(String source, String name) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((name + "\n").getBytes(StandardCharsets.UTF_8));
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            byte[] bytes = digest.digest();
+            StringBuilder key = new StringBuilder(bytes.length * 2);
+            for(byte b : bytes) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+}
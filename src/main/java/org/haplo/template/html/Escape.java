@@ -6,11 +6,32 @@
 
 package org.haplo.template.html;
 
-import java.nio.charset.StandardCharsets;
-
 public class Escape {
+    // Lookup tables for ASCII characters which don't need escaping in each context,
+    // so runs of safe characters can be skipped with a single test per character.
+    static private final boolean[] SAFE_TEXT = new boolean[128];
+    static private final boolean[] SAFE_ATTRIBUTE_VALUE = new boolean[128];
+    static private final boolean[] SAFE_URL = new boolean[128];
+    static private final boolean[] SAFE_URL_PATH = new boolean[128];   // excluding %, which needs checking
+    static {
+        for(char c = 0; c < 128; ++c) {
+            SAFE_TEXT[c] = !((c == '&') || (c == '<') || (c == '>'));
+            SAFE_ATTRIBUTE_VALUE[c] = SAFE_TEXT[c] && (c != '"');
+            SAFE_URL[c] = ((c >= 'A') && (c <= 'Z')) ||
+                ((c >= 'a') && (c <= 'z')) ||
+                ((c >= '0') && (c <= '9')) ||
+                (c == '-') || (c == '.') || (c == '_') || (c == '~');
+            SAFE_URL_PATH[c] = SAFE_URL[c] || isURLReservedCharacter(c);
+        }
+    }
+
+    // Returns the input as a String if nothing needs escaping, without any copying if it's already a String
     static public String escapeString(CharSequence input, Context context) {
-        StringBuilder builder = new StringBuilder(input.length() + 64);
+        int len = input.length();
+        if(context != Context.COMMENT && safePrefixLength(input, context) == len) {
+            return input.toString();
+        }
+        StringBuilder builder = new StringBuilder(len + 64);
         escape(input, builder, context);
         return builder.toString();
     }
@@ -20,10 +41,10 @@ public class Escape {
     static public void escape(CharSequence input, StringBuilder builder, Context context) {
         switch(context) {
             case TEXT:
-                escapeText(input, builder, false);
+                escapeText(input, builder, SAFE_TEXT);
                 break;
             case ATTRIBUTE_VALUE:
-                escapeText(input, builder, true);
+                escapeText(input, builder, SAFE_ATTRIBUTE_VALUE);
                 break;
             case URL:
                 escapeURL(input, builder, false);
@@ -42,27 +63,60 @@ public class Escape {
         }
     }
 
+    // For callers which know the context when the template is parsed
+    static void escapeAttributeValue(CharSequence input, StringBuilder builder) {
+        escapeText(input, builder, SAFE_ATTRIBUTE_VALUE);
+    }
+
     // ----------------------------------------------------------------------
 
-    static private void escapeText(CharSequence input, StringBuilder builder, boolean quoteAmpersand) {
-        int pos = 0, start = 0, len = input.length();
-        for(; pos < len; pos++) {
+    // Length of the run of characters at the start of the input which don't need escaping
+    static private int safePrefixLength(CharSequence input, Context context) {
+        boolean[] safe;
+        switch(context) {
+            case TEXT:              safe = SAFE_TEXT; break;
+            case ATTRIBUTE_VALUE:   safe = SAFE_ATTRIBUTE_VALUE; break;
+            case URL:               return skipSafe(input, 0, SAFE_URL, false);
+            case URL_PATH:          return skipSafe(input, 0, SAFE_URL_PATH, false);
+            case UNSAFE:            return input.length();
+            default:                return 0;
+        }
+        return skipSafe(input, 0, safe, true);
+    }
+
+    static private int skipSafe(CharSequence input, int pos, boolean[] safe, boolean nonASCIIIsSafe) {
+        int len = input.length();
+        while(pos < len) {
             char c = input.charAt(pos);
-            String entity = null;
-            switch(c) {
-                case '&': entity = "&amp;"; break;
-                case '<': entity = "&lt;"; break;
-                case '>': entity = "&gt;"; break;
-                case '"': if(quoteAmpersand) { entity = "&quot;"; }; break;
-            }
-            if(entity != null) {
-                builder.append(input, start, pos).
-                        append(entity);
-                start = pos + 1;
-            }
+            if((c < 128) ? !safe[c] : !nonASCIIIsSafe) { break; }
+            pos++;
         }
-        if(start < pos) {
-            builder.append(input, start, pos);
+        return pos;
+    }
+
+    static private void appendRun(CharSequence input, StringBuilder builder, int start, int end) {
+        if((start == 0) && (end == input.length()) && (input instanceof String)) {
+            builder.append((String)input);  // bulk copy, rather than a char at a time
+        } else if(start < end) {
+            builder.append(input, start, end);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    static private void escapeText(CharSequence input, StringBuilder builder, boolean[] safe) {
+        int start = 0, len = input.length();
+        while(true) {
+            int pos = skipSafe(input, start, safe, true);
+            appendRun(input, builder, start, pos);
+            if(pos >= len) { break; }
+            switch(input.charAt(pos)) {
+                case '&': builder.append("&amp;"); break;
+                case '<': builder.append("&lt;"); break;
+                case '>': builder.append("&gt;"); break;
+                case '"': builder.append("&quot;"); break;
+            }
+            start = pos + 1;
         }
     }
 
@@ -74,34 +128,37 @@ public class Escape {
         // https://tools.ietf.org/html/rfc3986#section-2.2
         // Unicode is convert to UTF-8 bytes first, then encode those bytes
         // If leaveReserved == true, then be careful not to re-encode valid % escape sequences
-        int pos = 0, start = 0, len = input.length();
-        for(; pos < len; pos++) {
+        boolean[] safe = leaveReserved ? SAFE_URL_PATH : SAFE_URL;
+        int start = 0, len = input.length();
+        while(true) {
+            int pos = skipSafe(input, start, safe, false);
+            appendRun(input, builder, start, pos);
+            if(pos >= len) { break; }
             char c = input.charAt(pos);
-            if(!(
-                ((c >= 'A') && (c <= 'Z')) ||
-                ((c >= 'a') && (c <= 'z')) ||
-                ((c >= '0') && (c <= '9')) ||
-                (c == '-') || (c == '.') || (c == '_') || (c == '~') ||
-                (leaveReserved && (isURLReservedCharacter(c) || ((c == '%') && checkValidEscape(input, pos))))
-            )) {
-                // Needs encoding
-                builder.append(input, start, pos);
-                if(c < 128) {
-                    // Single byte UTF-8 representation
-                    urlHexChar(builder, c);
-                } else {
-                    // Needs conversion to UTF-8 then encoded
-                    char[] s = {c};
-                    byte[] utf8 = (new String(s)).getBytes(StandardCharsets.UTF_8);
-                    for(byte b : utf8) {
-                        urlHexChar(builder, b);
-                    }
-                }
-                start = pos + 1;
+            if(leaveReserved && (c == '%') && checkValidEscape(input, pos)) {
+                builder.append(c);
+            } else if(c < 0x80) {
+                // Single byte UTF-8 representation
+                urlHexChar(builder, c);
+            } else if(c < 0x800) {
+                urlHexChar(builder, 0xc0 | (c >> 6));
+                urlHexChar(builder, 0x80 | (c & 0x3f));
+            } else if(Character.isHighSurrogate(c) && ((pos + 1) < len) && Character.isLowSurrogate(input.charAt(pos + 1))) {
+                // Surrogate pairs are encoded as the 4 byte UTF-8 sequence of the code point. Before
+                // escaping was table driven, each half was encoded separately, so became %3F%3F.
+                int cp = Character.toCodePoint(c, input.charAt(++pos));
+                urlHexChar(builder, 0xf0 | (cp >> 18));
+                urlHexChar(builder, 0x80 | ((cp >> 12) & 0x3f));
+                urlHexChar(builder, 0x80 | ((cp >> 6) & 0x3f));
+                urlHexChar(builder, 0x80 | (cp & 0x3f));
+            } else if(Character.isSurrogate(c)) {
+                urlHexChar(builder, '?');   // unpaired surrogate, replaced as by String.getBytes()
+            } else {
+                urlHexChar(builder, 0xe0 | (c >> 12));
+                urlHexChar(builder, 0x80 | ((c >> 6) & 0x3f));
+                urlHexChar(builder, 0x80 | (c & 0x3f));
             }
-        }
-        if(start < pos) {
-            builder.append(input, start, pos);
+            start = pos + 1;
         }
     }
 
@@ -123,17 +180,10 @@ public class Escape {
                ((c >= 'A') && (c <= 'F'));
     };
 
+    static private final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     static private void urlHexChar(StringBuilder builder, int c) {
-        builder.append('%');
-        for(int i = 0; i < 2; ++i) {
-            int v = (c & 0xf0) >> 4;
-            if(v < 10) {
-                builder.append((char)('0'+v));
-            } else {
-                builder.append((char)('A'+(v-10)));
-            }
-            c = c << 4;
-        }
+        builder.append('%').append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
     }
 
     // ----------------------------------------------------------------------
@@ -6,11 +6,18 @@
 
 package org.haplo.template.html;
 
+import java.util.Arrays;
+
 final class NodeTag extends Node {
     private String name;
     private String start;
+    private String end = ">";   // with any following literal merged in
     private Attribute attributesHead;
     private Node attributeDictionaryValue;
+    private boolean valueLookupsPrepared;
+    private int parentLookupCount;      // number of values from the view shared by attributes, see prepareValueLookups()
+
+    private static final Object NO_VALUE = new Object();
 
     public NodeTag(String name) {
         this.name = name;
@@ -89,28 +96,110 @@ final class NodeTag extends Node {
         public String preparedNameEquals; // " name=\"" for rendering
         public Node value;
         public Context valueContext;
+        // Set by prepareValueLookups() if the value is a value from the view
+        public String[] valuePath;
+        public int parentLookup = -1;   // index of shared lookup of parent, or -1 to look up valuePath
+        public String[] lastPathElement;
+    }
+
+    // Literals following the tag are rendered with the closing > of the tag,
+    // saving a node in the list for each tag with dynamic attributes.
+    protected boolean tryToMergeWith(Node otherNode) {
+        if(otherNode instanceof NodeLiteral) {
+            this.end += ((NodeLiteral)otherNode).getLiteralString();
+            return true;
+        }
+        return false;
     }
 
     protected Node orSimplifiedNode() {
         if(this.attributesHead == null && this.attributeDictionaryValue == null) {
             return new NodeLiteral(this.start+">");
         }
+        prepareValueLookups();
         return this;
     }
 
+    // Attributes which are values from the view are looked up and escaped directly, rather than
+    // rendering the value node. When several attributes are properties of the same object, eg
+    // <a href=item.url title=item.title>, the object is looked up once per render and shared.
+    private void prepareValueLookups() {
+        if(this.valueLookupsPrepared) { return; }
+        this.valueLookupsPrepared = true;
+        for(Attribute attribute = this.attributesHead; attribute != null; attribute = attribute.nextAttribute) {
+            if(attribute.value instanceof NodeValue) {
+                attribute.valuePath = ((NodeValue)attribute.value).getPath();
+            }
+        }
+        for(Attribute attribute = this.attributesHead; attribute != null; attribute = attribute.nextAttribute) {
+            String[] path = attribute.valuePath;
+            if(path == null || path.length < 2 || attribute.parentLookup != -1) { continue; }
+            int lookup = -1;
+            for(Attribute other = attribute.nextAttribute; other != null; other = other.nextAttribute) {
+                if(other.valuePath != null && other.parentLookup == -1 && hasSameParent(path, other.valuePath)) {
+                    if(lookup == -1) {
+                        lookup = this.parentLookupCount++;
+                        useParentLookup(attribute, lookup);
+                    }
+                    useParentLookup(other, lookup);
+                }
+            }
+        }
+    }
+
+    private static boolean hasSameParent(String[] a, String[] b) {
+        if(a.length != b.length) { return false; }
+        for(int i = 0; i < (a.length - 1); ++i) {
+            if(!a[i].equals(b[i])) { return false; }
+        }
+        return true;
+    }
+
+    private static void useParentLookup(Attribute attribute, int lookup) {
+        attribute.parentLookup = lookup;
+        attribute.lastPathElement = new String[] { attribute.valuePath[attribute.valuePath.length - 1] };
+        attribute.valuePath = Arrays.copyOf(attribute.valuePath, attribute.valuePath.length - 1);
+    }
+
     public void render(StringBuilder builder, Driver driver, Object view, Context context) throws RenderException {
         builder.append(this.start);
+        Object[] parents = (this.parentLookupCount == 0) ? null : new Object[this.parentLookupCount];
         Attribute attribute = this.attributesHead;
         while(attribute != null) {
-            int attributeStart = builder.length();
-            builder.append(attribute.preparedNameEquals);
-            int valueStart = builder.length();
-            attribute.value.render(builder, driver, view, attribute.valueContext);
-            // If nothing was rendered, remove the attribute
-            if(valueStart == builder.length()) {
-                builder.setLength(attributeStart);
+            if(attribute.valuePath != null) {
+                Object value;
+                if(attribute.parentLookup != -1) {
+                    Object parent = parents[attribute.parentLookup];
+                    if(parent == null) {
+                        parent = driver.getValueFromView(view, attribute.valuePath);
+                        parents[attribute.parentLookup] = (parent == null) ? NO_VALUE : parent;
+                    }
+                    value = (parent == null || parent == NO_VALUE) ? null : driver.getValueFromView(parent, attribute.lastPathElement);
+                } else {
+                    value = driver.getValueFromView(view, attribute.valuePath);
+                }
+                String string = (value == null) ? null : driver.valueToStringRepresentation(value);
+                // Attributes without a value aren't rendered
+                if((string != null) && (string.length() > 0)) {
+                    builder.append(attribute.preparedNameEquals);
+                    if(attribute.valueContext == Context.ATTRIBUTE_VALUE) {
+                        Escape.escapeAttributeValue(string, builder);
+                    } else {
+                        Escape.escape(string, builder, attribute.valueContext);
+                    }
+                    builder.append('"');
+                }
             } else {
-                builder.append('"');
+                int attributeStart = builder.length();
+                builder.append(attribute.preparedNameEquals);
+                int valueStart = builder.length();
+                attribute.value.render(builder, driver, view, attribute.valueContext);
+                // If nothing was rendered, remove the attribute
+                if(valueStart == builder.length()) {
+                    builder.setLength(attributeStart);
+                } else {
+                    builder.append('"');
+                }
             }
             attribute = attribute.nextAttribute;
         }
@@ -130,7 +219,7 @@ final class NodeTag extends Node {
                 }
             });
         }
-        builder.append('>');
+        builder.append(this.end);
     }
 
     public void dumpToBuilder(StringBuilder builder, String linePrefix) {
@@ -150,6 +239,9 @@ final class NodeTag extends Node {
             builder.append("> with "+count+" attributes:\n").
                     append(attributesBuilder);
         }
+        if(this.end.length() > 1) {
+            builder.append(linePrefix).append("LITERAL ").append(this.end, 1, this.end.length()).append("\n");
+        }
     }
 
     protected void interateOverAttributes(AttributeIterator i) {
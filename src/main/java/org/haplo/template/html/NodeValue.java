@@ -27,6 +27,11 @@ class NodeValue extends Node {
         }
     }
 
+    // Used by NodeTag to look up values for attributes without rendering the node
+    protected String[] getPath() {
+        return this.path;
+    }
+
     protected boolean nodeRepresentsValueFromView() {
         return true;
     }
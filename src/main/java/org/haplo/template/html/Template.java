@@ -79,6 +79,16 @@ final public class Template {
         return this.numberOfRememberedViews;
     }
 
+    // Parsed nodes are immutable, so copies share them and only have their own debug comments
+    public Template copy() {
+        Template template = new Template(this.name, this.nodes, this.numberOfRememberedViews);
+        if(this.debugComments != null) {
+            template.debugComments = (this.debugComments == DEBUG_COMMENTS_DISABLED) ?
+                DEBUG_COMMENTS_DISABLED : new ArrayList<String>(this.debugComments);
+        }
+        return template;
+    }
+
     public void addDebugComment(String comment) {
         if(this.debugComments == DEBUG_COMMENTS_DISABLED) {
             return; // ignore addition of comment
@@ -16,18 +16,28 @@ import javax.xml.XMLConstants;
 import org.xml.sax.*;
 import org.xml.sax.helpers.*;
 
+import org.haplo.op.CacheableOperation;
 import org.haplo.op.Operation;
 
-public abstract class TextExtractOp extends Operation {
+public abstract class TextExtractOp extends Operation implements CacheableOperation {
     private String inputPathname;
     // volatile required because output is written in one thread and immediately read in another, and under load
     // without it, occasionally output appears to be null.
     private volatile String output;
 
+    // Used by OpCodec, which sets the fields when decoding
+    protected TextExtractOp() {
+    }
+
     public TextExtractOp(String inputPathname) {
         this.inputPathname = inputPathname;
     }
 
+    @Override
+    protected Priority getDefaultPriority() {
+        return Priority.BATCH;
+    }
+
     protected void performOperation() {
         try {
             String text = extract();
@@ -42,6 +52,18 @@ public abstract class TextExtractOp extends Operation {
         this.output = ((TextExtractOp)resultOperation).getOutput();
     }
 
+    public String getResultCacheInputPathname() {
+        return this.inputPathname;
+    }
+
+    public String getResultCacheParameters() {
+        return null;
+    }
+
+    public String[] getResultCacheOutputPathnames() {
+        return new String[0];
+    }
+
     /**
      * Called to retrieve the output
      */
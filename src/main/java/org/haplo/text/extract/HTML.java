@@ -21,6 +21,10 @@ public class HTML extends TextExtractOp {
     private static boolean jerichoInitialised = false;
     private static Object jerichoInitLock = new Object();
 
+    // Used by OpCodec, which sets the fields when decoding
+    private HTML() {
+    }
+
     public HTML(String inputPathname) {
         super(inputPathname);
 
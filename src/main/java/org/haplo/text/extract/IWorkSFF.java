@@ -76,6 +76,10 @@ public class IWorkSFF extends TextExtractOp {
         }
     }
 
+    // Used by OpCodec, which sets the fields when decoding
+    private IWorkSFF() {
+    }
+
     public IWorkSFF(String inputPathname) {
         super(inputPathname);
     }
@@ -20,6 +20,10 @@ import java.io.IOException;
 import org.haplo.text.TextExtractOp;
 
 public class MSOffice extends TextExtractOp {
+    // Used by OpCodec, which sets the fields when decoding
+    private MSOffice() {
+    }
+
     public MSOffice(String inputPathname) {
         super(inputPathname);
     }
@@ -61,6 +61,10 @@ public class OpenOffice extends TextExtractOp {
         }
     }
 
+    // Used by OpCodec, which sets the fields when decoding
+    private OpenOffice() {
+    }
+
     public OpenOffice(String inputPathname) {
         super(inputPathname);
     }
@@ -17,6 +17,10 @@ import javax.swing.text.BadLocationException;
 import org.haplo.text.TextExtractOp;
 
 public class RTF extends TextExtractOp {
+    // Used by OpCodec, which sets the fields when decoding
+    private RTF() {
+    }
+
     public RTF(String inputPathname) {
         super(inputPathname);
     }
@@ -18,6 +18,10 @@ import com.ibm.icu.text.CharsetMatch;
 import org.haplo.text.TextExtractOp;
 
 public class Text extends TextExtractOp {
+    // Used by OpCodec, which sets the fields when decoding
+    private Text() {
+    }
+
     public Text(String inputPathname) {
         super(inputPathname);
     }
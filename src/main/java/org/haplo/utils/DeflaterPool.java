@@ -0,0 +1,53 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of Deflaters for compressing HTTP responses, avoiding the cost of
+ * allocating the native zlib state for every response.
+ *
+ * Deflaters use raw deflate format, for use with GZIPOutputStreamEx. The
+ * compression level is set with the org.haplo.gzip.level system property.
+ */
+public class DeflaterPool {
+    private static final int MAXIMUM_POOLED_DEFLATERS = 64;
+
+    private static final int compressionLevel;
+    private static final ArrayBlockingQueue<Deflater> pool = new ArrayBlockingQueue<Deflater>(MAXIMUM_POOLED_DEFLATERS);
+
+    static {
+        int level = Integer.getInteger("org.haplo.gzip.level", Deflater.DEFAULT_COMPRESSION);
+        if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        compressionLevel = level;
+    }
+
+    /**
+     * Get a Deflater, which must be returned to the pool with release().
+     */
+    public static Deflater obtain() {
+        Deflater deflater = pool.poll();
+        if(deflater == null) {
+            deflater = new Deflater(compressionLevel, true);
+        }
+        return deflater;
+    }
+
+    /**
+     * Return a Deflater to the pool. It must not be used by the caller afterwards.
+     */
+    public static void release(Deflater deflater) {
+        deflater.reset();
+        if(!pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+}
@@ -21,6 +21,10 @@ public class GZIPOutputStreamEx extends DeflaterOutputStream {
      * GZIP header magic number.
      */
     private final static int GZIP_MAGIC = 0x8b1f;
+    /*
+     * Whether the Deflater was created by this stream, and should be ended when finished.
+     */
+    private boolean ownsDeflater;
 
     /**
      * Creates a new output stream with the specified buffer size.
@@ -32,6 +36,24 @@ public class GZIPOutputStreamEx extends DeflaterOutputStream {
      */
     public GZIPOutputStreamEx(OutputStream out, int size, int compression) throws IOException {
         super(out, new Deflater(compression, true), size);
+        ownsDeflater = true;
+        writeHeader();
+        crc.reset();
+    }
+
+    /**
+     * Creates a new output stream using a Deflater supplied by the caller,
+     * which is not ended when the stream is finished. The Deflater must use
+     * raw deflate format (nowrap).
+     *
+     * @param out the output stream
+     * @param size the output buffer size
+     * @param deflater the Deflater to use for compression
+     * @exception IOException If an I/O error has occurred.
+     */
+    public GZIPOutputStreamEx(OutputStream out, int size, Deflater deflater) throws IOException {
+        super(out, deflater, size);
+        ownsDeflater = false;
         writeHeader();
         crc.reset();
     }
@@ -75,7 +97,9 @@ public class GZIPOutputStreamEx extends DeflaterOutputStream {
                 deflate();
             }
             writeTrailer();
-            def.end();
+            if(ownsDeflater) {
+                def.end();
+            }
         }
     }
 
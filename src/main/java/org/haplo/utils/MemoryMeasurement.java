@@ -0,0 +1,83 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Measurements of memory used by this process and available on the host.
+ * Uses /proc where it's available, as the JVM's own figures don't include
+ * native allocations or the page cache.
+ */
+public class MemoryMeasurement {
+    /**
+     * Heap in use after the most recent garbage collections, as a percentage of
+     * the maximum heap size. Unlike totalMemory(), this doesn't include garbage
+     * which hasn't been collected yet, or heap which has been allocated but is
+     * unused.
+     */
+    public static int heapUsedAfterGCPercent() {
+        long used = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if(usage != null) {
+                    used += usage.getUsed();
+                }
+            }
+        }
+        return (int)((used * 100) / Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * Resident set size of this process in bytes, or -1 if it can't be measured.
+     */
+    public static long residentSetSize() {
+        return readProcValue("/proc/self/status", "VmRSS:");
+    }
+
+    /**
+     * Memory available for new processes on the host in bytes, including
+     * memory which could be reclaimed from caches, or -1 if it can't be measured.
+     */
+    // getFreePhysicalMemorySize() is deprecated from Java 14 in favour of getFreeMemorySize(),
+    // which doesn't exist in Java 8, the target for this code.
+    @SuppressWarnings("deprecation")
+    public static long hostAvailableMemory() {
+        long available = readProcValue("/proc/meminfo", "MemAvailable:");
+        if(available < 0) {
+            OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+            if(bean instanceof com.sun.management.OperatingSystemMXBean) {
+                available = ((com.sun.management.OperatingSystemMXBean)bean).getFreePhysicalMemorySize();
+            }
+        }
+        return available;
+    }
+
+    // Read a value in kB from a file in /proc, returning it in bytes
+    private static long readProcValue(String pathname, String key) {
+        try(BufferedReader reader = new BufferedReader(new FileReader(pathname))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.startsWith(key)) {
+                    String[] fields = line.substring(key.length()).trim().split("\\s+");
+                    return Long.parseLong(fields[0]) * 1024;
+                }
+            }
+        } catch(IOException | NumberFormatException e) {
+            // Not available on this platform
+        }
+        return -1;
+    }
+}
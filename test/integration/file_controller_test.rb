@@ -68,6 +68,57 @@ class FileControllerTest < IntegrationTest
 
   # -----------------------------------------------------------------------------------------------------
 
+  def test_byte_ranges
+    assert_login_as("user1@example.com", "password")
+    # File larger than the threshold for sending from memory mapped regions
+    doc_file = StoredFile.from_upload(fixture_file_upload('files/example_with_embedded_wmf.doc', 'application/msword'))
+    make_object_for_file doc_file
+    contents = File.open("test/fixtures/files/example_with_embedded_wmf.doc", "r:ASCII-8BIT") { |f| f.read }
+    assert contents.length > (64*1024)
+    url = "/file/#{doc_file.digest}/#{doc_file.size}/example_with_embedded_wmf.doc"
+    # No range
+    get url
+    assert_equal contents, response.body.force_encoding(Encoding::BINARY)
+    # Single range, larger than the threshold
+    get url, nil, {'Range' => 'bytes=1000-100999', :expected_response_codes => [206]}
+    assert_equal "206", response.code
+    assert_equal "bytes 1000-100999/#{contents.length}", response['Content-Range']
+    assert_equal contents[1000, 100000], response.body.force_encoding(Encoding::BINARY)
+    # Suffix range
+    get url, nil, {'Range' => 'bytes=-500', :expected_response_codes => [206]}
+    assert_equal contents[-500, 500], response.body.force_encoding(Encoding::BINARY)
+    # Multiple ranges are sent as multipart/byteranges, in the order requested, with overlapping ranges merged
+    get url, nil, {'Range' => 'bytes=0-9,150000-,100-199,5-14', :expected_response_codes => [206]}
+    assert_equal "206", response.code
+    assert_equal nil, response['Content-Range']
+    assert response['Content-Type'] =~ /\Amultipart\/byteranges; boundary=(\S+)\z/
+    boundary = $1
+    body = response.body.force_encoding(Encoding::BINARY)
+    assert_equal body.length, response['Content-Length'].to_i
+    assert body.end_with?("\r\n--#{boundary}--\r\n")
+    parts = body.split("--#{boundary}")
+    assert_equal "", parts.shift
+    assert_equal "--\r\n", parts.pop
+    expected = [[0, 14], [150000, contents.length - 1], [100, 199]]
+    assert_equal expected.length, parts.length
+    parts.zip(expected).each do |part, (first, last)|
+      headers, data = part.split("\r\n\r\n", 2)
+      assert_equal ["", "Content-Type: application/msword", "Content-Range: bytes #{first}-#{last}/#{contents.length}"], headers.split("\r\n")
+      assert_equal contents[first..last]+"\r\n", data
+    end
+    # Too many ranges is answered with the whole file
+    get url, nil, {'Range' => 'bytes='+(0..40).map { |i| "#{i*10}-#{i*10+1}" }.join(',')}
+    assert_equal "200", response.code
+    assert_equal contents, response.body.force_encoding(Encoding::BINARY)
+    # Unsatisfiable range
+    get url, nil, {'Range' => "bytes=#{contents.length + 10}-", :expected_response_codes => [416]}
+    assert_equal "416", response.code
+    assert_equal "bytes */#{contents.length}", response['Content-Range']
+    delete_all_jobs
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
   def test_previews
     assert_login_as("user1@example.com", "password")
     pdf_file = StoredFile.from_upload(fixture_file_upload('files/example3.pdf', 'application/pdf'))
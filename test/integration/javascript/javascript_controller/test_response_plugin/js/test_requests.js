@@ -507,6 +507,20 @@
         });
     });
 
+    // Bodies over org.haplo.plugin.streamedbodymin characters are sent from the Java string
+    P.respond("GET", "/do/plugin_test/large_body", [
+        {pathElement: 0, as: "int"}
+    ], function(E, repeats) {
+        var body = [];
+        for(var i = 0; i < repeats; ++i) {
+            body.push("Large £€ κόσμε 😀\n");
+        }
+        E.response.statusCode = 203;
+        E.response.headers["X-Large-Body"] = "Yes";
+        E.response.body = body.join('');
+        E.response.kind = "text";
+    });
+
     P.respond("GET", "/do/plugin_test/binary_data_response", [
     ], function(E) {
         E.response.body = O.binaryData("Hello ☃", {filename:"testbin.txt", mimeType:"text/plain"})
@@ -82,6 +82,15 @@ Publication.respondToDirectory("/publication/response-kinds", function(E, contex
     } else if(kind === "json") {
         E.response.kind = "json";
         E.response.body = JSON.stringify({"a":42});
+    } else if(kind === "large-body") {
+        var body = [];
+        for(var i = parseInt(E.request.parameters.repeats,10); i > 0; --i) {
+            body.push("Large £€ κόσμε 😀\n");
+        }
+        E.response.statusCode = 203;
+        E.response.headers["X-Large-Body"] = "Yes";
+        E.response.kind = "text";
+        E.response.body = body.join('');
     } else if(kind === "stop") {
         context.hint.useLayout = true;
         O.stop("Stop error message1", "Title for stop1");
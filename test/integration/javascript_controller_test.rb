@@ -931,6 +931,70 @@ __E
 
   # -----------------------------------------------------------------------------------------------------------------------------------
 
+  def test_large_body_sent_from_java_string
+    unit = "Large £€ κόσμε \u{1F600}\n"
+    unit_length = unit.encode('UTF-16LE').bytesize / 2  # in JavaScript characters
+    repeats = (java.lang.Integer.getInteger("org.haplo.plugin.streamedbodymin", 64 * 1024) / unit_length) + 2
+    expected_body = unit * repeats
+
+    # Uncompressed, with an exact Content-Length
+    get "/do/plugin_test/large_body/#{repeats}", nil, {'Accept-Encoding' => 'identity'}
+    assert_equal '203', response.code
+    assert_equal 'text/plain; charset=utf-8', response['Content-Type']
+    assert_equal 'Yes', response['X-Large-Body']
+    assert_equal nil, response['Content-Encoding']
+    assert_equal expected_body.bytesize.to_s, response['Content-Length']
+    assert_equal expected_body, response.body.force_encoding("UTF-8")
+
+    # Compressed, which is decoded by Net::HTTP
+    get "/do/plugin_test/large_body/#{repeats}"
+    assert_equal '203', response.code
+    assert_equal 'text/plain; charset=utf-8', response['Content-Type']
+    assert_equal 'Yes', response['X-Large-Body']
+    assert_equal expected_body, response.body.force_encoding("UTF-8")
+  end
+
+  # -----------------------------------------------------------------------------------------------------------------------------------
+
+  def test_gzip_compression_of_dynamic_responses
+    unit = "Large £€ κόσμε \u{1F600}\n"
+    one_shot_maximum = Java::OrgHaploAppserver::Response::MAXIMUM_ONE_SHOT_COMPRESION_SIZE
+    [
+      [one_shot_maximum / unit.bytesize, false],      # just under the threshold
+      [(one_shot_maximum / unit.bytesize) + 2, true], # just over
+      [(one_shot_maximum * 4) / unit.bytesize, true]  # several chunks
+    ].each do |repeats, expect_streamed|
+      expected_body = unit * repeats
+      assert_equal expect_streamed, (expected_body.bytesize > one_shot_maximum)
+      # Setting Accept-Encoding stops Net::HTTP decoding the response
+      get "/do/plugin_test/large_body/#{repeats}", nil, {'Accept-Encoding' => 'gzip'}
+      assert_equal '203', response.code
+      assert_equal 'gzip', response['Content-Encoding']
+      assert_equal 'Accept-Encoding', response['Vary']
+      assert_equal 'Yes', response['X-Large-Body']
+      body = response.body.force_encoding(Encoding::BINARY)
+      if expect_streamed
+        # Compressed as it's written, so the length isn't known in advance
+        assert_equal nil, response['Content-Length']
+        assert_equal 'chunked', response['Transfer-Encoding']
+      else
+        assert_equal body.bytesize.to_s, response['Content-Length']
+      end
+      assert body.bytesize < (expected_body.bytesize / 4)
+      assert_equal expected_body, Zlib::GzipReader.new(StringIO.new(body)).read.force_encoding("UTF-8")
+    end
+    # Clients which refuse gzip get the uncompressed response
+    get "/do/plugin_test/large_body/#{(one_shot_maximum * 2) / unit.bytesize}", nil, {'Accept-Encoding' => 'gzip;q=0'}
+    assert_equal nil, response['Content-Encoding']
+    assert_equal nil, response['Vary']
+    # Small responses aren't worth compressing
+    get "/do/plugin_test/large_body/2", nil, {'Accept-Encoding' => 'gzip'}
+    assert_equal nil, response['Content-Encoding']
+    assert_equal unit * 2, response.body.force_encoding("UTF-8")
+  end
+
+  # -----------------------------------------------------------------------------------------------------------------------------------
+
   def test_request_session
     s1 = open_session
     s2 = open_session
@@ -10,6 +10,26 @@ class KAppIntegrationTest < IntegrationTest
   CACHE_TEST1 = KApp.cache_register(Array, "Test cache 1")
   CACHE_TEST2 = KApp.cache_register(SyncedLookupCache.factory(proc { |x| "VALUE #{x}" }), "Test cache 2", :shared)
 
+  class EvictionTestCache
+    EVICTED = []
+    def kapp_cache_evicted
+      EVICTED << self
+    end
+  end
+  CACHE_TEST3 = KApp.cache_register(EvictionTestCache, "Test cache 3", :per_thread, {:max_idle_time => 0, :min_idle => 1})
+
+  class WarmUpTestCache
+    EVICTED = []
+    WARMED = []
+    def kapp_cache_evicted
+      EVICTED << self
+    end
+    def kapp_cache_warm_up
+      WARMED << self
+    end
+  end
+  CACHE_TEST4 = KApp.cache_register(WarmUpTestCache, "Test cache 4", :per_thread, {:max_idle_time => 0.2, :min_idle => 2})
+
   def setup
     # To avoid counters getting screwed up
     @assert_lock = Mutex.new
@@ -170,6 +190,68 @@ class KAppIntegrationTest < IntegrationTest
 
   # =======================================================================================================================
 
+  def test_cache_idle_eviction
+    EvictionTestCache::EVICTED.clear
+    inner = nil
+    outer = nil
+    KApp.in_application(@app_id) do
+      outer = KApp.cache(CACHE_TEST3)
+      # Another thread needs a cache at the same time, so a second object is created
+      Thread.new do
+        KApp.in_application(@app_id) { inner = KApp.cache(CACHE_TEST3) }
+      end.join
+      assert_equal [], EvictionTestCache::EVICTED
+      sleep 0.01
+    end
+    # The least recently used object has been idle for too long, but the minimum is kept
+    assert_equal [inner], EvictionTestCache::EVICTED
+    KApp.in_application(@app_id) do
+      assert KApp.cache(CACHE_TEST3).equal?(outer)
+    end
+    assert_equal [inner], EvictionTestCache::EVICTED
+  end
+
+  # =======================================================================================================================
+
+  def test_cache_sweep_idle_objects
+    WarmUpTestCache::EVICTED.clear
+    WarmUpTestCache::WARMED.clear
+    checked_out = []
+    check_out_nested = lambda do |depth|
+      KApp.in_application(@app_id) do
+        checked_out << KApp.cache(CACHE_TEST4)
+        Thread.new { check_out_nested.(depth - 1) }.join if depth > 1
+      end
+    end
+    check_out_nested.(3)
+    assert_equal 3, checked_out.uniq.length
+    # Nothing is idle for long enough yet
+    KApp.cache_sweep_idle_objects
+    assert_equal [], WarmUpTestCache::EVICTED
+    # Least recently used object is discarded by the sweep, without another check in, but the minimum is kept
+    sleep 0.3
+    KApp.cache_sweep_idle_objects
+    assert_equal [checked_out.last], WarmUpTestCache::EVICTED
+    # Application wasn't used recently, so the pool isn't topped up
+    KApp.in_application(@app_id) { KApp.cache_invalidate(CACHE_TEST4) }
+    KApp.cache_sweep_idle_objects
+    assert_equal [], WarmUpTestCache::WARMED
+    # After use, the pool is topped up to the minimum, and the warm object is used next
+    used = nil
+    KApp.in_application(@app_id) { used = KApp.cache(CACHE_TEST4) }
+    KApp.cache_sweep_idle_objects
+    assert_equal 1, WarmUpTestCache::WARMED.length
+    assert !(WarmUpTestCache::WARMED.first.equal?(used))
+    KApp.in_application(@app_id) do
+      assert KApp.cache(CACHE_TEST4).equal?(WarmUpTestCache::WARMED.first)
+    end
+    KApp.cache_sweep_idle_objects
+    assert_equal 1, WarmUpTestCache::WARMED.length
+    assert_equal 1, WarmUpTestCache::EVICTED.length
+  end
+
+  # =======================================================================================================================
+
   def test_app_globals
     run_multiple_threads :tag_thread1, :tag_thread2
   end
@@ -0,0 +1,105 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class StaticFilesTest < IntegrationTest
+
+  STATIC_FILE_URL = '/-/jquery__min.js'
+
+  def setup
+    @contents = File.open("#{KFRAMEWORK_ROOT}/static/javascripts/jquery__min.js", "r:ASCII-8BIT") { |f| f.read }
+    @entity_tag_base = Digest::SHA256.hexdigest(@contents)[0,32]
+  end
+
+  def get_static_file(headers, expected_code = "200")
+    get STATIC_FILE_URL, nil, headers.merge(:expected_response_codes => [expected_code.to_i], :redirects => :do_not_follow_redirects)
+    assert_equal expected_code, response.code
+  end
+
+  # Net::HTTP only decodes responses when it chose the Accept-Encoding header itself
+  def decoded_response_body
+    body = response.body.force_encoding(Encoding::BINARY)
+    (response['Content-Encoding'] == 'gzip') ? Zlib::GzipReader.new(StringIO.new(body)).read : body
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_entity_tag_derived_from_content
+    # Net::HTTP accepts gzip by default, and decodes the response
+    get_static_file({})
+    assert_equal %Q!"#{@entity_tag_base}-gzip"!, response['ETag']
+    assert_equal 'Accept-Encoding', response['Vary']
+    assert response['Last-Modified'] != nil
+    assert_equal @contents, decoded_response_body
+    # Uncompressed variant has a different tag
+    get_static_file({'Accept-Encoding' => 'identity'})
+    assert_equal %Q!"#{@entity_tag_base}"!, response['ETag']
+    assert_equal nil, response['Content-Encoding']
+    assert_equal @contents, decoded_response_body
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_conditional_requests
+    gzip_tag = %Q!"#{@entity_tag_base}-gzip"!
+    identity_tag = %Q!"#{@entity_tag_base}"!
+    # Matching tag for the encoding which would be sent
+    get_static_file({'Accept-Encoding' => 'gzip', 'If-None-Match' => gzip_tag}, "304")
+    assert_equal gzip_tag, response['ETag']
+    assert_equal nil, response['Content-Encoding']
+    assert response.body.nil? || response.body.empty?
+    get_static_file({'Accept-Encoding' => 'identity', 'If-None-Match' => identity_tag}, "304")
+    assert_equal identity_tag, response['ETag']
+    # Weak comparison, lists of tags, and the wildcard
+    get_static_file({'Accept-Encoding' => 'gzip', 'If-None-Match' => "W/#{gzip_tag}"}, "304")
+    get_static_file({'Accept-Encoding' => 'gzip', 'If-None-Match' => %Q!"other", #{gzip_tag}!}, "304")
+    get_static_file({'Accept-Encoding' => 'gzip', 'If-None-Match' => '*'}, "304")
+    # Tag for another encoding, or an old version of the file, sends the file
+    get_static_file({'Accept-Encoding' => 'gzip', 'If-None-Match' => identity_tag})
+    assert_equal gzip_tag, response['ETag']
+    get_static_file({'Accept-Encoding' => 'identity', 'If-None-Match' => '"0123456789abcdef0123456789abcdef"'})
+    assert_equal @contents, decoded_response_body
+    # If-Modified-Since
+    get_static_file({'Accept-Encoding' => 'identity'})
+    last_modified = response['Last-Modified']
+    get_static_file({'Accept-Encoding' => 'identity', 'If-Modified-Since' => last_modified}, "304")
+    get_static_file({'Accept-Encoding' => 'identity', 'If-Modified-Since' => 'Thu, 01 Jan 1970 00:00:01 GMT'})
+    get_static_file({'Accept-Encoding' => 'identity', 'If-Modified-Since' => 'not a date'})
+    # If-None-Match takes precedence over If-Modified-Since
+    get_static_file({'Accept-Encoding' => 'identity', 'If-None-Match' => '"old"', 'If-Modified-Since' => last_modified})
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_accept_encoding_quality_values
+    [
+      ['gzip', true],
+      ['GZIP', true],
+      ['gzip;q=0.5', true],
+      ['gzip; q=1.0, identity; q=0.5', true],
+      ['*', true],
+      ['deflate, *', true],
+      ['gzip;q=0', false],
+      ['gzip;q=0.0', false],
+      ['gzip;q=bad', false],
+      ['identity', false],
+      ['deflate', false],
+      ['*;q=0', false],
+      # Explicit element for the encoding takes priority over the wildcard, in either order
+      ['*;q=0, gzip', true],
+      ['gzip, *;q=0', true],
+      ['gzip;q=0, *', false],
+      ['*, gzip;q=0', false]
+    ].each do |accept_encoding, expect_gzip|
+      get_static_file({'Accept-Encoding' => accept_encoding})
+      expected_tag = expect_gzip ? %Q!"#{@entity_tag_base}-gzip"! : %Q!"#{@entity_tag_base}"!
+      assert_equal expected_tag, response['ETag'], "Accept-Encoding: #{accept_encoding}"
+      assert_equal (expect_gzip ? 'gzip' : nil), response['Content-Encoding']
+      assert_equal @contents, decoded_response_body
+    end
+  end
+
+end
@@ -104,6 +104,16 @@ class WebPublisherTest < IntegrationTest
     assert_equal "application/json; charset=utf-8", response.header["Content-Type"]
     assert_equal '{"a":42}', response.body
 
+    # Bodies over org.haplo.plugin.streamedbodymin characters are sent from the Java string
+    large_body_unit = "Large £€ κόσμε \u{1F600}\n"
+    large_body_repeats = (java.lang.Integer.getInteger("org.haplo.plugin.streamedbodymin", 64 * 1024) / (large_body_unit.encode('UTF-16LE').bytesize / 2)) + 2
+    get "/publication/response-kinds/large-body?repeats=#{large_body_repeats}", nil, {'Accept-Encoding' => 'identity'}
+    assert_equal '203', response.code
+    assert_equal "text/plain; charset=utf-8", response.header["Content-Type"]
+    assert_equal "Yes", response.header["X-Large-Body"]
+    assert_equal (large_body_unit * large_body_repeats).bytesize.to_s, response.header["Content-Length"]
+    assert_equal large_body_unit * large_body_repeats, response.body.force_encoding("UTF-8")
+
     # O.stop() and exceptions return a nice HTML response in the layout
     get "/publication/response-kinds/stop"
     assert_equal "text/html; charset=utf-8", response.header["Content-Type"]
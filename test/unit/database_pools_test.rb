@@ -0,0 +1,181 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class DatabasePoolsTest < Test::Unit::TestCase
+
+  Database = Java::OrgHaploFramework::Database
+  Pool = Database::Pool
+
+  BaseConnection = Java::OrgPostgresqlCore::BaseConnection
+  TransactionState = Java::OrgPostgresqlCore::TransactionState
+
+  # In milliseconds, unlike SHOW which formats the value with units
+  STATEMENT_TIMEOUT_SQL = "SELECT setting FROM pg_settings WHERE name='statement_timeout'"
+
+  # Application which doesn't exist, so the metrics aren't affected by other tests
+  TEST_METRICS_APP_ID = 9876510
+
+  def query_value(connection, sql)
+    statement = connection.createStatement()
+    begin
+      results = statement.executeQuery(sql)
+      results.next()
+      results.getString(1)
+    ensure
+      statement.close()
+    end
+  end
+
+  def with_pool_and_metrics_application(pool_name)
+    begin
+      Database.usePoolOnThisThread(pool_name)
+      Database.setApplicationOnThisThread(TEST_METRICS_APP_ID)
+      yield
+    ensure
+      Database.usePoolOnThisThread("request")
+      Database.clearApplicationOnThisThread()
+      Database.setApplicationOnThisThread(_TEST_APP_ID)
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_pool_names
+    assert_equal ["request", "job", "longrunning"], Pool.values.map { |pool| pool.getName() }
+    assert_equal Pool::REQUEST, Pool.fromName("request")
+    assert_equal Pool::JOB, Pool.fromName("job")
+    assert_equal Pool::LONG_RUNNING, Pool.fromName("longrunning")
+    assert_raises(java.lang.IllegalArgumentException) { Pool.fromName("replica") }
+    assert_raises(java.lang.IllegalArgumentException) { Database.usePoolOnThisThread("pants") }
+    # Background tasks use the job pool by default, and every registered task uses a known pool
+    assert_equal Pool::JOB, Pool.fromName(KFramework::BackgroundTask.new.database_pool)
+    KFramework.class_variable_get(:@@background_tasks).each do |task|
+      assert_nothing_raised { Pool.fromName(task.database_pool) }
+    end
+    Pool.values.each do |pool|
+      assert pool.getMaximumPoolSize() >= 1
+      assert pool.getMinimumIdle() <= pool.getMaximumPoolSize()
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_connections_from_each_pool
+    Pool.values.each do |pool|
+      with_pool_and_metrics_application(pool.getName()) do
+        uses_before = Database.getConnectionUseCount(pool.getName(), TEST_METRICS_APP_ID.to_s)
+        # Server side statement timeout is configured for each pool
+        statement_timeout = Database.withConnection do |connection|
+          # Connections are reused within the same unit of work
+          assert_equal "1", Database.withConnection { |c2| assert c2.equal?(connection); query_value(c2, "SELECT 1") }
+          query_value(connection, STATEMENT_TIMEOUT_SQL)
+        end
+        assert_equal pool.getStatementTimeout().to_s, statement_timeout
+        assert_equal pool.getScriptQueryTimeout(), Database.getScriptQueryTimeout()
+        # Use is counted for the pool and application
+        assert_equal uses_before + 1, Database.getConnectionUseCount(pool.getName(), TEST_METRICS_APP_ID.to_s)
+      end
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_statement_timeout_cleanup
+    with_pool_and_metrics_application("job") do
+      # A statement cancelled by a timeout inside a transaction is rolled back when the connection is returned
+      assert_raises(java.sql.SQLException) do
+        Database.withConnection do |connection|
+          Database.execute(connection, "BEGIN; SET LOCAL statement_timeout = 50")
+          query_value(connection, "SELECT pg_sleep(10)")
+        end
+      end
+      # Connections from the pool are usable afterwards, without the timeout or an open transaction
+      Pool::JOB.getMaximumPoolSize().times do
+        Database.withConnection do |connection|
+          assert_equal TransactionState::IDLE, connection.unwrap(BaseConnection.java_class).getTransactionState()
+          assert_equal Pool::JOB.getStatementTimeout().to_s, query_value(connection, STATEMENT_TIMEOUT_SQL)
+        end
+      end
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_read_replica_routing
+    with_pool_and_metrics_application("request") do
+      Database.clearApplicationOnThisThread() # start of a new request, so not pinned to the primary
+      Database.setApplicationOnThisThread(TEST_METRICS_APP_ID)
+      Database.usePrimaryAsReplicaForTests(true)
+      begin
+        uses = lambda { |pool_name| Database.getConnectionUseCount(pool_name, TEST_METRICS_APP_ID.to_s) }
+        check_read_only_query_uses = lambda do |expected_pool_name|
+          before = {"request" => uses.("request"), "replica" => uses.("replica")}
+          assert_equal "1", Database.withReadOnlyConnection { |c| query_value(c, "SELECT 1") }
+          before[expected_pool_name] += 1
+          assert_equal before, {"request" => uses.("request"), "replica" => uses.("replica")}
+        end
+        # Replica isn't used until a lag check says it's up to date
+        assert !Database.isReplicaUsable()
+        check_read_only_query_uses.("request")
+        Database.updateReplicaUsable(0.0, nil)
+        assert Database.isReplicaUsable()
+        check_read_only_query_uses.("replica")
+        # Reading from the primary doesn't stop the replica being used
+        Database.withPrimaryConnectionForReading { |c| query_value(c, "SELECT 1") }
+        KApp.with_jdbc_database_for_reading { |c| query_value(c, "SELECT 1") }
+        check_read_only_query_uses.("replica")
+        # Read only queries inside another connection use that connection
+        Database.withPrimaryConnectionForReading do |c|
+          assert Database.withReadOnlyConnection { |c2| c2.equal?(c) }
+        end
+        check_read_only_query_uses.("replica")
+        # Any other use of the primary may have written, so the rest of the request uses the primary
+        Database.withConnection { |c| query_value(c, "SELECT 1") }
+        check_read_only_query_uses.("request")
+        check_read_only_query_uses.("request")
+        # ... until the next request
+        Database.clearApplicationOnThisThread()
+        Database.setApplicationOnThisThread(TEST_METRICS_APP_ID)
+        check_read_only_query_uses.("replica")
+        KApp.with_jdbc_database { |c| query_value(c, "SELECT 1") }
+        check_read_only_query_uses.("request")
+      ensure
+        Database.usePrimaryAsReplicaForTests(false)
+      end
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_read_replica_lag_fallback
+    Database.usePrimaryAsReplicaForTests(true)
+    begin
+      Database.updateReplicaUsable(0.0, nil)
+      assert Database.isReplicaUsable()
+      # Lagging by more than org.haplo.db.replica.maxlag
+      Database.updateReplicaUsable(30.0, nil)
+      assert !Database.isReplicaUsable()
+      Database.updateReplicaUsable(0.5, nil)
+      assert Database.isReplicaUsable()
+      # Unknown lag, when the replica isn't a standby or its WAL receiver isn't streaming
+      Database.updateReplicaUsable(nil, nil)
+      assert !Database.isReplicaUsable()
+      Database.updateReplicaUsable(0.0, nil)
+      # Lag check failed
+      Database.updateReplicaUsable(nil, java.sql.SQLException.new("Test failure"))
+      assert !Database.isReplicaUsable()
+      # A server which isn't a standby doesn't report zero lag
+      Database.withConnection do |connection|
+        assert_equal nil, Database.queryReplicationLag(connection)
+      end
+    ensure
+      Database.usePrimaryAsReplicaForTests(false)
+    end
+    assert !Database.isReplicaUsable()
+  end
+
+end
@@ -0,0 +1,149 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class DynamicFileCacheTest < Test::Unit::TestCase
+
+  Application = Java::OrgHaploFramework::Application
+  DynamicFileCache = Java::OrgHaploFramework::DynamicFileCache
+  StaticFileResponse = Java::OrgHaploAppserver::StaticFileResponse
+
+  # Applications which don't exist, so tests don't affect the cached files of the test application
+  TEST_APP_ID_BASE = 9876500
+
+  def with_test_application(offset = 0)
+    app_id = TEST_APP_ID_BASE + offset
+    begin
+      yield Application.fromApplicationID(app_id).getDynamicFileCache()
+    ensure
+      Application.forgetApplication(app_id)
+    end
+  end
+
+  def make_response(size)
+    StaticFileResponse.new(("x" * size).to_java_bytes, "text/plain", false)
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_generated_once_for_concurrent_requests
+    with_test_application do |cache|
+      calls = java.util.concurrent.atomic.AtomicInteger.new
+      start = java.util.concurrent.CountDownLatch.new(1)
+      threads = (0..7).map do
+        Thread.new do
+          start.await
+          cache.get("file.css") do |filename|
+            calls.incrementAndGet()
+            sleep 0.2 # so other threads ask for the file while it's being generated
+            make_response(100)
+          end
+        end
+      end
+      start.countDown()
+      responses = threads.map { |t| t.value }
+      assert_equal 1, calls.get()
+      responses.each { |r| assert r.equal?(responses.first) }
+      # Later requests use the cached response
+      assert cache.get("file.css") { |filename| flunk "should not generate" }.equal?(responses.first)
+      # Different filenames are generated separately
+      other = cache.get("other.css") { |filename| make_response(50) }
+      assert !(other.equal?(responses.first))
+      # Size accounting includes the cached files, and is released when invalidated
+      size_before_invalidate = DynamicFileCache.getTotalSize()
+      cache.invalidateAll()
+      assert_equal size_before_invalidate - 150, DynamicFileCache.getTotalSize()
+      assert !(cache.get("file.css") { |filename| make_response(100) }.equal?(responses.first))
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_null_responses_are_not_cached
+    with_test_application do |cache|
+      calls = 0
+      2.times { assert_equal nil, cache.get("missing.css") { |filename| calls += 1; nil } }
+      assert_equal 2, calls
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_failed_generation
+    with_test_application do |cache|
+      total_size = DynamicFileCache.getTotalSize()
+      # Exceptions which aren't RuntimeExceptions are passed to every caller waiting for the file
+      start = java.util.concurrent.CountDownLatch.new(1)
+      threads = (0..3).map do
+        Thread.new do
+          start.await
+          begin
+            cache.get("fail.css") do |filename|
+              sleep 0.2
+              raise java.lang.AssertionError.new("Generation failed")
+            end
+            :no_exception
+          rescue java.lang.AssertionError => e
+            e.getMessage()
+          end
+        end
+      end
+      start.countDown()
+      assert_equal ["Generation failed"] * 4, threads.map { |t| t.value }
+      # Failures aren't cached, the next request tries again
+      response = make_response(10)
+      assert cache.get("fail.css") { |filename| response }.equal?(response)
+      assert_equal total_size + 10, DynamicFileCache.getTotalSize()
+      # Ruby exceptions too
+      assert_raises(RuntimeError) { cache.get("fail2.css") { |filename| raise "Ruby failure" } }
+      assert cache.get("fail2.css") { |filename| response }.equal?(response)
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_least_recently_used_files_evicted
+    with_test_application(0) do |cache0|
+      with_test_application(1) do |cache1|
+        begin
+          # Start with an empty cache, so only the files in this test are counted
+          Application.allLoadedApplicationObjects().each { |app| app.invalidateAllDynamicFiles() }
+          DynamicFileCache.setMaximumTotalSize(10000)
+          generated = []
+          get_file = lambda do |cache, filename|
+            cache.get(filename) { |f| generated << filename; make_response(2000) }
+          end
+          # Fill the cache to the limit, across two applications
+          get_file.(cache0, "a")
+          get_file.(cache0, "b")
+          get_file.(cache1, "c")
+          get_file.(cache1, "d")
+          get_file.(cache0, "e")
+          assert_equal 10000, DynamicFileCache.getTotalSize()
+          # Use a and c, so b, d and e are the least recently used files
+          get_file.(cache0, "a")
+          get_file.(cache1, "c")
+          assert_equal ["a", "b", "c", "d", "e"], generated
+          # Exceeding the limit evicts least recently used files down to three quarters of the maximum
+          get_file.(cache1, "f")
+          assert_equal 6000, DynamicFileCache.getTotalSize()
+          generated.clear
+          get_file.(cache0, "a")
+          get_file.(cache1, "c")
+          get_file.(cache1, "f")
+          assert_equal [], generated
+          get_file.(cache0, "b")
+          get_file.(cache1, "d")
+          get_file.(cache0, "e")
+          assert_equal ["b", "d", "e"], generated
+        ensure
+          DynamicFileCache.setMaximumTotalSize(java.lang.Long.getLong("org.haplo.dynamicfiles.maxsize", 256 * 1024 * 1024))
+        end
+      end
+    end
+  end
+
+end
@@ -0,0 +1,56 @@
+# Haplo Platform                                    https://haplo.org
+# (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class JavaFormatterCacheTest < Test::Unit::TestCase
+
+  FormatterCache = org.haplo.jsinterface.util.FormatterCache
+  JsDecimalFormat = org.haplo.jsinterface.util.JsDecimalFormat
+  JsBigDecimal = org.haplo.jsinterface.util.JsBigDecimal
+
+  JsDecimalFormat.class_eval { field_reader :decimalFormat }
+
+  PATTERN = "#,##0.00"
+
+  def make_decimal_format(pattern)
+    formatter = JsDecimalFormat.new
+    formatter.jsConstructor(pattern)
+    formatter
+  end
+
+  def make_big_decimal(string)
+    number = JsBigDecimal.new
+    number.jsConstructor(string)
+    number
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_decimal_formats_are_separate_clones
+    # Every call returns a new DecimalFormat, which can be changed without affecting the cached format
+    format1 = FormatterCache.decimalFormat(PATTERN)
+    format2 = FormatterCache.decimalFormat(PATTERN)
+    assert !format1.equal?(format2)
+    format1.setGroupingUsed(false)
+    format1.setMaximumFractionDigits(4)
+    assert_equal "1234.5678", format1.format(1234.5678)
+    assert_equal "1,234.57", format2.format(1234.5678)
+    assert_equal "1,234.57", FormatterCache.decimalFormat(PATTERN).format(1234.5678)
+
+    # Each JsDecimalFormat has its own clone
+    formatter1 = make_decimal_format(PATTERN)
+    formatter2 = make_decimal_format(PATTERN)
+    assert formatter1.decimalFormat.equal?(formatter1.decimalFormat)
+    assert !formatter1.decimalFormat.equal?(formatter2.decimalFormat)
+    formatter1.decimalFormat.setGroupingUsed(false)
+    assert_equal "1234.57", formatter1.jsFunction_format(1234.5678)
+    assert_equal "1,234.57", formatter2.jsFunction_format(1234.5678)
+    assert_equal "1,234.57", make_decimal_format(PATTERN).jsFunction_format(1234.5678)
+    # JsBigDecimal.format() isn't affected by changes to the JsDecimalFormat's clone either
+    assert_equal "1,234.57", make_big_decimal("1234.5678").jsFunction_format(PATTERN)
+  end
+
+end
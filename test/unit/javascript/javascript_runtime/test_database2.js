@@ -214,6 +214,107 @@ TEST(function() {
     testRequiredStateAgainstDB();
 
 
+    // =====================================================================================
+    // Batched create and update
+    var existingX1 = db.x1.create({number:9000}).save();
+    TEST.assert_exceptions(function() { db.x1.createMany([existingX1]); }, "Row passed to createMany() has already been saved");
+    TEST.assert_exceptions(function() { db.x1.createMany([db.x1.load(existingX1.id)]); }, "Row passed to createMany() has already been saved");
+    TEST.assert_equal(1, db.x1.select().where("number","=",9000).count());
+    TEST.assert_exceptions(function() { db.x1.createMany({number:9001}); }, "createMany() must be passed an array");
+    var manyRows = [db.x1.create({number:9002})];
+    for(var m = 9003; m < 10500; ++m) { manyRows.push({number:m}); }   // more than one batch
+    var createdMany = db.x1.createMany(manyRows);
+    TEST.assert_equal(1498, createdMany.length);
+    TEST.assert(createdMany[0] === manyRows[0]);
+    _.each(createdMany, function(row) { TEST.assert(row.id > existingX1.id); });
+    TEST.assert_equal(10499, db.x1.load(createdMany[1497].id).number);
+    TEST.assert_equal(1498, db.x1.select().where("number",">",9001).count());
+    TEST.assert_equal(0, db.x1.createMany([]).length);
+    // updateAll with rows changed in different ways
+    var updatedCount = db.x1.select().where("number",">",9001).updateAll(function(row, index) {
+        if(row.number > 10000) {
+            row.number = row.number + 10000;
+        }
+    });
+    TEST.assert_equal(499, updatedCount);
+    TEST.assert_equal(499, db.x1.select().where("number",">",20000).count());
+    TEST.assert_equal(0, db.x1.select().where("number",">",10000).where("number","<",20000).count());
+    TEST.assert_equal(20499, db.x1.load(createdMany[1497].id).number);
+    TEST.assert_equal(9002, db.x1.load(createdMany[0].id).number);
+
+    // =====================================================================================
+    // Streaming results through a cursor (more rows than in a single chunk)
+    var streamed = [];
+    var streamSelect = db.x1.select().where("number",">",9001).order("number");
+    TEST.assert(streamSelect === streamSelect.stream(function(row, index) {
+        TEST.assert_equal(streamed.length, index);
+        streamed.push(row.number);
+        if(index === 3) {
+            // Database can be used within the iterator
+            TEST.assert_equal(9002, db.x1.load(createdMany[0].id).number);
+        }
+    }));
+    TEST.assert_equal(1498, streamed.length);
+    TEST.assert_equal(9002, streamed[0]);
+    TEST.assert_equal(20499, streamed[1497]);
+    var streamedLimited = 0;
+    db.x1.select().where("number",">",9001).limit(10).stream(function() { streamedLimited++; });
+    TEST.assert_equal(10, streamedLimited);
+    // Exceptions in the iterator are passed on
+    TEST.assert_exceptions(function() {
+        db.x1.select().where("number",">",9001).stream(function() { throw new Error("stop streaming"); });
+    }, "stop streaming");
+    // Changes made by the iterator are kept when it throws an exception, as with each()
+    TEST.assert_exceptions(function() {
+        db.x1.select().where("number",">",20000).order("number").stream(function(row, index) {
+            if(index === 2) { throw new Error("stop after saving"); }
+            row.number = row.number + 100000;
+            row.save();
+        });
+    }, "stop after saving");
+    TEST.assert_equal(2, db.x1.select().where("number",">",100000).count());
+    db.x1.select().where("number",">",100000).each(function(row) {
+        row.number = row.number - 100000;
+        row.save();
+    });
+    TEST.assert_equal(499, db.x1.select().where("number",">",20000).count());
+    // Cursors are closed after exceptions, so streaming can continue
+    for(var attempt = 0; attempt < 3; ++attempt) {
+        TEST.assert_exceptions(function() {
+            db.x1.select().where("number",">",9001).stream(function() { throw new Error("stop streaming again"); });
+        }, "stop streaming again");
+    }
+    var streamedAfterExceptions = 0;
+    db.x1.select().where("number",">",9001).stream(function() { streamedAfterExceptions++; });
+    TEST.assert_equal(1498, streamedAfterExceptions);
+    // Select which has been executed can't be streamed
+    var executedSelect = db.x1.select().where("number",">",9001);
+    TEST.assert_equal(1498, executedSelect.length);
+    TEST.assert_exceptions(function() { executedSelect.stream(function() {}); }, "Query has been executed, and cannot be modified.");
+
+    // =====================================================================================
+    // Loading many rows by id
+    var loadedMany = db.x1.loadMany([createdMany[5].id, 99999999, createdMany[2].id, createdMany[5].id]);
+    TEST.assert_equal(4, loadedMany.length);
+    TEST.assert_equal(9007, loadedMany[0].number);
+    TEST.assert_equal(null, loadedMany[1]);
+    TEST.assert_equal(9004, loadedMany[2].number);
+    TEST.assert_equal(createdMany[5].id, loadedMany[3].id);
+    TEST.assert_equal(0, db.x1.loadMany([]).length);
+    TEST.assert_exceptions(function() { db.x1.loadMany(createdMany[5].id); }, "loadMany() must be passed an array of ids");
+    TEST.assert_exceptions(function() { db.x1.loadMany(["x"]); }, "loadMany() must be passed an array of ids");
+    // Loaded rows reflect changes to the database
+    var loadAfterChange = db.x1.load(createdMany[2].id);
+    loadAfterChange.number = 9999;
+    loadAfterChange.save();
+    TEST.assert_equal(9999, db.x1.loadMany([createdMany[2].id])[0].number);
+    db.x1.select().where("id","=",createdMany[2].id).update({number:9004});
+    TEST.assert_equal(9004, db.x1.load(createdMany[2].id).number);
+
+    // Clean up so other tests aren't affected
+    TEST.assert_equal(1499, db.x1.select().where("number",">=",9000).deleteAll());
+
+
     // =====================================================================================
     // Very simple migration test
     db.forMigration.create({number1:2}).save();
@@ -0,0 +1,90 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2017   https://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+// Run with the per-request load cache enabled, after test_database.js and test_database2.js
+var db = this.__test_database_db;
+
+TEST(function() {
+
+    var ids = [];
+    for(var i = 0; i < 4; ++i) {
+        ids.push(db.x1.create({number:70000+i}).save().id);
+    }
+
+    // =====================================================================================
+    // Repeated loads return the same object
+    var r0 = db.x1.load(ids[0]);
+    TEST.assert_equal(70000, r0.number);
+    TEST.assert(r0 === db.x1.load(ids[0]));
+    TEST.assert(db.x1.load(ids[1]) !== r0);
+    TEST.assert_equal(null, db.x1.load(99999999));
+
+    // loadMany() uses cached rows, and caches the rows it loads
+    var many = db.x1.loadMany([ids[2], ids[0], 99999999, ids[2]]);
+    TEST.assert_equal(4, many.length);
+    TEST.assert_equal(70002, many[0].number);
+    TEST.assert(many[1] === r0);
+    TEST.assert_equal(null, many[2]);
+    TEST.assert(many[3] === many[0]);
+    TEST.assert(db.x1.load(ids[2]) === many[0]);
+
+    // Tables are cached separately
+    var x2row = db.x2.create({number:1, xlink:r0}).save();
+    TEST.assert(db.x2.load(x2row.id) === db.x2.load(x2row.id));
+    TEST.assert(db.x2.load(x2row.id) !== r0);
+    TEST.assert_equal(70000, db.x2.load(x2row.id).xlink.number);
+
+    // =====================================================================================
+    // Saving invalidates the row
+    r0.number = 71000;
+    r0.save();
+    var r0b = db.x1.load(ids[0]);
+    TEST.assert(r0b !== r0);
+    TEST.assert_equal(71000, r0b.number);
+    TEST.assert(r0b === db.x1.load(ids[0]));
+
+    // Unsaved changes aren't returned by later loads
+    var r1 = db.x1.load(ids[1]);
+    r1.number = 72000;
+    var r1b = db.x1.load(ids[1]);
+    TEST.assert(r1b !== r1);
+    TEST.assert_equal(70001, r1b.number);
+    TEST.assert_equal(72000, r1.number);
+    TEST.assert(db.x1.loadMany([ids[1]])[0] === r1b);
+
+    // Deleting
+    var r3 = db.x1.load(ids[3]);
+    TEST.assert(r3.deleteObject());
+    TEST.assert_equal(null, db.x1.load(ids[3]));
+    TEST.assert_equal(null, db.x1.loadMany([ids[3]])[0]);
+
+    // =====================================================================================
+    // Writes to many rows invalidate the whole table
+    var beforeUpdate = db.x1.load(ids[2]);
+    TEST.assert_equal(1, db.x1.select().where("id","=",ids[2]).update({number:73000}));
+    var afterUpdate = db.x1.load(ids[2]);
+    TEST.assert(afterUpdate !== beforeUpdate);
+    TEST.assert_equal(73000, afterUpdate.number);
+
+    TEST.assert_equal(1, db.x1.select().where("id","=",ids[2]).updateAll(function(row) { row.number = 74000; }));
+    TEST.assert_equal(74000, db.x1.load(ids[2]).number);
+
+    // Other tables are unaffected by writes to many rows
+    var cachedX2 = db.x2.load(x2row.id);
+    db.x1.select().where("id","=",ids[1]).update({number:75000});
+    TEST.assert(db.x2.load(x2row.id) === cachedX2);
+    TEST.assert_equal(75000, db.x1.load(ids[1]).number);
+
+    db.x2.select().where("id","=",x2row.id).deleteAll();
+    TEST.assert_equal(null, db.x2.load(x2row.id));
+    db.x1.select().where("id","=",ids[0]).deleteAll();
+    TEST.assert_equal(null, db.x1.load(ids[0]));
+
+    // Clean up
+    db.x1.select().where("number",">=",70000).deleteAll();
+
+});
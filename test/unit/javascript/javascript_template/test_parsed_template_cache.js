@@ -0,0 +1,23 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+TEST(function() {
+
+    // Templates with the same source share the parsed template
+    var t1 = new $HaploTemplate('<p> x </p>', "cache-test");
+    var t2 = new $HaploTemplate('<p> x </p>', "cache-test");
+    TEST.assert_equal('<p>1</p>', t1.render({x:1}));
+    TEST.assert_equal('<p>2</p>', t2.render({x:2}));
+
+    // Debug comments only apply to the template they're added to
+    t1.addDebugComment("first");
+    TEST.assert_equal('<!-- BEGIN first --><p>1</p><!-- END first -->', t1.render({x:1}));
+    TEST.assert_equal('<p>2</p>', t2.render({x:2}));
+    var t3 = new $HaploTemplate('<p> x </p>', "cache-test");
+    TEST.assert_equal('<p>3</p>', t3.render({x:3}));
+
+});
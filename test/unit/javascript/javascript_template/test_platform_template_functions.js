@@ -270,6 +270,8 @@ TEST(function() {
             ["std:utc:date:long",   "03 July 2016",         dateToFormat],
             ["std:utc:date:time",   "03 Jul 2016, 23:12",   dateToFormat],
             ["std:utc:date:sort",   "201607032312",         dateToFormat],
+            // Dates before 1582 use the same proleptic Gregorian calendar as JavaScript
+            ["std:utc:date",        "01 Jan 1500",          new Date(Date.UTC(1500, 0, 1, 12))],
             // Check bad values just result in empty strings
             ["std:date",            "",                     undefined],
             ["std:date",            "",                     true],
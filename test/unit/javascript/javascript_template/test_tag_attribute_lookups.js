@@ -0,0 +1,33 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+TEST(function() {
+
+    // Attributes with values from the same object look up that object once
+    var template = new $HaploTemplate(
+        '<div> each(rows) { <a href=item.url title=item.title data-n=item.n data-e=item.empty data-m=item.missing lang=other.title> "x" </a> '+
+        '<b data-a=missing.a data-b=missing.b dir=s> "y" </b> } </div>',
+        "tag-attribute-lookups-test");
+
+    var lookups = 0;
+    var item = {url:'/a b?c=1&d="2"', title:'T<">&', n:0, empty:''};
+    var row = {other:{title:"O"}, s:"str"};
+    Object.defineProperty(row, "item", {get: function() { lookups++; return item; }});
+
+    var expectedRow = '<a href="/a%20b?c=1&d=%222%22" title="T&lt;&quot;&gt;&amp;" data-n="0" lang="O">x</a><b dir="str">y</b>';
+    TEST.assert_equal('<div>'+expectedRow+expectedRow+'</div>', template.render({rows:[row, row]}));
+    TEST.assert_equal(2, lookups);
+
+    // Changes to the looked up object between renders are used
+    item = {url:"/b", title:"U"};
+    TEST.assert_equal('<div><a href="/b" title="U" lang="O">x</a><b dir="str">y</b></div>', template.render({rows:[row]}));
+    TEST.assert_equal(3, lookups);
+
+    // Missing parent objects omit all the attributes
+    TEST.assert_equal('<div><a>x</a><b>y</b></div>', template.render({rows:[{}]}));
+
+});
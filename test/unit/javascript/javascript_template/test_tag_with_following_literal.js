@@ -0,0 +1,55 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+TEST(function() {
+
+    // Literals following a tag with dynamic attributes are merged into the tag
+    var template = new $HaploTemplate(
+        '<ul> each(items) { <li title=title data-x="y"> name " & " </li> } '+
+        'if(flag) { <a href=link> "Link" </a> " then " } else { <span title=title> "x" </span> } </ul>',
+        "tag-following-literal-test");
+
+    TEST.assert_equal([
+        'LIST',
+        '  LITERAL <ul>',
+        '  EACH',
+        '    ARGUMENTS',
+        '      VALUE items',
+        '    ANONYMOUS BLOCK',
+        '      LIST',
+        '        TAG <li data-x=y> with 1 attributes:',
+        '          title',
+        '            VALUE title',
+        '        VALUE name',
+        '        LITERAL  & </li>',
+        '  IF',
+        '    ARGUMENTS',
+        '      VALUE flag',
+        '    ANONYMOUS BLOCK',
+        '      TAG <a> with 1 attributes:',
+        '        href',
+        '          VALUE link',
+        '      LITERAL Link</a> then ',
+        '    BLOCK else',
+        '      TAG <span> with 1 attributes:',
+        '        title',
+        '          VALUE title',
+        '      LITERAL x</span>',
+        '  LITERAL </ul>',
+        ''
+    ].join("\n"), template.dump());
+
+    TEST.assert_equal('<ul><li data-x=y title="a">N1 & </li><li data-x=y title="b&lt;&quot;">N2 & </li><a href="/l?a=1&b=2">Link</a> then </ul>',
+        template.render({
+            items: [{title:"a", name:"N1"}, {title:'b<"', name:"N2"}],
+            flag: true,
+            link: "/l?a=1&b=2"
+        }));
+    TEST.assert_equal('<ul><span title="T">x</span></ul>',
+        template.render({items:[], flag:false, title:"T"}));
+
+});
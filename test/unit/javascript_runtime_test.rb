@@ -750,6 +750,35 @@ __E
 
   # ===============================================================================================
 
+  def test_execution_budget
+    plugin_runtime = KJSPluginRuntime.current
+    runtime = plugin_runtime.runtime
+    [
+      "while(true) {}",
+      # Exceeding the budget is an exception JavaScript can catch, but it's thrown again so the code can't continue
+      "var completed = 0; while(true) { try { while(true) {} } catch(e) { completed++; } }",
+      "var completed = 0; function f() { try { while(true) {} } catch(e) { return 1; } } f(); for(var i = 0; i < 10; ++i) { completed++; }",
+      # or be stopped by a finally block
+      "while(true) { try { while(true) {} } finally { continue; } }"
+    ].each do |script|
+      exception = assert_raise Java::OrgMozillaJavascript::WrappedException do
+        plugin_runtime.using_runtime do
+          runtime.startExecutionBudget("request", 1000000)
+          runtime.evaluateString(script, "p/test_execution_budget/runaway.js")
+        end
+      end
+      assert exception.getWrappedException().kind_of?(Java::OrgHaploJavascript::OExecutionBudgetException)
+      assert exception.getWrappedException().getMessage().start_with?("JavaScript exceeded the instructions allowed for a request")
+    end
+    runtime.evaluateString("if(completed !== 0) { throw new Error('code continued after budget exceeded'); }", "p/test_execution_budget/check.js")
+    # Budget is removed when the outermost using_runtime() returns, so doesn't apply to later calls
+    runtime.evaluateString("for(var i = 0; i < 2000000; ++i) {}", "p/test_execution_budget/long.js")
+  ensure
+    KApp.cache_invalidate(KJSPluginRuntime::RUNTIME_CACHE)
+  end
+
+  # ===============================================================================================
+
   def test_text
     run_javascript_test(:file, 'unit/javascript/javascript_runtime/test_text.js')
   end
@@ -1109,7 +1138,16 @@ __E
       })
     end
     # Test is split into two parts to avoid the function being too long
-    run_javascript_test(:file, 'unit/javascript/javascript_runtime/test_database2.js', nil, "grant_privileges_plugin")
+    run_javascript_test(:file, 'unit/javascript/javascript_runtime/test_database2.js', nil, "grant_privileges_plugin", :preserve_js_runtime)
+    # Then test the per-request load cache, which is disabled by default
+    load_cache = Java::OrgHaploJsinterfaceDb::JdLoadCache
+    load_cache_was_enabled = load_cache.isEnabled()
+    begin
+      load_cache.setEnabled(true)
+      run_javascript_test(:file, 'unit/javascript/javascript_runtime/test_database_load_cache.js', nil, "grant_privileges_plugin")
+    ensure
+      load_cache.setEnabled(load_cache_was_enabled)
+    end
     KApp.with_pg_database do |db|
       # Check columns for the dynamic table
       column_defns = db.exec("SELECT column_name,data_type FROM information_schema.columns WHERE table_schema='a#{KApp.current_application}' AND table_name='j_dbtest_dyn1'").to_a.sort
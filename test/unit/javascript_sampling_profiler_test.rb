@@ -0,0 +1,66 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class JavaScriptSamplingProfilerTest < Test::Unit::TestCase
+
+  SamplingProfiler = Java::OrgHaploJavascriptDebugger::SamplingProfiler
+
+  PROFILED_SCRIPT = <<__E
+function profiledLoop(end) {
+  var x = 0;
+  while(Date.now() < end) {
+    x += Math.sqrt(x + 1);
+  }
+  return x;
+}
+profiledLoop(Date.now() + 500);
+__E
+
+  def run_profiled_script
+    plugin_runtime = KJSPluginRuntime.current
+    plugin_runtime.using_runtime do
+      plugin_runtime.runtime.evaluateString(PROFILED_SCRIPT, "p/test_sampling_profiler/loop.js")
+    end
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_sampling_profiler
+    # Nothing is sampled when there isn't an active profile
+    SamplingProfiler.startProfile(_TEST_APP_ID)
+    SamplingProfiler.stopProfile(_TEST_APP_ID)
+    assert !SamplingProfiler.isProfiling(_TEST_APP_ID)
+    run_profiled_script
+    assert_equal "", SamplingProfiler.getFoldedStacks(_TEST_APP_ID)
+
+    # Active profile samples the stacks of compiled scripts, with the plugin as the root frame, and line numbers
+    SamplingProfiler.startProfile(_TEST_APP_ID)
+    assert SamplingProfiler.isProfiling(_TEST_APP_ID)
+    run_profiled_script
+    lines = SamplingProfiler.getFoldedStacks(_TEST_APP_ID).split("\n")
+    assert lines.length > 0
+    lines.each { |line| assert line =~ /\A\S.* \d+\z/ }
+    loop_lines = lines.select { |line| line.start_with?("test_sampling_profiler;<anonymous> (p/test_sampling_profiler/loop.js:8);") }
+    assert loop_lines.any? { |line| line =~ /;profiledLoop \(p\/test_sampling_profiler\/loop\.js:[345]\) \d+\z/ }
+    total_samples = lines.map { |line| line.split(' ').last.to_i }.sum
+    # About 10 samples at the default interval, allowing for slow test machines
+    assert total_samples >= 2
+
+    # Stopping keeps the samples, but doesn't add any more
+    SamplingProfiler.stopProfile(_TEST_APP_ID)
+    folded = SamplingProfiler.getFoldedStacks(_TEST_APP_ID)
+    run_profiled_script
+    assert_equal folded, SamplingProfiler.getFoldedStacks(_TEST_APP_ID)
+
+    # Starting a new profile discards the old samples
+    SamplingProfiler.startProfile(_TEST_APP_ID)
+    assert_equal "", SamplingProfiler.getFoldedStacks(_TEST_APP_ID)
+  ensure
+    SamplingProfiler.stopProfile(_TEST_APP_ID)
+  end
+
+end
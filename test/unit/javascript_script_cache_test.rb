@@ -0,0 +1,86 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class JavaScriptScriptCacheTest < Test::Unit::TestCase
+
+  JsScriptCache = Java::OrgHaploJavascript::JsScriptCache
+  Context = Java::OrgMozillaJavascript::Context
+
+  def test_script_cache
+    dir = "#{FILE_UPLOADS_TEMPORARY_DIR}/test_js_script_cache.#{Thread.current.object_id}"
+    FileUtils.rm_rf(dir)
+    cx = Context.enter()
+    optimisation_level = cx.getOptimizationLevel()
+    begin
+      cx.setOptimizationLevel(0) # only compiled classes are cached on disk
+      JsScriptCache.setDiskCacheDirectory(java.io.File.new(dir))
+      scope = cx.initStandardObjects()
+
+      # Miss compiles the script and writes the classes to disk
+      script1 = JsScriptCache.compile(cx, "'a'+'b';", "test1.js")
+      assert_equal "ab", script1.exec(cx, scope)
+      cached_files = Dir.glob("#{dir}/*.classes")
+      assert_equal 1, cached_files.length
+      assert_equal cached_files, Dir.glob("#{dir}/*") # no temporary files left behind
+      cached_file = cached_files.first
+
+      # Hit returns the same script
+      assert_equal script1, JsScriptCache.compile(cx, "'a'+'b';", "test1.js")
+
+      # Changing the source or the name is a miss
+      script2 = JsScriptCache.compile(cx, "'a'+'c';", "test1.js")
+      assert_not_equal script1, script2
+      assert_equal "ac", script2.exec(cx, scope)
+      script3 = JsScriptCache.compile(cx, "'a'+'b';", "test2.js")
+      assert_not_equal script1, script3
+      assert_equal 3, Dir.glob("#{dir}/*.classes").length
+
+      # After a restart, classes are loaded from disk and not written again
+      File.utime(Time.at(0), Time.at(0), cached_file)
+      JsScriptCache.setDiskCacheDirectory(java.io.File.new(dir))
+      script4 = JsScriptCache.compile(cx, "'a'+'b';", "test1.js")
+      assert_not_equal script1, script4
+      assert_equal "ab", script4.exec(cx, scope)
+      assert_equal 0, File.mtime(cached_file).to_i
+
+      # Corrupt files are replaced by compiling the script again
+      valid_contents = File.open(cached_file, "rb") { |f| f.read }
+      [
+        "",                                         # empty
+        valid_contents[0, valid_contents.length / 2], # truncated
+        "\xff" * 64,                                # huge class count
+        valid_contents.sub("\xca\xfe\xba\xbe".b, "\x00\x00\x00\x00".b) # bad class file
+      ].each do |corrupt_contents|
+        File.open(cached_file, "wb") { |f| f.write corrupt_contents }
+        JsScriptCache.setDiskCacheDirectory(java.io.File.new(dir))
+        script5 = JsScriptCache.compile(cx, "'a'+'b';", "test1.js")
+        assert_equal "ab", script5.exec(cx, scope)
+        assert_equal valid_contents, File.open(cached_file, "rb") { |f| f.read }
+      end
+      assert_equal 3, Dir.glob("#{dir}/*").length
+    ensure
+      cx.setOptimizationLevel(optimisation_level)
+      Context.exit()
+      dir_property = java.lang.System.getProperty("org.haplo.javascript.scriptcache.dir")
+      JsScriptCache.setDiskCacheDirectory((dir_property && !dir_property.empty?) ? java.io.File.new(dir_property) : nil)
+      FileUtils.rm_rf(dir)
+    end
+  end
+
+  def test_runtime_evaluate_string_uses_cache
+    source = "this.__test_script_cache_count = (this.__test_script_cache_count || 0) + 1;"
+    KJSPluginRuntime.current.using_runtime do
+      runtime = KJSPluginRuntime.current.runtime
+      runtime.evaluateString(source, "test_eval.js")
+      assert JsScriptCache.isCached(runtime.getContext(), source, "test_eval.js")
+      # Cached script is executed in the runtime's scope each time
+      runtime.evaluateString(source, "test_eval.js")
+      runtime.evaluateString("if(this.__test_script_cache_count !== 2) { throw new Error('bad count'); }", "test_eval_check.js")
+    end
+  end
+
+end
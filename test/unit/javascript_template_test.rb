@@ -48,4 +48,42 @@ class JavascriptTemplateTest < Test::Unit::TestCase
   def test_template_is_deferred_render
     run_javascript_test(:file, 'unit/javascript/javascript_template/test_template_is_deferred_render.js');
   end
+
+  def test_parsed_template_cache
+    run_javascript_test(:file, 'unit/javascript/javascript_template/test_parsed_template_cache.js');
+  end
+
+  def test_tag_with_following_literal
+    run_javascript_test(:file, 'unit/javascript/javascript_template/test_tag_with_following_literal.js');
+  end
+
+  def test_tag_attribute_lookups
+    run_javascript_test(:file, 'unit/javascript/javascript_template/test_tag_attribute_lookups.js');
+  end
+
+  def _test_non_representative_dated_rows_benchmark
+    plugin_runtime = KJSPluginRuntime.current
+    runtime = plugin_runtime.runtime
+    plugin_runtime.using_runtime do
+      runtime.evaluateString(<<__E, "p/dated_rows_benchmark/setup.js")
+        var datedRowsBenchmark = {
+            template: new $HaploTemplate('<table> each(rows) { <tr> <td> name </td> <td> std:date(date) </td> '+
+                '<td> std:date:time(date) </td> <td> std:utc:date:sort(date) </td> </tr> } </table>', "dated-rows-benchmark"),
+            view: {rows:[]}
+        };
+        for(var i = 0; i < 10000; ++i) {
+            datedRowsBenchmark.view.rows.push({name:"Row "+i, date:new Date(2016, i % 12, 1 + (i % 28), i % 24, i % 60)});
+        }
+__E
+      render = lambda { runtime.evaluateString("datedRowsBenchmark.template.render(datedRowsBenchmark.view);", "p/dated_rows_benchmark/render.js") }
+      10.times { render.() }
+      number_of_runs = 50
+      ms = KApp.execution_time_ms do
+        number_of_runs.times { render.() }
+      end
+      puts "Rendering 10k dated rows took #{ms.to_f / number_of_runs.to_f}ms"
+    end
+  ensure
+    KApp.cache_invalidate(KJSPluginRuntime::RUNTIME_CACHE)
+  end
 end
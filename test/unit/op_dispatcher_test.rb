@@ -71,6 +71,8 @@ class OpDispatcherTest < Test::Unit::TestCase
 
     # Set up dispatcher and get worker interfaces
     default_policy = OpDispatcher::Policy.new()
+    default_policy.numberOfWorkers = 4 # fixed number of workers, whatever the configuration
+    default_policy.minimumWorkers = 4
     dispatcher = OpDispatcher.new(default_policy)
 
     supervisor = TestOpWorkerSupervisor.new
@@ -109,32 +111,32 @@ class OpDispatcherTest < Test::Unit::TestCase
     op1 = worker1.getNextWork()
     op2 = worker2.getNextWork()
     assert_equal "ABC", op0.string # 1234
-    assert_equal "DEF", op1.string # 1234
-    assert_equal "012", op2.string  # 2354 NOT "XYZ" because of two app rule
+    assert_equal "012", op1.string # 2354 because apps take turns within a priority class
+    assert_equal "DEF", op2.string # 1234
     assert notifications.empty?
     worker0.finishedWork(op0, TestOperation.new("PING"), nil, WorkerState::OK) # app 1234
     check_notification(notifications, :notifyOperationComplete, "PING") # string value comes from completed op
-    op0 = worker0.getNextWork() # 1234
-    assert_equal "XYZ", op0.string  # as 1234 had a task finish
-    op3 = worker3.getNextWork() # 2354
-    assert_equal "872", op3.string # 2354
-    worker2.finishedWork(op2, TestOperation.new("HELLO"), nil, WorkerState::OK) # app 2354
+    op0 = worker0.getNextWork() # 2354
+    assert_equal "872", op0.string  # 2354's turn again
+    op3 = worker3.getNextWork() # 1234
+    assert_equal "XYZ", op3.string # 1234 as it had a task finish
+    worker1.finishedWork(op1, TestOperation.new("HELLO"), nil, WorkerState::OK) # app 2354
     check_notification(notifications, :notifyOperationComplete, "HELLO")
-    op2 = worker2.getNextWork()
-    assert_equal nil, op2 # because two 1234 tasks still in flight, and all 2354 task are returned or in flight
-    worker0.finishedWork(op0, TestOperation.new("HELLO3"), nil, WorkerState::OK) # 1234
+    op1 = worker1.getNextWork()
+    assert_equal nil, op1 # because two 1234 tasks still in flight, and all 2354 task are returned or in flight
+    worker2.finishedWork(op2, TestOperation.new("HELLO3"), nil, WorkerState::OK) # 1234
     check_notification(notifications, :notifyOperationComplete, "HELLO3")
     op2 = worker2.getNextWork()
     assert_equal "YYY", op2.string
     worker2.finishedWork(op2, TestOperation.new("HELLO2"), nil, WorkerState::OK)
     check_notification(notifications, :notifyOperationComplete, "HELLO2")
     assert_equal nil, worker2.getNextWork()
-    assert_equal false, worker1.isFailed()
+    assert_equal false, worker0.isFailed()
     assert_equal -1, supervisor.last_failure
-    worker1.finishedWork(op1, TestOperation.new("HELLO5"), nil, WorkerState::FAILED) # mark worker as failed, can be done for an exception or on success
-    assert_equal 1, supervisor.last_failure
-    assert_equal true, worker1.isFailed();
-    worker1 = dispatcher.workerConnected(1) # reconnect worker
+    worker0.finishedWork(op0, TestOperation.new("HELLO5"), nil, WorkerState::FAILED) # mark worker as failed, can be done for an exception or on success
+    assert_equal 0, supervisor.last_failure
+    assert_equal true, worker0.isFailed();
+    worker0 = dispatcher.workerConnected(0) # reconnect worker
     check_notification(notifications, :notifyOperationComplete, "HELLO5")
     worker3.finishedWork(op3, TestOperation.new("HELLO6"), nil, WorkerState::OK)
     check_notification(notifications, :notifyOperationComplete, "HELLO6")
@@ -201,6 +203,230 @@ class OpDispatcherTest < Test::Unit::TestCase
     assert_raises(RuntimeException) { dispatcher.queueOperation(TestOperation.new("DEF"), 1234, TestNotifyTarget.new(notifications)) }
   end
 
+  # ------------------------------------------------------------------------------------
+
+  def test_op_dispatcher_priorities
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    dispatcher.useSupervisor(TestOpWorkerSupervisor.new)
+    worker = dispatcher.workerConnected(0)
+    notifications = []
+    ["B1", "B2", "B3"].each do |str|
+      op = TestOperation.new(str)
+      op.setPriority(Operation::Priority::BATCH)
+      dispatcher.queueOperation(op, 1234, TestNotifyTarget.new(notifications))
+    end
+    op = worker.getNextWork()
+    assert_equal "B1", op.string
+    worker.finishedWork(op, TestOperation.new("B1"), nil, WorkerState::OK)
+    ["I1", "I2"].each do |str|
+      op = TestOperation.new(str)
+      op.setPriority(Operation::Priority::INTERACTIVE)
+      dispatcher.queueOperation(op, 2354, TestNotifyTarget.new(notifications))
+    end
+    # Interactive operations overtake the queued batch operations, but don't starve them forever
+    ["I1", "I2", "B2", "B3"].each do |expected|
+      op = worker.getNextWork()
+      assert_equal expected, op.string
+      worker.finishedWork(op, TestOperation.new(expected), nil, WorkerState::OK)
+    end
+    assert_equal nil, worker.getNextWork()
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  def test_op_dispatcher_worker_capacity
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    dispatcher.useSupervisor(TestOpWorkerSupervisor.new)
+    worker = dispatcher.workerConnected(0)
+    worker.setCapacity(2)
+    notifications = []
+    ["A", "B", "C"].each_with_index do |str, index|
+      dispatcher.queueOperation(TestOperation.new(str), 1000 + index, TestNotifyTarget.new(notifications))
+    end
+    op_a = worker.getNextWork()
+    op_b = worker.getNextWork()
+    assert_equal "A", op_a.string
+    assert_equal "B", op_b.string
+    assert_raises(RuntimeException) { worker.getNextWork() } # at capacity
+    assert_raises(RuntimeException) { dispatcher.workerDisconnected(worker) } # running operations
+    # Operations can finish in any order
+    worker.finishedWork(op_b, TestOperation.new("B2"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "B2")
+    op_c = worker.getNextWork()
+    assert_equal "C", op_c.string
+    worker.returnWork(op_c, WorkerState::OK)
+    assert_raises(RuntimeException) { worker.finishedWork(op_c, TestOperation.new("C2"), nil, WorkerState::OK) }
+    worker.finishedWork(op_a, TestOperation.new("A2"), nil, WorkerState::DISCONNECTING)
+    check_notification(notifications, :notifyOperationComplete, "A2")
+    assert_equal false, worker.isConnected()
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  class ScalingTestSupervisor < TestOpWorkerSupervisor
+    def initialize
+      super
+      @started = []
+      @stopped = []
+    end
+    attr_reader :started, :stopped
+    def startWorker(workerNumber)
+      @started << workerNumber
+    end
+    def stopWorker(workerNumber)
+      @stopped << workerNumber
+    end
+  end
+
+  def test_op_dispatcher_scaling
+    policy = OpDispatcher::Policy.new()
+    policy.numberOfWorkers = 3
+    policy.minimumWorkers = 1
+    policy.queueLengthPerWorker = 2
+    policy.minimumTimeBetweenScaling = 0
+    policy.idleTimeBeforeStop = 0
+    policy.maxLoadPerProcessor = 1000000.0
+    policy.minimumAvailableMemory = 0
+    dispatcher = OpDispatcher.new(policy)
+    supervisor = ScalingTestSupervisor.new
+    dispatcher.useSupervisor(supervisor)
+    worker0 = dispatcher.workerConnected(0)
+    notifications = []
+    # Queue builds up, so more workers are started
+    6.times do |i|
+      dispatcher.queueOperation(TestOperation.new("S#{i}"), 1000 + i, TestNotifyTarget.new(notifications))
+    end
+    assert_equal [1, 2], supervisor.started
+    worker1 = dispatcher.workerConnected(1)
+    worker2 = dispatcher.workerConnected(2)
+    # Run everything in the queue
+    [worker0, worker1, worker2, worker0, worker1, worker2].each do |worker|
+      op = worker.getNextWork()
+      worker.finishedWork(op, TestOperation.new(op.string), nil, WorkerState::OK)
+      notifications.pop
+    end
+    # Idle workers are stopped, highest numbered first, down to the minimum
+    assert_equal nil, worker1.getNextWork()
+    assert_equal [], supervisor.stopped
+    assert_equal nil, worker2.getNextWork()
+    assert_equal [2], supervisor.stopped
+    assert_equal nil, worker1.getNextWork()
+    assert_equal nil, worker0.getNextWork()
+    assert_equal [2, 1], supervisor.stopped
+    # Stopping worker isn't given any more work
+    dispatcher.queueOperation(TestOperation.new("LAST"), 1000, TestNotifyTarget.new(notifications))
+    assert_equal nil, worker1.getNextWork()
+    assert_equal "LAST", worker0.getNextWork().string
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  class TestQueuer
+    include Java::OrgHaploOp::OpQueuer
+    def initialize(dispatcher)
+      @dispatcher = dispatcher
+    end
+    def queueOperation(operation, notifyTarget)
+      @dispatcher.queueOperation(operation, 1000, notifyTarget)
+    end
+    def cancelOperation(operation)
+      @dispatcher.cancelQueuedOperation(operation)
+    end
+  end
+
+  def test_operation_submit
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    dispatcher.useSupervisor(TestOpWorkerSupervisor.new)
+    worker = dispatcher.workerConnected(0)
+    queuer = TestQueuer.new(dispatcher)
+    # Future is completed with the operation when the result arrives
+    op = TestOperation.new("F1")
+    future = op.submit(queuer, 0)
+    assert_equal false, future.isDone()
+    work = worker.getNextWork()
+    worker.finishedWork(work, TestOperation.new("F1 DONE"), nil, WorkerState::OK)
+    assert future.get().equal?(op)
+    assert_equal "F1 DONE", op.string
+    # Cancelling removes the operation from the queue
+    future = TestOperation.new("F2").submit(queuer, 0)
+    assert_equal true, future.cancel(false)
+    assert_equal nil, worker.getNextWork()
+    assert_equal false, dispatcher.cancelQueuedOperation(future.getOperation())
+    # Deadline completes the future with an exception and removes the operation from the queue
+    future = TestOperation.new("F3").submit(queuer, 10)
+    assert_raises(Java::JavaUtilConcurrent::ExecutionException) { future.get() }
+    assert future.isCompletedExceptionally()
+    assert_equal nil, worker.getNextWork()
+    # Exceptions from the operation are passed on
+    future = TestOperation.new("F4").submit(queuer, 0)
+    work = worker.getNextWork()
+    worker.finishedWork(work, nil, RuntimeException.new("Failed"), WorkerState::OK)
+    assert future.isCompletedExceptionally()
+    # Operations which have been dispatched can't be removed from the queue
+    future = TestOperation.new("F5").submit(queuer, 0)
+    work = worker.getNextWork()
+    future.cancel(false)
+    assert_equal false, dispatcher.cancelQueuedOperation(work)
+    worker.finishedWork(work, TestOperation.new("F5 DONE"), nil, WorkerState::OK)
+    assert future.isCancelled()
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  def test_operation_perform_timeout
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    dispatcher.useSupervisor(TestOpWorkerSupervisor.new)
+    worker = dispatcher.workerConnected(0)
+    queuer = TestQueuer.new(dispatcher)
+    # Default set by org.haplo.op.performtimeout is 30 minutes
+    default_timeout = Operation.getPerformTimeout()
+    assert_equal 30*60*1000, default_timeout
+    # waitForResult() throws the exception from the operation
+    future = TestOperation.new("W1").submit(queuer, 0)
+    work = worker.getNextWork()
+    worker.finishedWork(work, nil, RuntimeException.new("Failed"), WorkerState::OK)
+    exception = assert_raises(RuntimeException) { future.waitForResult() }
+    assert_equal "Failed", exception.message
+    # perform() gives up when the timeout is reached, removing the operation from the queue
+    begin
+      Operation.setPerformTimeout(20)
+      assert_raises(Java::OrgHaploOp::OperationTimeoutException) { TestOperation.new("W2").perform(queuer) }
+      assert_equal nil, worker.getNextWork()
+    ensure
+      Operation.setPerformTimeout(default_timeout)
+    end
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  class TestProgressTarget < TestNotifyTarget
+    include Java::OrgHaploOp::OpProgressTarget
+    def notifyOperationProgress(operation, progress)
+      @notify_list << [:notifyOperationProgress, operation.string, progress]
+    end
+  end
+
+  def test_op_dispatcher_progress
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    dispatcher.useSupervisor(TestOpWorkerSupervisor.new)
+    worker = dispatcher.workerConnected(0)
+    worker.setCapacity(2)
+    notifications = []
+    dispatcher.queueOperation(TestOperation.new("P1"), 1000, TestProgressTarget.new(notifications))
+    dispatcher.queueOperation(TestOperation.new("P2"), 1001, TestNotifyTarget.new(notifications))
+    op1 = worker.getNextWork()
+    op2 = worker.getNextWork()
+    # Progress is passed on to targets which want it
+    worker.progressReported(op1, 3)
+    check_notification(notifications, :notifyOperationProgress, "P1", 3)
+    worker.progressReported(op2, 7)
+    assert_equal [], notifications
+    worker.finishedWork(op1, TestOperation.new("P1"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "P1")
+    # Progress can only be reported for operations the worker is running
+    assert_raises(RuntimeException) { worker.progressReported(op1, 4) }
+  end
+
   def check_notification(notifications, *info)
     assert_equal 1, notifications.length
     assert_equal info, notifications.pop
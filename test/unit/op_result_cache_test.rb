@@ -0,0 +1,141 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class OpResultCacheTest < Test::Unit::TestCase
+
+  OpDispatcher = Java::OrgHaploOp::OpDispatcher
+  OpResultCache = Java::OrgHaploOp::OpResultCache
+  Operation = Java::OrgHaploOp::Operation
+  WorkerState = OpDispatcher::WorkerState
+  TextExtract = Java::OrgHaploTextExtract::Text
+
+  class TestNotifyTarget
+    include Java::OrgHaploOp::OpNotifyTarget
+    attr_reader :completed, :exception
+    def notifyOperationComplete(operation)
+      @completed = true
+    end
+    def notifyOperationException(operation, exception)
+      @exception = exception
+    end
+  end
+
+  def test_result_cache
+    base = "#{FILE_UPLOADS_TEMPORARY_DIR}/test_op_result_cache.#{Thread.current.object_id}"
+    FileUtils.rm_rf(base)
+    FileUtils.mkdir_p(base)
+    input = "#{base}/input.txt"
+    File.open(input, "wb") { |f| f.write "Content addressed results" }
+    cache = OpResultCache.new(java.io.File.new("#{base}/cache"), 1024*1024)
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    worker0 = dispatcher.workerConnected(0)
+    worker1 = dispatcher.workerConnected(1)
+
+    # Identical operations queued at the same time are only performed once
+    op1 = TextExtract.new(input)
+    target1 = TestNotifyTarget.new
+    op2 = TextExtract.new(input)
+    target2 = TestNotifyTarget.new
+    cache.queueOperation(dispatcher, op1, 1, target1)
+    cache.queueOperation(dispatcher, op2, 2, target2)
+    work = worker0.getNextWork()
+    assert work.equal?(op1)
+    assert_equal nil, worker1.getNextWork()
+    assert_equal nil, target2.completed
+    result = TextExtract.new(input)
+    Operation.markThreadAsWorker()
+    begin
+      result.performOperationLocally()
+    ensure
+      Operation.unmarkThreadAsWorker()
+    end
+    worker0.finishedWork(work, result, nil, WorkerState::OK)
+    assert_equal true, target1.completed
+    assert_equal true, target2.completed
+    assert op1.getOutput().length > 0
+    assert_equal op1.getOutput(), op2.getOutput()
+
+    # Results are then returned from the cache without being queued, including after reopening the cache
+    [cache, OpResultCache.new(java.io.File.new("#{base}/cache"), 1024*1024)].each do |c|
+      op3 = TextExtract.new(input)
+      target3 = TestNotifyTarget.new
+      c.queueOperation(dispatcher, op3, 3, target3)
+      assert_equal true, target3.completed
+      assert_equal op1.getOutput(), op3.getOutput()
+      assert_equal nil, worker0.getNextWork()
+    end
+
+    # Different contents are a different entry
+    File.open(input, "wb") { |f| f.write "Something else" }
+    op4 = TextExtract.new(input)
+    cache.queueOperation(dispatcher, op4, 4, TestNotifyTarget.new)
+    work = worker0.getNextWork()
+    assert work.equal?(op4)
+    worker0.finishedWork(work, nil, java.lang.RuntimeException.new("Failed"), WorkerState::OK)
+  ensure
+    FileUtils.rm_rf(base)
+  end
+
+  def test_result_cache_evicts_least_recently_used
+    base = "#{FILE_UPLOADS_TEMPORARY_DIR}/test_op_result_cache_lru.#{Thread.current.object_id}"
+    FileUtils.rm_rf(base)
+    FileUtils.mkdir_p(base)
+    inputs = ['A', 'B', 'C'].map do |name|
+      input = "#{base}/input#{name}.txt"
+      File.open(input, "wb") { |f| f.write "Cached result #{name}" }
+      input
+    end
+    dispatcher = OpDispatcher.new(OpDispatcher::Policy.new())
+    worker = dispatcher.workerConnected(0)
+
+    # Find the size of an entry, so the cache can be sized to hold two
+    sizing = OpResultCache.new(java.io.File.new("#{base}/sizing"), 1024*1024)
+    assert_equal true, perform_with_cache(sizing, dispatcher, worker, inputs[0])
+    entry_size = Dir.glob("#{base}/sizing/*.result").map { |f| File.size(f) }.first
+    assert entry_size > 0
+
+    cache = OpResultCache.new(java.io.File.new("#{base}/cache"), (entry_size * 5) / 2)
+    assert_equal true, perform_with_cache(cache, dispatcher, worker, inputs[0])
+    assert_equal true, perform_with_cache(cache, dispatcher, worker, inputs[1])
+    # Use A, so B is the least recently used
+    assert_equal false, perform_with_cache(cache, dispatcher, worker, inputs[0])
+    assert_equal true, perform_with_cache(cache, dispatcher, worker, inputs[2])
+    assert_equal 2, Dir.glob("#{base}/cache/*.result").length
+    # A and C are still cached, B was evicted
+    assert_equal false, perform_with_cache(cache, dispatcher, worker, inputs[0])
+    assert_equal false, perform_with_cache(cache, dispatcher, worker, inputs[2])
+    assert_equal true, perform_with_cache(cache, dispatcher, worker, inputs[1])
+  ensure
+    FileUtils.rm_rf(base)
+  end
+
+  # Returns true if the operation had to be performed, false if the result was cached
+  def perform_with_cache(cache, dispatcher, worker, input)
+    op = TextExtract.new(input)
+    target = TestNotifyTarget.new
+    cache.queueOperation(dispatcher, op, 1, target)
+    work = worker.getNextWork()
+    if work
+      assert work.equal?(op)
+      result = TextExtract.new(input)
+      Operation.markThreadAsWorker()
+      begin
+        result.performOperationLocally()
+      ensure
+        Operation.unmarkThreadAsWorker()
+      end
+      worker.finishedWork(work, result, nil, WorkerState::OK)
+    end
+    assert_equal true, target.completed
+    # Output is the same whether it's performed or cached
+    @outputs ||= {}
+    @outputs[input] ||= op.getOutput()
+    assert_equal @outputs[input], op.getOutput()
+    !!work
+  end
+
+end
@@ -0,0 +1,30 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class RequestAdmissionControllerTest < Test::Unit::TestCase
+
+  AdaptiveRequestAdmissionController = Java::OrgHaploFramework::AdaptiveRequestAdmissionController
+
+  def test_slow_requests_on_idle_application_keep_limit
+    controller = AdaptiveRequestAdmissionController.new(2, 8)
+    20.times { assert controller.acquire(0); controller.release(10) }
+    # A few slow requests, such as exports, when nothing else is happening
+    5.times { assert controller.acquire(0); controller.release(10000) }
+    assert_equal 8, controller.getLimit()
+  end
+
+  def test_slow_requests_when_saturated_reduce_limit
+    controller = AdaptiveRequestAdmissionController.new(2, 8)
+    20.times { assert controller.acquire(0); controller.release(10) }
+    8.times { assert controller.acquire(0) }
+    assert_equal false, controller.acquire(0) # all permits in use
+    controller.release(10000)
+    assert_equal 6, controller.getLimit()
+    assert_equal 7, controller.getInFlight()
+  end
+
+end
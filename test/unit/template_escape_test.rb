@@ -0,0 +1,132 @@
+# Haplo Platform                                     http://haplo.org
+# (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class TemplateEscapeTest < Test::Unit::TestCase
+
+  Escape = Java::OrgHaploTemplateHtml::Escape
+  Context = Java::OrgHaploTemplateHtml::Context
+  MethodHandles = java.lang.invoke.MethodHandles
+  MethodType = java.lang.invoke.MethodType
+
+  # Strings returned from Java are converted to Ruby strings, so whether escapeString() returned
+  # its argument is checked on the Java side, by comparing identity hash codes of the objects.
+  ESCAPE_STRING_IDENTITY = MethodHandles.filterReturnValue(
+    MethodHandles.publicLookup().findStatic(Escape.java_class, "escapeString",
+      MethodType.methodType(java.lang.String.java_class, java.lang.CharSequence.java_class, Context.java_class)),
+    MethodHandles.publicLookup().findStatic(java.lang.System.java_class, "identityHashCode",
+      MethodType.methodType(java.lang.Integer::TYPE, java.lang.Object.java_class)).
+      asType(MethodType.methodType(java.lang.Integer::TYPE, java.lang.String.java_class))
+  )
+
+  def escape(input, context)
+    # Ruby strings implement CharSequence, but not with UTF-16 chars
+    input = java.lang.String.new(input) if input.kind_of?(String)
+    builder = java.lang.StringBuilder.new("[")
+    Escape.escape(input, builder, context)
+    output = builder.toString()
+    assert output.start_with?("[") # appends to existing contents
+    # escapeString() gives the same result
+    assert_equal output[1..-1], Escape.escapeString(input, context)
+    output[1..-1]
+  end
+
+  def java_string(*chars)
+    java.lang.String.new(chars.to_java(:char))
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_text
+    assert_equal "", escape("", Context::TEXT)
+    assert_equal "Plain text, with 'quotes\" and =?%/ é€日本", escape("Plain text, with 'quotes\" and =?%/ é€日本", Context::TEXT)
+    assert_equal "&lt;b&gt;Fish &amp; Chips&lt;/b&gt;", escape("<b>Fish & Chips</b>", Context::TEXT)
+    assert_equal "&amp;&amp;&lt;&lt;&gt;&gt;", escape("&&<<>>", Context::TEXT)
+    assert_equal "é&lt;日本&gt;€", escape("é<日本>€", Context::TEXT)
+    assert_equal "x&amp;", escape("x&", Context::TEXT)
+  end
+
+  def test_attribute_value
+    assert_equal "Safe run, with 'quotes' é€日本 =?%/", escape("Safe run, with 'quotes' é€日本 =?%/", Context::ATTRIBUTE_VALUE)
+    assert_equal "&quot;Fish&quot; &amp; &lt;Chips&gt;", escape('"Fish" & <Chips>', Context::ATTRIBUTE_VALUE)
+    assert_equal "a&quot;", escape('a"', Context::ATTRIBUTE_VALUE)
+  end
+
+  def test_url
+    assert_equal "AZaz09-._~", escape("AZaz09-._~", Context::URL)
+    assert_equal "a%20b%2Fc%3Fd%3De%26f%23%25%2520%22%3C%3E", escape('a b/c?d=e&f#%%20"<>', Context::URL)
+    utf8_encodings(Context::URL)
+  end
+
+  def test_url_path
+    assert_equal "/path/to?a=b&c=d#x:y@z!$'()*+,;[]", escape("/path/to?a=b&c=d#x:y@z!$'()*+,;[]", Context::URL_PATH)
+    assert_equal "/a%20b%22%3C%3E", escape('/a b"<>', Context::URL_PATH)
+    # Valid % escapes are kept, other % characters are escaped
+    assert_equal "/a%20b?c=%2f%2F&d=%41", escape("/a%20b?c=%2f%2F&d=%41", Context::URL_PATH)
+    assert_equal "%252g%25zz%25", escape("%2g%zz%", Context::URL_PATH)
+    assert_equal "x%254", escape("x%4", Context::URL_PATH)
+    utf8_encodings(Context::URL_PATH)
+  end
+
+  def utf8_encodings(context)
+    # 2, 3 and 4 byte UTF-8 sequences
+    assert_equal "%C3%A9", escape("é", context)
+    assert_equal "%DF%BF", escape(java_string(0x7ff), context)
+    assert_equal "%E0%A0%80", escape(java_string(0x800), context)
+    assert_equal "%E2%82%AC", escape("€", context)
+    assert_equal "%EF%BF%BF", escape(java_string(0xffff), context)
+    assert_equal "a%E6%97%A5%E6%9C%AC", escape("a日本", context)
+    # Surrogate pairs are encoded as the code point
+    assert_equal "%F0%9F%98%80", escape("😀", context)
+    assert_equal "%F0%90%80%80x%F4%8F%BF%BF", escape(java_string(0xd800, 0xdc00, 0x78, 0xdbff, 0xdfff), context)
+    # Lone surrogates are replaced with ?, as String.getBytes() does
+    assert_equal "%3F", escape(java_string(0xd83d), context)
+    assert_equal "%3Fx", escape(java_string(0xd83d, 0x78), context)
+    assert_equal "x%3F", escape(java_string(0x78, 0xde00), context)
+    assert_equal "%3F%3F", escape(java_string(0xde00, 0xd83d), context)
+    assert_equal "%3F%F0%9F%98%80", escape(java_string(0xd83d, 0xd83d, 0xde00), context)
+  end
+
+  def test_comment
+    assert_equal "a - b <c> & d", escape("a - b <c> & d", Context::COMMENT)
+    assert_equal "a- -b- --", escape("a--b---", Context::COMMENT)
+  end
+
+  def test_unsafe
+    assert_equal '<a href="x">&amp;</a>', escape('<a href="x">&amp;</a>', Context::UNSAFE)
+  end
+
+  # -----------------------------------------------------------------------------------------------------
+
+  def test_escape_string_returns_input_without_copying
+    returns_input = lambda do |input, context|
+      ESCAPE_STRING_IDENTITY.invokeWithArguments(input, context) == java.lang.System.identityHashCode(input)
+    end
+    [
+      ["Nothing to escape é€日本", Context::TEXT],
+      ["Nothing to escape é€日本", Context::ATTRIBUTE_VALUE],
+      ["Nothing-to_escape.~", Context::URL],
+      ["/nothing/to?escape=x&y", Context::URL_PATH],
+      ["<b>Unsafe</b>", Context::UNSAFE],
+      ["", Context::TEXT]
+    ].each do |string, context|
+      assert returns_input.(java.lang.String.new(string), context), "#{string} #{context}"
+    end
+    [
+      ["<b>", Context::TEXT],
+      ['"', Context::ATTRIBUTE_VALUE],
+      ["é", Context::URL],
+      ["a b", Context::URL_PATH],
+      ["no dashes", Context::COMMENT] # always copied
+    ].each do |string, context|
+      assert !returns_input.(java.lang.String.new(string), context), "#{string} #{context}"
+    end
+    # Other CharSequences are converted to strings
+    assert_equal "abc", Escape.escapeString(java.lang.StringBuilder.new("abc"), Context::TEXT)
+    assert_equal "a&amp;c", Escape.escapeString(java.lang.StringBuilder.new("a&c"), Context::TEXT)
+  end
+
+end